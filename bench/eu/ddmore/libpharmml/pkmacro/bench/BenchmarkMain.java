@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.io.File;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.ddmore.libpharmml.impl.LoggerWrapper;
+
+/**
+ * Entry point for the benchmarks of the translator. The GC profiler is always enabled so that the
+ * normalised allocation rate (gc.alloc.rate.norm, in bytes per operation) is reported next to
+ * the throughput of each benchmark.
+ * 
+ * <p><pre>Usage:
+ * 
+ * <code>
+ * BenchmarkMain [include regexp] [output directory]
+ * </code>
+ * </pre>
+ * 
+ * <p>If an output directory is provided, the results are also written there as a CSV file.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : ".*";
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(include)
+				.addProfiler(GCProfiler.class);
+		if(args.length > 1){
+			options.resultFormat(ResultFormatType.CSV)
+				.result(new File(args[1], "results.csv").getPath());
+		}
+		new Runner(options.build()).run();
+	}
+	
+	/**
+	 * The translator logs every variable it creates. Logging is turned down to warnings in the
+	 * benchmarked JVMs, otherwise the console output would be measured instead of the translation.
+	 */
+	static void quietLogging(){
+		LoggerWrapper.getLogger().setLevel(Level.WARNING);
+	}
+
+}
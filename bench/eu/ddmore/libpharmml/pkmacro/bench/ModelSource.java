@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.PharmML;
+
+/**
+ * In-memory copy of a PharmML model file. The file is read once from the disk, then every call
+ * to {@link #unmarshal()} builds a fresh DOM from the cached bytes, so that the benchmarks never
+ * measure any file access.
+ */
+class ModelSource {
+	
+	/**
+	 * Directory containing the example models, relative to the project root.
+	 */
+	static final String EXAMPLES_DIR = "examples/";
+	
+	private final String fileName;
+	private final byte[] content;
+	private final ILibPharmML libPharmML;
+	
+	private ModelSource(String fileName, byte[] content) {
+		this.fileName = fileName;
+		this.content = content;
+		this.libPharmML = PharmMlFactory.getInstance().createLibPharmML();
+	}
+	
+	/**
+	 * Reads the given example model into memory.
+	 * @param fileName The name of the file located in {@link #EXAMPLES_DIR}.
+	 * @return A new {@link ModelSource} holding the content of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	static ModelSource read(String fileName) throws IOException {
+		InputStream in = new FileInputStream(EXAMPLES_DIR + fileName);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1){
+				out.write(buffer, 0, read);
+			}
+			return new ModelSource(fileName, out.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Unmarshals a new DOM from the cached content of the file.
+	 * @return A new {@link PharmML} instance, not shared with any previous call.
+	 */
+	PharmML unmarshal(){
+		return libPharmML.createDomFromResource(new ByteArrayInputStream(content)).getDom();
+	}
+	
+	String getFileName(){
+		return fileName;
+	}
+
+}
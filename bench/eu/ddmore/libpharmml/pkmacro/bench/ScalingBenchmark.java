@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+
+/**
+ * Time of one translation of a synthetic model of size N (see {@link SyntheticModelGenerator}).
+ * 
+ * <p>The large models take seconds to translate, so each iteration is a single translation of a model
+ * freshly generated before the iteration. The generation is not measured. A single translation of the
+ * smallest models is too short to be timed reliably, so {@link ScalingCurve}, which runs this benchmark for
+ * several sizes and reports how the time grows with N, only checks the growth over the large sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScalingBenchmark {
+	
+	@Param({"10", "100", "1000", "10000", "50000"})
+	public int n;
+	
+	private Translator translator;
+	private IndependentVariable time;
+	private StructuralModel sm;
+	
+	@Setup(Level.Trial)
+	public void init(){
+		BenchmarkMain.quietLogging();
+		translator = new Translator();
+		time = SyntheticModelGenerator.createTime();
+	}
+	
+	@Setup(Level.Iteration)
+	public void generate(){
+		sm = SyntheticModelGenerator.generate(n);
+	}
+	
+	@Benchmark
+	public MacroOutput translate() throws InvalidMacroException {
+		return translator.translate(sm, PharmMLVersion.DEFAULT, time);
+	}
+
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link ScalingBenchmark} for increasing model sizes and prints the translation time against N,
+ * together with the growth exponent between two consecutive sizes: log(t2/t1) / log(N2/N1). An exponent
+ * close to 1 means a linear translation, close to 2 a quadratic one.
+ * 
+ * <p>The small models translate in a fraction of a millisecond, so their times are mostly noise. The
+ * exponent checked against the limit is the slope of the least-squares line through log(t) against log(N)
+ * for the sizes of at least {@value #MIN_FIT_SIZE} only. The process exits with status 1 if this exponent
+ * is greater than the given limit or if a size could not be translated, so it can be used as a guard
+ * against regressions.
+ * 
+ * <p><pre>Usage:
+ * 
+ * <code>
+ * ScalingCurve [comma-separated sizes] [max exponent] [CSV output file]
+ * </code>
+ * </pre>
+ */
+public class ScalingCurve {
+	
+	static final String DEFAULT_SIZES = "10,100,1000,10000,50000";
+	static final double DEFAULT_MAX_EXPONENT = 1.5;
+	static final int MIN_FIT_SIZE = 1000;
+	
+	public static void main(String[] args) throws RunnerException, FileNotFoundException {
+		String[] sizes = parseSizes(args.length > 0 ? args[0] : DEFAULT_SIZES);
+		double maxExponent = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_MAX_EXPONENT;
+		
+		Options options = new OptionsBuilder()
+				.include(ScalingBenchmark.class.getName())
+				.param("n", sizes)
+				.build();
+		Collection<RunResult> results = new Runner(options).run();
+		
+		Map<Integer, Double> times = new TreeMap<Integer, Double>();
+		for(RunResult result : results){
+			times.put(Integer.valueOf(result.getParams().getParam("n")), result.getPrimaryResult().getScore());
+		}
+		
+		boolean failed = false;
+		PrintStream csv = args.length > 2 ? new PrintStream(new File(args[2])) : null;
+		if(csv != null){
+			csv.println("n,time_ms,exponent");
+		}
+		System.out.println("N\ttime (ms)\texponent");
+		Map<Integer, Double> fitted = new TreeMap<Integer, Double>();
+		Integer previousN = null;
+		Double previousTime = null;
+		for(String size : sizes){
+			Integer n = Integer.valueOf(size);
+			Double time = times.get(n);
+			if(time == null){
+				System.out.println(n+"\tfailed");
+				failed = true;
+				continue;
+			}
+			String exponentString = "";
+			if(previousN != null){
+				double exponent = Math.log(time / previousTime) / Math.log(n.doubleValue() / previousN);
+				exponentString = String.format(Locale.ROOT, "%.2f", exponent);
+			}
+			System.out.println(n+"\t"+String.format(Locale.ROOT, "%.3f", time)+"\t"+exponentString);
+			if(csv != null){
+				csv.println(n+","+time+","+exponentString);
+			}
+			if(n >= MIN_FIT_SIZE){
+				fitted.put(n, time);
+			}
+			previousN = n;
+			previousTime = time;
+		}
+		if(csv != null){
+			csv.close();
+		}
+		
+		if(fitted.size() < 2){
+			System.out.println("Less than two sizes of at least "+MIN_FIT_SIZE+", exponent not checked.");
+		} else {
+			double exponent = fitExponent(fitted);
+			System.out.println("Exponent for N >= "+MIN_FIT_SIZE+": "+String.format(Locale.ROOT, "%.2f", exponent));
+			if(exponent > maxExponent){
+				failed = true;
+			}
+		}
+		
+		if(failed){
+			System.err.println("Translation time grows faster than N^"+maxExponent+" or a size failed.");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Fits log(t) = a + b.log(N) by least squares.
+	 * @param times The times against the sizes, at least two different sizes.
+	 * @return The slope b, i.e. the growth exponent of the time.
+	 */
+	static double fitExponent(Map<Integer, Double> times){
+		int count = times.size();
+		double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+		for(Map.Entry<Integer, Double> entry : times.entrySet()){
+			double x = Math.log(entry.getKey().doubleValue());
+			double y = Math.log(entry.getValue());
+			sumX += x;
+			sumY += y;
+			sumXX += x * x;
+			sumXY += x * y;
+		}
+		return (count * sumXY - sumX * sumY) / (count * sumXX - sumX * sumX);
+	}
+	
+	/**
+	 * Parses the comma-separated list of model sizes. Blanks around the sizes are ignored.
+	 * @return The sizes, as strings usable as JMH parameter values.
+	 * @throws IllegalArgumentException If a size is not a positive integer.
+	 */
+	static String[] parseSizes(String list){
+		String[] sizes = list.split(",");
+		for(int i = 0; i < sizes.length; i++){
+			String size = sizes[i].trim();
+			int n;
+			try {
+				n = Integer.parseInt(size);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid model size \""+size+"\"", e);
+			}
+			if(n <= 0){
+				throw new IllegalArgumentException("Model size must be positive: "+n);
+			}
+			sizes[i] = String.valueOf(n);
+		}
+		return sizes;
+	}
+
+}
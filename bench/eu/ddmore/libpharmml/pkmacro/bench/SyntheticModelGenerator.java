@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.util.List;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.AbsorptionMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.CompartmentMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.EliminationMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.IVMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.MacroValue;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacroList;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PeripheralMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.TransferMacro;
+
+/**
+ * Generator of synthetic structural models made of PK macros, used to measure how the translation
+ * scales with the size of the model.
+ * 
+ * <p>A model of size N is made of N units numbered from 1 to N. Unit i contains:
+ * <ul>
+ * <li>compartment(cmt=i, amount=Aci, volume=Vi), the amount Aci being declared as a variable of the
+ * structural model like in the example models,</li>
+ * <li>peripheral(k_i_j, k_j_i) with j = N+i, its amount being generated by the translator (Ap),</li>
+ * <li>transfer(from=i, to=i+1, kt=kti), except for the last unit,</li>
+ * <li>an elimination cycling through the 3 kinds: elimination(cmt=i, k=ki), elimination(cmt=i, V=Vi, CL=CLi)
+ * and elimination(cmt=i, Km=Kmi, Vm=Vmi),</li>
+ * <li>an input: iv(adm=1, cmt=i) for the even units, absorption(adm=2, cmt=i, Tk0=Tk0i) or
+ * absorption(adm=2, cmt=i, ka=kai) for the odd ones, generating new depot compartments (Ad).</li>
+ * </ul>
+ * 
+ * <p>The parameters are referred to in the block {@link #PM_BLK_ID} which is not part of the generated
+ * model, as the translator does not resolve them.
+ */
+class SyntheticModelGenerator {
+	
+	static final String SM_BLK_ID = "sm1";
+	static final String PM_BLK_ID = "pm1";
+	static final String TIME_SYMBOL = "t";
+	
+	/**
+	 * Generates a new structural model of the given size. A new instance is returned by every call, so the
+	 * result can be translated once.
+	 * @param n The number of units of the model.
+	 * @return A new {@link StructuralModel} containing the declared amounts and the {@link PKMacroList}.
+	 */
+	static StructuralModel generate(int n){
+		StructuralModel sm = new StructuralModel();
+		sm.setBlkId(SM_BLK_ID);
+		for(int i = 1;i<=n;i++){
+			VariableDefinition amount = new VariableDefinition();
+			amount.setSymbId(amountName(i));
+			amount.setSymbolType(SymbolType.REAL);
+			sm.getListOfStructuralModelElements().add(amount);
+		}
+		sm.getListOfStructuralModelElements().add(generateMacros(n));
+		return sm;
+	}
+	
+	/**
+	 * Generates the list of macros of a model of the given size, as described in the documentation of this class.
+	 * @param n The number of units of the model.
+	 * @return A new {@link PKMacroList}.
+	 */
+	static PKMacroList generateMacros(int n){
+		PKMacroList list = new PKMacroList();
+		List<PKMacro> macros = list.getListOfMacro();
+		for(int i = 1;i<=n;i++){
+			int periph = n + i;
+			
+			CompartmentMacro compartment = new CompartmentMacro();
+			add(compartment, "cmt", new Rhs(new IntValue(i)));
+			add(compartment, "amount", new Rhs(new SymbolRef(amountName(i))));
+			add(compartment, "volume", new Rhs(parameter("V", i)));
+			macros.add(compartment);
+			
+			PeripheralMacro peripheral = new PeripheralMacro();
+			add(peripheral, "k_"+i+"_"+periph, new Rhs(parameter("k_"+i+"_"+periph)));
+			add(peripheral, "k_"+periph+"_"+i, new Rhs(parameter("k_"+periph+"_"+i)));
+			macros.add(peripheral);
+			
+			if(i < n){
+				TransferMacro transfer = new TransferMacro();
+				add(transfer, "from", new Rhs(new IntValue(i)));
+				add(transfer, "to", new Rhs(new IntValue(i+1)));
+				add(transfer, "kt", new Rhs(parameter("kt", i)));
+				macros.add(transfer);
+			}
+			
+			EliminationMacro elimination = new EliminationMacro();
+			add(elimination, "cmt", new Rhs(new IntValue(i)));
+			switch (i % 3) {
+			case 0:
+				add(elimination, "k", new Rhs(parameter("k", i)));
+				break;
+			case 1:
+				add(elimination, "V", new Rhs(parameter("V", i)));
+				add(elimination, "CL", new Rhs(parameter("CL", i)));
+				break;
+			default:
+				add(elimination, "Km", new Rhs(parameter("Km", i)));
+				add(elimination, "Vm", new Rhs(parameter("Vm", i)));
+				break;
+			}
+			macros.add(elimination);
+			
+			if(i % 2 == 0){
+				IVMacro iv = new IVMacro();
+				add(iv, "adm", new Rhs(new IntValue(1)));
+				add(iv, "cmt", new Rhs(new IntValue(i)));
+				macros.add(iv);
+			} else {
+				AbsorptionMacro absorption = new AbsorptionMacro();
+				add(absorption, "adm", new Rhs(new IntValue(2)));
+				add(absorption, "cmt", new Rhs(new IntValue(i)));
+				if(i % 4 == 1){
+					add(absorption, "Tk0", new Rhs(parameter("Tk0", i)));
+				} else {
+					add(absorption, "ka", new Rhs(parameter("ka", i)));
+				}
+				macros.add(absorption);
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * Creates the independent variable the generated models refer to.
+	 * @return A new {@link IndependentVariable} with the symbId {@link #TIME_SYMBOL}.
+	 */
+	static IndependentVariable createTime(){
+		IndependentVariable t = new IndependentVariable();
+		t.setSymbId(TIME_SYMBOL);
+		return t;
+	}
+	
+	private static String amountName(int i){
+		return "Ac" + i;
+	}
+	
+	private static SymbolRef parameter(String name, int i){
+		return parameter(name + "_" + i);
+	}
+	
+	private static SymbolRef parameter(String symbId){
+		SymbolRef ref = new SymbolRef(symbId);
+		ref.setBlkIdRef(PM_BLK_ID);
+		return ref;
+	}
+	
+	private static void add(PKMacro macro, String argument, Rhs value){
+		MacroValue macroValue = new MacroValue();
+		macroValue.setArgument(argument);
+		macroValue.setAssign(value);
+		macro.getListOfValue().add(macroValue);
+	}
+
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+
+/**
+ * Time of {@link Translator#translate(StructuralModel, PharmMLVersion, IndependentVariable)} for
+ * every model of the examples directory. Run it with the GC profiler (see {@link BenchmarkMain}) to get
+ * the allocation rate per translation.
+ * 
+ * <p>The translation modifies the input {@link StructuralModel} (orders of the derivative variables and
+ * assignments of the targeted ODEs), so the same DOM cannot be translated twice. A pool of {@link #POOL_SIZE}
+ * fresh DOMs is therefore unmarshalled from memory in a {@link Level#Iteration} setup method, and each
+ * iteration is a single invocation translating every model of the pool, so neither the unmarshalling nor
+ * the setup calls are part of the measured time. The score is the time per translation. The unmarshalling
+ * alone is measured by {@link UnmarshalExamplesBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 20)
+@Fork(1)
+public class TranslateExamplesBenchmark {
+	
+	/**
+	 * Number of models translated per iteration.
+	 */
+	static final int POOL_SIZE = 200;
+	
+	@Param({
+		"PKmacros_advan1.xml", "PKmacros_advan2.xml", "PKmacros_advan3.xml", "PKmacros_advan4.xml",
+		"PKmacros_advan10.xml", "PKmacros_advan11.xml", "PKmacros_advan12.xml",
+		"PKmacros_example8.xml", "PKmacros_example9.xml", "PKmacros_example11.xml", "PKmacros_example12.xml",
+		"PKmacros_example13.xml", "PKmacros_example14.xml",
+		"PKmacros_exampleC1a.xml", "PKmacros_exampleC1b.xml", "PKmacros_exampleC2.xml",
+		"PKmacros_exampleC3.xml", "PKmacros_exampleC4.xml",
+		"UseCase3.xml", "UseCase4_2.xml", "UseCase7.xml", "UseCase10.xml"
+	})
+	public String model;
+	
+	private ModelSource source;
+	private Translator translator;
+	
+	private final StructuralModel[] sm = new StructuralModel[POOL_SIZE];
+	private final PharmMLVersion[] version = new PharmMLVersion[POOL_SIZE];
+	private final IndependentVariable[] time = new IndependentVariable[POOL_SIZE];
+	
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		BenchmarkMain.quietLogging();
+		source = ModelSource.read(model);
+		translator = new Translator();
+	}
+	
+	@Setup(Level.Iteration)
+	public void unmarshal(){
+		for(int i = 0; i < POOL_SIZE; i++){
+			PharmML dom = source.unmarshal();
+			sm[i] = dom.getModelDefinition().getListOfStructuralModel().get(0);
+			time[i] = dom.getListOfIndependentVariable().get(0);
+			version[i] = sm[i].getUnmarshalVersion();
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(POOL_SIZE)
+	public void translate(Blackhole bh) throws InvalidMacroException {
+		for(int i = 0; i < POOL_SIZE; i++){
+			bh.consume(translator.translate(sm[i], version[i], time[i]));
+		}
+	}
+
+}
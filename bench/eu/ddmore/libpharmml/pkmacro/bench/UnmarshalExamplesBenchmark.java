@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.ddmore.libpharmml.dom.PharmML;
+
+/**
+ * Throughput of the libPharmML unmarshalling of the example models, from memory. This is the cost
+ * excluded from {@link TranslateExamplesBenchmark}, measured on its own so both numbers can be compared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class UnmarshalExamplesBenchmark {
+	
+	@Param({
+		"PKmacros_advan1.xml", "PKmacros_advan2.xml", "PKmacros_advan3.xml", "PKmacros_advan4.xml",
+		"PKmacros_advan10.xml", "PKmacros_advan11.xml", "PKmacros_advan12.xml",
+		"PKmacros_example8.xml", "PKmacros_example9.xml", "PKmacros_example11.xml", "PKmacros_example12.xml",
+		"PKmacros_example13.xml", "PKmacros_example14.xml",
+		"PKmacros_exampleC1a.xml", "PKmacros_exampleC1b.xml", "PKmacros_exampleC2.xml",
+		"PKmacros_exampleC3.xml", "PKmacros_exampleC4.xml",
+		"UseCase3.xml", "UseCase4_2.xml", "UseCase7.xml", "UseCase10.xml"
+	})
+	public String model;
+	
+	private ModelSource source;
+	
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		BenchmarkMain.quietLogging();
+		source = ModelSource.read(model);
+	}
+	
+	@Benchmark
+	public PharmML unmarshal(){
+		return source.unmarshal();
+	}
+
+}
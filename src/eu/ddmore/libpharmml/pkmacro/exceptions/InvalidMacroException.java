@@ -37,6 +37,11 @@ public class InvalidMacroException extends Exception {
 		this.message = message;
 	}
 	
+	public InvalidMacroException(String message, Throwable cause){
+		super(cause);
+		this.message = message;
+	}
+	
 	@Override
 	public String getMessage() {
 		return message;
@@ -18,6 +18,7 @@
  *******************************************************************************/
 package eu.ddmore.libpharmml.pkmacro.translation;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import eu.ddmore.libpharmml.dom.MasterObjectFactory;
@@ -72,10 +73,24 @@ import eu.ddmore.libpharmml.util.ChainedList;
  * - new absorption compartment, e.g. "Aa" 
  * - adds "+ ka*Aa" to the target compartment "i"
  * - adds the following new ODE "dAa/dt = exp[log(F*Dose)) + log(Ktr) + n*log(Ktr*(t-t_Dose)) - Ktr*(t-t_Dose) - log(n!)] - ka*Aa" 
+ * - with {@link Translator#LOG_GAMMA_TRANSIT}, log(Ktr) and log(n!) are replaced by the new parameters "logKtr = log(Ktr)"
+ * and "logGammaN = gammaln(Ktr*Mtt)", as n+1 = Ktr*Mtt, named after the prefixes of the {@link NamingPolicy}
  * - Note: in this case only the "Aa" compartment in newly created - the new "Ad" compartment as described earlier is redundant.
  * for simplicity (ii) assumes there is only one administration defined with "Ktr/Mtt", otherwise need more compartments and related ODs, i.e. Aa1 with "dAa1/dt=..."
  * - target "Dose"</pre>
  * 
+ * <p><h3>Case 3b: expanded transit compartments</h3>
+ * 
+ * <pre><center><code>oral(adm=a, cmt=i, ka, Ktr, Mtt)</code></center>
+ * If the number of transit compartments n = Ktr*Mtt - 1 is an integer known at translation time and lower than
+ * {@link TranslatorOptions#getTransitChainThreshold()}, the analytic ODE of case 3 is replaced by a chain of n+1
+ * new transit compartments "Atr":
+ * - adds "dAtr[0]/dt = - Ktr*Atr[0]" 
+ * - adds "dAtr[k]/dt = Ktr*Atr[k-1] - Ktr*Atr[k]" for k in 1..n
+ * - new absorption compartment "Aa" with "dAa/dt = Ktr*Atr[n] - ka*Aa"
+ * - adds "+ ka*Aa" to the target compartment "i"
+ * - target "Atr[0]"</pre>
+ * 
  * <p><h2>Example:</h2>
  * 
  * <pre>
@@ -104,6 +119,7 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 	protected final Operand Ktr;
 	protected final Operand Mtt;
 	protected final Operand p;
+	protected final TranslatorOptions options;
 	
 	protected final AbstractCompartment target;
 	
@@ -113,6 +129,9 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 	// Zero-order variables. Must be set if type == Type.ZERO_ORDER
 	protected VariableDefinition zeroOrderRate = null;
 	protected VariableDefinition lastDoseAmountToAd = null;
+	
+	// Expanded transit compartments, from the dosing one to the last one.
+	protected List<DerivativeVariable> transitChain = null;
 		
 	/**
 	 * Minimal contructor.
@@ -128,9 +147,11 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 	 * @param cmt
 	 * @param amount The variable of this compartment (Ad).
 	 * @param vf The {@link VariableFactory} used in the current translation process.
+	 * @param options The settings of the current translation process.
 	 */
 	protected Absorption(Scalar adm, Operand tlag, Operand tk0, Operand ka, Operand ktr, Operand mtt, Operand p,
-			AbstractCompartment target, Type type, Integer cmt, DerivativeVariable amount, VariableFactory vf) {
+			AbstractCompartment target, Type type, Integer cmt, DerivativeVariable amount, VariableFactory vf,
+			TranslatorOptions options) {
 		super(cmt, amount, null, null);
 		this.adm = adm;
 		Tlag = tlag;
@@ -142,9 +163,15 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 		this.type = type;
 		this.p = p;
 		this.vf = vf;
+		this.options = options;
 		
 		if(type.equals(Type.TRANSIT)){
-			generateTransitODE();
+			Integer n = getKnownTransitCount();
+			if(n != null){
+				generateTransitChainODE(n);
+			} else {
+				generateTransitODE();
+			}
 		} else if (type.equals(Type.FIRST_ORDER)) {
 			generateFirstOrderODE();
 		} else {
@@ -152,7 +179,8 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 		}
 	}
 
-	static Absorption fromMacro(CompartmentFactory cf, VariableFactory vf, AbsorptionOralMacro macro) throws InvalidMacroException{
+	static Absorption fromMacro(CompartmentFactory cf, VariableFactory vf, AbsorptionOralMacro macro, 
+			TranslatorOptions options) throws InvalidMacroException{
 		ParamMapper pr = new ParamMapper(macro);
 		
 		Scalar adm;
@@ -196,13 +224,13 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 		DerivativeVariable amount;
 		if(Tk0 != null){
 			type = Type.ZERO_ORDER;
-			amount = vf.createDerivativeVariable(VariableFactory.DEPOT_PREFIX, cmt, macro);
+			amount = vf.createDerivativeVariable(vf.getNamingPolicy().getDepotPrefix(), cmt, macro);
 		} else if(ka != null && (Ktr == null || Mtt == null)){
 			type = Type.FIRST_ORDER;
-			amount = vf.createDerivativeVariable(VariableFactory.DEPOT_PREFIX, cmt, macro);
+			amount = vf.createDerivativeVariable(vf.getNamingPolicy().getDepotPrefix(), cmt, macro);
 		} else if(Ktr != null && Mtt != null){
 			type = Type.TRANSIT;
-			amount = vf.createDerivativeVariable(VariableFactory.ABSORPTION_PREFIX, cmt, macro);
+			amount = vf.createDerivativeVariable(vf.getNamingPolicy().getAbsorptionPrefix(), cmt, macro);
 		} else {
 			throw new InvalidMacroException("Absorption/Oral macro must have the following prameters: "
 					+ "Tk0, ka or [Ktr and Mtt]");
@@ -210,7 +238,7 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 		
 		
 		Absorption abs = new Absorption(adm, Tlag, Tk0, ka, Ktr, Mtt, p, target,
-				type, cmt, amount, vf);
+				type, cmt, amount, vf, options);
 		cf.addCompartment(abs);
 		return abs;
 	}
@@ -223,18 +251,18 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 	
 
 	@Override
-	public void modifyTargetODE() {
+	public void modifyTargetODE(OdeTerms terms) {
 		switch (type) {
 		case ZERO_ORDER:
-			Utils.addOperand(target.getAmount(),Binoperator.PLUS, new SymbolRef(zeroOrderRate.getSymbId()));
+			terms.add(target.getAmount(),Binoperator.PLUS, new SymbolRef(zeroOrderRate.getSymbId()));
 			break;
 		case FIRST_ORDER:
 			Binop binop = new Binop(Binoperator.TIMES, ka, new SymbolRef(amount.getSymbId()));
-			Utils.addOperand(target.getAmount(),Binoperator.PLUS, binop);
+			terms.add(target.getAmount(),Binoperator.PLUS, binop);
 			break;
 		default: // transit
 			SymbolRef absorptionComp = new SymbolRef(amount.getSymbId());
-			Utils.addOperand(target.getAmount(),Binoperator.PLUS, new Binop(Binoperator.TIMES, ka, absorptionComp));
+			terms.add(target.getAmount(),Binoperator.PLUS, new Binop(Binoperator.TIMES, ka, absorptionComp));
 			break;
 		}
 	}
@@ -307,11 +335,21 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 		logFDose.setOperator(Unioperator.LOG);
 		logFDose.setValue(new Binop(Binoperator.TIMES, f, doseRef));
 		
+		// log(Ktr) and log(n!) in parameters, only if Ktr can be the value of an operation
+		boolean logGamma = options.isLogGammaTransit() && Ktr instanceof ExpressionValue;
+		
 		// log(Ktr)
-		Uniop logKtr = new Uniop();
-		logKtr.setOperator(Unioperator.LOG);
-		if(Ktr instanceof ExpressionValue){
-			logKtr.setValue((ExpressionValue) Ktr);
+		Operand logKtr;
+		if(logGamma){
+			logKtr = vf.createAndReferNewParameter(vf.getNamingPolicy().getLogKtrPrefix(), ParameterType.INDIVIDUAL, 
+					new Rhs(new Uniop(Unioperator.LOG, (ExpressionValue) Ktr)));
+		} else {
+			Uniop uniop = new Uniop();
+			uniop.setOperator(Unioperator.LOG);
+			if(Ktr instanceof ExpressionValue){
+				uniop.setValue((ExpressionValue) Ktr);
+			}
+			logKtr = uniop;
 		}
 		
 		// n*log(Ktr*(t-t_Dose))
@@ -335,12 +373,18 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 				new Binop(Binoperator.MINUS, t, t_doseRef));
 		
 		// - log(n!)
-		Uniop logn = new Uniop();
-		logn.setOperator(Unioperator.LOG);
-		Uniop fact_n = new Uniop();
-		fact_n.setOperator(Unioperator.FACTORIAL);
-		fact_n.setValue(n);
-		logn.setValue(fact_n);
+		Operand logn;
+		if(logGamma){
+			// log(n!) = gammaln(n+1), with n+1 = Ktr*Mtt. The factorial of the real n is not computed,
+			// so the value stays finite for large n.
+			logn = vf.createAndReferNewParameter(vf.getNamingPolicy().getLogGammaPrefix(), ParameterType.INDIVIDUAL, 
+					new Rhs(new Uniop(Unioperator.GAMMALN, new Binop(Binoperator.TIMES, Ktr, Mtt))));
+		} else {
+			Uniop fact_n = new Uniop();
+			fact_n.setOperator(Unioperator.FACTORIAL);
+			fact_n.setValue(n);
+			logn = new Uniop(Unioperator.LOG, fact_n);
+		}
 		
 		// - ka*Aa
 		Binop kaAa = new Binop(Binoperator.TIMES, ka, new SymbolRef(amount.getSymbId()));
@@ -368,6 +412,89 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 		inputTarget = dose;
 	}
 	
+	/**
+	 * Generates the chain of transit compartments, with the dose given to the first one. The amount of each compartment
+	 * flows to the next one at the rate Ktr, the last one flowing to the absorption compartment.
+	 * @param n The number of transit compartments.
+	 */
+	protected void generateTransitChainODE(int n){
+		transitChain = new ArrayList<DerivativeVariable>(n + 1);
+		String prefix = vf.getNamingPolicy().getTransitPrefix();
+		SymbolRef previous = null;
+		for(int i = 0; i <= n; i++){
+			DerivativeVariable transit = vf.generateDerivativeVariable(prefix, amount.getOriginMacro());
+			SymbolRef transitRef = new SymbolRef(transit.getSymbId());
+			Binop outflow = new Binop(Binoperator.TIMES, Ktr, transitRef);
+			if(previous == null){
+				transit.assign(new Uniop(Unioperator.MINUS, outflow));
+			} else {
+				transit.assign(new Binop(Binoperator.MINUS, new Binop(Binoperator.TIMES, Ktr, previous), outflow));
+			}
+			transitChain.add(transit);
+			previous = transitRef;
+		}
+		
+		// dAa/dt = Ktr*Atr[n] - ka*Aa
+		amount.assign(new Binop(
+				Binoperator.MINUS, 
+				new Binop(Binoperator.TIMES, Ktr, previous), 
+				new Binop(Binoperator.TIMES, ka, new SymbolRef(amount.getSymbId()))));
+		inputTarget = transitChain.get(0);
+	}
+	
+	/**
+	 * Gets the number of transit compartments n = Ktr*Mtt - 1, if the transit absorption must be expanded.
+	 * @return The number of transit compartments, or null if it is not an integer known at translation time or
+	 * if it is greater than the threshold of the translation.
+	 */
+	private Integer getKnownTransitCount(){
+		int threshold = options.getTransitChainThreshold();
+		if(threshold <= 0){
+			return null;
+		}
+		Double ktr = getNumericValue(Ktr);
+		Double mtt = getNumericValue(Mtt);
+		if(ktr == null || mtt == null){
+			return null;
+		}
+		double n = ktr * mtt - 1;
+		long rounded = Math.round(n);
+		if(Math.abs(n - rounded) > 1e-9 * Math.max(1, Math.abs(n)) || rounded < 0 || rounded > threshold){
+			return null;
+		}
+		return Integer.valueOf((int) rounded);
+	}
+	
+	/**
+	 * Gets the value of the given operand, if it is a number or refers to a parameter of the structural model
+	 * assigned to a number.
+	 * @return The value, or null if it's not known at translation time.
+	 */
+	private Double getNumericValue(Operand operand){
+		Scalar scalar = null;
+		if(operand instanceof Scalar){
+			scalar = (Scalar) operand;
+		} else if(operand instanceof SymbolRef && ((SymbolRef) operand).getBlkIdRef() == null){
+			String symbId = ((SymbolRef) operand).getSymbIdRef();
+			for(TransientParameter tp : vf.getDefinedParameters()){
+				if(tp.getSymbolId().equals(symbId)){
+					Rhs assign = tp.containsReference() ? tp.getReference().getAssign() : tp.getAssign();
+					if(assign != null){
+						scalar = assign.getScalar();
+					}
+					break;
+				}
+			}
+		}
+		if(scalar instanceof IntValue){
+			return ((IntValue) scalar).getValue().doubleValue();
+		} else if(scalar instanceof RealValue){
+			return ((RealValue) scalar).getValue();
+		} else {
+			return null;
+		}
+	}
+	
 //	/**
 //	 * Generates the parameter Ktr (transfer rate) with the assignment Ktr = n+1/Mtt.
 //	 * @param n The number of transit compartment
@@ -398,10 +525,14 @@ class Absorption extends AbstractCompartment implements CompartmentTargeter, Inp
 
 	@Override
 	List<CommonVariableDefinition> getVariables() {
-		return new ChainedList<CommonVariableDefinition>()
+		List<CommonVariableDefinition> variables = new ChainedList<CommonVariableDefinition>()
 				.addIfNotNull(amount)
 				.addIfNotNull(zeroOrderRate)
 				.addIfNotNull(lastDoseAmountToAd);
+		if(transitChain != null){
+			variables.addAll(transitChain);
+		}
+		return variables;
 	}
 	
 }
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+
+/**
+ * Translates batches of structural models in parallel.
+ * 
+ * <p>Each model is translated by a separate task submitted to the given {@link ExecutorService}, using the
+ * same {@link Translator}. Every translation has its own variable and compartment factories, so the tasks
+ * don't share any state. The results are returned in the order of the input models, and a model that
+ * can't be translated doesn't prevent the translation of the others. For instance:
+ * 
+ * <pre>
+ * {@code
+ * ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+ * BatchTranslator batch = new BatchTranslator(new Translator(), executor);
+ * for(TranslationResult result : batch.translateDocuments(doms, PharmMLVersion.DEFAULT)){
+ *     if(result.isSuccessful()){
+ *         StructuralModel translated_sm = result.getOutput().getStructuralModel();
+ *     }
+ * }
+ * executor.shutdown();
+ * }
+ * </pre>
+ * 
+ * <p>Each model is translated with the {@link IndependentVariable} of its own document, either given
+ * explicitly or taken from the {@link PharmML} DOM containing it.
+ * 
+ * <p>The executor is owned by the caller and is not shut down by this class. As the translation modifies
+ * the input models, the same {@link StructuralModel} instance must not appear twice in a batch, unless the
+ * translator is set with {@link Translator#PRESERVE_INPUT}.
+ */
+public class BatchTranslator {
+	
+	private final Translator translator;
+	private final ExecutorService executor;
+	
+	/**
+	 * Constructor.
+	 * @param translator The translator used for every model, with its settings.
+	 * @param executor The executor running the translations.
+	 */
+	public BatchTranslator(Translator translator, ExecutorService executor) {
+		if(translator == null || executor == null){
+			throw new IllegalArgumentException("Translator and executor can't be null");
+		}
+		this.translator = translator;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Translates the structural models of the given documents in parallel, and waits for all the translations to
+	 * be complete. Each model is translated with the first {@link IndependentVariable} of its document.
+	 * @param doms The PharmML documents which structural models are to be translated.
+	 * @param version The wanted PharmML version of the outputs.
+	 * @return The {@link TranslationResult} of each structural model, in the order of the documents and of the 
+	 * models within each document.
+	 * @throws InterruptedException If the current thread is interrupted while waiting for the translations.
+	 */
+	public List<TranslationResult> translateDocuments(List<? extends PharmML> doms, PharmMLVersion version) 
+			throws InterruptedException {
+		List<StructuralModel> models = new ArrayList<StructuralModel>();
+		List<IndependentVariable> times = new ArrayList<IndependentVariable>();
+		for(PharmML dom : doms){
+			IndependentVariable t = dom.getListOfIndependentVariable().isEmpty() ? 
+					null : dom.getListOfIndependentVariable().get(0);
+			if(dom.getModelDefinition() != null){
+				for(StructuralModel sm : dom.getModelDefinition().getListOfStructuralModel()){
+					models.add(sm);
+					times.add(t);
+				}
+			}
+		}
+		return translateAll(models, version, times);
+	}
+	
+	/**
+	 * Translates the given structural models in parallel, and waits for all the translations to be complete.
+	 * @param models The structural models to be translated.
+	 * @param version The wanted PharmML version of the outputs.
+	 * @param t The {@link IndependentVariable} corresponding to time, common to all the models. Use 
+	 * {@link #translateDocuments(List, PharmMLVersion)} for models coming from different documents.
+	 * @return The {@link TranslationResult} of each model, in the order of the input models.
+	 * @throws InterruptedException If the current thread is interrupted while waiting for the translations.
+	 */
+	public List<TranslationResult> translate(List<? extends StructuralModel> models, 
+			PharmMLVersion version, IndependentVariable t) throws InterruptedException {
+		return translateAll(models, version, Collections.nCopies(models.size(), t));
+	}
+	
+	/**
+	 * Translates the given structural models in parallel, each one with the time variable of the same index.
+	 */
+	private List<TranslationResult> translateAll(List<? extends StructuralModel> models, 
+			final PharmMLVersion version, List<? extends IndependentVariable> times) throws InterruptedException {
+		List<Callable<MacroOutput>> tasks = new ArrayList<Callable<MacroOutput>>(models.size());
+		for(int i = 0; i < models.size(); i++){
+			final StructuralModel sm = models.get(i);
+			final IndependentVariable t = times.get(i);
+			tasks.add(new Callable<MacroOutput>() {
+				@Override
+				public MacroOutput call() throws InvalidMacroException {
+					return translator.translate(sm, version, t);
+				}
+			});
+		}
+		
+		List<Future<MacroOutput>> futures = executor.invokeAll(tasks);
+		List<TranslationResult> results = new ArrayList<TranslationResult>(futures.size());
+		for(int i = 0; i < futures.size(); i++){
+			StructuralModel sm = models.get(i);
+			try {
+				results.add(new TranslationResult(sm, futures.get(i).get(), null));
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				InvalidMacroException exception;
+				if(cause instanceof InvalidMacroException){
+					exception = (InvalidMacroException) cause;
+				} else if(cause instanceof Error){
+					// Not a problem of the model, like an OutOfMemoryError
+					throw (Error) cause;
+				} else {
+					exception = new InvalidMacroException("Unexpected error during the translation: "+cause, cause);
+				}
+				results.add(new TranslationResult(sm, null, exception));
+			}
+		}
+		return results;
+	}
+
+}
@@ -20,7 +20,6 @@ package eu.ddmore.libpharmml.pkmacro.translation;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
 
@@ -33,9 +32,11 @@ import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
 class CompartmentFactory {
 	
 	private final Map<Integer, AbstractCompartment> map_compartments;
+	private final IdAllocator ids;
 	
 	CompartmentFactory() {
 		map_compartments = new HashMap<Integer, AbstractCompartment>();
+		ids = new IdAllocator();
 	}
 	
 	/**
@@ -67,6 +68,9 @@ class CompartmentFactory {
 		if(previous != null){
 			throw new InvalidMacroException("Compartment \""+comp.getCmt()+"\" is duplicated");
 		}
+		if(comp.getCmt() != null){
+			ids.book(comp.getCmt());
+		}
 	}
 	
 	/**
@@ -82,13 +86,7 @@ class CompartmentFactory {
 	 * @return The highest compartment id stored within this factory as an {@link Integer}.
 	 */
 	Integer highestCompartmentId(){
-		Integer highest = 0;
-		for(Integer intId : map_compartments.keySet()){
-			if(intId > highest){
-				highest = intId;
-			}
-		}
-		return highest;
+		return ids.highest();
 	}
 	
 	/**
@@ -96,13 +94,7 @@ class CompartmentFactory {
 	 * @return The lowest compartment id aviable as an {@link Integer}.
 	 */
 	Integer lowestAvailableId(){
-		Set<Integer> keys = map_compartments.keySet();
-		for(Integer i = 1;i<10000;i++){ // a safe limit
-			if(!keys.contains(i)){
-				return i;
-			}
-		}
-		return null;
+		return ids.lowestAvailable();
 	}
 	
 	/**
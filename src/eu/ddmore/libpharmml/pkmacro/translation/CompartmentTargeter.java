@@ -28,7 +28,8 @@ interface CompartmentTargeter {
 	/**
 	 * Method executed at the late stage of the translation in order to make sure that
 	 * the targeted compartment has been already created before.
+	 * @param terms The accumulator of the ODE terms of the current translation.
 	 */
-	void modifyTargetODE();
+	void modifyTargetODE(OdeTerms terms);
 	
 }
@@ -117,10 +117,10 @@ class Depot extends AbstractMacro implements InputSource, CompartmentTargeter {
 			Compartment comp = new Compartment(cf.lowestAvailableId(), target, null, null);
 			cf.addCompartment(comp);
 			
-			DerivativeVariable depot_variable = vf.generateDerivativeVariable(VariableFactory.DEPOT_PREFIX, macro);
+			DerivativeVariable depot_variable = vf.generateDerivativeVariable(vf.getNamingPolicy().getDepotPrefix(), macro);
 			absorption = new Absorption(
 					adm, tlag, null, ka, null, null, p, comp, Absorption.Type.FIRST_ORDER, 
-					cf.lowestAvailableId(), depot_variable, vf);
+					cf.lowestAvailableId(), depot_variable, vf, TranslatorOptions.DEFAULT);
 			cf.addCompartment(absorption);
 		} else {
 			ka = null;
@@ -152,10 +152,10 @@ class Depot extends AbstractMacro implements InputSource, CompartmentTargeter {
 	}
 
 	@Override
-	public void modifyTargetODE() {
+	public void modifyTargetODE(OdeTerms terms) {
 		// Executed if the argument "ka" is used
 		if(absorption != null){
-			absorption.modifyTargetODE();
+			absorption.modifyTargetODE(terms);
 		}
 	}
 	
@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.LoggerWrapper;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+
+/**
+ * Persistent cache of translation results, stored in a directory of the local disk.
+ * 
+ * <p>Each result is stored in its own file, named after the fingerprint of the translation inputs (see
+ * {@link TranslationCache}) and containing the output encoded with the {@link MacroOutputBinaryFormat}. The files
+ * are memory-mapped when read, and the output objects are decoded directly from the mapped file. The directory can
+ * be shared by successive runs and by several processes translating models at the same time. For instance:
+ * 
+ * <pre>
+ * {@code
+ * DiskTranslationCache cache = new DiskTranslationCache(new File("pkmacro_cache"), TranslatorOptions.DEFAULT);
+ * MacroOutput output = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+ * }
+ * </pre>
+ * 
+ * <p>A result is written in a temporary file first, which is renamed once complete, so a file with the name
+ * of a fingerprint is never partially written. The files also contain a checksum of the encoded output and the
+ * version of the translator that created them: the implementation version of the library, followed by a digest
+ * of its class files, so a file written by another build is translated again and replaced. If neither can be
+ * found, nothing is stored. A file which can't be read, for instance after a disk failure, is deleted and the
+ * model is translated again. The temporary files left by interrupted processes are deleted
+ * when the cache is created, if they are older than one day.
+ * 
+ * <p>The translations are done with the {@link Translator#PRESERVE_INPUT} setting, and each call returns new
+ * output objects. A result that can't be stored is only logged, as the translation itself succeeded. This is
+ * the case of the outputs containing elements the binary format doesn't support, like function calls.
+ */
+public class DiskTranslationCache {
+	
+	private static final int MAGIC = 0x504B4D43; // "PKMC"
+	/**
+	 * Version of the layout of the files, to be incremented when the layout changes. Version 2 stores the outputs
+	 * with the {@link MacroOutputBinaryFormat}.
+	 */
+	private static final int FORMAT_VERSION = 2;
+	private static final String SUFFIX = ".pkmc";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final long STALE_TEMP_AGE = 24L * 60 * 60 * 1000;
+	
+	private final File directory;
+	private final TranslatorOptions options;
+	private final Translator translator;
+	private final String translatorVersion;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	
+	/**
+	 * Constructor. The directory is created if it doesn't exist.
+	 * @param directory The directory of the cached results.
+	 * @param options The options of the translations.
+	 * @throws IOException If the directory can't be created.
+	 */
+	public DiskTranslationCache(File directory, TranslatorOptions options) throws IOException {
+		if(directory == null || options == null){
+			throw new IllegalArgumentException("Directory and options can't be null");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()){
+			throw new IOException("Unable to create the cache directory "+directory);
+		}
+		this.directory = directory;
+		this.options = options.toBuilder().preserveInput(true).build();
+		this.translator = new Translator(this.options);
+		this.translatorVersion = TranslatorVersion.VALUE;
+		if(translatorVersion == null){
+			LoggerWrapper.getLogger().warning("Unknown translator version, the translations are not stored in "+directory);
+		}
+		deleteStaleTempFiles();
+	}
+	
+	/**
+	 * Gets the options of the translations.
+	 * @return The {@link TranslatorOptions} of this cache, with {@link TranslatorOptions#isPreserveInput()} true.
+	 */
+	public TranslatorOptions getOptions(){
+		return options;
+	}
+	
+	/**
+	 * Gets the directory of the cached results.
+	 * @return The directory as a {@link File}.
+	 */
+	public File getDirectory(){
+		return directory;
+	}
+	
+	/**
+	 * Reads the output of a previous translation of the same content from the disk, or translates the given
+	 * structural model and stores its output.
+	 * @param sm The structural model that contains PK macros to be translated.
+	 * @param version The wanted PharmML version of the output.
+	 * @param t The {@link IndependentVariable} of the model corresponding to time.
+	 * @return A {@link MacroOutput} implementation.
+	 * @throws InvalidMacroException If the translation is not possible because of any invalid
+	 * macro within the model.
+	 * @see Translator#translate(StructuralModel, PharmMLVersion, IndependentVariable)
+	 */
+	public MacroOutput translate(StructuralModel sm, PharmMLVersion version, IndependentVariable t) throws InvalidMacroException {
+		if(translatorVersion == null){
+			misses.incrementAndGet();
+			return translator.translate(sm, version, t);
+		}
+		String key = Fingerprint.of(sm, version, t, options);
+		File file = new File(directory, key + SUFFIX);
+		
+		MacroOutput output = read(file);
+		if(output != null){
+			hits.incrementAndGet();
+			return output;
+		}
+		
+		misses.incrementAndGet();
+		output = translator.translate(sm, version, t);
+		try {
+			write(key, file, output);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			LoggerWrapper.getLogger().warning("Unable to store the translation in "+file+": "+e.getMessage());
+		}
+		return output;
+	}
+	
+	/**
+	 * Reads the output stored in the given file.
+	 * @return The output, or null if the file doesn't exist or is not valid.
+	 */
+	private MacroOutput read(File file){
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			// The mapping stays valid once the file is closed
+			ByteBuffer buffer;
+			try {
+				FileChannel channel = raf.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				raf.close();
+			}
+			if(buffer.remaining() < 12 || buffer.getInt() != MAGIC){
+				throw new IOException("Not a cached translation");
+			}
+			if(buffer.getInt() != FORMAT_VERSION || !translatorVersion.equals(readString(buffer))){
+				// Written by another version, replaced by the next write
+				return null;
+			}
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if(length != buffer.remaining()){
+				throw new IOException("Invalid length");
+			}
+			if(checksum != checksum(buffer)){
+				throw new IOException("Invalid checksum");
+			}
+			return MacroOutputBinaryFormat.decode(buffer);
+		} catch (IOException e) {
+			LoggerWrapper.getLogger().warning("Invalid cached translation "+file+" deleted: "+e.getMessage());
+			file.delete();
+			return null;
+		} catch (RuntimeException e) {
+			LoggerWrapper.getLogger().warning("Invalid cached translation "+file+" deleted: "+e);
+			file.delete();
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes the given output in a temporary file, renamed to the given file once complete.
+	 */
+	private void write(String key, File file, MacroOutput output) throws IOException {
+		byte[] payload;
+		try {
+			payload = MacroOutputBinaryFormat.encode(output);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unsupported output: "+e.getMessage(), e);
+		}
+		byte[] versionBytes = translatorVersion.getBytes("UTF-8");
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		
+		ByteBuffer header = ByteBuffer.allocate(18 + versionBytes.length);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putShort((short) versionBytes.length);
+		header.put(versionBytes);
+		header.putInt(payload.length);
+		header.putInt((int) crc.getValue());
+		
+		File temp = File.createTempFile(key, TEMP_SUFFIX, directory);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(header.array());
+				out.write(payload);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if(!temp.renameTo(file)){
+				// The rename can fail if the file has been written by another process in the meantime
+				if(!file.delete() || !temp.renameTo(file)){
+					if(!file.isFile()){
+						throw new IOException("Unable to rename "+temp+" to "+file);
+					}
+				}
+			}
+		} finally {
+			if(temp.exists()){
+				temp.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Holder of the version of the translator, computed when the first cache is created.
+	 */
+	private static class TranslatorVersion {
+		
+		static final String VALUE = translatorVersion();
+	
+	}
+	
+	/**
+	 * Gets the version of the translator: the implementation version of the library if it's packaged in a jar
+	 * with a manifest, and a digest of the class files of the library.
+	 * @return The version, or null if neither the implementation version nor the class files are available.
+	 */
+	private static String translatorVersion(){
+		Package p = Translator.class.getPackage();
+		String version = p == null ? null : p.getImplementationVersion();
+		String digest;
+		try {
+			digest = codeDigest();
+		} catch (IOException e) {
+			digest = null;
+		} catch (SecurityException e) {
+			digest = null;
+		}
+		if(version == null && digest == null){
+			return null;
+		}
+		return (version == null ? "" : version) + "#" + (digest == null ? "" : digest);
+	}
+	
+	/**
+	 * Computes the digest of the jar containing the translator, or of the class files of the pkmacro
+	 * packages if the classes are read from a directory.
+	 * @return The digest, or null if the location of the classes is not a local file.
+	 */
+	private static String codeDigest() throws IOException {
+		CodeSource source = Translator.class.getProtectionDomain().getCodeSource();
+		if(source == null || source.getLocation() == null){
+			return null;
+		}
+		File location;
+		try {
+			location = new File(source.getLocation().toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			// Not a file URI
+			return null;
+		}
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		if(location.isFile()){
+			digestFile(md, location);
+		} else {
+			String packagePath = Translator.class.getPackage().getName().replace('.', '/');
+			File packageDirectory = new File(location, packagePath.substring(0, packagePath.lastIndexOf('/')));
+			if(!packageDirectory.isDirectory()){
+				return null;
+			}
+			List<File> files = new ArrayList<File>();
+			listFiles(packageDirectory, files);
+			Collections.sort(files);
+			for(File f : files){
+				md.update(f.getPath().substring(location.getPath().length()).getBytes("UTF-8"));
+				digestFile(md, f);
+			}
+		}
+		return Fingerprint.toHex(md.digest());
+	}
+	
+	private static void listFiles(File directory, List<File> files){
+		File[] children = directory.listFiles();
+		if(children != null){
+			for(File child : children){
+				if(child.isDirectory()){
+					listFiles(child, files);
+				} else {
+					files.add(child);
+				}
+			}
+		}
+	}
+	
+	private static void digestFile(MessageDigest md, File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] chunk = new byte[8192];
+			int n;
+			while((n = in.read(chunk)) > 0){
+				md.update(chunk, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static String readString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.getShort()];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	/**
+	 * Computes the checksum of the remaining bytes of the given buffer, without changing its position.
+	 */
+	private static int checksum(ByteBuffer buffer){
+		ByteBuffer view = buffer.duplicate();
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		while(view.hasRemaining()){
+			int n = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return (int) crc.getValue();
+	}
+	
+	private void deleteStaleTempFiles(){
+		final long limit = System.currentTimeMillis() - STALE_TEMP_AGE;
+		File[] stale = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(TEMP_SUFFIX) && f.lastModified() < limit;
+			}
+		});
+		if(stale != null){
+			for(File f : stale){
+				f.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of translations read from the disk.
+	 * @return The number of hits.
+	 */
+	public long getHitCount(){
+		return hits.get();
+	}
+	
+	/**
+	 * Gets the number of translations that were not on the disk, failed ones included.
+	 * @return The number of misses.
+	 */
+	public long getMissCount(){
+		return misses.get();
+	}
+	
+	/**
+	 * Gets the number of translations that couldn't be stored.
+	 * @return The number of write failures.
+	 */
+	public long getWriteFailureCount(){
+		return failures.get();
+	}
+
+}
@@ -140,7 +140,7 @@ class Elimination extends AbstractMacro implements CompartmentTargeter {
 	}
 
 	@Override
-	public void modifyTargetODE() {
+	public void modifyTargetODE(OdeTerms terms) {
 		DerivativeVariable targetVar = target.getAmount();
 		Operand math_el;
 		switch(type){
@@ -168,7 +168,7 @@ class Elimination extends AbstractMacro implements CompartmentTargeter {
 						);
 				break;
 		}
-		Utils.addOperand(targetVar, Binoperator.MINUS, math_el);
+		terms.add(targetVar, Binoperator.MINUS, math_el);
 	}
 
 	@Override
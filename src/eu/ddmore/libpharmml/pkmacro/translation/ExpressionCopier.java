@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.ddmore.libpharmml.dom.commontypes.AnnotationType;
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.FalseBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.InitialCondition;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLRootType;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.StandardAssignable;
+import eu.ddmore.libpharmml.dom.commontypes.StringValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.TrueBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Otherwise;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.PopulationParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.SimpleParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.Expanded;
+
+/**
+ * Deep copy of the translation outputs, and of the variables and expressions of a structural model, built through the constructors and setters
+ * of the DOM classes. The copies can be modified without affecting the original objects.
+ * 
+ * <p>The copied expressions are the ones produced and rewritten by the translation: symbol references, scalars,
+ * binary and unary operations, and piecewise expressions with their conditions. The variables and parameters are
+ * copied with their id and description. The other elements, like function calls or the structured model and the
+ * distribution of an individual parameter, are shared with the original object, and {@link #isComplete()} then
+ * returns false. The variables directly referenced by the conditions are references, and stay shared.
+ */
+final class ExpressionCopier {
+	
+	/**
+	 * Placeholder of the missing parts of an expression, as the stacks don't accept null.
+	 */
+	private static final Object NONE = new Object();
+	
+	private boolean complete = true;
+	
+	/**
+	 * @return false if an element which could not be copied has been shared by one of the copies.
+	 */
+	boolean isComplete(){
+		return complete;
+	}
+	
+	/**
+	 * Copies the structural model of the given output with its elements, and its inputs, which target the copied
+	 * variables.
+	 * @param output The output to be copied.
+	 * @return A new {@link MacroOutput} sharing no variable, parameter or {@link Input} with the given one.
+	 */
+	@SuppressWarnings("deprecation")
+	MacroOutput copy(MacroOutput output){
+		StructuralModel source = output.getStructuralModel();
+		final StructuralModel sm = new StructuralModel();
+		sm.setId(source.getId());
+		sm.setBlkId(source.getBlkId());
+		copyDescription(source, sm);
+		Map<CommonVariableDefinition, CommonVariableDefinition> variables = 
+				new IdentityHashMap<CommonVariableDefinition, CommonVariableDefinition>();
+		for(PharmMLElement el : source.getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				CommonVariableDefinition copy = copy((CommonVariableDefinition) el);
+				variables.put((CommonVariableDefinition) el, copy);
+				sm.getListOfStructuralModelElements().add(copy);
+			} else if(el instanceof PopulationParameter){
+				sm.getListOfStructuralModelElements().add(copy((CommonParameter) el, new PopulationParameter()));
+			} else if(el instanceof IndividualParameter){
+				sm.getListOfStructuralModelElements().add(copy((IndividualParameter) el));
+			} else if(el instanceof SimpleParameter){
+				sm.getListOfStructuralModelElements().add(copy((CommonParameter) el, new SimpleParameter()));
+			} else {
+				complete = false;
+				sm.getListOfStructuralModelElements().add(el);
+			}
+		}
+		final List<Input> inputs = new ArrayList<Input>(output.getListOfInput().size());
+		for(Input input : output.getListOfInput()){
+			CommonVariableDefinition target = variables.get(input.getTarget());
+			if(target == null){
+				complete = false;
+				target = input.getTarget();
+			}
+			inputs.add(new Input(input.getNumber(), input.getType(), 
+					input.getAdm() == null ? null : copy(input.getAdm()), target, 
+					(Operand) copy(input.getTlag()), (Operand) copy(input.getP())));
+		}
+		return new MacroOutput() {
+			@Override
+			public StructuralModel getStructuralModel() {
+				return sm;
+			}
+			@Override
+			public List<Input> getListOfInput() {
+				return inputs;
+			}
+		};
+	}
+	
+	private <T extends CommonParameter> T copy(CommonParameter p, T copy){
+		copy.setId(p.getId());
+		copy.setSymbId(p.getSymbId());
+		copyDescription(p, copy);
+		copy.setAssign(copy(p.getAssign()));
+		return copy;
+	}
+	
+	private IndividualParameter copy(IndividualParameter p){
+		IndividualParameter copy = copy(p, new IndividualParameter());
+		if(p.getStructuredModel() != null || p.getDistribution() != null){
+			// Not copied
+			complete = false;
+			copy.setStructuredModel(p.getStructuredModel());
+			copy.setDistribution(p.getDistribution());
+		}
+		return copy;
+	}
+	
+	private static void copyDescription(PharmMLRootType original, PharmMLRootType copy){
+		AnnotationType description = original.getDescription();
+		if(description != null){
+			AnnotationType descriptionCopy = new AnnotationType();
+			descriptionCopy.setValue(description.getValue());
+			copy.setDescription(descriptionCopy);
+		}
+	}
+	
+	/**
+	 * Copies the given variable, with its id, description, assignment, initial condition and independent variable.
+	 * @param v A {@link VariableDefinition} or a {@link DerivativeVariable}.
+	 * @return A new variable of the same class.
+	 */
+	@SuppressWarnings({ "unchecked", "deprecation" })
+	<T extends CommonVariableDefinition> T copy(T v){
+		CommonVariableDefinition copy;
+		if(v instanceof DerivativeVariable){
+			DerivativeVariable dv = (DerivativeVariable) v;
+			DerivativeVariable dvCopy = new DerivativeVariable(dv.getSymbId(), dv.getSymbolType());
+			dvCopy.setOrder(dv.getOrder());
+			dvCopy.setOriginMacro(dv.getOriginMacro());
+			dvCopy.setOriginatedFromMacro(dv.isOriginatedFromMacro());
+			if(dv.getIndependentVariable() != null){
+				dvCopy.setIndependentVariable(copy(dv.getIndependentVariable()));
+			}
+			if(dv.getInitialCondition() != null){
+				dvCopy.setInitialCondition(copy(dv.getInitialCondition()));
+			}
+			copy = dvCopy;
+		} else if(v instanceof VariableDefinition){
+			copy = new VariableDefinition(v.getSymbId(), v.getSymbolType());
+		} else {
+			throw new IllegalArgumentException("Unsupported variable "+v);
+		}
+		copy.setId(v.getId());
+		copyDescription(v, copy);
+		copy.setAssign(copy(v.getAssign()));
+		return (T) copy;
+	}
+	
+	/**
+	 * @return A new {@link Rhs} with a copy of the content of the given one, or null.
+	 */
+	Rhs copy(Rhs rhs){
+		if(rhs == null){
+			return null;
+		}
+		Rhs copy = new Rhs();
+		Object content = rhs.getContent();
+		if(content instanceof Piecewise){
+			copy.setPiecewise((Piecewise) copy(content));
+		} else if(content instanceof Operand){
+			Utils.setContent(copy, (Operand) copy(content));
+		} else if(content != null){
+			// Other contents, like function calls, are not copied
+			complete = false;
+			return rhs;
+		}
+		return copy;
+	}
+	
+	private InitialCondition copy(InitialCondition ic){
+		InitialCondition copy = new InitialCondition();
+		copy.setId(ic.getId());
+		if(ic.getInitialValue() != null){
+			copy.setInitialValue(new StandardAssignable(copy(ic.getInitialValue().getAssign())));
+		}
+		if(ic.getInitialTime() != null){
+			copy.setInitialTime(new StandardAssignable(copy(ic.getInitialTime().getAssign())));
+		}
+		return copy;
+	}
+	
+	private static SymbolRef copy(SymbolRef ref){
+		return new SymbolRef(ref.getSymbIdRef(), ref.getBlkIdRef());
+	}
+	
+	/**
+	 * Copies the given expression, browsing its operations with an explicit stack so the depth of the expression
+	 * is not limited by the one of the call stack.
+	 * @param root The expression to be copied.
+	 * @return The copy of the expression.
+	 */
+	Object copy(Object root){
+		if(root == null){
+			return null;
+		}
+		Deque<Object> stack = new ArrayDeque<Object>();
+		Deque<Object> results = new ArrayDeque<Object>();
+		push(stack, root);
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof Expanded){
+				results.push(rebuild(((Expanded) item).node, results));
+			} else if(item == NONE){
+				results.push(NONE);
+			} else if(item instanceof Binop){
+				stack.push(new Expanded(item));
+				push(stack, ((Binop) item).getOperand2());
+				push(stack, ((Binop) item).getOperand1());
+			} else if(item instanceof Uniop){
+				stack.push(new Expanded(item));
+				push(stack, ((Uniop) item).getValue());
+			} else if(item instanceof Piecewise){
+				stack.push(new Expanded(item));
+				List<Piece> pieces = ((Piecewise) item).getListOfPiece();
+				for(int i = pieces.size() - 1; i >= 0; i--){
+					push(stack, pieces.get(i).getCondition());
+					push(stack, pieces.get(i).getValue());
+				}
+			} else if(item instanceof Condition){
+				stack.push(new Expanded(item));
+				push(stack, ((Condition) item).getLogicBinop());
+			} else if(item instanceof LogicBinOp){
+				stack.push(new Expanded(item));
+				List<JAXBElement<?>> content = ((LogicBinOp) item).getContent();
+				for(int i = content.size() - 1; i >= 0; i--){
+					push(stack, content.get(i).getValue());
+				}
+			} else if(item instanceof SymbolRef){
+				results.push(copy((SymbolRef) item));
+			} else if(item instanceof Scalar){
+				results.push(copy((Scalar) item));
+			} else {
+				if(!(item instanceof CommonVariableDefinition)){
+					complete = false;
+				}
+				results.push(item);
+			}
+		}
+		return take(results);
+	}
+	
+	/**
+	 * Builds the copy of an element whose parts have been copied, popping the copies of the parts.
+	 */
+	private Object rebuild(Object node, Deque<Object> results){
+		if(node instanceof Binop){
+			Operand second = (Operand) take(results);
+			Operand first = (Operand) take(results);
+			return new Binop(((Binop) node).getOperator(), first, second);
+		} else if(node instanceof Uniop){
+			return new Uniop(((Uniop) node).getOperator(), (ExpressionValue) take(results));
+		} else if(node instanceof Piecewise){
+			int size = ((Piecewise) node).getListOfPiece().size();
+			Piece[] pieces = new Piece[size];
+			for(int i = size - 1; i >= 0; i--){
+				pieces[i] = new Piece();
+				pieces[i].setCondition((Condition) take(results));
+				pieces[i].setValue((ExpressionValue) take(results));
+			}
+			Piecewise copy = new Piecewise();
+			for(Piece piece : pieces){
+				copy.getListOfPiece().add(piece);
+			}
+			return copy;
+		} else if(node instanceof Condition){
+			Condition copy = new Condition();
+			copy.setLogicBinop((LogicBinOp) take(results));
+			if(((Condition) node).getOtherwise() != null){
+				copy.setOtherwise(new Otherwise());
+			}
+			return copy;
+		} else {
+			LogicBinOp logicBinop = (LogicBinOp) node;
+			List<JAXBElement<?>> content = logicBinop.getContent();
+			Object[] values = new Object[content.size()];
+			for(int i = values.length - 1; i >= 0; i--){
+				values[i] = take(results);
+			}
+			LogicBinOp copy = new LogicBinOp();
+			copy.setOp(logicBinop.getOp());
+			for(int i = 0; i < values.length; i++){
+				copy.getContent().add(element(content.get(i), values[i]));
+			}
+			return copy;
+		}
+	}
+	
+	private Scalar copy(Scalar scalar){
+		if(scalar instanceof IntValue){
+			return new IntValue(((IntValue) scalar).getValue());
+		} else if(scalar instanceof RealValue){
+			return new RealValue(((RealValue) scalar).getValue());
+		} else if(scalar instanceof StringValue){
+			return new StringValue(((StringValue) scalar).getValue());
+		} else if(scalar instanceof TrueBoolean){
+			return new TrueBoolean();
+		} else if(scalar instanceof FalseBoolean){
+			return new FalseBoolean();
+		} else {
+			complete = false;
+			return scalar;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static JAXBElement<?> element(JAXBElement<?> original, Object value){
+		JAXBElement<Object> copy = new JAXBElement<Object>(original.getName(),
+				(Class<Object>) original.getDeclaredType(), original.getScope(), value);
+		copy.setNil(original.isNil());
+		return copy;
+	}
+	
+	private static void push(Deque<Object> stack, Object item){
+		stack.push(item == null ? NONE : item);
+	}
+	
+	private static Object take(Deque<Object> results){
+		Object result = results.pop();
+		return result == NONE ? null : result;
+	}
+
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import eu.ddmore.libpharmml.dom.commontypes.FalseBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.StringValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.TrueBoolean;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+
+/**
+ * Numbering of the structures of the expression nodes, used by the passes applied to the translated variables.
+ * Two nodes get the same number if they have the same structure, so the expressions are compared in constant
+ * time once numbered. The operations are numbered by their operator and the numbers of their children, which
+ * must be numbered first.
+ */
+final class ExpressionNumbering {
+	
+	/**
+	 * Numbers of the distinct structures.
+	 */
+	private final Map<Key, Integer> numbers = new HashMap<Key, Integer>();
+	
+	/**
+	 * Numbers of the nodes already met.
+	 */
+	private final Map<Object, Integer> nodeNumbers = new IdentityHashMap<Object, Integer>();
+	private int nextNumber;
+	
+	/**
+	 * Numbers the given operation from the numbers of its children.
+	 * @param node The {@link Binop} or {@link Uniop}.
+	 * @param first The number of the first operand, or of the value of the unary operation.
+	 * @param second The number of the second operand, or null for a unary operation.
+	 * @return The number of the operation.
+	 */
+	Integer numberOperation(Object node, Integer first, Integer second){
+		Object operator;
+		if(node instanceof Binop){
+			operator = ((Binop) node).getOperator();
+		} else {
+			operator = ((Uniop) node).getOperator();
+		}
+		Integer number = number(new Key(operator, first, second));
+		nodeNumbers.put(node, number);
+		return number;
+	}
+	
+	/**
+	 * Numbers a node which is not an operation. The scalars and the references are numbered by their value,
+	 * and the other nodes, like the piecewise expressions, by their identity.
+	 * @param node The node.
+	 * @return The number of the node.
+	 */
+	Integer numberLeaf(Object node){
+		if(node instanceof SymbolRef){
+			SymbolRef ref = (SymbolRef) node;
+			return number(new Key(SymbolRef.class, ref.getSymbIdRef(), ref.getBlkIdRef()));
+		} else if(node instanceof IntValue){
+			return number(new Key(IntValue.class, ((IntValue) node).getValue(), null));
+		} else if(node instanceof RealValue){
+			return number(new Key(RealValue.class, Double.doubleToLongBits(((RealValue) node).getValue()), null));
+		} else if(node instanceof TrueBoolean){
+			return number(new Key(TrueBoolean.class, null, null));
+		} else if(node instanceof FalseBoolean){
+			return number(new Key(FalseBoolean.class, null, null));
+		} else if(node instanceof StringValue){
+			return number(new Key(StringValue.class, ((StringValue) node).getValue(), null));
+		} else {
+			Integer number = nodeNumbers.get(node);
+			if(number == null){
+				number = nextNumber++;
+				nodeNumbers.put(node, number);
+			}
+			return number;
+		}
+	}
+	
+	/**
+	 * Gets the number given to an operation.
+	 * @param node The operation.
+	 * @return Its number, or null if it has not been numbered.
+	 */
+	Integer get(Object node){
+		return nodeNumbers.get(node);
+	}
+	
+	private Integer number(Key key){
+		Integer number = numbers.get(key);
+		if(number == null){
+			number = nextNumber++;
+			numbers.put(key, number);
+		}
+		return number;
+	}
+	
+	/**
+	 * Structure of a node: its operator and the numbers of its children for an operation, or its type and its
+	 * value for a scalar or a reference.
+	 */
+	private static class Key {
+		
+		final Object type;
+		final Object first;
+		final Object second;
+		final int hash;
+		
+		Key(Object type, Object first, Object second) {
+			this.type = type;
+			this.first = first;
+			this.second = second;
+			this.hash = (type.hashCode() * 31 + (first == null ? 0 : first.hashCode())) * 31 
+					+ (second == null ? 0 : second.hashCode());
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && type.equals(other.type) && equal(first, other.first) && equal(second, other.second);
+		}
+		
+		private static boolean equal(Object a, Object b){
+			return a == null ? b == null : a.equals(b);
+		}
+		
+	}
+
+}
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import eu.ddmore.libpharmml.dom.commontypes.Assignable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.Symbol;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+
+/**
+ * Pretty printer for the mathematical expressions, writing directly to an {@link Appendable}.
+ * 
+ * <p>The expression trees are browsed with an explicit stack instead of recursive calls, so the
+ * printing time is linear in the size of the expression and deep expressions, like long ODE
+ * right-hand sides, don't overflow the call stack. The output is the one of the pretty print
+ * functions of {@link Utils}.
+ */
+class ExpressionPrinter {
+	
+	private final Appendable out;
+	
+	/**
+	 * Pending items to be printed. Each item is either a {@link String} to be written as it is, or an
+	 * {@link Operand} to be expanded.
+	 */
+	private final Deque<Object> stack;
+	
+	ExpressionPrinter(Appendable out) {
+		this.out = out;
+		this.stack = new ArrayDeque<Object>();
+	}
+	
+	/**
+	 * Prints the given variable and its assigned expression, as {@link Utils#variableToString(Assignable)}.
+	 * @param v The variable to be printed.
+	 * @throws IOException If the output can't be written.
+	 */
+	<T extends Assignable & Symbol> void printVariable(T v) throws IOException{
+		if(v instanceof DerivativeVariable){
+			out.append("[").append(String.valueOf(((DerivativeVariable) v).getOrder())).append("] d")
+				.append(v.getSymbId()).append("/dt");
+		} else {
+			out.append(v.getSymbId());
+		}
+		out.append(" = ");
+		Rhs rhs = v.getAssign();
+		if(rhs != null){
+			if(rhs.getBinop() != null){
+				printOperand(rhs.getBinop());
+			} else if (rhs.getUniop() != null){
+				printOperand(rhs.getUniop());
+			} else if (rhs.getPiecewise() != null){
+				printPiecewise(rhs.getPiecewise());
+			} else if (rhs.getContent() instanceof Operand){
+				printOperand((Operand) rhs.getContent());
+			} else {
+				out.append(String.valueOf(rhs.getContent()));
+			}
+		}
+	}
+	
+	/**
+	 * Prints the given expression, as {@link Utils#expressionValueToString(ExpressionValue)}.
+	 * @param ev The expression to be printed.
+	 * @throws IOException If the output can't be written.
+	 */
+	void printExpressionValue(ExpressionValue ev) throws IOException{
+		pushExpressionValue(ev);
+		flush();
+	}
+	
+	/**
+	 * Prints the given operand, as {@link Utils#operandToString(Operand)}.
+	 * @param op The operand to be printed.
+	 * @throws IOException If the output can't be written.
+	 */
+	void printOperand(Operand op) throws IOException{
+		pushOperand(op);
+		flush();
+	}
+	
+	/**
+	 * Prints the given piecewise element, as {@link Utils#piecewiseToString(Piecewise)}.
+	 * @param pw The piecewise element to be printed.
+	 * @throws IOException If the output can't be written.
+	 */
+	void printPiecewise(Piecewise pw) throws IOException{
+		for(Piece p : pw.getListOfPiece()){
+			Condition condition = p.getCondition();
+			if(condition.getOtherwise() == null){
+				out.append("if (");
+				if(condition.getLogicBinop() != null){
+					LogicBinOp lb = condition.getLogicBinop();
+					out.append(Utils.objectToString(lb.getContent().get(0).getValue()))
+						.append(" ").append(String.valueOf(lb.getOp())).append(" ")
+						.append(Utils.objectToString(lb.getContent().get(1).getValue()));
+				} else {
+					out.append("null");
+				}
+				out.append(") { ");
+				printExpressionValue(p.getValue());
+				out.append(" } else ");
+			} else {
+				out.append("{ ");
+				printExpressionValue(p.getValue());
+				out.append(" }");
+			}
+		}
+	}
+	
+	/**
+	 * Writes the pending items until the stack is empty.
+	 */
+	private void flush() throws IOException{
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof String){
+				out.append((String) item);
+			} else {
+				expand((Operand) item);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the leaf operands, and pushes the parts of the other ones in reverse order so they
+	 * are popped in their printing order.
+	 */
+	private void expand(Operand op) throws IOException{
+		if(op instanceof SymbolRef){
+			SymbolRef sref = (SymbolRef) op;
+			if(sref.getBlkIdRef() != null){
+				out.append("[").append(sref.getBlkIdRef()).append("]");
+			}
+			out.append(String.valueOf(sref.getSymbIdRef()));
+		} else if(op instanceof Scalar){
+			out.append(String.valueOf(((Scalar) op).valueToString()));
+		} else if(op instanceof Binop){
+			pushBinop((Binop) op);
+		} else if(op instanceof Uniop){
+			Uniop uniop = (Uniop) op;
+			switch (uniop.getOperator()){
+			case MINUS:
+				pushExpressionValue(uniop.getValue());
+				stack.push("- ");
+				break;
+			default:
+				stack.push(")");
+				pushExpressionValue(uniop.getValue());
+				stack.push(uniop.getOperator()+"(");
+				break;
+			}
+		} else {
+			out.append("Unknown operand");
+		}
+	}
+	
+	private void pushBinop(Binop binop){
+		Operand op1 = binop.getOperand1();
+		Operand op2 = binop.getOperand2();
+		switch (binop.getOperator()) {
+			case ATAN2:
+				pushAll("atan2( ", op1, " , ", op2, " )");
+				break;
+			case DIVIDE:
+				pushAll(op1, " / ", op2);
+				break;
+			case LOGX:
+				pushAll(op1, "log ", op2);
+				break;
+			case MAX:
+				pushAll("max{ ", op1, " , ", op2, " }");
+				break;
+			case MIN:
+				pushAll("min{ ", op1, " , ", op2, " }");
+				break;
+			case MINUS:
+				pushAll(op1, " - ", op2);
+				break;
+			case PLUS:
+				pushAll(op1, " + ", op2);
+				break;
+			case POWER:
+				pushAll(op1, " ^ ", op2);
+				break;
+			case REM:
+				pushAll(op1, " % ", op2);
+				break;
+			case ROOT:
+				pushAll(op2, "root( ", op1, " )");
+				break;
+			case TIMES:
+				pushAll(op1, " x ", op2);
+				break;
+			default:
+				pushAll(op1, String.valueOf(binop.getOperator()), op2);
+				break;
+		}
+	}
+	
+	/**
+	 * Pushes the given items so they are printed in the given order.
+	 */
+	private void pushAll(Object... items){
+		for(int i = items.length - 1; i >= 0; i--){
+			if(items[i] instanceof String){
+				stack.push(items[i]);
+			} else {
+				pushOperand((Operand) items[i]);
+			}
+		}
+	}
+	
+	private void pushOperand(Operand op){
+		if(op == null){
+			stack.push("Unknown operand");
+		} else {
+			stack.push(op);
+		}
+	}
+	
+	private void pushExpressionValue(ExpressionValue ev){
+		if(ev instanceof Operand){
+			stack.push(ev);
+		} else {
+			stack.push("ERROR");
+		}
+	}
+
+}
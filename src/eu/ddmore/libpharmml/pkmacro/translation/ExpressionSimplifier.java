@@ -0,0 +1,507 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.expand;
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.isOperation;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.Expanded;
+
+/**
+ * Simplification of the expressions of the translated variables, applied when {@link Translator#SIMPLIFY_EXPRESSIONS}
+ * is set.
+ * 
+ * <p>The expressions are simplified from the leaves to the root with the following rules:
+ * <ul>
+ * <li>the operations on numbers are computed, as long as the result is finite,</li>
+ * <li>the neutral elements are removed (<code>x+0</code>, <code>x-0</code>, <code>x*1</code>, <code>x/1</code>,
+ * <code>x^1</code>),</li>
+ * <li>the absorbing elements replace their operation (<code>x*0</code>, <code>0/x</code>, <code>x^0</code>,
+ * <code>1^x</code>), so the expressions are assumed to have finite values,</li>
+ * <li>the signs are normalized: <code>-x + y</code> becomes <code>y - x</code>, <code>x + -y</code> becomes
+ * <code>x - y</code>, <code>x - -y</code> becomes <code>x + y</code>, <code>-(-x)</code> becomes <code>x</code>
+ * and <code>-(x - y)</code> becomes <code>y - x</code>,</li>
+ * <li><code>log(exp(x))</code> becomes <code>x</code>.</li>
+ * </ul>
+ * The parameters generated by the translation with a number as value, like the bioavailability F = 1 of a transit
+ * absorption without <code>p</code>, are replaced by their value, and removed if they are not referenced anymore.
+ * The values of the piecewise expressions are simplified, but not their conditions. As for the other passes, the
+ * expressions are never modified but rebuilt.
+ */
+final class ExpressionSimplifier {
+	
+	/**
+	 * Values of the generated parameters assigned to a number.
+	 */
+	private final Map<String, Scalar> constants = new HashMap<String, Scalar>();
+	
+	private ExpressionSimplifier() {
+	}
+	
+	/**
+	 * Simplifies the expressions of the given variables and of the parameters generated by the given factory.
+	 * @param variables The translated variables.
+	 * @param vf The factory of the translation, which contains the parameters.
+	 * @param inputs The inputs of the translation, whose references to parameters are kept.
+	 */
+	static void apply(List<CommonVariableDefinition> variables, VariableFactory vf, Collection<Input> inputs){
+		ExpressionSimplifier simplifier = new ExpressionSimplifier();
+		List<TransientParameter> generated = new ArrayList<TransientParameter>();
+		for(TransientParameter tp : vf.getDefinedParameters()){
+			// The parameters of the input model are added by reference, so they must not be modified
+			if(!tp.containsReference()){
+				generated.add(tp);
+				if(tp.getAssign() != null && isNumber(tp.getAssign().getContent())){
+					simplifier.constants.put(tp.getSymbolId(), (Scalar) tp.getAssign().getContent());
+				}
+			}
+		}
+		
+		for(CommonVariableDefinition var : variables){
+			var.setAssign(simplifier.simplify(var.getAssign()));
+		}
+		for(TransientParameter tp : generated){
+			if(!simplifier.constants.containsKey(tp.getSymbolId())){
+				tp.setAssign(simplifier.simplify(tp.getAssign()));
+			}
+		}
+		
+		if(!simplifier.constants.isEmpty()){
+			Set<String> referenced = new HashSet<String>();
+			boolean complete = true;
+			for(CommonVariableDefinition var : variables){
+				complete &= collectReferences(var.getAssign(), referenced);
+			}
+			for(TransientParameter tp : vf.getDefinedParameters()){
+				complete &= collectReferences(tp.getAssign(), referenced);
+			}
+			for(Input input : inputs){
+				complete &= collectReferences(input.getTlag(), referenced);
+				complete &= collectReferences(input.getP(), referenced);
+			}
+			// A parameter is removed only if all the references have been found
+			if(complete){
+				Iterator<TransientParameter> it = vf.getDefinedParameters().iterator();
+				while(it.hasNext()){
+					TransientParameter tp = it.next();
+					if(!tp.containsReference() && simplifier.constants.containsKey(tp.getSymbolId()) 
+							&& !referenced.contains(tp.getSymbolId())){
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Simplifies the content of the given assignment.
+	 * @return The given assignment if nothing is simplified, or a new one.
+	 */
+	private Rhs simplify(Rhs rhs){
+		if(rhs == null || rhs.getContent() == null){
+			return rhs;
+		}
+		Object content = rhs.getContent();
+		Object result = simplify(content);
+		if(result == content){
+			return rhs;
+		}
+		Rhs newRhs = new Rhs();
+		if(result instanceof Piecewise){
+			newRhs.setPiecewise((Piecewise) result);
+		} else {
+			Utils.setContent(newRhs, (Operand) result);
+		}
+		return newRhs;
+	}
+	
+	/**
+	 * Simplifies the given expression, browsing its operations with an explicit stack.
+	 */
+	private Object simplify(Object root){
+		Deque<Object> stack = new ArrayDeque<Object>();
+		Deque<Object> results = new ArrayDeque<Object>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof Expanded){
+				Object node = ((Expanded) item).node;
+				if(node instanceof Binop){
+					Object second = results.pop();
+					Object first = results.pop();
+					results.push(simplifyBinop((Binop) node, (Operand) first, (Operand) second));
+				} else {
+					results.push(simplifyUniop((Uniop) node, (ExpressionValue) results.pop()));
+				}
+			} else if(isOperation(item)){
+				expand(stack, item);
+			} else if(item instanceof SymbolRef){
+				SymbolRef ref = (SymbolRef) item;
+				Scalar value = ref.getBlkIdRef() == null ? constants.get(ref.getSymbIdRef()) : null;
+				results.push(value == null ? ref : copyOf(value));
+			} else if(item instanceof Piecewise){
+				results.push(simplifyPiecewise((Piecewise) item));
+			} else {
+				results.push(item);
+			}
+		}
+		return results.pop();
+	}
+	
+	private Piecewise simplifyPiecewise(Piecewise pw){
+		List<ExpressionValue> values = new ArrayList<ExpressionValue>(pw.getListOfPiece().size());
+		boolean changed = false;
+		for(Piece piece : pw.getListOfPiece()){
+			ExpressionValue value = piece.getValue();
+			ExpressionValue simplified = value == null ? null : (ExpressionValue) simplify(value);
+			changed |= simplified != value;
+			values.add(simplified);
+		}
+		if(!changed){
+			return pw;
+		}
+		Piecewise newPw = new Piecewise();
+		for(int i = 0; i < values.size(); i++){
+			Piece piece = new Piece();
+			piece.setCondition(pw.getListOfPiece().get(i).getCondition());
+			piece.setValue(values.get(i));
+			newPw.getListOfPiece().add(piece);
+		}
+		return newPw;
+	}
+	
+	/**
+	 * Simplifies a binary operation whose operands have been simplified.
+	 */
+	private static Operand simplifyBinop(Binop binop, Operand a, Operand b){
+		Binoperator op = binop.getOperator();
+		if(isNumber(a) && isNumber(b)){
+			Scalar folded = fold(op, (Scalar) a, (Scalar) b);
+			if(folded != null){
+				return folded;
+			}
+		}
+		Operand simplified = null;
+		switch (op) {
+		case PLUS:
+			if(isValue(a, 0)){
+				simplified = b;
+			} else if(isValue(b, 0)){
+				simplified = a;
+			} else if(negationOf(b) != null){
+				simplified = new Binop(Binoperator.MINUS, a, negationOf(b));
+			} else if(negationOf(a) != null){
+				simplified = new Binop(Binoperator.MINUS, b, negationOf(a));
+			}
+			break;
+		case MINUS:
+			if(isValue(b, 0)){
+				simplified = a;
+			} else if(isValue(a, 0)){
+				simplified = negate(b);
+			} else if(negationOf(b) != null){
+				simplified = new Binop(Binoperator.PLUS, a, negationOf(b));
+			}
+			break;
+		case TIMES:
+			if(isValue(a, 0)){
+				simplified = a;
+			} else if(isValue(b, 0)){
+				simplified = b;
+			} else if(isValue(a, 1)){
+				simplified = b;
+			} else if(isValue(b, 1)){
+				simplified = a;
+			} else if(isValue(a, -1)){
+				simplified = negate(b);
+			} else if(isValue(b, -1)){
+				simplified = negate(a);
+			}
+			break;
+		case DIVIDE:
+			if(isValue(a, 0)){
+				simplified = a;
+			} else if(isValue(b, 1)){
+				simplified = a;
+			} else if(isValue(b, -1)){
+				simplified = negate(a);
+			}
+			break;
+		case POWER:
+			if(isValue(b, 0)){
+				simplified = new IntValue(1);
+			} else if(isValue(b, 1) || isValue(a, 1)){
+				simplified = a;
+			}
+			break;
+		default:
+			break;
+		}
+		if(simplified != null){
+			return simplified;
+		} else if(a == binop.getOperand1() && b == binop.getOperand2()){
+			return binop;
+		} else {
+			return new Binop(op, a, b);
+		}
+	}
+	
+	/**
+	 * Simplifies a unary operation whose value has been simplified.
+	 */
+	private static ExpressionValue simplifyUniop(Uniop uniop, ExpressionValue value){
+		Unioperator op = uniop.getOperator();
+		if(isNumber(value)){
+			Scalar folded = fold(op, (Scalar) value);
+			if(folded != null){
+				return folded;
+			}
+		}
+		ExpressionValue simplified = null;
+		if(op == Unioperator.MINUS && value instanceof Operand){
+			simplified = (ExpressionValue) negate((Operand) value);
+		} else if(op == Unioperator.LOG && value instanceof Uniop && ((Uniop) value).getOperator() == Unioperator.EXP 
+				&& ((Uniop) value).getValue() instanceof Operand){
+			simplified = ((Uniop) value).getValue();
+		}
+		if(simplified != null){
+			return simplified;
+		} else if(value == uniop.getValue()){
+			return uniop;
+		} else {
+			return new Uniop(op, value);
+		}
+	}
+	
+	/**
+	 * Gets the operand whose negation is the given one, if it is a negative number or a negation.
+	 * @return The negated operand, or null.
+	 */
+	private static Operand negationOf(Operand o){
+		if(isNumber(o) && value((Scalar) o) < 0){
+			return negateNumber((Scalar) o);
+		} else if(o instanceof Uniop && ((Uniop) o).getOperator() == Unioperator.MINUS 
+				&& ((Uniop) o).getValue() instanceof Operand){
+			return (Operand) ((Uniop) o).getValue();
+		} else {
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the negation of the given operand.
+	 */
+	private static Operand negate(Operand o){
+		Operand negation = negationOf(o);
+		if(negation != null){
+			return negation;
+		} else if(isNumber(o)){
+			return negateNumber((Scalar) o);
+		} else if(o instanceof Binop && ((Binop) o).getOperator() == Binoperator.MINUS){
+			return new Binop(Binoperator.MINUS, ((Binop) o).getOperand2(), ((Binop) o).getOperand1());
+		} else {
+			return new Uniop(Unioperator.MINUS, (ExpressionValue) o);
+		}
+	}
+	
+	private static Scalar fold(Binoperator op, Scalar a, Scalar b){
+		if(a instanceof IntValue && b instanceof IntValue){
+			BigInteger x = ((IntValue) a).getValue();
+			BigInteger y = ((IntValue) b).getValue();
+			switch (op) {
+			case PLUS:
+				return new IntValue(x.add(y));
+			case MINUS:
+				return new IntValue(x.subtract(y));
+			case TIMES:
+				return new IntValue(x.multiply(y));
+			default:
+				break;
+			}
+		}
+		double x = value(a);
+		double y = value(b);
+		switch (op) {
+		case PLUS:
+			return real(x + y);
+		case MINUS:
+			return real(x - y);
+		case TIMES:
+			return real(x * y);
+		case DIVIDE:
+			return real(x / y);
+		case POWER:
+			return real(Math.pow(x, y));
+		case MIN:
+			return x <= y ? a : b;
+		case MAX:
+			return x >= y ? a : b;
+		default:
+			return null;
+		}
+	}
+	
+	private static Scalar fold(Unioperator op, Scalar a){
+		double x = value(a);
+		switch (op) {
+		case MINUS:
+			return negateNumber(a);
+		case ABS:
+			return x < 0 ? negateNumber(a) : a;
+		case EXP:
+			return real(Math.exp(x));
+		case LOG:
+			return real(Math.log(x));
+		case LOG10:
+			return real(Math.log10(x));
+		case SQRT:
+			return real(Math.sqrt(x));
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates a real value, or gives null if the value is not finite so the operation is kept.
+	 */
+	private static Scalar real(double value){
+		if(Double.isNaN(value) || Double.isInfinite(value)){
+			return null;
+		}
+		return new RealValue(value);
+	}
+	
+	private static Scalar negateNumber(Scalar a){
+		if(a instanceof IntValue){
+			return new IntValue(((IntValue) a).getValue().negate());
+		} else {
+			return new RealValue(-((RealValue) a).getValue());
+		}
+	}
+	
+	private static Scalar copyOf(Scalar a){
+		if(a instanceof IntValue){
+			return new IntValue(((IntValue) a).getValue());
+		} else {
+			return new RealValue(((RealValue) a).getValue());
+		}
+	}
+	
+	private static boolean isNumber(Object o){
+		if(o instanceof IntValue){
+			return ((IntValue) o).getValue() != null;
+		} else {
+			return o instanceof RealValue;
+		}
+	}
+	
+	private static boolean isValue(Object o, int expected){
+		return isNumber(o) && value((Scalar) o) == expected;
+	}
+	
+	private static double value(Scalar a){
+		if(a instanceof IntValue){
+			return ((IntValue) a).getValue().doubleValue();
+		} else {
+			return ((RealValue) a).getValue();
+		}
+	}
+	
+	/**
+	 * Collects the symbIds of the local references of the given expression.
+	 * @return false if the expression contains an element which could not be browsed.
+	 */
+	private static boolean collectReferences(Object root, Set<String> referenced){
+		Deque<Object> stack = new ArrayDeque<Object>();
+		if(root != null){
+			stack.push(root);
+		}
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof JAXBElement){
+				item = ((JAXBElement<?>) item).getValue();
+			}
+			if(item instanceof Rhs){
+				stack.push(((Rhs) item).getContent());
+			} else if(item instanceof SymbolRef){
+				if(((SymbolRef) item).getBlkIdRef() == null){
+					referenced.add(((SymbolRef) item).getSymbIdRef());
+				}
+			} else if(item instanceof CommonVariableDefinition){
+				// Variables can be directly referenced by the conditions of the piecewise expressions
+				referenced.add(((CommonVariableDefinition) item).getSymbId());
+			} else if(item instanceof Binop){
+				stack.push(((Binop) item).getOperand1());
+				stack.push(((Binop) item).getOperand2());
+			} else if(item instanceof Uniop){
+				stack.push(((Uniop) item).getValue());
+			} else if(item instanceof Piecewise){
+				for(Piece piece : ((Piecewise) item).getListOfPiece()){
+					stack.push(piece.getValue());
+					stack.push(piece.getCondition());
+				}
+			} else if(item instanceof Condition){
+				Condition condition = (Condition) item;
+				if(condition.getLogicBinop() != null){
+					stack.push(condition.getLogicBinop());
+				} else if(condition.getOtherwise() == null){
+					return false;
+				}
+			} else if(item instanceof LogicBinOp){
+				for(JAXBElement<?> el : ((LogicBinOp) item).getContent()){
+					stack.push(el);
+				}
+			} else if(item != null && !(item instanceof Scalar)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
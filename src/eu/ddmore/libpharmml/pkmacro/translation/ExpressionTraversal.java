@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+
+/**
+ * Browsing of the operations of the expressions with an explicit stack, shared by the passes applied to the
+ * translated variables, so the depth of an expression is not limited by the one of the call stack.
+ * 
+ * <p>An operation is browsed in post-order by pushing it with {@link #expand(Deque, Object)}: its children
+ * are popped first, then the {@link Expanded} marker tells that the results of its children are available.
+ * {@link #rebuild(Object, Replacement)} uses it to replace some operations of an expression without modifying
+ * it, the operations containing a replaced one being rebuilt.
+ */
+final class ExpressionTraversal {
+	
+	private ExpressionTraversal() {
+	}
+	
+	/**
+	 * Tells if the given node is a complete binary or unary operation. The incomplete ones are handled as leaves.
+	 * @param node The node.
+	 * @return True if the node is a {@link Binop} with its operator and operands, or a {@link Uniop} with its
+	 * operator and value.
+	 */
+	static boolean isOperation(Object node){
+		if(node instanceof Binop){
+			Binop binop = (Binop) node;
+			return binop.getOperator() != null && binop.getOperand1() != null && binop.getOperand2() != null;
+		} else if(node instanceof Uniop){
+			Uniop uniop = (Uniop) node;
+			return uniop.getOperator() != null && uniop.getValue() != null;
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Pushes the children of the given operation, so that the first operand is popped first.
+	 * @param stack The stack of the nodes to be browsed.
+	 * @param operation The operation, see {@link #isOperation(Object)}.
+	 */
+	static void pushChildren(Deque<Object> stack, Object operation){
+		if(operation instanceof Binop){
+			stack.push(((Binop) operation).getOperand2());
+			stack.push(((Binop) operation).getOperand1());
+		} else {
+			stack.push(((Uniop) operation).getValue());
+		}
+	}
+	
+	/**
+	 * Pushes the given operation so that its children are handled before its {@link Expanded} marker is popped.
+	 * @param stack The stack of the nodes to be browsed.
+	 * @param operation The operation, see {@link #isOperation(Object)}.
+	 */
+	static void expand(Deque<Object> stack, Object operation){
+		stack.push(new Expanded(operation));
+		pushChildren(stack, operation);
+	}
+	
+	/**
+	 * Rebuilds the given expression with some of its operations replaced. The operations are browsed from the
+	 * root, so a replaced operation is not browsed. The expression is not modified: the operations containing a
+	 * replaced one are new, the other ones are kept.
+	 * @param root The expression.
+	 * @param replacement The replacement of the operations.
+	 * @return The rebuilt expression, or the given one if nothing has been replaced.
+	 */
+	static Object rebuild(Object root, Replacement replacement){
+		Deque<Object> stack = new ArrayDeque<Object>();
+		Deque<Object> results = new ArrayDeque<Object>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof Expanded){
+				Object node = ((Expanded) item).node;
+				if(node instanceof Binop){
+					Binop binop = (Binop) node;
+					Operand second = (Operand) results.pop();
+					Operand first = (Operand) results.pop();
+					if(first == binop.getOperand1() && second == binop.getOperand2()){
+						results.push(binop);
+					} else {
+						results.push(new Binop(binop.getOperator(), first, second));
+					}
+				} else {
+					Uniop uniop = (Uniop) node;
+					ExpressionValue value = (ExpressionValue) results.pop();
+					if(value == uniop.getValue()){
+						results.push(uniop);
+					} else {
+						results.push(new Uniop(uniop.getOperator(), value));
+					}
+				}
+			} else if(isOperation(item)){
+				Object replaced = replacement.replace(item);
+				if(replaced != null){
+					results.push(replaced);
+				} else {
+					expand(stack, item);
+				}
+			} else {
+				results.push(item);
+			}
+		}
+		return results.pop();
+	}
+	
+	/**
+	 * Replacement of the operations of an expression rebuilt by {@link ExpressionTraversal#rebuild(Object, Replacement)}.
+	 */
+	interface Replacement {
+		
+		/**
+		 * Gets the replacement of the given operation.
+		 * @param operation The operation.
+		 * @return The node replacing the operation, or null to keep it and browse its children.
+		 */
+		Object replace(Object operation);
+	
+	}
+	
+	/**
+	 * Marker of an operation, or any other node, whose children have been handled.
+	 */
+	static final class Expanded {
+		
+		final Object node;
+		
+		Expanded(Object node) {
+			this.node = node;
+		}
+	
+	}
+
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+
+/**
+ * Canonical fingerprint of the inputs of a translation, used as a key by the {@link TranslationCache}.
+ * 
+ * <p>The fingerprint is a SHA-256 digest of a canonical form of the structural model, the PharmML version,
+ * the time variable and the translator options. The canonical form is built by browsing the object graph:
+ * the PharmML objects are described by their class and the values of their fields, sorted by name, excluding
+ * the static, transient and {@code @XmlTransient} ones. The name of a class is only written the first time,
+ * then replaced by an index. Objects from other libraries are only described by their class, as they don't
+ * carry any content relevant to the translation. An object met twice is written as a reference to its first
+ * occurrence, so two models with the same content but different sharing of their objects may have different
+ * fingerprints, which is only a missed cache hit. The canonical form starts with its {@link #FORMAT_VERSION},
+ * so changing the encoding changes every fingerprint instead of mixing keys of different encodings.
+ */
+final class Fingerprint {
+	
+	/**
+	 * Version of the canonical form. Version 2 writes the name of each class once, then its index.
+	 */
+	static final int FORMAT_VERSION = 2;
+	
+	private static final String DOM_PACKAGE = "eu.ddmore.libpharmml.";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private static final Map<Class<?>, Field[]> fieldsByClass = new ConcurrentHashMap<Class<?>, Field[]>();
+	
+	private final StringBuilder sb;
+	private final Map<Object, Integer> visited;
+	private final Map<Class<?>, Integer> classes;
+	
+	private Fingerprint() {
+		sb = new StringBuilder();
+		visited = new IdentityHashMap<Object, Integer>();
+		classes = new IdentityHashMap<Class<?>, Integer>();
+	}
+	
+	/**
+	 * Computes the fingerprint of a translation.
+	 * @param sm The input structural model.
+	 * @param version The wanted PharmML version of the output.
+	 * @param t The time variable, possibly null.
+	 * @param options The options of the translation.
+	 * @return The fingerprint as an hexadecimal string.
+	 */
+	static String of(StructuralModel sm, PharmMLVersion version, IndependentVariable t, TranslatorOptions options){
+		Fingerprint fp = new Fingerprint();
+		fp.sb.append('v').append(FORMAT_VERSION).append(';');
+		fp.write(version);
+		fp.write(t);
+		fp.write(options);
+		if(options.getNamingPolicy() == null){
+			// The naming is then read from the static prefixes when translating
+			fp.write(NamingPolicy.fromStaticPrefixes());
+		}
+		fp.write(sm);
+		return fp.digest();
+	}
+	
+	/**
+	 * Gets the canonical form of the given object, from which the fingerprints are computed. Two objects
+	 * with the same content have the same canonical form.
+	 * @param o The object, e.g. a macro.
+	 * @return The canonical form as a string.
+	 */
+	static String canonical(Object o){
+		Fingerprint fp = new Fingerprint();
+		fp.write(o);
+		return fp.sb.toString();
+	}
+	
+	private String digest(){
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Writes the given bytes in hexadecimal.
+	 * @param hash The bytes, e.g. a digest.
+	 * @return The lower case hexadecimal string.
+	 */
+	static String toHex(byte[] hash){
+		char[] hex = new char[hash.length * 2];
+		for(int i = 0; i < hash.length; i++){
+			hex[2*i] = HEX[(hash[i] >> 4) & 0xF];
+			hex[2*i+1] = HEX[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+	
+	private void write(Object o){
+		if(o == null){
+			sb.append('~');
+		} else if(o instanceof String){
+			String s = (String) o;
+			sb.append('"').append(s.length()).append(':').append(s);
+		} else if(o instanceof Number || o instanceof Boolean || o instanceof Character || o instanceof Enum){
+			writeClass(o.getClass());
+			sb.append(o).append(';');
+		} else if(o instanceof Class){
+			sb.append("class=").append(((Class<?>) o).getName()).append(';');
+		} else if(visited.containsKey(o)){
+			sb.append('@').append(visited.get(o)).append(';');
+		} else {
+			visited.put(o, visited.size());
+			if(o instanceof Collection){
+				sb.append('[');
+				for(Object item : (Collection<?>) o){
+					write(item);
+				}
+				sb.append(']');
+			} else if(o instanceof Map){
+				sb.append('{');
+				for(Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()){
+					write(entry.getKey());
+					write(entry.getValue());
+				}
+				sb.append('}');
+			} else if(o instanceof Object[]){
+				write(Arrays.asList((Object[]) o));
+			} else if(o instanceof JAXBElement){
+				JAXBElement<?> element = (JAXBElement<?>) o;
+				sb.append('<').append(element.getName()).append('>');
+				write(element.getValue());
+			} else if(isPharmMLClass(o.getClass())){
+				writeClass(o.getClass());
+				sb.append('(');
+				for(Field field : fieldsOf(o.getClass())){
+					try {
+						write(field.get(o));
+					} catch (IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				sb.append(')');
+			} else {
+				writeClass(o.getClass());
+			}
+		}
+	}
+	
+	/**
+	 * Writes the name of the given class the first time, then its index.
+	 */
+	private void writeClass(Class<?> clazz){
+		Integer index = classes.get(clazz);
+		if(index == null){
+			classes.put(clazz, classes.size());
+			sb.append('C').append(clazz.getName()).append(';');
+		} else {
+			sb.append('c').append(index).append(';');
+		}
+	}
+	
+	/**
+	 * Checks if the given class is a PharmML class, whose content is described by its fields.
+	 * @param clazz The class.
+	 * @return true if the class belongs to libPharmML or to this library, else false.
+	 */
+	static boolean isPharmMLClass(Class<?> clazz){
+		return clazz.getName().startsWith(DOM_PACKAGE);
+	}
+	
+	/**
+	 * Gets the fields describing the content of the given PharmML class, i.e. its non-static, non-transient
+	 * and non-{@code @XmlTransient} fields, including the inherited ones, sorted by name. The fields are accessible.
+	 * @param clazz The class of a PharmML object.
+	 * @return The content fields of the class.
+	 */
+	static Field[] fieldsOf(Class<?> clazz){
+		Field[] fields = fieldsByClass.get(clazz);
+		if(fields == null){
+			List<Field> list = new ArrayList<Field>();
+			for(Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()){
+				for(Field field : c.getDeclaredFields()){
+					int modifiers = field.getModifiers();
+					if(!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !isXmlTransient(field)){
+						field.setAccessible(true);
+						list.add(field);
+					}
+				}
+			}
+			fields = list.toArray(new Field[list.size()]);
+			Arrays.sort(fields, new FieldComparator());
+			fieldsByClass.put(clazz, fields);
+		}
+		return fields;
+	}
+	
+	private static boolean isXmlTransient(Field field){
+		for(Annotation annotation : field.getAnnotations()){
+			if(annotation.annotationType().getSimpleName().equals("XmlTransient")){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sorts the fields by name, then by declaring class for the fields hidden in subclasses.
+	 */
+	private static class FieldComparator implements Comparator<Field> {
+		
+		@Override
+		public int compare(Field f1, Field f2) {
+			int result = f1.getName().compareTo(f2.getName());
+			if(result == 0){
+				result = f1.getDeclaringClass().getName().compareTo(f2.getDeclaringClass().getName());
+			}
+			return result;
+		}
+	
+	}
+
+}
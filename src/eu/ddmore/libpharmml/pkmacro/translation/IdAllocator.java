@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Allocator of positive integer ids, like compartment numbers or ODE orders. Ids can be booked
+ * explicitly, and the lowest id not booked yet is obtained without browsing the booked ones again,
+ * as the ids are never released.
+ */
+class IdAllocator {
+	
+	/**
+	 * Ids from this value are stored in a set rather than in the bit set, so a single huge id like
+	 * a cmt number of 2^31-1 doesn't allocate a huge bit set.
+	 */
+	private static final int DENSE_LIMIT = 1 << 20;
+	
+	private final BitSet dense;
+	private final Set<Integer> sparse;
+	private int lowest;
+	private int highest;
+	
+	IdAllocator() {
+		dense = new BitSet();
+		sparse = new HashSet<Integer>();
+		lowest = 1;
+		highest = 0;
+	}
+	
+	/**
+	 * Books the given id. Booking an id which is already booked has no effect.
+	 * @param id The id to book.
+	 * @return true if the id was not booked yet, else false.
+	 */
+	boolean book(int id){
+		if(id > highest){
+			highest = id;
+		}
+		if(id >= 1 && id < DENSE_LIMIT){
+			if(dense.get(id)){
+				return false;
+			}
+			dense.set(id);
+			return true;
+		} else {
+			return sparse.add(id);
+		}
+	}
+	
+	/**
+	 * Checks if the given id is booked.
+	 * @param id The tested id.
+	 * @return true if the id is booked, else false.
+	 */
+	boolean isBooked(int id){
+		if(id >= 1 && id < DENSE_LIMIT){
+			return dense.get(id);
+		} else {
+			return sparse.contains(id);
+		}
+	}
+	
+	/**
+	 * Gets the lowest id, starting from 1, which is not booked yet. The id is not booked by this method.
+	 * @return The lowest available id.
+	 */
+	int lowestAvailable(){
+		if(lowest < DENSE_LIMIT){
+			lowest = dense.nextClearBit(lowest);
+		}
+		while(lowest >= DENSE_LIMIT && sparse.contains(lowest)){
+			lowest++;
+		}
+		return lowest;
+	}
+	
+	/**
+	 * Books and returns the lowest id, starting from 1, which was not booked yet.
+	 * @return The booked id.
+	 */
+	int bookLowestAvailable(){
+		int id = lowestAvailable();
+		book(id);
+		return id;
+	}
+	
+	/**
+	 * Gets the highest booked id.
+	 * @return The highest booked id, or 0 if no positive id is booked.
+	 */
+	int highest(){
+		return highest;
+	}
+
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.Collections;
+import java.util.List;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+
+/**
+ * Parts of a PharmML document required by the macro translation, as read by {@link MacroInputReader}:
+ * the structural models, with their macros, and the independent variables.
+ */
+public class MacroInput {
+	
+	private final PharmMLVersion version;
+	private final List<IndependentVariable> independentVariables;
+	private final List<StructuralModel> structuralModels;
+	
+	MacroInput(PharmMLVersion version, List<IndependentVariable> independentVariables, List<StructuralModel> structuralModels) {
+		this.version = version;
+		this.independentVariables = Collections.unmodifiableList(independentVariables);
+		this.structuralModels = Collections.unmodifiableList(structuralModels);
+	}
+	
+	/**
+	 * Gets the PharmML version the document was written in.
+	 * @return The {@link PharmMLVersion} of the document, or {@link PharmMLVersion#DEFAULT} if it is not known.
+	 */
+	public PharmMLVersion getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Gets the independent variables declared by the document.
+	 * @return An unmodifiable {@link List} of {@link IndependentVariable}, in document order.
+	 */
+	public List<IndependentVariable> getListOfIndependentVariable() {
+		return independentVariables;
+	}
+	
+	/**
+	 * Gets the structural models of the model definition.
+	 * @return An unmodifiable {@link List} of {@link StructuralModel}, in document order.
+	 */
+	public List<StructuralModel> getListOfStructuralModel() {
+		return structuralModels;
+	}
+
+}
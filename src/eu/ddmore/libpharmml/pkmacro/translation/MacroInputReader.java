@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.IdFactoryImpl;
+import eu.ddmore.libpharmml.impl.NamespaceFilter;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.impl.UnmarshalListener;
+
+/**
+ * Streaming reader of the parts of a PharmML document required by the macro translation.
+ * 
+ * <p>The complete unmarshalling of a PharmML document builds the objects of every block, including the trial
+ * design, the datasets and the modelling steps, while the {@link Translator} only needs the structural models
+ * and the independent variable. This reader goes through the document with a StAX parser, and only builds the
+ * {@link IndependentVariable} elements and the {@link StructuralModel} elements, with their macros. The reading
+ * stops at the end of the model definition, so the blocks written after it are not even parsed.
+ * 
+ * <pre>
+ * {@code
+ * MacroInput input = new MacroInputReader().read(new File("model.xml"));
+ * StructuralModel sm = input.getListOfStructuralModel().get(0);
+ * MacroOutput output = translator.translate(sm, input.getVersion(), input.getListOfIndependentVariable().get(0));
+ * }
+ * </pre>
+ * 
+ * <p>The namespaces of the previous PharmML versions are mapped to the ones of the current version, and the
+ * elements are unmarshalled with the listener of libPharmML, so they have the unmarshal version of the document
+ * as if the complete document was read. The document is not validated, the validation report of libPharmML
+ * requires the complete document. A reader can be shared by several threads.
+ */
+public class MacroInputReader {
+	
+	private static final String CONTEXT_PATH = "eu.ddmore.libpharmml.dom:eu.ddmore.libpharmml.dom.uncertml";
+	private static final String PHARMML_NS = "http://www.pharmml.org/pharmml/";
+	private static final String CURRENT_NS = NamespaceFilter.NS_DEFAULT_MDEF.substring(0, NamespaceFilter.NS_DEFAULT_MDEF.lastIndexOf('/') + 1);
+	
+	private static final String WRITTEN_VERSION = "writtenVersion";
+	private static final String INDEPENDENT_VARIABLE = "IndependentVariable";
+	private static final String MODEL_DEFINITION = "ModelDefinition";
+	private static final String STRUCTURAL_MODEL = "StructuralModel";
+	
+	private static JAXBContext context;
+	
+	private final XMLInputFactory factory;
+	
+	/**
+	 * Constructor.
+	 */
+	public MacroInputReader() {
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+	
+	/**
+	 * Reads the structural models and the independent variables of a PharmML file.
+	 * @param file The PharmML file.
+	 * @return The {@link MacroInput} read from the file.
+	 * @throws IOException If the file can't be read, or if it is not a well-formed PharmML document.
+	 */
+	public MacroInput read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads the structural models and the independent variables of a PharmML document. The stream is not
+	 * closed by this method, and is usually not read until its end.
+	 * @param in The stream of the PharmML document.
+	 * @return The {@link MacroInput} read from the stream.
+	 * @throws IOException If the stream can't be read, or if it is not a well-formed PharmML document.
+	 */
+	public MacroInput read(InputStream in) throws IOException {
+		XMLStreamReader reader = null;
+		try {
+			reader = new NamespaceMapper(factory.createXMLStreamReader(in));
+			return read(reader);
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to read the PharmML document", e);
+		} catch (JAXBException e) {
+			throw new IOException("Unable to read the PharmML document", e);
+		} finally {
+			if(reader != null){
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// nothing left to release
+				}
+			}
+		}
+	}
+	
+	private MacroInput read(XMLStreamReader reader) throws XMLStreamException, JAXBException {
+		Unmarshaller unmarshaller = getContext().createUnmarshaller();
+		PharmMLVersion version = PharmMLVersion.DEFAULT;
+		List<IndependentVariable> independentVariables = new ArrayList<IndependentVariable>();
+		List<StructuralModel> structuralModels = new ArrayList<StructuralModel>();
+		
+		int depth = 0;
+		boolean inModelDefinition = false;
+		int event = reader.getEventType();
+		while(event != XMLStreamConstants.END_DOCUMENT){
+			if(event == XMLStreamConstants.START_ELEMENT){
+				String name = reader.getLocalName();
+				if(depth == 0){
+					version = versionOf(reader.getAttributeValue(null, WRITTEN_VERSION));
+					unmarshaller.setListener(new UnmarshalListener(version, new IdFactoryImpl()));
+				} else if(depth == 1 && name.equals(INDEPENDENT_VARIABLE)){
+					independentVariables.add(unmarshaller.unmarshal(reader, IndependentVariable.class).getValue());
+					event = reader.getEventType();
+					continue;
+				} else if(depth == 1 && name.equals(MODEL_DEFINITION)){
+					inModelDefinition = true;
+				} else if(depth == 2 && inModelDefinition && name.equals(STRUCTURAL_MODEL)
+						&& NamespaceFilter.NS_DEFAULT_MDEF.equals(reader.getNamespaceURI())){
+					structuralModels.add(unmarshaller.unmarshal(reader, StructuralModel.class).getValue());
+					event = reader.getEventType();
+					continue;
+				}
+				depth++;
+			} else if(event == XMLStreamConstants.END_ELEMENT){
+				depth--;
+				if(depth == 1 && inModelDefinition){
+					break;
+				}
+			}
+			event = reader.next();
+		}
+		
+		return new MacroInput(version, independentVariables, structuralModels);
+	}
+	
+	private static PharmMLVersion versionOf(String writtenVersion){
+		for(PharmMLVersion version : PharmMLVersion.values()){
+			if(version.getValue().equals(writtenVersion)){
+				return version;
+			}
+		}
+		return PharmMLVersion.DEFAULT;
+	}
+	
+	/**
+	 * Gets the JAXB context of the PharmML elements, created on the first call. The context is shared by
+	 * the readers and the writers of this package, as its creation is expensive.
+	 */
+	static synchronized JAXBContext getContext() throws JAXBException {
+		if(context == null){
+			context = JAXBContext.newInstance(CONTEXT_PATH);
+		}
+		return context;
+	}
+	
+	static String mapNamespace(String uri){
+		if(uri != null && uri.startsWith(PHARMML_NS)){
+			int end = uri.indexOf('/', PHARMML_NS.length());
+			if(end > 0){
+				return CURRENT_NS + uri.substring(end + 1);
+			}
+		}
+		return uri;
+	}
+	
+	/**
+	 * Maps the namespaces of the previous PharmML versions to the current ones, for the unmarshaller
+	 * and for the reading of the document.
+	 */
+	private static class NamespaceMapper extends StreamReaderDelegate {
+		
+		private final NamespaceContext namespaceContext = new NamespaceContext() {
+			
+			@Override
+			public String getNamespaceURI(String prefix) {
+				return mapNamespace(getParent().getNamespaceContext().getNamespaceURI(prefix));
+			}
+			
+			@Override
+			public String getPrefix(String namespaceURI) {
+				return getParent().getNamespaceContext().getPrefix(namespaceURI);
+			}
+			
+			@Override
+			@SuppressWarnings("rawtypes")
+			public Iterator getPrefixes(String namespaceURI) {
+				return getParent().getNamespaceContext().getPrefixes(namespaceURI);
+			}
+		};
+		
+		NamespaceMapper(XMLStreamReader reader) {
+			super(reader);
+		}
+		
+		@Override
+		public String getNamespaceURI() {
+			return mapNamespace(super.getNamespaceURI());
+		}
+		
+		@Override
+		public String getNamespaceURI(int index) {
+			return mapNamespace(super.getNamespaceURI(index));
+		}
+		
+		@Override
+		public String getNamespaceURI(String prefix) {
+			return mapNamespace(super.getNamespaceURI(prefix));
+		}
+		
+		@Override
+		public String getAttributeNamespace(int index) {
+			return mapNamespace(super.getAttributeNamespace(index));
+		}
+		
+		@Override
+		public QName getName() {
+			QName name = super.getName();
+			return new QName(mapNamespace(name.getNamespaceURI()), name.getLocalPart(), name.getPrefix());
+		}
+		
+		@Override
+		public QName getAttributeName(int index) {
+			QName name = super.getAttributeName(index);
+			return new QName(mapNamespace(name.getNamespaceURI()), name.getLocalPart(), name.getPrefix());
+		}
+		
+		@Override
+		public NamespaceContext getNamespaceContext() {
+			return namespaceContext;
+		}
+		
+	}
+
+}
@@ -0,0 +1,903 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.FalseBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.InitialCondition;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLRootType;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.StandardAssignable;
+import eu.ddmore.libpharmml.dom.commontypes.StringValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.TrueBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Otherwise;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.PopulationParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.SimpleParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+
+/**
+ * Compact binary format of the outputs of a translation, also used by the {@link DiskTranslationCache}.
+ * 
+ * <p>The format only knows the elements produced by the translator, the same ones as
+ * {@link MacroOutputJsonWriter}, and reads and builds them through the public API of the PharmML objects.
+ * It is meant to be exchanged with other processes, so it doesn't depend on the classes of libPharmML.
+ * The layout is:
+ * 
+ * <pre>
+ * header:     "PKMB" version
+ * strings:    count (length utf-8)*
+ * body:       blkId elementCount element* inputCount input*
+ * element:    kind symbId [symbolType] [order] expression [independentVariable initialCondition]
+ * initialCondition: 0 | 1 initialValue initialTime
+ * input:      number type target adm tlag p
+ * expression: tag payload child*
+ * </pre>
+ * 
+ * All the integers are variable-length quantities, and the symbIds, operators, input types and other strings are
+ * indexes in the table of strings. The optional strings and the order are written plus one, 0 meaning that they
+ * are not defined. The symbol type is written for the variables only, and the order, the independent variable
+ * and the initial condition for the derivative variables only. The descriptions of the elements, and the structured
+ * model and the distribution of the individual parameters, can't be encoded.
+ * A missing expression is written as the {@link #NULL} tag. The expressions are written in prefix order, each
+ * node being followed by its children: 2 for a binop, 1 for a uniop, the value and the condition of each piece
+ * for a piecewise, and the given number of arguments for a logical binop. A variable used in a condition is
+ * written as a reference to it.
+ * 
+ * <p>An encoded output can be decoded back to PharmML objects with {@link #decode(ByteBuffer)}, or read in
+ * place with a {@link MacroOutputView}.
+ */
+public final class MacroOutputBinaryFormat {
+	
+	/**
+	 * Version of the format, to be incremented when the format changes.
+	 */
+	public static final int VERSION = 3;
+	
+	private static final byte[] MAGIC = {'P', 'K', 'M', 'B'};
+	
+	static final byte NULL = 0;
+	static final byte SYMBREF = 1;
+	static final byte INT = 2;
+	static final byte BIG_INT = 3;
+	static final byte REAL = 4;
+	static final byte TRUE = 5;
+	static final byte FALSE = 6;
+	static final byte STRING = 7;
+	static final byte BINOP = 8;
+	static final byte UNIOP = 9;
+	static final byte PIECEWISE = 10;
+	static final byte OTHERWISE = 11;
+	static final byte LOGIC_BINOP = 12;
+	
+	static final byte DERIVATIVE_VARIABLE = 1;
+	static final byte VARIABLE = 2;
+	static final byte POPULATION_PARAMETER = 3;
+	static final byte INDIVIDUAL_PARAMETER = 4;
+	static final byte SIMPLE_PARAMETER = 5;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private MacroOutputBinaryFormat() {
+	}
+	
+	/**
+	 * Encodes the given output.
+	 * @param output The output of a translation.
+	 * @return The encoded output.
+	 * @throws IllegalArgumentException If the output contains an element or an expression which is not supported.
+	 */
+	public static byte[] encode(MacroOutput output){
+		Encoder encoder = new Encoder();
+		encoder.writeOutput(output);
+		return encoder.toByteArray();
+	}
+	
+	/**
+	 * Decodes an output from the given buffer, starting at its current position. The position of the buffer is
+	 * moved after the encoded output.
+	 * @param buffer The buffer containing an encoded output.
+	 * @return A new {@link MacroOutput} object.
+	 * @throws IOException If the buffer doesn't contain a valid encoded output.
+	 */
+	public static MacroOutput decode(ByteBuffer buffer) throws IOException {
+		Cursor in = new Cursor(buffer, buffer.position());
+		try {
+			MacroOutput output = new Decoder(in).readOutput();
+			buffer.position(in.pos);
+			return output;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated binary output");
+		}
+	}
+	
+	/**
+	 * Creates a read-only view of the output encoded in the given buffer, starting at its current position.
+	 * The content of the buffer is checked, but no PharmML object is created.
+	 * @param buffer The buffer containing an encoded output. It must not be modified while the view is used.
+	 * @return The view of the encoded output.
+	 * @throws IOException If the buffer doesn't contain a valid encoded output.
+	 */
+	public static MacroOutputView view(ByteBuffer buffer) throws IOException {
+		try {
+			return new MacroOutputView(buffer, buffer.position());
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated binary output");
+		}
+	}
+	
+	/**
+	 * Reads the header and the table of strings at the position of the given cursor.
+	 */
+	static Strings readHeader(Cursor in) throws IOException {
+		for(byte b : MAGIC){
+			if(in.readByte() != b){
+				throw new IOException("Not a binary translation output");
+			}
+		}
+		int version = in.readVarint();
+		if(version != VERSION){
+			throw new IOException("Unsupported binary format version "+version);
+		}
+		int count = in.readVarint();
+		if(count < 0){
+			throw new IOException("Invalid string count "+count);
+		}
+		Strings strings = new Strings(in.buffer, count);
+		for(int i = 0; i < count; i++){
+			int length = in.readVarint();
+			if(length < 0 || length > in.buffer.limit() - in.pos){
+				throw new IOException("Invalid string length "+length);
+			}
+			strings.offsets[i] = in.pos;
+			strings.lengths[i] = length;
+			in.pos += length;
+		}
+		return strings;
+	}
+	
+	/**
+	 * Reads the tag and the payload of an expression node, leaving the cursor on its first child.
+	 * @return The number of children of the node.
+	 */
+	static int readNode(Cursor in, Strings strings) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case SYMBREF:
+			strings.check(in.readVarint());
+			strings.checkOptional(in.readVarint());
+			return 0;
+		case INT:
+			in.readSignedVarint();
+			return 0;
+		case BIG_INT:
+		case STRING:
+			strings.check(in.readVarint());
+			return 0;
+		case REAL:
+			in.readLong();
+			return 0;
+		case TRUE:
+		case FALSE:
+		case OTHERWISE:
+			return 0;
+		case BINOP:
+			strings.check(in.readVarint());
+			return 2;
+		case UNIOP:
+			strings.check(in.readVarint());
+			return 1;
+		case PIECEWISE:
+			return count(in.readVarint(), 2);
+		case LOGIC_BINOP:
+			strings.check(in.readVarint());
+			return count(in.readVarint(), 1);
+		default:
+			throw new IOException("Unknown expression tag "+tag);
+		}
+	}
+	
+	/**
+	 * Gets the input type of the given name, read from the table of strings.
+	 */
+	static InputType inputType(String name) throws IOException {
+		try {
+			return InputType.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown input type "+name);
+		}
+	}
+	
+	private static int count(int count, int factor) throws IOException {
+		if(count < 0 || count > Integer.MAX_VALUE / factor){
+			throw new IOException("Invalid count "+count);
+		}
+		return count * factor;
+	}
+	
+	/**
+	 * Moves the cursor after the expression at its position, which can be {@link #NULL}.
+	 */
+	static void skipExpression(Cursor in, Strings strings) throws IOException {
+		if(in.peekByte() == NULL){
+			in.pos++;
+			return;
+		}
+		long remaining = 1;
+		while(remaining > 0){
+			remaining += readNode(in, strings) - 1;
+		}
+	}
+	
+	/**
+	 * Reads the values of an encoded output at absolute positions of a buffer, without changing its position.
+	 */
+	static class Cursor {
+		
+		final ByteBuffer buffer;
+		int pos;
+		
+		Cursor(ByteBuffer buffer, int pos) {
+			this.buffer = buffer;
+			this.pos = pos;
+		}
+		
+		byte readByte(){
+			return buffer.get(pos++);
+		}
+		
+		byte peekByte(){
+			return buffer.get(pos);
+		}
+		
+		int readVarint(){
+			int value = 0;
+			for(int shift = 0; ; shift += 7){
+				byte b = readByte();
+				value |= (b & 0x7F) << shift;
+				if(b >= 0){
+					return value;
+				}
+			}
+		}
+		
+		long readSignedVarint(){
+			long value = 0;
+			for(int shift = 0; ; shift += 7){
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if(b >= 0){
+					return (value >>> 1) ^ -(value & 1);
+				}
+			}
+		}
+		
+		long readLong(){
+			long value = buffer.getLong(pos);
+			pos += 8;
+			return value;
+		}
+	
+	}
+	
+	/**
+	 * Table of strings of an encoded output. The strings are decoded when they are first requested.
+	 */
+	static class Strings {
+		
+		private final ByteBuffer buffer;
+		private final int[] offsets;
+		private final int[] lengths;
+		private final String[] values;
+		
+		Strings(ByteBuffer buffer, int count) {
+			this.buffer = buffer;
+			this.offsets = new int[count];
+			this.lengths = new int[count];
+			this.values = new String[count];
+		}
+		
+		void check(int index) throws IOException {
+			if(index < 0 || index >= values.length){
+				throw new IOException("Invalid string index "+index);
+			}
+		}
+		
+		void checkOptional(int index) throws IOException {
+			if(index != 0){
+				check(index - 1);
+			}
+		}
+		
+		/**
+		 * Gets the string of a checked index.
+		 */
+		String get(int index){
+			String value = values[index];
+			if(value == null){
+				byte[] utf = new byte[lengths[index]];
+				ByteBuffer source = buffer.duplicate();
+				source.position(offsets[index]);
+				source.get(utf);
+				value = new String(utf, UTF8);
+				values[index] = value;
+			}
+			return value;
+		}
+		
+		/**
+		 * Gets the string of a checked index written plus one, or null for 0.
+		 */
+		String getOptional(int index){
+			return index == 0 ? null : get(index - 1);
+		}
+	
+	}
+	
+	private static class Encoder {
+		
+		private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		private final List<String> strings = new ArrayList<String>();
+		private final Bytes body = new Bytes();
+		private final Deque<Object> stack = new ArrayDeque<Object>();
+		
+		void writeOutput(MacroOutput output){
+			StructuralModel sm = output.getStructuralModel();
+			writeOptionalString(sm.getBlkId());
+			List<PharmMLElement> elements = sm.getListOfStructuralModelElements();
+			body.writeVarint(elements.size());
+			for(PharmMLElement el : elements){
+				writeElement(el);
+			}
+			body.writeVarint(output.getListOfInput().size());
+			for(Input input : output.getListOfInput()){
+				body.writeSignedVarint(input.getNumber());
+				writeString(input.getType().name());
+				writeString(input.getTarget().getSymbId());
+				writeExpression(input.getAdm());
+				writeExpression(input.getTlag());
+				writeExpression(input.getP());
+			}
+		}
+		
+		@SuppressWarnings("deprecation")
+		private void writeElement(PharmMLElement el){
+			if(el instanceof DerivativeVariable){
+				DerivativeVariable dv = (DerivativeVariable) el;
+				checkDescription(dv, dv.getSymbId());
+				body.write(DERIVATIVE_VARIABLE);
+				writeString(dv.getSymbId());
+				writeOptionalString(dv.getSymbolType() == null ? null : dv.getSymbolType().value());
+				body.writeVarint(dv.getOrder() == null ? 0 : dv.getOrder().intValue() + 1);
+				writeAssign(dv.getAssign());
+				writeExpression(dv.getIndependentVariable());
+				InitialCondition ic = dv.getInitialCondition();
+				if(ic == null){
+					body.writeVarint(0);
+				} else {
+					body.writeVarint(1);
+					writeAssign(ic.getInitialValue() == null ? null : ic.getInitialValue().getAssign());
+					writeAssign(ic.getInitialTime() == null ? null : ic.getInitialTime().getAssign());
+				}
+			} else if(el instanceof VariableDefinition){
+				VariableDefinition v = (VariableDefinition) el;
+				checkDescription(v, v.getSymbId());
+				body.write(VARIABLE);
+				writeString(v.getSymbId());
+				writeOptionalString(v.getSymbolType() == null ? null : v.getSymbolType().value());
+				writeAssign(v.getAssign());
+			} else if(el instanceof PopulationParameter){
+				writeParameter(POPULATION_PARAMETER, (CommonParameter) el);
+			} else if(el instanceof IndividualParameter){
+				IndividualParameter ip = (IndividualParameter) el;
+				if(ip.getStructuredModel() != null || ip.getDistribution() != null){
+					throw new IllegalArgumentException("Unsupported structured individual parameter "+ip.getSymbId());
+				}
+				writeParameter(INDIVIDUAL_PARAMETER, ip);
+			} else if(el instanceof SimpleParameter){
+				writeParameter(SIMPLE_PARAMETER, (CommonParameter) el);
+			} else {
+				throw new IllegalArgumentException("Unsupported structural model element "+el);
+			}
+		}
+		
+		private void writeParameter(byte kind, CommonParameter p){
+			checkDescription(p, p.getSymbId());
+			body.write(kind);
+			writeString(p.getSymbId());
+			writeAssign(p.getAssign());
+		}
+		
+		private void checkDescription(PharmMLRootType el, String symbId){
+			if(el.getDescription() != null){
+				throw new IllegalArgumentException("Unsupported description of "+symbId);
+			}
+		}
+		
+		private void writeAssign(Rhs rhs){
+			writeExpression(rhs == null ? null : rhs.getContent());
+		}
+		
+		/**
+		 * Writes an expression in prefix order. The children of a node are pushed in reverse order so they are
+		 * popped in their writing order.
+		 */
+		private void writeExpression(Object expression){
+			if(expression == null){
+				body.write(NULL);
+				return;
+			}
+			stack.push(expression);
+			while(!stack.isEmpty()){
+				Object item = stack.pop();
+				if(item instanceof SymbolRef){
+					SymbolRef sref = (SymbolRef) item;
+					body.write(SYMBREF);
+					writeString(sref.getSymbIdRef());
+					writeOptionalString(sref.getBlkIdRef());
+				} else if(item instanceof CommonVariableDefinition){
+					body.write(SYMBREF);
+					writeString(((CommonVariableDefinition) item).getSymbId());
+					writeOptionalString(null);
+				} else if(item instanceof IntValue){
+					BigInteger value = ((IntValue) item).getValue();
+					if(value.bitLength() < 64){
+						body.write(INT);
+						body.writeSignedVarint(value.longValue());
+					} else {
+						body.write(BIG_INT);
+						writeString(value.toString());
+					}
+				} else if(item instanceof RealValue){
+					body.write(REAL);
+					body.writeLong(Double.doubleToLongBits(((RealValue) item).getValue()));
+				} else if(item instanceof TrueBoolean){
+					body.write(TRUE);
+				} else if(item instanceof FalseBoolean){
+					body.write(FALSE);
+				} else if(item instanceof StringValue){
+					body.write(STRING);
+					writeString(((StringValue) item).getValue());
+				} else if(item instanceof Binop){
+					Binop binop = (Binop) item;
+					body.write(BINOP);
+					writeString(binop.getOperator().value());
+					pushAll(binop.getOperand1(), binop.getOperand2());
+				} else if(item instanceof Uniop){
+					Uniop uniop = (Uniop) item;
+					body.write(UNIOP);
+					writeString(uniop.getOperator().value());
+					pushAll(uniop.getValue());
+				} else if(item instanceof Piecewise){
+					List<Piece> pieces = ((Piecewise) item).getListOfPiece();
+					body.write(PIECEWISE);
+					body.writeVarint(pieces.size());
+					for(int i = pieces.size() - 1; i >= 0; i--){
+						Piece piece = pieces.get(i);
+						Condition condition = piece.getCondition();
+						if(condition != null && condition.getOtherwise() != null){
+							pushAll(piece.getValue(), condition.getOtherwise());
+						} else if(condition != null && condition.getLogicBinop() != null){
+							pushAll(piece.getValue(), condition.getLogicBinop());
+						} else {
+							throw new IllegalArgumentException("Unsupported condition "+condition);
+						}
+					}
+				} else if(item instanceof Otherwise){
+					body.write(OTHERWISE);
+				} else if(item instanceof LogicBinOp){
+					LogicBinOp logicBinop = (LogicBinOp) item;
+					body.write(LOGIC_BINOP);
+					writeString(logicBinop.getOp());
+					body.writeVarint(logicBinop.getContent().size());
+					for(int i = logicBinop.getContent().size() - 1; i >= 0; i--){
+						pushAll(logicBinop.getContent().get(i).getValue());
+					}
+				} else {
+					throw new IllegalArgumentException("Unsupported expression "+item);
+				}
+			}
+		}
+		
+		/**
+		 * Pushes the given items so they are written in the given order.
+		 */
+		private void pushAll(Object... items){
+			for(int i = items.length - 1; i >= 0; i--){
+				if(items[i] == null){
+					throw new IllegalArgumentException("Incomplete expression");
+				}
+				stack.push(items[i]);
+			}
+		}
+		
+		private void writeString(String s){
+			if(s == null){
+				throw new IllegalArgumentException("Missing identifier");
+			}
+			body.writeVarint(index(s));
+		}
+		
+		private void writeOptionalString(String s){
+			body.writeVarint(s == null ? 0 : index(s) + 1);
+		}
+		
+		private int index(String s){
+			Integer index = indexes.get(s);
+			if(index == null){
+				index = strings.size();
+				indexes.put(s, index);
+				strings.add(s);
+			}
+			return index;
+		}
+		
+		byte[] toByteArray(){
+			Bytes header = new Bytes();
+			header.write(MAGIC);
+			header.writeVarint(VERSION);
+			header.writeVarint(strings.size());
+			for(String s : strings){
+				byte[] utf = s.getBytes(UTF8);
+				header.writeVarint(utf.length);
+				header.write(utf);
+			}
+			byte[] result = Arrays.copyOf(header.buf, header.size + body.size);
+			System.arraycopy(body.buf, 0, result, header.size, body.size);
+			return result;
+		}
+	
+	}
+	
+	/**
+	 * Rebuilds the PharmML objects of an encoded output. The expressions are read with an explicit stack of
+	 * the nodes whose children are being read.
+	 */
+	private static class Decoder {
+		
+		private final Cursor in;
+		private Strings strings;
+		private final Deque<Frame> frames = new ArrayDeque<Frame>();
+		
+		Decoder(Cursor in) {
+			this.in = in;
+		}
+		
+		MacroOutput readOutput() throws IOException {
+			strings = readHeader(in);
+			final StructuralModel sm = new StructuralModel();
+			sm.setBlkId(readOptionalString());
+			Map<String, CommonVariableDefinition> targets = new HashMap<String, CommonVariableDefinition>();
+			int count = count(in.readVarint(), 1);
+			for(int i = 0; i < count; i++){
+				PharmMLElement el = readElement();
+				if(el instanceof CommonVariableDefinition){
+					targets.put(((CommonVariableDefinition) el).getSymbId(), (CommonVariableDefinition) el);
+				}
+				sm.getListOfStructuralModelElements().add(el);
+			}
+			final List<Input> inputs = new ArrayList<Input>();
+			count = count(in.readVarint(), 1);
+			for(int i = 0; i < count; i++){
+				int number = (int) in.readSignedVarint();
+				InputType type = inputType(readString());
+				String target = readString();
+				if(!targets.containsKey(target)){
+					throw new IOException("Unknown input target "+target);
+				}
+				inputs.add(new Input(number, type, 
+						as(Scalar.class, readExpression(), "adm"), targets.get(target),
+						as(Operand.class, readExpression(), "tlag"), as(Operand.class, readExpression(), "p")));
+			}
+			return new MacroOutput() {
+				@Override
+				public StructuralModel getStructuralModel() {
+					return sm;
+				}
+				@Override
+				public List<Input> getListOfInput() {
+					return inputs;
+				}
+			};
+		}
+		
+		@SuppressWarnings("deprecation")
+		private PharmMLElement readElement() throws IOException {
+			byte kind = in.readByte();
+			String symbId = readString();
+			switch (kind) {
+			case DERIVATIVE_VARIABLE:
+				DerivativeVariable dv = new DerivativeVariable(symbId, MacroOutputJsonReader.symbolType(readOptionalString()));
+				int order = in.readVarint();
+				if(order != 0){
+					dv.setOrder(Integer.valueOf(order - 1));
+				}
+				dv.setAssign(readAssign());
+				dv.setIndependentVariable(as(SymbolRef.class, readExpression(), "independent variable"));
+				int initialCondition = in.readVarint();
+				if(initialCondition == 1){
+					InitialCondition ic = new InitialCondition();
+					Rhs initialValue = readAssign();
+					if(initialValue != null){
+						ic.setInitialValue(new StandardAssignable(initialValue));
+					}
+					Rhs initialTime = readAssign();
+					if(initialTime != null){
+						ic.setInitialTime(new StandardAssignable(initialTime));
+					}
+					dv.setInitialCondition(ic);
+				} else if(initialCondition != 0){
+					throw new IOException("Invalid initial condition flag "+initialCondition);
+				}
+				return dv;
+			case VARIABLE:
+				VariableDefinition v = new VariableDefinition(symbId, MacroOutputJsonReader.symbolType(readOptionalString()));
+				v.setAssign(readAssign());
+				return v;
+			case POPULATION_PARAMETER:
+				return readParameter(new PopulationParameter(), symbId);
+			case INDIVIDUAL_PARAMETER:
+				return readParameter(new IndividualParameter(), symbId);
+			case SIMPLE_PARAMETER:
+				return readParameter(new SimpleParameter(), symbId);
+			default:
+				throw new IOException("Unknown element kind "+kind);
+			}
+		}
+		
+		private CommonParameter readParameter(CommonParameter p, String symbId) throws IOException {
+			p.setSymbId(symbId);
+			p.setAssign(readAssign());
+			return p;
+		}
+		
+		private Rhs readAssign() throws IOException {
+			Object content = readExpression();
+			return content == null ? null : MacroOutputJsonReader.toRhs(content);
+		}
+		
+		/**
+		 * Reads an expression, or null for the {@link #NULL} tag.
+		 */
+		private Object readExpression() throws IOException {
+			if(in.peekByte() == NULL){
+				in.pos++;
+				return null;
+			}
+			while(true){
+				int start = in.pos;
+				int children = readNode(in, strings);
+				Object value;
+				if(children > 0){
+					frames.push(new Frame(start, children));
+					continue;
+				} else if(children == 0 && isComposite(in.buffer.get(start))){
+					value = build(new Frame(start, 0));
+				} else {
+					value = readLeaf(start);
+				}
+				// Gives the value to its parent, and builds the parents which are complete
+				while(true){
+					Frame parent = frames.peek();
+					if(parent == null){
+						return value;
+					}
+					parent.children.add(value);
+					if(parent.children.size() < parent.expected){
+						break;
+					}
+					frames.pop();
+					value = build(parent);
+				}
+			}
+		}
+		
+		private boolean isComposite(byte tag){
+			return tag == BINOP || tag == UNIOP || tag == PIECEWISE || tag == LOGIC_BINOP;
+		}
+		
+		@SuppressWarnings("deprecation")
+		private Object readLeaf(int start) throws IOException {
+			Cursor node = new Cursor(in.buffer, start);
+			switch (node.readByte()) {
+			case SYMBREF:
+				String symbIdRef = strings.get(node.readVarint());
+				return new SymbolRef(symbIdRef, strings.getOptional(node.readVarint()));
+			case INT:
+				return new IntValue(BigInteger.valueOf(node.readSignedVarint()));
+			case BIG_INT:
+				String value = strings.get(node.readVarint());
+				try {
+					return new IntValue(new BigInteger(value));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid int value "+value);
+				}
+			case REAL:
+				return new RealValue(Double.longBitsToDouble(node.readLong()));
+			case TRUE:
+				return new TrueBoolean();
+			case FALSE:
+				return new FalseBoolean();
+			case STRING:
+				return new StringValue(strings.get(node.readVarint()));
+			case OTHERWISE:
+				return new Otherwise();
+			default:
+				// Should not happen, the other tags are rejected by readNode
+				throw new RuntimeException("Unexpected expression tag");
+			}
+		}
+		
+		private Object build(Frame frame) throws IOException {
+			Cursor node = new Cursor(in.buffer, frame.start);
+			byte tag = node.readByte();
+			List<Object> children = frame.children;
+			switch (tag) {
+			case BINOP:
+				return new Binop(MacroOutputJsonReader.binoperator(strings.get(node.readVarint())), 
+						as(Operand.class, children.get(0), "operand"), as(Operand.class, children.get(1), "operand"));
+			case UNIOP:
+				return new Uniop(MacroOutputJsonReader.unioperator(strings.get(node.readVarint())), 
+						as(ExpressionValue.class, children.get(0), "operand"));
+			case PIECEWISE:
+				Piecewise pw = new Piecewise();
+				for(int i = 0; i < children.size(); i += 2){
+					Piece piece = new Piece();
+					piece.setValue(as(ExpressionValue.class, children.get(i), "value"));
+					Condition condition = new Condition();
+					Object value = children.get(i + 1);
+					if(value instanceof Otherwise){
+						condition.setOtherwise((Otherwise) value);
+					} else {
+						condition.setLogicBinop(as(LogicBinOp.class, value, "condition"));
+					}
+					piece.setCondition(condition);
+					pw.getListOfPiece().add(piece);
+				}
+				return pw;
+			case LOGIC_BINOP:
+				LogicBinOp logicBinop = new LogicBinOp();
+				logicBinop.setOp(strings.get(node.readVarint()));
+				for(Object arg : children){
+					logicBinop.getContent().add(MacroOutputJsonReader.toJAXBElement(arg));
+				}
+				return logicBinop;
+			default:
+				// Should not happen, only the composite nodes have frames
+				throw new RuntimeException("Unexpected expression tag "+tag);
+			}
+		}
+		
+		private String readString() throws IOException {
+			int index = in.readVarint();
+			strings.check(index);
+			return strings.get(index);
+		}
+		
+		private String readOptionalString() throws IOException {
+			int index = in.readVarint();
+			strings.checkOptional(index);
+			return strings.getOptional(index);
+		}
+		
+		private static <T> T as(Class<T> type, Object value, String field) throws IOException {
+			if(value != null && !type.isInstance(value)){
+				throw new IOException("Invalid "+field+": "+value);
+			}
+			return type.cast(value);
+		}
+	
+	}
+	
+	/**
+	 * Growable byte array.
+	 */
+	private static class Bytes {
+		
+		byte[] buf = new byte[256];
+		int size;
+		
+		private void ensure(int extra){
+			if(size + extra > buf.length){
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+			}
+		}
+		
+		void write(byte b){
+			ensure(1);
+			buf[size++] = b;
+		}
+		
+		void write(byte[] bytes){
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, size, bytes.length);
+			size += bytes.length;
+		}
+		
+		void writeVarint(int value){
+			while((value & ~0x7F) != 0){
+				write((byte) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((byte) value);
+		}
+		
+		void writeSignedVarint(long value){
+			long zigzag = (value << 1) ^ (value >> 63);
+			while((zigzag & ~0x7FL) != 0){
+				write((byte) ((zigzag & 0x7F) | 0x80));
+				zigzag >>>= 7;
+			}
+			write((byte) zigzag);
+		}
+		
+		void writeLong(long value){
+			for(int shift = 56; shift >= 0; shift -= 8){
+				write((byte) (value >>> shift));
+			}
+		}
+	
+	}
+	
+	/**
+	 * Node whose children are being read.
+	 */
+	private static class Frame {
+		
+		final int start;
+		final int expected;
+		final List<Object> children;
+		
+		Frame(int start, int expected) {
+			this.start = start;
+			this.expected = expected;
+			this.children = new ArrayList<Object>(expected);
+		}
+	
+	}
+
+}
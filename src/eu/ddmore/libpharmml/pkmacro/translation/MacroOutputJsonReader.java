@@ -0,0 +1,608 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.FalseBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.StringValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.commontypes.TrueBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Otherwise;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.PopulationParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.SimpleParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+
+/**
+ * Streaming reader of the JSON documents written by {@link MacroOutputJsonWriter}.
+ * 
+ * <p>The document is parsed token by token, and each JSON object is turned into its PharmML element as soon as
+ * it is complete, so only the elements of the current path are pending. The objects are kept on an explicit
+ * stack, so deep expressions don't overflow the call stack. The fields of an object can be in any order.
+ * A reader can be shared by several threads.
+ */
+public class MacroOutputJsonReader {
+	
+	private static final String NS_CT = MacroOutputWriter.NS_CT;
+	private static final String NS_MATH = MacroOutputWriter.NS_MATH;
+	
+	/**
+	 * Reads a JSON document encoded in UTF-8. The stream is not closed by this method.
+	 * @param in The stream of the document.
+	 * @return The {@link MacroOutput} read from the document.
+	 * @throws IOException If the stream can't be read, or if the document is not valid.
+	 */
+	public MacroOutput read(InputStream in) throws IOException {
+		return read(new InputStreamReader(in, "UTF-8"));
+	}
+	
+	/**
+	 * Reads a JSON document. The reader is not closed by this method.
+	 * @param reader The reader of the document.
+	 * @return The {@link MacroOutput} read from the document.
+	 * @throws IOException If the document can't be read, or if it is not valid.
+	 */
+	public MacroOutput read(Reader reader) throws IOException {
+		Object result = new JsonParser(reader).parse();
+		return as(MacroOutput.class, result, "document");
+	}
+	
+	/**
+	 * JSON object or array being parsed, with the next token it accepts.
+	 */
+	private static abstract class JsonContainer {
+		static final int OPENED = 0;
+		static final int NAME_EXPECTED = 1;
+		static final int COLON_EXPECTED = 2;
+		static final int VALUE_EXPECTED = 3;
+		static final int SEPARATOR_EXPECTED = 4;
+		
+		int state = OPENED;
+		
+		abstract boolean acceptsValue();
+	}
+	
+	/**
+	 * Fields of a JSON object being parsed.
+	 */
+	private static class JsonObject extends JsonContainer {
+		final Map<String, Object> fields = new HashMap<String, Object>();
+		String name;
+		
+		@Override
+		boolean acceptsValue() {
+			return state == VALUE_EXPECTED;
+		}
+	}
+	
+	/**
+	 * Values of a JSON array being parsed.
+	 */
+	private static class JsonArray extends JsonContainer {
+		final List<Object> values = new ArrayList<Object>();
+		
+		@Override
+		boolean acceptsValue() {
+			return state == OPENED || state == VALUE_EXPECTED;
+		}
+	}
+	
+	/**
+	 * Pull parser of one document. The values are delivered to the enclosing object or array on the top of
+	 * the stack, and the objects are converted by {@link MacroOutputJsonReader#convert(Map)} once complete.
+	 * The names must be followed by ':' and the values of an object or an array separated by ','.
+	 */
+	private static class JsonParser {
+		
+		private final Reader in;
+		private final char[] buffer = new char[8192];
+		private int position;
+		private int limit;
+		
+		private final Deque<JsonContainer> stack = new ArrayDeque<JsonContainer>();
+		private final StringBuilder text = new StringBuilder();
+		private boolean done;
+		
+		JsonParser(Reader in) {
+			this.in = in;
+		}
+		
+		Object parse() throws IOException {
+			Object result = null;
+			int c;
+			while((c = nextToken()) != -1){
+				JsonContainer top = stack.peek();
+				Object value;
+				switch (c) {
+				case ',':
+					if(top == null || top.state != JsonContainer.SEPARATOR_EXPECTED){
+						throw unexpected(c);
+					}
+					top.state = top instanceof JsonObject ? JsonContainer.NAME_EXPECTED : JsonContainer.VALUE_EXPECTED;
+					continue;
+				case ':':
+					if(top == null || top.state != JsonContainer.COLON_EXPECTED){
+						throw unexpected(c);
+					}
+					top.state = JsonContainer.VALUE_EXPECTED;
+					continue;
+				case '}':
+					if(!(top instanceof JsonObject) || !closable(top)){
+						throw unexpected(c);
+					}
+					stack.pop();
+					value = convert(((JsonObject) top).fields);
+					break;
+				case ']':
+					if(!(top instanceof JsonArray) || !closable(top)){
+						throw unexpected(c);
+					}
+					stack.pop();
+					value = ((JsonArray) top).values;
+					break;
+				case '{':
+					checkValue(c);
+					stack.push(new JsonObject());
+					continue;
+				case '[':
+					checkValue(c);
+					stack.push(new JsonArray());
+					continue;
+				case '"':
+					if(top instanceof JsonObject && (top.state == JsonContainer.OPENED 
+							|| top.state == JsonContainer.NAME_EXPECTED)){
+						((JsonObject) top).name = readString();
+						top.state = JsonContainer.COLON_EXPECTED;
+						continue;
+					}
+					checkValue(c);
+					value = readString();
+					break;
+				case 't':
+					checkValue(c);
+					readLiteral("true");
+					value = Boolean.TRUE;
+					break;
+				case 'f':
+					checkValue(c);
+					readLiteral("false");
+					value = Boolean.FALSE;
+					break;
+				case 'n':
+					checkValue(c);
+					readLiteral("null");
+					value = null;
+					break;
+				default:
+					checkValue(c);
+					value = readNumber(c);
+					break;
+				}
+				if(stack.isEmpty()){
+					result = value;
+					done = true;
+				} else {
+					deliver(value);
+				}
+			}
+			if(!done){
+				throw new IOException("Unexpected end of the document");
+			}
+			return result;
+		}
+		
+		private static boolean closable(JsonContainer container){
+			return container.state == JsonContainer.OPENED || container.state == JsonContainer.SEPARATOR_EXPECTED;
+		}
+		
+		/**
+		 * Checks that a value can start at the current position.
+		 */
+		private void checkValue(int c) throws IOException {
+			JsonContainer top = stack.peek();
+			if(top == null){
+				if(done){
+					throw new IOException("Unexpected content after the end of the document");
+				}
+			} else if(!top.acceptsValue()){
+				throw unexpected(c);
+			}
+		}
+		
+		private static IOException unexpected(int c){
+			return new IOException("Unexpected '"+(char) c+"'");
+		}
+		
+		private void deliver(Object value) {
+			JsonContainer top = stack.peek();
+			if(top instanceof JsonArray){
+				((JsonArray) top).values.add(value);
+			} else {
+				JsonObject object = (JsonObject) top;
+				object.fields.put(object.name, value);
+				object.name = null;
+			}
+			top.state = JsonContainer.SEPARATOR_EXPECTED;
+		}
+		
+		private int read() throws IOException {
+			if(position == limit){
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if(limit <= 0){
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[position++];
+		}
+		
+		private int nextToken() throws IOException {
+			int c;
+			do {
+				c = read();
+			} while(c == ' ' || c == '\n' || c == '\r' || c == '\t');
+			return c;
+		}
+		
+		private String readString() throws IOException {
+			text.setLength(0);
+			while(true){
+				int c = read();
+				if(c == -1){
+					throw new IOException("Unterminated string");
+				} else if(c == '"'){
+					return text.toString();
+				} else if(c == '\\'){
+					c = read();
+					switch (c) {
+					case 'n': text.append('\n'); break;
+					case 'r': text.append('\r'); break;
+					case 't': text.append('\t'); break;
+					case 'b': text.append('\b'); break;
+					case 'f': text.append('\f'); break;
+					case 'u':
+						int code = 0;
+						for(int i = 0; i < 4; i++){
+							int digit = Character.digit(read(), 16);
+							if(digit < 0){
+								throw new IOException("Invalid unicode escape");
+							}
+							code = code * 16 + digit;
+						}
+						text.append((char) code);
+						break;
+					case '"':
+					case '\\':
+					case '/':
+						text.append((char) c);
+						break;
+					default:
+						throw new IOException("Invalid escape character");
+					}
+				} else {
+					text.append((char) c);
+				}
+			}
+		}
+		
+		private void readLiteral(String literal) throws IOException {
+			for(int i = 1; i < literal.length(); i++){
+				if(read() != literal.charAt(i)){
+					throw new IOException("Invalid literal, "+literal+" expected");
+				}
+			}
+		}
+		
+		private BigDecimal readNumber(int first) throws IOException {
+			text.setLength(0);
+			int c = first;
+			while(c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')){
+				text.append((char) c);
+				c = read();
+			}
+			if(c != -1){
+				position--;
+			}
+			try {
+				return new BigDecimal(text.toString());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid value "+text);
+			}
+		}
+	
+	}
+	
+	/**
+	 * Converts the fields of a complete JSON object to the element they describe.
+	 */
+	@SuppressWarnings("deprecation")
+	private static Object convert(Map<String, Object> fields) throws IOException {
+		if(fields.containsKey("symbRef")){
+			return new SymbolRef(as(String.class, fields.get("symbRef"), "symbRef"), 
+					as(String.class, fields.get("blkIdRef"), "blkIdRef", true));
+		} else if(fields.containsKey("int")){
+			try {
+				return new IntValue(as(BigDecimal.class, fields.get("int"), "int").toBigIntegerExact());
+			} catch (ArithmeticException e) {
+				throw new IOException("Invalid int value "+fields.get("int"));
+			}
+		} else if(fields.containsKey("real")){
+			Object value = fields.get("real");
+			if(value instanceof String){
+				try {
+					return new RealValue(Double.parseDouble((String) value));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid real value "+value);
+				}
+			}
+			return new RealValue(as(BigDecimal.class, value, "real").doubleValue());
+		} else if(fields.containsKey("boolean")){
+			return as(Boolean.class, fields.get("boolean"), "boolean").booleanValue() ? new TrueBoolean() : new FalseBoolean();
+		} else if(fields.containsKey("string")){
+			return new StringValue(as(String.class, fields.get("string"), "string"));
+		} else if(fields.containsKey("binop")){
+			List<?> args = as(List.class, fields.get("args"), "args");
+			if(args.size() != 2){
+				throw new IOException("Binop requires 2 arguments");
+			}
+			return new Binop(binoperator(as(String.class, fields.get("binop"), "binop")), 
+					as(Operand.class, args.get(0), "operand"), as(Operand.class, args.get(1), "operand"));
+		} else if(fields.containsKey("uniop")){
+			List<?> args = as(List.class, fields.get("args"), "args");
+			if(args.size() != 1){
+				throw new IOException("Uniop requires 1 argument");
+			}
+			return new Uniop(unioperator(as(String.class, fields.get("uniop"), "uniop")), 
+					as(ExpressionValue.class, args.get(0), "operand"));
+		} else if(fields.containsKey("piecewise")){
+			Piecewise pw = new Piecewise();
+			for(Object piece : as(List.class, fields.get("piecewise"), "piecewise")){
+				pw.getListOfPiece().add(as(Piece.class, piece, "piece"));
+			}
+			return pw;
+		} else if(fields.containsKey("condition")){
+			Piece piece = new Piece();
+			piece.setValue(as(ExpressionValue.class, fields.get("value"), "value"));
+			Condition condition = new Condition();
+			Object value = fields.get("condition");
+			if("otherwise".equals(value)){
+				condition.setOtherwise(new Otherwise());
+			} else {
+				condition.setLogicBinop(as(LogicBinOp.class, value, "condition"));
+			}
+			piece.setCondition(condition);
+			return piece;
+		} else if(fields.containsKey("logicBinop")){
+			LogicBinOp logicBinop = new LogicBinOp();
+			logicBinop.setOp(as(String.class, fields.get("logicBinop"), "logicBinop"));
+			for(Object arg : as(List.class, fields.get("args"), "args")){
+				logicBinop.getContent().add(toJAXBElement(arg));
+			}
+			return logicBinop;
+		} else if(fields.containsKey("element")){
+			String element = as(String.class, fields.get("element"), "element");
+			String symbId = as(String.class, fields.get("symbId"), "symbId");
+			Rhs assign = fields.get("assign") == null ? null : toRhs(fields.get("assign"));
+			if(element.equals("DerivativeVariable") || element.equals("Variable")){
+				SymbolType type = symbolType(as(String.class, fields.get("symbolType"), "symbolType", true));
+				CommonVariableDefinition v;
+				if(element.equals("Variable")){
+					v = new VariableDefinition(symbId, type);
+				} else {
+					DerivativeVariable dv = new DerivativeVariable(symbId, type);
+					if(fields.get("order") != null){
+						dv.setOrder(Integer.valueOf(as(BigDecimal.class, fields.get("order"), "order").intValue()));
+					}
+					v = dv;
+				}
+				v.setAssign(assign);
+				return v;
+			} else {
+				CommonParameter p;
+				if(element.equals("PopulationParameter")){
+					p = new PopulationParameter();
+				} else if(element.equals("IndividualParameter")){
+					p = new IndividualParameter();
+				} else if(element.equals("SimpleParameter")){
+					p = new SimpleParameter();
+				} else {
+					throw new IOException("Unknown element "+element);
+				}
+				p.setSymbId(symbId);
+				p.setAssign(assign);
+				return p;
+			}
+		} else if(fields.containsKey("input")){
+			return fields;
+		} else if(fields.containsKey("elements")){
+			StructuralModel sm = new StructuralModel();
+			sm.setBlkId(as(String.class, fields.get("blkId"), "blkId", true));
+			for(Object el : as(List.class, fields.get("elements"), "elements")){
+				sm.getListOfStructuralModelElements().add(as(PharmMLElement.class, el, "element"));
+			}
+			return sm;
+		} else if(fields.containsKey("structuralModel")){
+			final StructuralModel sm = as(StructuralModel.class, fields.get("structuralModel"), "structuralModel");
+			final List<Input> inputs = new ArrayList<Input>();
+			Map<String, CommonVariableDefinition> targets = new HashMap<String, CommonVariableDefinition>();
+			for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+				if(el instanceof CommonVariableDefinition){
+					targets.put(((CommonVariableDefinition) el).getSymbId(), (CommonVariableDefinition) el);
+				}
+			}
+			for(Object input : as(List.class, fields.get("inputs"), "inputs")){
+				inputs.add(toInput(as(Map.class, input, "input"), targets));
+			}
+			return new MacroOutput() {
+				@Override
+				public StructuralModel getStructuralModel() {
+					return sm;
+				}
+				@Override
+				public List<Input> getListOfInput() {
+					return inputs;
+				}
+			};
+		} else {
+			throw new IOException("Unknown object with fields "+fields.keySet());
+		}
+	}
+	
+	private static Input toInput(Map<?, ?> fields, Map<String, CommonVariableDefinition> targets) throws IOException {
+		String target = as(String.class, fields.get("target"), "target");
+		if(!targets.containsKey(target)){
+			throw new IOException("Unknown input target "+target);
+		}
+		String type = as(String.class, fields.get("type"), "type");
+		InputType inputType;
+		try {
+			inputType = InputType.valueOf(type);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown input type "+type);
+		}
+		return new Input(as(BigDecimal.class, fields.get("input"), "input").intValue(), inputType, 
+				as(Scalar.class, fields.get("adm"), "adm", true), targets.get(target),
+				as(Operand.class, fields.get("tlag"), "tlag", true), as(Operand.class, fields.get("p"), "p", true));
+	}
+	
+	static Rhs toRhs(Object content) throws IOException {
+		Rhs rhs = new Rhs();
+		if(content instanceof Binop){
+			rhs.setBinop((Binop) content);
+		} else if(content instanceof Uniop){
+			rhs.setUniop((Uniop) content);
+		} else if(content instanceof Piecewise){
+			rhs.setPiecewise((Piecewise) content);
+		} else if(content instanceof SymbolRef){
+			rhs.setSymbRef((SymbolRef) content);
+		} else if(content instanceof Scalar){
+			rhs.setScalar((Scalar) content);
+		} else {
+			throw new IOException("Invalid assignment "+content);
+		}
+		return rhs;
+	}
+	
+	static JAXBElement<?> toJAXBElement(Object value) throws IOException {
+		if(value instanceof SymbolRef){
+			return element(NS_CT, "SymbRef", SymbolRef.class, (SymbolRef) value);
+		} else if(value instanceof IntValue){
+			return element(NS_CT, "Int", IntValue.class, (IntValue) value);
+		} else if(value instanceof RealValue){
+			return element(NS_CT, "Real", RealValue.class, (RealValue) value);
+		} else if(value instanceof TrueBoolean){
+			return element(NS_CT, "True", TrueBoolean.class, (TrueBoolean) value);
+		} else if(value instanceof FalseBoolean){
+			return element(NS_CT, "False", FalseBoolean.class, (FalseBoolean) value);
+		} else if(value instanceof StringValue){
+			return element(NS_CT, "String", StringValue.class, (StringValue) value);
+		} else if(value instanceof Binop){
+			return element(NS_MATH, "Binop", Binop.class, (Binop) value);
+		} else if(value instanceof Uniop){
+			return element(NS_MATH, "Uniop", Uniop.class, (Uniop) value);
+		} else if(value instanceof LogicBinOp){
+			return element(NS_MATH, "LogicBinop", LogicBinOp.class, (LogicBinOp) value);
+		} else {
+			throw new IOException("Invalid condition argument "+value);
+		}
+	}
+	
+	private static <T> JAXBElement<T> element(String ns, String name, Class<T> type, T value){
+		return new JAXBElement<T>(new QName(ns, name), type, value);
+	}
+	
+	static Binoperator binoperator(String op) throws IOException {
+		for(Binoperator operator : Binoperator.values()){
+			if(operator.value().equals(op)){
+				return operator;
+			}
+		}
+		throw new IOException("Unknown binary operator "+op);
+	}
+	
+	static Unioperator unioperator(String op) throws IOException {
+		for(Unioperator operator : Unioperator.values()){
+			if(operator.value().equals(op)){
+				return operator;
+			}
+		}
+		throw new IOException("Unknown unary operator "+op);
+	}
+	
+	static SymbolType symbolType(String type) throws IOException {
+		if(type == null){
+			return null;
+		}
+		for(SymbolType symbolType : SymbolType.values()){
+			if(symbolType.value().equals(type)){
+				return symbolType;
+			}
+		}
+		throw new IOException("Unknown symbol type "+type);
+	}
+	
+	private static <T> T as(Class<T> type, Object value, String field) throws IOException {
+		return as(type, value, field, false);
+	}
+	
+	private static <T> T as(Class<T> type, Object value, String field, boolean optional) throws IOException {
+		if(value == null && optional){
+			return null;
+		} else if(!type.isInstance(value)){
+			throw new IOException("Invalid "+field+": "+value);
+		}
+		return type.cast(value);
+	}
+
+}
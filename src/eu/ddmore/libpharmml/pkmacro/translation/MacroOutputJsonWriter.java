@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.FalseBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.StringValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.TrueBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.PopulationParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.SimpleParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+
+/**
+ * Streaming writer of the translated models as JSON, for the applications that only need the equations and
+ * the inputs. The JSON text is written directly to the output, without building any intermediate tree, and
+ * can be read back with {@link MacroOutputJsonReader}.
+ * 
+ * <p>The document has the following structure:
+ * 
+ * <pre>
+ * {@code
+ * {"structuralModel":{"blkId":"sm1","elements":[
+ *   {"element":"DerivativeVariable","symbId":"Ac1","symbolType":"real","order":1,"assign":<expression>},
+ *   {"element":"Variable","symbId":"Cc1","symbolType":"real","assign":<expression>},
+ *   {"element":"PopulationParameter","symbId":"k","assign":<expression>}]},
+ * "inputs":[{"input":1,"type":"IV","adm":{"int":1},"target":"Ac1","tlag":<expression>,"p":<expression>}]}
+ * }
+ * </pre>
+ * 
+ * where an expression is one of:
+ * 
+ * <pre>
+ * {@code
+ * {"symbRef":"k","blkIdRef":"pm1"}
+ * {"int":1}, {"real":0.5}, {"boolean":true}, {"string":"text"}
+ * {"binop":"times","args":[<expression>,<expression>]}
+ * {"uniop":"exp","args":[<expression>]}
+ * {"piecewise":[{"value":<expression>,"condition":{"logicBinop":"gt","args":[<expression>,<expression>]}},
+ *   {"value":<expression>,"condition":"otherwise"}]}
+ * }
+ * </pre>
+ * 
+ * The optional fields are omitted when they are not defined. The variables and the parameters are written with
+ * their symbol and their assignment only. A variable used in a condition is written as a reference to it.
+ * Other expressions, like function calls or vectors, are not supported. A writer can be shared by several
+ * threads.
+ */
+public class MacroOutputJsonWriter {
+	
+	/**
+	 * Writes the given output as a JSON document encoded in UTF-8. The stream is not closed by this method.
+	 * @param output The output of a translation.
+	 * @param out The stream of the document.
+	 * @throws IOException If the document can't be written.
+	 * @throws IllegalArgumentException If the output contains an element or an expression which is not supported.
+	 */
+	public void write(MacroOutput output, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		write(output, writer);
+		writer.flush();
+	}
+	
+	/**
+	 * Writes the given output as a JSON document. The writer is not closed by this method.
+	 * @param output The output of a translation.
+	 * @param writer The writer of the document.
+	 * @throws IOException If the document can't be written.
+	 * @throws IllegalArgumentException If the output contains an element or an expression which is not supported.
+	 */
+	public void write(MacroOutput output, Writer writer) throws IOException {
+		new JsonPrinter(writer).printOutput(output);
+	}
+	
+	/**
+	 * Prints one document. The expressions are browsed with an explicit stack, like in
+	 * {@link ExpressionPrinter}.
+	 */
+	private static class JsonPrinter {
+		
+		private final Writer out;
+		
+		/**
+		 * Pending items of the expression being printed. Each item is either a {@link String} to be written
+		 * as it is, or an expression element to be expanded.
+		 */
+		private final Deque<Object> stack = new ArrayDeque<Object>();
+		
+		JsonPrinter(Writer out) {
+			this.out = out;
+		}
+		
+		void printOutput(MacroOutput output) throws IOException {
+			StructuralModel sm = output.getStructuralModel();
+			out.write("{\"structuralModel\":{");
+			if(sm.getBlkId() != null){
+				out.write("\"blkId\":");
+				printString(sm.getBlkId());
+				out.write(",");
+			}
+			out.write("\"elements\":[");
+			boolean first = true;
+			for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+				if(!first){
+					out.write(",");
+				}
+				printElement(el);
+				first = false;
+			}
+			out.write("]},\"inputs\":[");
+			first = true;
+			for(Input input : output.getListOfInput()){
+				if(!first){
+					out.write(",");
+				}
+				printInput(input);
+				first = false;
+			}
+			out.write("]}");
+		}
+		
+		@SuppressWarnings("deprecation")
+		private void printElement(PharmMLElement el) throws IOException {
+			if(el instanceof DerivativeVariable){
+				DerivativeVariable dv = (DerivativeVariable) el;
+				printVariableStart("DerivativeVariable", dv);
+				if(dv.getOrder() != null){
+					out.write(",\"order\":");
+					out.write(String.valueOf(dv.getOrder()));
+				}
+				printAssign(dv.getAssign());
+			} else if(el instanceof VariableDefinition){
+				VariableDefinition v = (VariableDefinition) el;
+				printVariableStart("Variable", v);
+				printAssign(v.getAssign());
+			} else if(el instanceof PopulationParameter){
+				printParameter("PopulationParameter", (CommonParameter) el);
+			} else if(el instanceof IndividualParameter){
+				printParameter("IndividualParameter", (CommonParameter) el);
+			} else if(el instanceof SimpleParameter){
+				printParameter("SimpleParameter", (CommonParameter) el);
+			} else {
+				throw new IllegalArgumentException("Unsupported structural model element "+el);
+			}
+			out.write("}");
+		}
+		
+		private void printVariableStart(String element, CommonVariableDefinition v) throws IOException {
+			out.write("{\"element\":\"");
+			out.write(element);
+			out.write("\",\"symbId\":");
+			printString(v.getSymbId());
+			if(v.getSymbolType() != null){
+				out.write(",\"symbolType\":");
+				printString(v.getSymbolType().value());
+			}
+		}
+		
+		private void printParameter(String element, CommonParameter p) throws IOException {
+			out.write("{\"element\":\"");
+			out.write(element);
+			out.write("\",\"symbId\":");
+			printString(p.getSymbId());
+			printAssign(p.getAssign());
+		}
+		
+		private void printAssign(Rhs rhs) throws IOException {
+			if(rhs != null && rhs.getContent() != null){
+				out.write(",\"assign\":");
+				printExpression(rhs.getContent());
+			}
+		}
+		
+		private void printInput(Input input) throws IOException {
+			out.write("{\"input\":");
+			out.write(String.valueOf(input.getNumber()));
+			out.write(",\"type\":");
+			printString(String.valueOf(input.getType()));
+			if(input.getAdm() != null){
+				out.write(",\"adm\":");
+				printExpression(input.getAdm());
+			}
+			out.write(",\"target\":");
+			printString(input.getTarget().getSymbId());
+			if(input.getTlag() != null){
+				out.write(",\"tlag\":");
+				printExpression(input.getTlag());
+			}
+			if(input.getP() != null){
+				out.write(",\"p\":");
+				printExpression(input.getP());
+			}
+			out.write("}");
+		}
+		
+		private void printExpression(Object expression) throws IOException {
+			stack.push(expression);
+			while(!stack.isEmpty()){
+				Object item = stack.pop();
+				if(item instanceof String){
+					out.write((String) item);
+				} else {
+					expand(item);
+				}
+			}
+		}
+		
+		/**
+		 * Writes the leaf elements, and pushes the parts of the other ones in reverse order so they are popped
+		 * in their printing order.
+		 */
+		private void expand(Object item) throws IOException {
+			if(item instanceof SymbolRef){
+				SymbolRef sref = (SymbolRef) item;
+				out.write("{\"symbRef\":");
+				printString(sref.getSymbIdRef());
+				if(sref.getBlkIdRef() != null){
+					out.write(",\"blkIdRef\":");
+					printString(sref.getBlkIdRef());
+				}
+				out.write("}");
+			} else if(item instanceof CommonVariableDefinition){
+				out.write("{\"symbRef\":");
+				printString(((CommonVariableDefinition) item).getSymbId());
+				out.write("}");
+			} else if(item instanceof IntValue){
+				out.write("{\"int\":");
+				out.write(String.valueOf(((IntValue) item).getValue()));
+				out.write("}");
+			} else if(item instanceof RealValue){
+				double value = ((RealValue) item).getValue();
+				out.write("{\"real\":");
+				if(Double.isNaN(value) || Double.isInfinite(value)){
+					printString(String.valueOf(value));
+				} else {
+					out.write(String.valueOf(value));
+				}
+				out.write("}");
+			} else if(item instanceof TrueBoolean){
+				out.write("{\"boolean\":true}");
+			} else if(item instanceof FalseBoolean){
+				out.write("{\"boolean\":false}");
+			} else if(item instanceof StringValue){
+				out.write("{\"string\":");
+				printString(((StringValue) item).getValue());
+				out.write("}");
+			} else if(item instanceof Binop){
+				Binop binop = (Binop) item;
+				out.write("{\"binop\":");
+				printString(binop.getOperator().value());
+				out.write(",\"args\":[");
+				pushAll(binop.getOperand1(), ",", binop.getOperand2(), "]}");
+			} else if(item instanceof Uniop){
+				Uniop uniop = (Uniop) item;
+				out.write("{\"uniop\":");
+				printString(uniop.getOperator().value());
+				out.write(",\"args\":[");
+				pushAll(uniop.getValue(), "]}");
+			} else if(item instanceof Piecewise){
+				List<Piece> pieces = ((Piecewise) item).getListOfPiece();
+				out.write("{\"piecewise\":[");
+				stack.push("]}");
+				for(int i = pieces.size() - 1; i >= 0; i--){
+					stack.push(pieces.get(i));
+					if(i > 0){
+						stack.push(",");
+					}
+				}
+			} else if(item instanceof Piece){
+				Piece piece = (Piece) item;
+				Condition condition = piece.getCondition();
+				out.write("{\"value\":");
+				if(condition != null && condition.getOtherwise() != null){
+					pushAll(piece.getValue(), ",\"condition\":\"otherwise\"}");
+				} else if(condition != null && condition.getLogicBinop() != null){
+					pushAll(piece.getValue(), ",\"condition\":", condition.getLogicBinop(), "}");
+				} else {
+					throw new IllegalArgumentException("Unsupported condition "+condition);
+				}
+			} else if(item instanceof LogicBinOp){
+				LogicBinOp logicBinop = (LogicBinOp) item;
+				List<JAXBElement<?>> content = logicBinop.getContent();
+				out.write("{\"logicBinop\":");
+				printString(logicBinop.getOp());
+				out.write(",\"args\":[");
+				stack.push("]}");
+				for(int i = content.size() - 1; i >= 0; i--){
+					pushAll(content.get(i).getValue());
+					if(i > 0){
+						stack.push(",");
+					}
+				}
+			} else {
+				throw new IllegalArgumentException("Unsupported expression "+item);
+			}
+		}
+		
+		/**
+		 * Pushes the given items so they are printed in the given order.
+		 */
+		private void pushAll(Object... items){
+			for(int i = items.length - 1; i >= 0; i--){
+				if(items[i] == null){
+					throw new IllegalArgumentException("Incomplete expression");
+				}
+				stack.push(items[i]);
+			}
+		}
+		
+		private void printString(String s) throws IOException {
+			out.write('"');
+			int start = 0;
+			for(int i = 0; i < s.length(); i++){
+				char c = s.charAt(i);
+				if(c == '"' || c == '\\' || c < 0x20){
+					out.write(s, start, i - start);
+					switch (c) {
+					case '"':
+						out.write("\\\"");
+						break;
+					case '\\':
+						out.write("\\\\");
+						break;
+					case '\n':
+						out.write("\\n");
+						break;
+					case '\r':
+						out.write("\\r");
+						break;
+					case '\t':
+						out.write("\\t");
+						break;
+					default:
+						String hex = Integer.toHexString(c);
+						out.write("\\u0000", 0, 6 - hex.length());
+						out.write(hex);
+						break;
+					}
+					start = i + 1;
+				}
+			}
+			out.write(s, start, s.length() - start);
+			out.write('"');
+		}
+		
+	}
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.swing.tree.TreeNode;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.IdFactoryImpl;
+import eu.ddmore.libpharmml.impl.MarshalListener;
+import eu.ddmore.libpharmml.impl.NamespaceFilter;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+
+/**
+ * Marshals translated structural models with JAXB, for applications serializing many models.
+ * 
+ * <p>The JAXB context of the PharmML elements is created once and shared by all the instances of this class,
+ * and the configured {@link Marshaller} objects are kept in a pool, so their creation is only paid by the first
+ * models. Marshallers are not thread-safe, so each call borrows a marshaller from the pool and gives it back
+ * when the model is written. An instance can then be used by several threads at the same time:
+ * 
+ * <pre>
+ * {@code
+ * MacroOutputMarshaller marshaller = new MacroOutputMarshaller();
+ * marshaller.marshal(translator.translate(sm, PharmMLVersion.DEFAULT, time), out);
+ * }
+ * </pre>
+ * 
+ * <p>The output is the one of a libPharmML marshaller, without the automatic generation of the ids. For a
+ * faster output without JAXB, see {@link MacroOutputWriter}.
+ */
+public class MacroOutputMarshaller {
+	
+	private static final QName STRUCTURAL_MODEL = new QName(NamespaceFilter.NS_DEFAULT_MDEF, "StructuralModel");
+	
+	private final PharmMLVersion version;
+	private final boolean formattedOutput;
+	private final Queue<Marshaller> pool = new ConcurrentLinkedQueue<Marshaller>();
+	
+	/**
+	 * Constructor for formatted output in the current PharmML version.
+	 */
+	public MacroOutputMarshaller() {
+		this(PharmMLVersion.DEFAULT, true);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param version The PharmML version of the output.
+	 * @param formattedOutput true to indent the output, false to write it on a single line.
+	 */
+	public MacroOutputMarshaller(PharmMLVersion version, boolean formattedOutput) {
+		if(version == null){
+			throw new IllegalArgumentException("Version can't be null");
+		}
+		this.version = version;
+		this.formattedOutput = formattedOutput;
+	}
+	
+	/**
+	 * Gets the PharmML version of the output.
+	 * @return The {@link PharmMLVersion} of the marshalled elements.
+	 */
+	public PharmMLVersion getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Writes the translated structural model of the given output as a PharmML StructuralModel element.
+	 * @param output The output of a translation.
+	 * @param out The stream of the output, which is not closed.
+	 * @throws JAXBException If the model can't be marshalled.
+	 */
+	public void marshal(MacroOutput output, OutputStream out) throws JAXBException {
+		marshal(output.getStructuralModel(), out);
+	}
+	
+	/**
+	 * Writes the given structural model as a PharmML StructuralModel element.
+	 * @param sm The structural model.
+	 * @param out The stream of the output, which is not closed.
+	 * @throws JAXBException If the model can't be marshalled.
+	 */
+	public void marshal(StructuralModel sm, OutputStream out) throws JAXBException {
+		setMarshalVersion(sm, version);
+		Marshaller m = borrow();
+		try {
+			m.marshal(toElement(sm), out);
+		} finally {
+			pool.offer(m);
+		}
+	}
+	
+	/**
+	 * Writes the given structural model as a PharmML StructuralModel element.
+	 * @param sm The structural model.
+	 * @param writer The writer of the output, which is not closed.
+	 * @throws JAXBException If the model can't be marshalled.
+	 */
+	public void marshal(StructuralModel sm, Writer writer) throws JAXBException {
+		setMarshalVersion(sm, version);
+		Marshaller m = borrow();
+		try {
+			m.marshal(toElement(sm), writer);
+		} finally {
+			pool.offer(m);
+		}
+	}
+	
+	private static JAXBElement<StructuralModel> toElement(StructuralModel sm){
+		return new JAXBElement<StructuralModel>(STRUCTURAL_MODEL, StructuralModel.class, sm);
+	}
+	
+	/**
+	 * Takes a marshaller from the pool, or creates one if all of them are in use.
+	 */
+	private Marshaller borrow() throws JAXBException {
+		Marshaller m = pool.poll();
+		if(m == null){
+			m = MacroInputReader.getContext().createMarshaller();
+			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.valueOf(formattedOutput));
+			MarshalListener listener = new MarshalListener(version, new IdFactoryImpl());
+			listener.autosetId(false);
+			m.setListener(listener);
+		}
+		return m;
+	}
+	
+	/**
+	 * Sets the marshal version of the given element and all its descendants. The tree is browsed with an
+	 * explicit stack in a single pass, so deep expressions don't overflow the call stack.
+	 * @param root The root element.
+	 * @param version The PharmML version of the output.
+	 */
+	static void setMarshalVersion(PharmMLElement root, PharmMLVersion version){
+		Deque<PharmMLElement> pending = new ArrayDeque<PharmMLElement>();
+		pending.push(root);
+		while(!pending.isEmpty()){
+			PharmMLElement node = pending.pop();
+			node.setMarshalVersion(version);
+			Enumeration<TreeNode> children = node.children();
+			while(children.hasMoreElements()){
+				TreeNode child = children.nextElement();
+				if(child instanceof PharmMLElement){
+					pending.push((PharmMLElement) child);
+				}
+			}
+		}
+	}
+
+}
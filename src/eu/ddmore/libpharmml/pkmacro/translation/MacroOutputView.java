@@ -0,0 +1,507 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.BIG_INT;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.BINOP;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.DERIVATIVE_VARIABLE;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.FALSE;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.INT;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.LOGIC_BINOP;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.NULL;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.OTHERWISE;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.PIECEWISE;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.REAL;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.SIMPLE_PARAMETER;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.STRING;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.SYMBREF;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.TRUE;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.UNIOP;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.VARIABLE;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.inputType;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.readHeader;
+import static eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.skipExpression;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.Cursor;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat.Strings;
+
+/**
+ * Read-only view of an output encoded by {@link MacroOutputBinaryFormat}, reading the encoded values in place
+ * instead of creating PharmML objects.
+ * 
+ * <p>The elements and the inputs are given by their index. The expressions are given by the position of their
+ * root node in the buffer, -1 meaning that there is no expression, and are browsed with
+ * {@link #getNodeType(int)}, {@link #getChildCount(int)} and {@link #getChild(int, int)}. The children of a
+ * piecewise are the value and the condition of each piece, the condition being a {@link NodeType#LOGIC_BINOP}
+ * or a {@link NodeType#OTHERWISE} node. The strings are decoded when they are first requested.
+ * 
+ * <p>The whole content is checked when the view is created, so the accessors don't fail for the indexes and
+ * the nodes given by the view.
+ */
+public class MacroOutputView {
+	
+	/**
+	 * Type of a structural model element.
+	 */
+	public enum ElementType {
+		DERIVATIVE_VARIABLE, VARIABLE, POPULATION_PARAMETER, INDIVIDUAL_PARAMETER, SIMPLE_PARAMETER
+	}
+	
+	/**
+	 * Type of an expression node.
+	 */
+	public enum NodeType {
+		SYMBREF, INT, REAL, BOOLEAN, STRING, BINOP, UNIOP, PIECEWISE, OTHERWISE, LOGIC_BINOP
+	}
+	
+	private final ByteBuffer buffer;
+	private final Strings strings;
+	private final int blkId;
+	private final int[] elements;
+	private final int[] inputs;
+	
+	/**
+	 * Checks the encoded output starting at the given position, and records the positions of its elements and
+	 * inputs.
+	 */
+	MacroOutputView(ByteBuffer buffer, int position) throws IOException {
+		this.buffer = buffer.duplicate();
+		Cursor in = new Cursor(this.buffer, position);
+		strings = readHeader(in);
+		blkId = in.readVarint();
+		strings.checkOptional(blkId);
+		
+		elements = new int[checkCount(in.readVarint())];
+		for(int i = 0; i < elements.length; i++){
+			elements[i] = in.pos;
+			byte kind = in.readByte();
+			if(kind < DERIVATIVE_VARIABLE || kind > SIMPLE_PARAMETER){
+				throw new IOException("Unknown element kind "+kind);
+			}
+			strings.check(in.readVarint());
+			if(kind == DERIVATIVE_VARIABLE || kind == VARIABLE){
+				strings.checkOptional(in.readVarint());
+			}
+			if(kind == DERIVATIVE_VARIABLE){
+				in.readVarint();
+			}
+			skipExpression(in, strings);
+			if(kind == DERIVATIVE_VARIABLE){
+				skipExpression(in, strings);
+				int initialCondition = in.readVarint();
+				if(initialCondition == 1){
+					skipExpression(in, strings);
+					skipExpression(in, strings);
+				} else if(initialCondition != 0){
+					throw new IOException("Invalid initial condition flag "+initialCondition);
+				}
+			}
+		}
+		
+		inputs = new int[checkCount(in.readVarint())];
+		for(int i = 0; i < inputs.length; i++){
+			inputs[i] = in.pos;
+			in.readSignedVarint();
+			int type = in.readVarint();
+			strings.check(type);
+			inputType(strings.get(type));
+			strings.check(in.readVarint());
+			for(int j = 0; j < 3; j++){
+				skipExpression(in, strings);
+			}
+		}
+	}
+	
+	private int checkCount(int count) throws IOException {
+		if(count < 0 || count > buffer.limit()){
+			throw new IOException("Invalid count "+count);
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the blkId of the structural model.
+	 * @return The blkId, or null if not defined.
+	 */
+	public String getBlkId(){
+		return strings.getOptional(blkId);
+	}
+	
+	/**
+	 * Gets the number of elements of the structural model.
+	 * @return The number of elements.
+	 */
+	public int getElementCount(){
+		return elements.length;
+	}
+	
+	/**
+	 * Gets the type of an element of the structural model.
+	 * @param element The index of the element.
+	 * @return The type of the element.
+	 */
+	public ElementType getElementType(int element){
+		return ElementType.values()[buffer.get(elements[element]) - DERIVATIVE_VARIABLE];
+	}
+	
+	/**
+	 * Gets the symbId of an element of the structural model.
+	 * @param element The index of the element.
+	 * @return The symbId of the element.
+	 */
+	public String getSymbId(int element){
+		Cursor in = new Cursor(buffer, elements[element] + 1);
+		return strings.get(in.readVarint());
+	}
+	
+	/**
+	 * Gets the symbol type of a variable of the structural model.
+	 * @param element The index of the element.
+	 * @return The value of the symbol type, or null if not defined or if the element is a parameter.
+	 */
+	public String getSymbolType(int element){
+		Cursor in = new Cursor(buffer, elements[element]);
+		byte kind = in.readByte();
+		if(kind != DERIVATIVE_VARIABLE && kind != VARIABLE){
+			return null;
+		}
+		in.readVarint();
+		return strings.getOptional(in.readVarint());
+	}
+	
+	/**
+	 * Gets the order of a derivative variable of the structural model.
+	 * @param element The index of the element.
+	 * @return The order, or null if not defined or if the element is not a derivative variable.
+	 */
+	public Integer getOrder(int element){
+		Cursor in = new Cursor(buffer, elements[element]);
+		if(in.readByte() != DERIVATIVE_VARIABLE){
+			return null;
+		}
+		in.readVarint();
+		in.readVarint();
+		int order = in.readVarint();
+		return order == 0 ? null : Integer.valueOf(order - 1);
+	}
+	
+	/**
+	 * Gets the assigned expression of an element of the structural model.
+	 * @param element The index of the element.
+	 * @return The root node of the expression, or -1 if the element has no assignment.
+	 */
+	public int getAssign(int element){
+		Cursor in = new Cursor(buffer, elements[element]);
+		byte kind = in.readByte();
+		in.readVarint();
+		if(kind == DERIVATIVE_VARIABLE || kind == VARIABLE){
+			in.readVarint();
+		}
+		if(kind == DERIVATIVE_VARIABLE){
+			in.readVarint();
+		}
+		return node(in.pos);
+	}
+	
+	/**
+	 * Gets the number of inputs.
+	 * @return The number of inputs.
+	 */
+	public int getInputCount(){
+		return inputs.length;
+	}
+	
+	/**
+	 * Gets the number of an input.
+	 * @param input The index of the input.
+	 * @return The number of the input.
+	 */
+	public int getInputNumber(int input){
+		return (int) new Cursor(buffer, inputs[input]).readSignedVarint();
+	}
+	
+	/**
+	 * Gets the type of an input.
+	 * @param input The index of the input.
+	 * @return The type of the input.
+	 */
+	public InputType getInputType(int input){
+		Cursor in = new Cursor(buffer, inputs[input]);
+		in.readSignedVarint();
+		return InputType.valueOf(strings.get(in.readVarint()));
+	}
+	
+	/**
+	 * Gets the symbId of the variable targeted by an input.
+	 * @param input The index of the input.
+	 * @return The symbId of the target.
+	 */
+	public String getInputTarget(int input){
+		Cursor in = new Cursor(buffer, inputs[input]);
+		in.readSignedVarint();
+		in.readVarint();
+		return strings.get(in.readVarint());
+	}
+	
+	/**
+	 * Gets the administration of an input.
+	 * @param input The index of the input.
+	 * @return The root node of the administration, or -1 if not defined.
+	 */
+	public int getInputAdm(int input){
+		return inputExpression(input, 0);
+	}
+	
+	/**
+	 * Gets the lag time of an input.
+	 * @param input The index of the input.
+	 * @return The root node of the lag time, or -1 if not defined.
+	 */
+	public int getInputTlag(int input){
+		return inputExpression(input, 1);
+	}
+	
+	/**
+	 * Gets the bioavailability of an input.
+	 * @param input The index of the input.
+	 * @return The root node of the bioavailability, or -1 if not defined.
+	 */
+	public int getInputP(int input){
+		return inputExpression(input, 2);
+	}
+	
+	private int inputExpression(int input, int k){
+		Cursor in = new Cursor(buffer, inputs[input]);
+		in.readSignedVarint();
+		in.readVarint();
+		in.readVarint();
+		for(int i = 0; i < k; i++){
+			skip(in);
+		}
+		return node(in.pos);
+	}
+	
+	private int node(int position){
+		return buffer.get(position) == NULL ? -1 : position;
+	}
+	
+	/**
+	 * Gets the type of an expression node.
+	 * @param node The position of the node.
+	 * @return The type of the node.
+	 */
+	public NodeType getNodeType(int node){
+		switch (buffer.get(node)) {
+		case SYMBREF:
+			return NodeType.SYMBREF;
+		case INT:
+		case BIG_INT:
+			return NodeType.INT;
+		case REAL:
+			return NodeType.REAL;
+		case TRUE:
+		case FALSE:
+			return NodeType.BOOLEAN;
+		case STRING:
+			return NodeType.STRING;
+		case BINOP:
+			return NodeType.BINOP;
+		case UNIOP:
+			return NodeType.UNIOP;
+		case PIECEWISE:
+			return NodeType.PIECEWISE;
+		case OTHERWISE:
+			return NodeType.OTHERWISE;
+		case LOGIC_BINOP:
+			return NodeType.LOGIC_BINOP;
+		default:
+			throw new IllegalArgumentException("No expression node at "+node);
+		}
+	}
+	
+	/**
+	 * Gets the operator of a {@link NodeType#BINOP}, {@link NodeType#UNIOP} or {@link NodeType#LOGIC_BINOP}
+	 * node.
+	 * @param node The position of the node.
+	 * @return The value of the operator.
+	 */
+	public String getOperator(int node){
+		byte tag = buffer.get(node);
+		if(tag != BINOP && tag != UNIOP && tag != LOGIC_BINOP){
+			throw new IllegalArgumentException("No operator at "+node);
+		}
+		return readString(node);
+	}
+	
+	/**
+	 * Gets the referenced symbId of a {@link NodeType#SYMBREF} node.
+	 * @param node The position of the node.
+	 * @return The referenced symbId.
+	 */
+	public String getSymbIdRef(int node){
+		checkTag(node, SYMBREF);
+		return readString(node);
+	}
+	
+	/**
+	 * Gets the referenced blkId of a {@link NodeType#SYMBREF} node.
+	 * @param node The position of the node.
+	 * @return The referenced blkId, or null if not defined.
+	 */
+	public String getBlkIdRef(int node){
+		checkTag(node, SYMBREF);
+		Cursor in = new Cursor(buffer, node + 1);
+		in.readVarint();
+		return strings.getOptional(in.readVarint());
+	}
+	
+	/**
+	 * Gets the value of a {@link NodeType#INT} node.
+	 * @param node The position of the node.
+	 * @return The integer value.
+	 */
+	public BigInteger getIntValue(int node){
+		if(buffer.get(node) == BIG_INT){
+			return new BigInteger(readString(node));
+		}
+		checkTag(node, INT);
+		return BigInteger.valueOf(new Cursor(buffer, node + 1).readSignedVarint());
+	}
+	
+	/**
+	 * Gets the value of a {@link NodeType#REAL} node.
+	 * @param node The position of the node.
+	 * @return The real value.
+	 */
+	public double getRealValue(int node){
+		checkTag(node, REAL);
+		return Double.longBitsToDouble(buffer.getLong(node + 1));
+	}
+	
+	/**
+	 * Gets the value of a {@link NodeType#BOOLEAN} node.
+	 * @param node The position of the node.
+	 * @return The boolean value.
+	 */
+	public boolean getBooleanValue(int node){
+		if(buffer.get(node) == TRUE){
+			return true;
+		}
+		checkTag(node, FALSE);
+		return false;
+	}
+	
+	/**
+	 * Gets the value of a {@link NodeType#STRING} node.
+	 * @param node The position of the node.
+	 * @return The string value.
+	 */
+	public String getStringValue(int node){
+		checkTag(node, STRING);
+		return readString(node);
+	}
+	
+	/**
+	 * Gets the number of children of an expression node.
+	 * @param node The position of the node.
+	 * @return The number of children, 0 for a leaf.
+	 */
+	public int getChildCount(int node){
+		getNodeType(node);
+		return readNode(new Cursor(buffer, node));
+	}
+	
+	/**
+	 * Gets a child of an expression node. The children are found by skipping their previous siblings, so
+	 * browsing all the children of a node is faster with {@link #getFirstChild(int)} and
+	 * {@link #getNextSibling(int)}.
+	 * @param node The position of the node.
+	 * @param index The index of the child.
+	 * @return The position of the child.
+	 */
+	public int getChild(int node, int index){
+		getNodeType(node);
+		Cursor in = new Cursor(buffer, node);
+		int count = readNode(in);
+		if(index < 0 || index >= count){
+			throw new IndexOutOfBoundsException("Child "+index+" of a node with "+count+" children");
+		}
+		for(int i = 0; i < index; i++){
+			skip(in);
+		}
+		return in.pos;
+	}
+	
+	/**
+	 * Gets the first child of an expression node.
+	 * @param node The position of the node.
+	 * @return The position of the first child, or -1 for a leaf.
+	 */
+	public int getFirstChild(int node){
+		getNodeType(node);
+		Cursor in = new Cursor(buffer, node);
+		return readNode(in) == 0 ? -1 : in.pos;
+	}
+	
+	/**
+	 * Gets the position following an expression node and its children. This is the next sibling of the node
+	 * if it is not the last child of its parent.
+	 * @param node The position of the node.
+	 * @return The position following the node.
+	 */
+	public int getNextSibling(int node){
+		getNodeType(node);
+		Cursor in = new Cursor(buffer, node);
+		skip(in);
+		return in.pos;
+	}
+	
+	private void checkTag(int node, byte tag){
+		if(buffer.get(node) != tag){
+			throw new IllegalArgumentException("Unexpected "+getNodeType(node)+" node at "+node);
+		}
+	}
+	
+	private String readString(int node){
+		return strings.get(new Cursor(buffer, node + 1).readVarint());
+	}
+	
+	private int readNode(Cursor in){
+		try {
+			return MacroOutputBinaryFormat.readNode(in, strings);
+		} catch (IOException e) {
+			// Should not happen, the content has been checked
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void skip(Cursor in){
+		try {
+			skipExpression(in, strings);
+		} catch (IOException e) {
+			// Should not happen, the content has been checked
+			throw new RuntimeException(e);
+		}
+	}
+
+}
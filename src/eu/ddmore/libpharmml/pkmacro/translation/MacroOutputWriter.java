@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Otherwise;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.Parameter;
+import eu.ddmore.libpharmml.dom.modeldefn.PopulationParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.SimpleParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.IdFactoryImpl;
+import eu.ddmore.libpharmml.impl.MarshalListener;
+import eu.ddmore.libpharmml.impl.NamespaceFilter;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+
+/**
+ * Streaming writer of the translated models as PharmML XML.
+ * 
+ * <p>The elements are written one after the other to a StAX {@link XMLStreamWriter}, without any JAXB
+ * marshaller, so the memory used does not depend on the size of the model. The expressions are browsed with an
+ * explicit stack, like in the pretty printer, so long ODE right-hand sides don't overflow the call stack.
+ * 
+ * <p>The variables, the derivative variables generated by the macros, the population and simple parameters
+ * are written with their symbol and their assignment. The assignments made of symbol references, integers,
+ * reals, binary and unary operators, and piecewise expressions are written directly. The other elements and
+ * expressions, for instance an ODE of the input model with an initial condition, are rare in translated models
+ * and are marshalled with JAXB, one element at a time. The output follows the current PharmML version.
+ * 
+ * <p>{@link #write(MacroOutput, OutputStream)} writes a complete document, where the {@link StructuralModel}
+ * is followed by the list of {@link Input}. As the inputs have no PharmML representation, the root element and
+ * the input elements have no namespace:
+ * 
+ * <pre>
+ * {@code
+ * <MacroOutput xmlns:mdef="..." xmlns:ct="..." xmlns:math="...">
+ *   <mdef:StructuralModel blkId="sm1">...</mdef:StructuralModel>
+ *   <Inputs>
+ *     <Input number="1" type="IV" adm="1" target="Ac1"/>
+ *     <Input number="2" type="ORAL" adm="2" target="Ad2"><Tlag><ct:SymbRef symbIdRef="Tlag"/></Tlag></Input>
+ *   </Inputs>
+ * </MacroOutput>
+ * }
+ * </pre>
+ * 
+ * A writer can be shared by several threads.
+ */
+public class MacroOutputWriter {
+	
+	static final String NS_MDEF = NamespaceFilter.NS_DEFAULT_MDEF;
+	static final String NS_CT = NamespaceFilter.NS_DEFAULT_CT;
+	static final String NS_MATH = NamespaceFilter.NS_DEFAULT_MATH;
+	
+	private static final String PREFIX_MDEF = "mdef";
+	private static final String PREFIX_CT = "ct";
+	private static final String PREFIX_MATH = "math";
+	
+	private static final Object END_ELEMENT = new Object();
+	
+	private final XMLOutputFactory factory;
+	
+	/**
+	 * Constructor.
+	 */
+	public MacroOutputWriter() {
+		factory = XMLOutputFactory.newInstance();
+	}
+	
+	/**
+	 * Writes the translated structural model and the list of inputs as an XML document. The stream is not
+	 * closed by this method.
+	 * @param output The output of a translation.
+	 * @param out The stream of the document, encoded in UTF-8.
+	 * @throws IOException If the document can't be written.
+	 */
+	public void write(MacroOutput output, OutputStream out) throws IOException {
+		OutputStream buffered = new BufferedOutputStream(out);
+		try {
+			XMLStreamWriter writer = factory.createXMLStreamWriter(buffered, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("MacroOutput");
+			ElementWriter elementWriter = new ElementWriter(writer);
+			elementWriter.declareNamespaces();
+			elementWriter.writeStructuralModel(output.getStructuralModel());
+			elementWriter.writeInputs(output.getListOfInput());
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to write the translated model", e);
+		}
+		buffered.flush();
+	}
+	
+	/**
+	 * Writes the given structural model as a PharmML StructuralModel element. The writer can be positioned
+	 * anywhere an element is allowed, for instance within a ModelDefinition element.
+	 * @param sm The translated structural model.
+	 * @param writer The writer of the output.
+	 * @throws XMLStreamException If the model can't be written.
+	 */
+	public void writeStructuralModel(StructuralModel sm, XMLStreamWriter writer) throws XMLStreamException {
+		new ElementWriter(writer).writeStructuralModel(sm);
+	}
+	
+	/**
+	 * Writes the given inputs as an Inputs element, which contains one Input element per input.
+	 * @param inputs The inputs generated by a translation.
+	 * @param writer The writer of the output.
+	 * @throws XMLStreamException If the inputs can't be written.
+	 */
+	public void writeInputs(List<Input> inputs, XMLStreamWriter writer) throws XMLStreamException {
+		new ElementWriter(writer).writeInputs(inputs);
+	}
+	
+	/**
+	 * Writes the elements of one call to a {@link XMLStreamWriter}.
+	 */
+	private static class ElementWriter {
+		
+		private final XMLStreamWriter writer;
+		
+		/**
+		 * Pending items of the expression being written. Each item is either an expression element to be
+		 * written, or {@link MacroOutputWriter#END_ELEMENT}.
+		 */
+		private final Deque<Object> stack = new ArrayDeque<Object>();
+		
+		private Marshaller marshaller;
+		
+		ElementWriter(XMLStreamWriter writer) {
+			this.writer = writer;
+		}
+		
+		void writeStructuralModel(StructuralModel sm) throws XMLStreamException {
+			writer.writeStartElement(PREFIX_MDEF, "StructuralModel", NS_MDEF);
+			declareNamespaces();
+			if(sm.getBlkId() != null){
+				writer.writeAttribute("blkId", sm.getBlkId());
+			}
+			for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+				writeElement(el);
+			}
+			writer.writeEndElement();
+		}
+		
+		/**
+		 * Declares the PharmML namespaces on the current element, unless they are already bound to their
+		 * prefix by an enclosing element.
+		 */
+		void declareNamespaces() throws XMLStreamException {
+			declareNamespace(PREFIX_MDEF, NS_MDEF);
+			declareNamespace(PREFIX_CT, NS_CT);
+			declareNamespace(PREFIX_MATH, NS_MATH);
+		}
+		
+		private void declareNamespace(String prefix, String ns) throws XMLStreamException {
+			if(!ns.equals(writer.getNamespaceContext().getNamespaceURI(prefix))){
+				writer.writeNamespace(prefix, ns);
+				writer.setPrefix(prefix, ns);
+			}
+		}
+		
+		@SuppressWarnings("deprecation")
+		private void writeElement(PharmMLElement el) throws XMLStreamException {
+			if(el instanceof VariableDefinition){
+				writeVariable(PREFIX_CT, "Variable", NS_CT, (VariableDefinition) el);
+			} else if(el instanceof DerivativeVariable){
+				DerivativeVariable dv = (DerivativeVariable) el;
+				if(dv.getOriginMacro() != null){
+					writeVariable(PREFIX_CT, "DerivativeVariable", NS_CT, dv);
+				} else {
+					marshal(new QName(NS_CT, "DerivativeVariable"), DerivativeVariable.class, dv);
+				}
+			} else if(el instanceof PopulationParameter){
+				writeParameter("PopulationParameter", (CommonParameter) el);
+			} else if(el instanceof SimpleParameter){
+				writeParameter("SimpleParameter", (CommonParameter) el);
+			} else if(el instanceof IndividualParameter){
+				marshal(new QName(NS_MDEF, "IndividualParameter"), IndividualParameter.class, (IndividualParameter) el);
+			} else if(el instanceof Parameter){
+				marshal(new QName(NS_MDEF, "Parameter"), Parameter.class, (Parameter) el);
+			} else {
+				throw new IllegalArgumentException("Unsupported structural model element "+el);
+			}
+		}
+		
+		private void writeVariable(String prefix, String name, String ns, CommonVariableDefinition v) throws XMLStreamException {
+			writer.writeStartElement(prefix, name, ns);
+			if(v.getSymbolType() != null){
+				writer.writeAttribute("symbolType", v.getSymbolType().value());
+			}
+			writer.writeAttribute("symbId", v.getSymbId());
+			writeAssign(v.getAssign());
+			writer.writeEndElement();
+		}
+		
+		private void writeParameter(String name, CommonParameter p) throws XMLStreamException {
+			writer.writeStartElement(PREFIX_MDEF, name, NS_MDEF);
+			writer.writeAttribute("symbId", p.getSymbId());
+			writeAssign(p.getAssign());
+			writer.writeEndElement();
+		}
+		
+		void writeInputs(List<Input> inputs) throws XMLStreamException {
+			writer.writeStartElement("Inputs");
+			declareNamespaces();
+			for(Input input : inputs){
+				boolean empty = input.getTlag() == null && input.getP() == null;
+				if(empty){
+					writer.writeEmptyElement("Input");
+				} else {
+					writer.writeStartElement("Input");
+				}
+				writer.writeAttribute("number", String.valueOf(input.getNumber()));
+				writer.writeAttribute("type", String.valueOf(input.getType()));
+				if(input.getAdm() != null){
+					writer.writeAttribute("adm", input.getAdm().valueToString());
+				}
+				writer.writeAttribute("target", input.getTarget().getSymbId());
+				if(!empty){
+					writeOperand("Tlag", input.getTlag());
+					writeOperand("P", input.getP());
+					writer.writeEndElement();
+				}
+			}
+			writer.writeEndElement();
+		}
+		
+		private void writeOperand(String name, Object operand) throws XMLStreamException {
+			if(operand != null){
+				if(!isSupported(operand)){
+					throw new IllegalArgumentException("Unsupported input operand "+operand);
+				}
+				writer.writeStartElement(name);
+				writeExpression(operand);
+				writer.writeEndElement();
+			}
+		}
+		
+		private void writeAssign(Rhs rhs) throws XMLStreamException {
+			if(rhs == null){
+				return;
+			}
+			Object content = rhs.getContent();
+			if(isSupported(content)){
+				writer.writeStartElement(PREFIX_CT, "Assign", NS_CT);
+				writeExpression(content);
+				writer.writeEndElement();
+			} else {
+				marshal(new QName(NS_CT, "Assign"), Rhs.class, rhs);
+			}
+		}
+		
+		/**
+		 * Checks if the given expression only contains elements that are written without JAXB.
+		 */
+		private boolean isSupported(Object expression){
+			Deque<Object> pending = new ArrayDeque<Object>();
+			pending.push(expression);
+			while(!pending.isEmpty()){
+				Object item = pending.pop();
+				if(item instanceof SymbolRef || item instanceof IntValue || item instanceof RealValue
+						|| item instanceof Otherwise){
+					continue;
+				} else if(item instanceof Binop){
+					Binop binop = (Binop) item;
+					if(binop.getOperand1() == null || binop.getOperand2() == null){
+						return false;
+					}
+					pending.push(binop.getOperand1());
+					pending.push(binop.getOperand2());
+				} else if(item instanceof Uniop){
+					if(((Uniop) item).getValue() == null){
+						return false;
+					}
+					pending.push(((Uniop) item).getValue());
+				} else if(item instanceof Piecewise){
+					for(Piece piece : ((Piecewise) item).getListOfPiece()){
+						if(piece.getValue() == null || piece.getCondition() == null){
+							return false;
+						}
+						pending.push(piece.getValue());
+						pending.push(piece.getCondition());
+					}
+				} else if(item instanceof Condition){
+					Condition condition = (Condition) item;
+					if(condition.getOtherwise() != null){
+						pending.push(condition.getOtherwise());
+					} else if(condition.getLogicBinop() != null){
+						pending.push(condition.getLogicBinop());
+					} else {
+						return false;
+					}
+				} else if(item instanceof LogicBinOp){
+					for(JAXBElement<?> operand : ((LogicBinOp) item).getContent()){
+						if(operand.getValue() == null){
+							return false;
+						}
+						pending.push(operand.getValue());
+					}
+				} else {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Writes an expression checked by {@link #isSupported(Object)}.
+		 */
+		private void writeExpression(Object expression) throws XMLStreamException {
+			stack.push(expression);
+			while(!stack.isEmpty()){
+				Object item = stack.pop();
+				if(item == END_ELEMENT){
+					writer.writeEndElement();
+				} else if(item instanceof SymbolRef){
+					SymbolRef sref = (SymbolRef) item;
+					writer.writeEmptyElement(PREFIX_CT, "SymbRef", NS_CT);
+					if(sref.getBlkIdRef() != null){
+						writer.writeAttribute("blkIdRef", sref.getBlkIdRef());
+					}
+					writer.writeAttribute("symbIdRef", sref.getSymbIdRef());
+				} else if(item instanceof IntValue){
+					writeScalar("Int", ((IntValue) item).valueToString());
+				} else if(item instanceof RealValue){
+					writeScalar("Real", ((RealValue) item).valueToString());
+				} else if(item instanceof Binop){
+					Binop binop = (Binop) item;
+					startMathElement("Binop");
+					writer.writeAttribute("op", binop.getOperator().value());
+					stack.push(END_ELEMENT);
+					stack.push(binop.getOperand2());
+					stack.push(binop.getOperand1());
+				} else if(item instanceof Uniop){
+					Uniop uniop = (Uniop) item;
+					startMathElement("Uniop");
+					writer.writeAttribute("op", uniop.getOperator().value());
+					stack.push(END_ELEMENT);
+					stack.push(uniop.getValue());
+				} else if(item instanceof Piecewise){
+					startMathElement("Piecewise");
+					stack.push(END_ELEMENT);
+					List<Piece> pieces = ((Piecewise) item).getListOfPiece();
+					for(int i = pieces.size() - 1; i >= 0; i--){
+						stack.push(pieces.get(i));
+					}
+				} else if(item instanceof Piece){
+					Piece piece = (Piece) item;
+					startMathElement("Piece");
+					stack.push(END_ELEMENT);
+					stack.push(piece.getCondition());
+					stack.push(piece.getValue());
+				} else if(item instanceof Condition){
+					Condition condition = (Condition) item;
+					startMathElement("Condition");
+					stack.push(END_ELEMENT);
+					stack.push(condition.getOtherwise() != null ? condition.getOtherwise() : condition.getLogicBinop());
+				} else if(item instanceof Otherwise){
+					writer.writeEmptyElement(PREFIX_MATH, "Otherwise", NS_MATH);
+				} else if(item instanceof LogicBinOp){
+					LogicBinOp logicBinop = (LogicBinOp) item;
+					startMathElement("LogicBinop");
+					writer.writeAttribute("op", logicBinop.getOp());
+					stack.push(END_ELEMENT);
+					List<JAXBElement<?>> content = logicBinop.getContent();
+					for(int i = content.size() - 1; i >= 0; i--){
+						stack.push(content.get(i).getValue());
+					}
+				} else {
+					throw new RuntimeException("Unsupported expression "+item);
+				}
+			}
+		}
+		
+		private void startMathElement(String name) throws XMLStreamException {
+			writer.writeStartElement(PREFIX_MATH, name, NS_MATH);
+		}
+		
+		private void writeScalar(String name, String value) throws XMLStreamException {
+			writer.writeStartElement(PREFIX_CT, name, NS_CT);
+			writer.writeCharacters(value);
+			writer.writeEndElement();
+		}
+		
+		/**
+		 * Marshals an element not supported by this writer with JAXB.
+		 */
+		private <T> void marshal(QName name, Class<T> type, T value) throws XMLStreamException {
+			try {
+				if(marshaller == null){
+					marshaller = MacroInputReader.getContext().createMarshaller();
+					marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+					MarshalListener listener = new MarshalListener(PharmMLVersion.DEFAULT, new IdFactoryImpl());
+					listener.autosetId(false);
+					marshaller.setListener(listener);
+				}
+				if(value instanceof PharmMLElement){
+					MacroOutputMarshaller.setMarshalVersion((PharmMLElement) value, PharmMLVersion.DEFAULT);
+				}
+				marshaller.marshal(new JAXBElement<T>(name, type, value), writer);
+			} catch (JAXBException e) {
+				throw new XMLStreamException("Unable to marshal "+name.getLocalPart(), e);
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+/**
+ * Immutable naming convention of the symbols generated by a translation.
+ * 
+ * <p>A naming policy is given to a {@link Translator} through {@link TranslatorOptions.Builder#namingPolicy(NamingPolicy)}.
+ * Each translation uses the policy of its own options, so translations with different conventions can run
+ * concurrently. For instance:
+ * 
+ * <pre>
+ * {@code
+ * NamingPolicy naming = NamingPolicy.builder()
+ *     .depotPrefix("DEPOT")
+ *     .peripheralPrefix("PERIPH")
+ *     .build();
+ * Translator translator = new Translator(TranslatorOptions.builder().namingPolicy(naming).build());
+ * }
+ * </pre>
+ * 
+ * <p>The prefixes are followed by the compartment number or by the lowest available index, like "Ad1". A prefix
+ * must therefore be made of ASCII letters only ([A-Za-z]+): the symbIds are split into their prefix and index at
+ * the first character which is not a letter, so a prefix like "Depot_" or "A1" would generate duplicate symbols.
+ */
+public final class NamingPolicy {
+	
+	/**
+	 * The default naming convention.
+	 */
+	public static final NamingPolicy DEFAULT = builder().build();
+	
+	private final String depotPrefix;
+	private final String absorptionPrefix;
+	private final String centralPrefix;
+	private final String peripheralPrefix;
+	private final String transitPrefix;
+	private final String logKtrPrefix;
+	private final String logGammaPrefix;
+	private final String subexpressionPrefix;
+	private final String hoistedParameterPrefix;
+	private final String defaultTimeSymbol;
+	
+	private NamingPolicy(Builder builder) {
+		this.depotPrefix = builder.depotPrefix;
+		this.absorptionPrefix = builder.absorptionPrefix;
+		this.centralPrefix = builder.centralPrefix;
+		this.peripheralPrefix = builder.peripheralPrefix;
+		this.transitPrefix = builder.transitPrefix;
+		this.logKtrPrefix = builder.logKtrPrefix;
+		this.logGammaPrefix = builder.logGammaPrefix;
+		this.subexpressionPrefix = builder.subexpressionPrefix;
+		this.hoistedParameterPrefix = builder.hoistedParameterPrefix;
+		this.defaultTimeSymbol = builder.defaultTimeSymbol;
+	}
+	
+	/**
+	 * Creates a builder initialised with the default naming convention.
+	 * @return A new {@link Builder}.
+	 */
+	public static Builder builder(){
+		return new Builder();
+	}
+	
+	/**
+	 * Creates a builder initialised with the naming convention of this object.
+	 * @return A new {@link Builder}.
+	 */
+	public Builder toBuilder(){
+		return new Builder()
+				.depotPrefix(depotPrefix)
+				.absorptionPrefix(absorptionPrefix)
+				.centralPrefix(centralPrefix)
+				.peripheralPrefix(peripheralPrefix)
+				.transitPrefix(transitPrefix)
+				.logKtrPrefix(logKtrPrefix)
+				.logGammaPrefix(logGammaPrefix)
+				.subexpressionPrefix(subexpressionPrefix)
+				.hoistedParameterPrefix(hoistedParameterPrefix)
+				.defaultTimeSymbol(defaultTimeSymbol);
+	}
+	
+	/**
+	 * Creates a naming policy from the current values of the deprecated static fields of {@link VariableFactory}.
+	 */
+	@SuppressWarnings("deprecation")
+	static NamingPolicy fromStaticPrefixes(){
+		return new Builder()
+				.depotPrefix(VariableFactory.DEPOT_PREFIX)
+				.absorptionPrefix(VariableFactory.ABSORPTION_PREFIX)
+				.centralPrefix(VariableFactory.CENTRAL_CMT_PREFIX)
+				.peripheralPrefix(VariableFactory.PERIPH_CMT_PREFIX)
+				.defaultTimeSymbol(VariableFactory.DEFAULT_TIME_SYMBOL)
+				.build();
+	}
+	
+	/**
+	 * Gets the prefix of the depot compartment amounts. Default value: "Ad".
+	 */
+	public String getDepotPrefix() {
+		return depotPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the transit absorption compartment amounts. Default value: "Aa".
+	 */
+	public String getAbsorptionPrefix() {
+		return absorptionPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the central compartment amounts. Default value: "Ac".
+	 */
+	public String getCentralPrefix() {
+		return centralPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the peripheral compartment amounts. Default value: "Ap".
+	 */
+	public String getPeripheralPrefix() {
+		return peripheralPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the transit compartment amounts, generated when a transit absorption is expanded
+	 * (see {@link TranslatorOptions#getTransitChainThreshold()}). Default value: "Atr".
+	 */
+	public String getTransitPrefix() {
+		return transitPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the parameter assigned to log(Ktr), generated for a transit absorption with
+	 * {@link TranslatorOptions#isLogGammaTransit()}. Default value: "logKtr".
+	 */
+	public String getLogKtrPrefix() {
+		return logKtrPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the parameter assigned to gammaln(Ktr*Mtt), generated for a transit absorption with
+	 * {@link TranslatorOptions#isLogGammaTransit()}. Default value: "logGammaN".
+	 */
+	public String getLogGammaPrefix() {
+		return logGammaPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the variables generated by {@link Translator#ELIMINATE_COMMON_SUBEXPRESSIONS}.
+	 * Default value: "CSE".
+	 */
+	public String getSubexpressionPrefix() {
+		return subexpressionPrefix;
+	}
+	
+	/**
+	 * Gets the prefix of the parameters generated by {@link Translator#HOIST_PARAMETER_EXPRESSIONS}.
+	 * Default value: "DP".
+	 */
+	public String getHoistedParameterPrefix() {
+		return hoistedParameterPrefix;
+	}
+	
+	/**
+	 * Gets the time symbol referred to when the time variable is not given to the translator. Default value: "t".
+	 */
+	public String getDefaultTimeSymbol() {
+		return defaultTimeSymbol;
+	}
+	
+	/**
+	 * Builder of {@link NamingPolicy} objects.
+	 */
+	public static class Builder {
+		
+		private String depotPrefix = "Ad";
+		private String absorptionPrefix = "Aa";
+		private String centralPrefix = "Ac";
+		private String peripheralPrefix = "Ap";
+		private String transitPrefix = "Atr";
+		private String logKtrPrefix = "logKtr";
+		private String logGammaPrefix = "logGammaN";
+		private String subexpressionPrefix = "CSE";
+		private String hoistedParameterPrefix = "DP";
+		private String defaultTimeSymbol = "t";
+		
+		private Builder() {
+		}
+		
+		/**
+		 * Sets the prefix of the depot compartment amounts.
+		 * @param depotPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder depotPrefix(String depotPrefix) {
+			this.depotPrefix = checkPrefix(depotPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the transit absorption compartment amounts.
+		 * @param absorptionPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder absorptionPrefix(String absorptionPrefix) {
+			this.absorptionPrefix = checkPrefix(absorptionPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the central compartment amounts.
+		 * @param centralPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder centralPrefix(String centralPrefix) {
+			this.centralPrefix = checkPrefix(centralPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the peripheral compartment amounts.
+		 * @param peripheralPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder peripheralPrefix(String peripheralPrefix) {
+			this.peripheralPrefix = checkPrefix(peripheralPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the expanded transit compartment amounts.
+		 * @param transitPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder transitPrefix(String transitPrefix) {
+			this.transitPrefix = checkPrefix(transitPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the parameter assigned to log(Ktr) with the log-gamma transit absorption.
+		 * @param logKtrPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder logKtrPrefix(String logKtrPrefix) {
+			this.logKtrPrefix = checkPrefix(logKtrPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the parameter assigned to gammaln(Ktr*Mtt) with the log-gamma transit absorption.
+		 * @param logGammaPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder logGammaPrefix(String logGammaPrefix) {
+			this.logGammaPrefix = checkPrefix(logGammaPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the variables generated by the common subexpression elimination.
+		 * @param subexpressionPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder subexpressionPrefix(String subexpressionPrefix) {
+			this.subexpressionPrefix = checkPrefix(subexpressionPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the prefix of the parameters generated by the hoisting of the parameter expressions.
+		 * @param hoistedParameterPrefix The prefix, made of ASCII letters only.
+		 * @throws IllegalArgumentException If the prefix is null, empty or contains other characters than letters.
+		 */
+		public Builder hoistedParameterPrefix(String hoistedParameterPrefix) {
+			this.hoistedParameterPrefix = checkPrefix(hoistedParameterPrefix);
+			return this;
+		}
+		
+		/**
+		 * Sets the time symbol referred to when the time variable is not given to the translator.
+		 * @param defaultTimeSymbol The symbol.
+		 * @throws IllegalArgumentException If the symbol is null or empty.
+		 */
+		public Builder defaultTimeSymbol(String defaultTimeSymbol) {
+			this.defaultTimeSymbol = checkName(defaultTimeSymbol);
+			return this;
+		}
+		
+		private static String checkName(String name){
+			if(name == null || name.isEmpty()){
+				throw new IllegalArgumentException("Generated symbol names can't be empty");
+			}
+			return name;
+		}
+		
+		private static String checkPrefix(String prefix){
+			checkName(prefix);
+			for(int i = 0; i < prefix.length(); i++){
+				char c = prefix.charAt(i);
+				if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))){
+					throw new IllegalArgumentException("Invalid prefix \""+prefix+"\": generated symbol prefixes must "
+							+ "be made of letters only");
+				}
+			}
+			return prefix;
+		}
+		
+		/**
+		 * Builds the naming policy.
+		 * @return A new {@link NamingPolicy} object.
+		 */
+		public NamingPolicy build() {
+			return new NamingPolicy(this);
+		}
+	}
+
+}
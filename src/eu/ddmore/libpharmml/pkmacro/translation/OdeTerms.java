@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.ddmore.libpharmml.dom.commontypes.Assignable;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+
+/**
+ * Accumulator of the terms added to the right-hand side of the ODEs during a translation.
+ * 
+ * <p>The macros add their signed terms to the targeted variables through {@link #add(Assignable, Binoperator, Operand)}.
+ * The terms are kept in a flat list per variable, and the mathematical expressions are only built once every
+ * macro has been processed, by {@link #materialize(boolean)}. The expression can be either the left-deep chain
+ * of binary operations given by {@link Utils#addOperand(Assignable, Binoperator, Operand)}, or a balanced tree
+ * whose depth is logarithmic in the number of terms.
+ */
+class OdeTerms {
+	
+	private final Map<Assignable, List<Term>> map_terms;
+	private final List<Assignable> targets;
+	private AbstractMacro source;
+	
+	OdeTerms() {
+		map_terms = new IdentityHashMap<Assignable, List<Term>>();
+		targets = new ArrayList<Assignable>();
+	}
+	
+	/**
+	 * Sets the macro which the next added terms come from, so the origin of each term is known
+	 * by the {@link TranslationSession}.
+	 * @param source The macro adding the next terms, or null.
+	 */
+	void setSource(AbstractMacro source){
+		this.source = source;
+	}
+	
+	/**
+	 * Gets the variables which terms have been added to, in their order of first addition.
+	 * @return A {@link List} of {@link Assignable} variables.
+	 */
+	List<Assignable> getTargets(){
+		return targets;
+	}
+	
+	/**
+	 * Gets the terms added to the given variable, in their order of addition.
+	 * @param var A variable returned by {@link #getTargets()}.
+	 * @return A {@link List} of {@link Term} objects.
+	 */
+	List<Term> getTerms(Assignable var){
+		return map_terms.get(var);
+	}
+	
+	/**
+	 * Adds a term to the right-hand side of the given variable.
+	 * @param var The {@link Assignable} variable which the term will be added to.
+	 * @param op The operator of the term, {@link Binoperator#PLUS} or {@link Binoperator#MINUS}.
+	 * @param operand The mathematical {@link Operand} expression of the term.
+	 */
+	void add(Assignable var, Binoperator op, Operand operand){
+		List<Term> terms = map_terms.get(var);
+		if(terms == null){
+			terms = new ArrayList<Term>();
+			map_terms.put(var, terms);
+			targets.add(var);
+		}
+		terms.add(new Term(op, operand, source));
+	}
+	
+	/**
+	 * Builds the mathematical expressions from the accumulated terms and assigns them to their variables.
+	 * Any expression already assigned to a variable is kept as its first term. The accumulated terms
+	 * are then cleared.
+	 * @param balanced If false, the terms are chained in a left-deep tree, in their order of addition, as
+	 * {@link Utils#addOperand(Assignable, Binoperator, Operand)} does. If true, the positive terms and the 
+	 * negative terms are each summed in a balanced tree, and the negative sum is subtracted from the positive one.
+	 */
+	void materialize(boolean balanced){
+		for(Assignable var : targets){
+			if(balanced){
+				materializeBalanced(var, map_terms.get(var));
+			} else {
+				for(Term term : map_terms.get(var)){
+					Utils.addOperand(var, term.op, term.operand);
+				}
+			}
+		}
+		map_terms.clear();
+		targets.clear();
+	}
+	
+	private static void materializeBalanced(Assignable var, List<Term> terms){
+		List<Operand> positives = new ArrayList<Operand>();
+		List<Operand> negatives = new ArrayList<Operand>();
+		if(var.getAssign() != null){
+			Operand content = Utils.getContent(var.getAssign());
+			if(content != null){
+				positives.add(content);
+			}
+		}
+		for(Term term : terms){
+			if(term.op.equals(Binoperator.MINUS)){
+				negatives.add(term.operand);
+			} else {
+				positives.add(term.operand);
+			}
+		}
+		Operand positive = sum(positives, 0, positives.size());
+		Operand negative = sum(negatives, 0, negatives.size());
+		if(positive == null){
+			Utils.addOperand(var, Binoperator.MINUS, negative);
+		} else {
+			Rhs rhs = var.getAssign();
+			if(rhs == null){
+				rhs = new Rhs();
+				var.setAssign(rhs);
+			}
+			if(negative == null){
+				Utils.setContent(rhs, positive);
+			} else {
+				Utils.setContent(rhs, new Binop(Binoperator.MINUS, positive, negative));
+			}
+		}
+	}
+	
+	/**
+	 * Sums the operands between the given indexes in a balanced tree.
+	 * @return The sum, or null if there is no operand.
+	 */
+	private static Operand sum(List<Operand> operands, int from, int to){
+		if(to - from == 0){
+			return null;
+		} else if(to - from == 1){
+			return operands.get(from);
+		} else {
+			int middle = (from + to) >>> 1;
+			return new Binop(Binoperator.PLUS, sum(operands, from, middle), sum(operands, middle, to));
+		}
+	}
+	
+	/**
+	 * Signed term of a right-hand side, with the macro it comes from.
+	 */
+	static class Term {
+		
+		private final Binoperator op;
+		private final Operand operand;
+		private final AbstractMacro source;
+		
+		Term(Binoperator op, Operand operand, AbstractMacro source) {
+			this.op = op;
+			this.operand = operand;
+			this.source = source;
+		}
+		
+		Binoperator getOperator(){
+			return op;
+		}
+		
+		Operand getOperand(){
+			return operand;
+		}
+		
+		/**
+		 * Gets the macro which added this term.
+		 * @return The {@link AbstractMacro}, or null if the source was not set.
+		 */
+		AbstractMacro getSource(){
+			return source;
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.expand;
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.isOperation;
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.pushChildren;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.Expanded;
+import eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.Replacement;
+
+/**
+ * Moves the expressions of the translated variables which depend only on parameters to generated parameters,
+ * applied when {@link Translator#HOIST_PARAMETER_EXPRESSIONS} is set. Such expressions, like <code>CL/V</code>
+ * or <code>log(Ktr)</code>, are then computed once per individual instead of at each evaluation of the ODEs.
+ * 
+ * <p>Each node of the right-hand sides is classified by a {@link Dependency}, varying unless known otherwise.
+ * The references to the blocks given by {@link TranslatorOptions#getParameterBlockIds()}, like the parameter
+ * model, depend on parameters only, while the references to any other block, like a covariate model with
+ * time-varying covariates, are varying. The parameters of the structural model, including the generated ones,
+ * depend on parameters only when they have no assignment or when their assignment does. The references to the
+ * variables of the structural model, the time and any unknown symbol are varying, as the variables may depend
+ * on states or be set by the doses (like the variables Dose and t_Dose of a transit absorption). The largest
+ * operations depending on parameters are moved to individual parameters named with the prefix
+ * {@link NamingPolicy#getHoistedParameterPrefix()}, the same expression being moved only once. The constant
+ * operations and the content of the piecewise expressions are left as they are. As for
+ * {@link SubexpressionEliminator}, the expressions are never modified but rebuilt by
+ * {@link ExpressionTraversal#rebuild(Object, Replacement)}.
+ */
+final class ParameterExpressionHoister {
+	
+	/**
+	 * Dependency of an expression, from the weakest to the strongest.
+	 */
+	enum Dependency {
+		/**
+		 * Scalar values only.
+		 */
+		CONSTANT,
+		/**
+		 * Parameters and scalar values, so the expression is constant for each individual.
+		 */
+		PARAMETER,
+		/**
+		 * States, time or variables, so the expression must be computed at each evaluation.
+		 */
+		VARYING;
+		
+		Dependency max(Dependency other){
+			return compareTo(other) >= 0 ? this : other;
+		}
+	}
+	
+	private final VariableFactory vf;
+	private final Collection<String> localBlkIds;
+	private final Collection<String> parameterBlkIds;
+	
+	/**
+	 * Parameters of the structural model by symbId.
+	 */
+	private final Map<String, TransientParameter> parameters = new HashMap<String, TransientParameter>();
+	
+	/**
+	 * Dependencies of the parameters of the structural model, computed when first referenced.
+	 */
+	private final Map<String, Dependency> parameterDependencies = new HashMap<String, Dependency>();
+	
+	/**
+	 * Parameters whose dependency is being computed, to detect the circular definitions.
+	 */
+	private final Set<String> pending = new HashSet<String>();
+	private final ExpressionNumbering numbering = new ExpressionNumbering();
+	
+	/**
+	 * Dependencies of the operations of the current variable.
+	 */
+	private final Map<Object, Dependency> dependencies = new IdentityHashMap<Object, Dependency>();
+	
+	private final Map<Integer, String> generated = new HashMap<Integer, String>();
+	
+	private ParameterExpressionHoister(VariableFactory vf, Collection<String> localBlkIds, 
+			Collection<String> parameterBlkIds) {
+		this.vf = vf;
+		this.localBlkIds = localBlkIds;
+		this.parameterBlkIds = parameterBlkIds;
+		for(TransientParameter tp : vf.getDefinedParameters()){
+			if(tp.containsReference()){
+				parameters.put(tp.getReference().getSymbId(), tp);
+			} else {
+				parameters.put(tp.getSymbolId(), tp);
+			}
+		}
+	}
+	
+	/**
+	 * Moves the expressions of the given variables which depend only on parameters to parameters generated by
+	 * the given factory.
+	 * @param variables The translated variables.
+	 * @param vf The factory of the translation, which contains the parameters of the structural model.
+	 * @param localBlkIds The blkIds referring to the structural model itself.
+	 * @param parameterBlkIds The blkIds of the blocks whose symbols are constant for each individual.
+	 */
+	static void apply(List<CommonVariableDefinition> variables, VariableFactory vf, Collection<String> localBlkIds, 
+			Collection<String> parameterBlkIds){
+		ParameterExpressionHoister hoister = new ParameterExpressionHoister(vf, localBlkIds, parameterBlkIds);
+		for(CommonVariableDefinition var : variables){
+			hoister.hoist(var);
+		}
+	}
+	
+	private void hoist(CommonVariableDefinition var){
+		Rhs rhs = var.getAssign();
+		if(rhs == null || rhs.getContent() == null || !isOperation(rhs.getContent())){
+			return;
+		}
+		Object root = rhs.getContent();
+		dependencies.clear();
+		classify(root);
+		
+		Object result = ExpressionTraversal.rebuild(root, new Replacement() {
+			@Override
+			public Object replace(Object operation) {
+				return dependencies.get(operation) == Dependency.PARAMETER ? reference((Operand) operation) : null;
+			}
+		});
+		if(result != root){
+			Rhs newRhs = new Rhs();
+			Utils.setContent(newRhs, (Operand) result);
+			var.setAssign(newRhs);
+		}
+	}
+	
+	/**
+	 * Computes and numbers the dependencies of the operations of the given expression.
+	 */
+	private void classify(Object root){
+		Deque<Object> stack = new ArrayDeque<Object>();
+		Deque<Dependency> results = new ArrayDeque<Dependency>();
+		Deque<Integer> numbers = new ArrayDeque<Integer>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof Expanded){
+				Object node = ((Expanded) item).node;
+				Dependency dependency;
+				if(node instanceof Binop){
+					dependency = results.pop().max(results.pop());
+					Integer second = numbers.pop();
+					Integer first = numbers.pop();
+					numbers.push(numbering.numberOperation(node, first, second));
+				} else {
+					dependency = results.pop();
+					numbers.push(numbering.numberOperation(node, numbers.pop(), null));
+				}
+				dependencies.put(node, dependency);
+				results.push(dependency);
+			} else if(isOperation(item)){
+				expand(stack, item);
+			} else {
+				results.push(leafDependency(item));
+				numbers.push(numbering.numberLeaf(item));
+			}
+		}
+	}
+	
+	/**
+	 * Gets the dependency of a node which is not an operation.
+	 */
+	private Dependency leafDependency(Object node){
+		if(node instanceof Scalar){
+			return Dependency.CONSTANT;
+		} else if(node instanceof SymbolRef){
+			SymbolRef ref = (SymbolRef) node;
+			if(ref.getBlkIdRef() != null && !localBlkIds.contains(ref.getBlkIdRef())){
+				return parameterBlkIds.contains(ref.getBlkIdRef()) ? Dependency.PARAMETER : Dependency.VARYING;
+			} else {
+				return parameterDependency(ref.getSymbIdRef());
+			}
+		} else {
+			return Dependency.VARYING;
+		}
+	}
+	
+	/**
+	 * Gets the dependency of a symbol of the structural model, varying if it is not a parameter.
+	 */
+	private Dependency parameterDependency(String symbId){
+		Dependency dependency = parameterDependencies.get(symbId);
+		if(dependency != null){
+			return dependency;
+		}
+		TransientParameter tp = parameters.get(symbId);
+		if(tp == null || !pending.add(symbId)){
+			return Dependency.VARYING;
+		}
+		Rhs assign = tp.containsReference() ? tp.getReference().getAssign() : tp.getAssign();
+		if(assign == null){
+			dependency = Dependency.PARAMETER;
+		} else {
+			dependency = expressionDependency(assign.getContent()).max(Dependency.PARAMETER);
+		}
+		pending.remove(symbId);
+		parameterDependencies.put(symbId, dependency);
+		return dependency;
+	}
+	
+	/**
+	 * Gets the dependency of the given expression, i.e. the strongest dependency of its leaves.
+	 */
+	private Dependency expressionDependency(Object root){
+		Dependency dependency = Dependency.CONSTANT;
+		Deque<Object> stack = new ArrayDeque<Object>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(isOperation(item)){
+				pushChildren(stack, item);
+			} else {
+				dependency = dependency.max(leafDependency(item));
+			}
+		}
+		return dependency;
+	}
+	
+	/**
+	 * Gets a reference to the parameter assigned to the given expression, which is created if needed.
+	 */
+	private SymbolRef reference(Operand expression){
+		Integer number = numbering.get(expression);
+		String symbId = generated.get(number);
+		if(symbId == null){
+			Rhs rhs = new Rhs();
+			Utils.setContent(rhs, expression);
+			symbId = vf.createAndReferNewParameter(vf.getNamingPolicy().getHoistedParameterPrefix(), 
+					ParameterType.INDIVIDUAL, rhs).getSymbIdRef();
+			generated.put(number, symbId);
+			parameterDependencies.put(symbId, Dependency.PARAMETER);
+		}
+		return new SymbolRef(symbId);
+	}
+
+}
@@ -64,8 +64,6 @@ class Peripheral extends AbstractCompartment implements CompartmentTargeter {
 		this.inRate = inRate;
 		this.outRate = outRate;
 		this.target = target;
-		
-		initOde();
 	}
 
 	private final Operand inRate;
@@ -119,13 +117,14 @@ class Peripheral extends AbstractCompartment implements CompartmentTargeter {
 			SymbolRef amountRef = resolver.getValue("amount", SymbolRef.class);
 			amount = resolveDerivativeVariable(vf, amountRef, macro);
 		} else {
-			amount = vf.createDerivativeVariable(VariableFactory.PERIPH_CMT_PREFIX, periphCmt, macro);
+			amount = vf.createDerivativeVariable(vf.getNamingPolicy().getPeripheralPrefix(), periphCmt, macro);
 		}
 		LoggerWrapper.getLogger().info(amount+" order set to "+periphCmt);
 		amount.setOrder(periphCmt);
 		
 		AbstractCompartment central = cf.getCompartment(centralCmt);
 		Peripheral periph = new Peripheral(periphCmt, amount, null, null, inRate, outRate, central);
+		periph.initOde(vf.getOdeTerms());
 		cf.addCompartment(periph);
 		return periph;
 	}
@@ -141,24 +140,25 @@ class Peripheral extends AbstractCompartment implements CompartmentTargeter {
 	/**
 	 * Adds the mathematical expressions to the new peripheral amount:<br>
 	 * dperiphAmt/dt = inRate x centralAmt - outRate * periphAmt
+	 * @param terms The accumulator of the ODE terms of the current translation.
 	 */
-	protected void initOde() {
+	protected void initOde(OdeTerms terms) {
 		Binop exp1 = new Binop(Binoperator.TIMES, inRate, new SymbolRef(target.getAmount().getSymbId()));
-		Utils.addOperand(amount, Binoperator.PLUS, exp1);
+		terms.add(amount, Binoperator.PLUS, exp1);
 		
 		Binop exp2 = new Binop(Binoperator.TIMES, outRate, new SymbolRef(getAmount().getSymbId()));
-		Utils.addOperand(amount, Binoperator.MINUS, exp2);
+		terms.add(amount, Binoperator.MINUS, exp2);
 	}
 
 	@Override
-	public void modifyTargetODE() {		
+	public void modifyTargetODE(OdeTerms terms) {		
 		// inRate
 		Binop exp1 = new Binop(Binoperator.TIMES, inRate, new SymbolRef(target.getAmount().getSymbId()));
-		Utils.addOperand(target.getAmount(), Binoperator.MINUS, exp1);
+		terms.add(target.getAmount(), Binoperator.MINUS, exp1);
 		
 		// outRate
 		Binop exp2 = new Binop(Binoperator.TIMES, outRate, new SymbolRef(getAmount().getSymbId()));
-		Utils.addOperand(target.getAmount(), Binoperator.PLUS, exp2);
+		terms.add(target.getAmount(), Binoperator.PLUS, exp2);
 	}
 
 }
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.expand;
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.isOperation;
+import static eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.pushChildren;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.Expanded;
+import eu.ddmore.libpharmml.pkmacro.translation.ExpressionTraversal.Replacement;
+
+/**
+ * Common subexpression elimination over the right-hand sides of the translated variables, applied when
+ * {@link Translator#ELIMINATE_COMMON_SUBEXPRESSIONS} is set.
+ * 
+ * <p>The binary and unary operations which appear several times with the same structure are moved to new
+ * variables, named with the prefix {@link NamingPolicy#getSubexpressionPrefix()}, and each occurrence is
+ * replaced by a reference to the variable. The largest repeated expressions are moved first, then the expressions repeated within the new
+ * variables are moved in turn, until no expression is repeated. For instance the flux <code>k_1_2 x Ac1</code>
+ * added by a peripheral macro to the ODEs of both compartments is computed once. Each new variable is placed
+ * just before the first variable using it.
+ * 
+ * <p>The expressions are compared through their {@link ExpressionNumbering}, so each node is compared in
+ * constant time. The content of the piecewise expressions is left as it is, since moving an
+ * expression out of a piece would evaluate it whatever the condition. The expressions are never modified:
+ * the operations containing a replaced expression are rebuilt by
+ * {@link ExpressionTraversal#rebuild(Object, Replacement)} and assigned in a new {@link Rhs}, as the
+ * expressions can be shared with the input model.
+ */
+final class SubexpressionEliminator {
+	
+	private final VariableFactory vf;
+	
+	private final ExpressionNumbering numbering = new ExpressionNumbering();
+	
+	/**
+	 * Occurrences of each number in the current pass.
+	 */
+	private final Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+	
+	private final Map<Integer, VariableDefinition> generated = new HashMap<Integer, VariableDefinition>();
+	private final Map<String, VariableDefinition> generatedBySymbId = new HashMap<String, VariableDefinition>();
+	private final List<VariableDefinition> created = new ArrayList<VariableDefinition>();
+	
+	private SubexpressionEliminator(VariableFactory vf) {
+		this.vf = vf;
+	}
+	
+	/**
+	 * Moves the repeated expressions of the given variables to new variables.
+	 * @param variables The translated variables, in their output order.
+	 * @param vf The factory of the translation, creating the new variables.
+	 * @return The given variables, with the new ones inserted before their first use.
+	 */
+	static List<CommonVariableDefinition> apply(List<CommonVariableDefinition> variables, VariableFactory vf){
+		SubexpressionEliminator eliminator = new SubexpressionEliminator(vf);
+		List<CommonVariableDefinition> targets = new ArrayList<CommonVariableDefinition>(variables);
+		do {
+			eliminator.created.clear();
+			eliminator.counts.clear();
+			for(CommonVariableDefinition var : targets){
+				eliminator.count(var);
+			}
+			for(CommonVariableDefinition var : targets){
+				eliminator.replace(var);
+			}
+			// The new variables contain the largest repeated expressions, which may contain smaller ones
+			targets.addAll(eliminator.created);
+		} while(!eliminator.created.isEmpty());
+		return eliminator.order(variables);
+	}
+	
+	/**
+	 * Numbers the nodes of the right-hand side of the given variable, and counts the occurrences of the
+	 * operations. The root of a generated variable is not an occurrence.
+	 */
+	private void count(CommonVariableDefinition var){
+		Rhs rhs = var.getAssign();
+		if(rhs == null || rhs.getContent() == null){
+			return;
+		}
+		Object root = rhs.getContent();
+		boolean countRoot = !isGenerated(var);
+		Deque<Object> stack = new ArrayDeque<Object>();
+		Deque<Integer> results = new ArrayDeque<Integer>();
+		stack.push(root);
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof Expanded){
+				Object node = ((Expanded) item).node;
+				Integer number;
+				if(node instanceof Binop){
+					Integer second = results.pop();
+					Integer first = results.pop();
+					number = numbering.numberOperation(node, first, second);
+				} else {
+					number = numbering.numberOperation(node, results.pop(), null);
+				}
+				if(node != root || countRoot){
+					Integer count = counts.get(number);
+					counts.put(number, count == null ? 1 : count + 1);
+				}
+				results.push(number);
+			} else if(isOperation(item)){
+				expand(stack, item);
+			} else {
+				results.push(numbering.numberLeaf(item));
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the repeated operations of the right-hand side of the given variable by references to generated
+	 * variables. The operations are browsed from the root, so the largest repeated ones are replaced.
+	 */
+	private void replace(CommonVariableDefinition var){
+		Rhs rhs = var.getAssign();
+		if(rhs == null || rhs.getContent() == null){
+			return;
+		}
+		final Object root = rhs.getContent();
+		final boolean keepRoot = isGenerated(var);
+		Object result = ExpressionTraversal.rebuild(root, new Replacement() {
+			@Override
+			public Object replace(Object operation) {
+				Integer number = numbering.get(operation);
+				Integer count = counts.get(number);
+				if(!(operation == root && keepRoot) && (generated.containsKey(number) || (count != null && count > 1))){
+					return reference(number, (Operand) operation);
+				}
+				return null;
+			}
+		});
+		if(result != root){
+			Rhs newRhs = new Rhs();
+			Utils.setContent(newRhs, (Operand) result);
+			var.setAssign(newRhs);
+		}
+	}
+	
+	/**
+	 * Gets a reference to the variable of the given expression number, which is created if needed.
+	 */
+	private SymbolRef reference(Integer number, Operand expression){
+		VariableDefinition v = generated.get(number);
+		if(v == null){
+			v = vf.generateVariable(vf.getNamingPolicy().getSubexpressionPrefix());
+			Rhs rhs = new Rhs();
+			Utils.setContent(rhs, expression);
+			v.setAssign(rhs);
+			generated.put(number, v);
+			generatedBySymbId.put(v.getSymbId(), v);
+			created.add(v);
+		}
+		return new SymbolRef(v.getSymbId());
+	}
+	
+	/**
+	 * Inserts each generated variable before the first variable using it.
+	 */
+	private List<CommonVariableDefinition> order(List<CommonVariableDefinition> variables){
+		List<CommonVariableDefinition> ordered = new ArrayList<CommonVariableDefinition>(variables.size() + generated.size());
+		Set<CommonVariableDefinition> added = Collections.newSetFromMap(
+				new IdentityHashMap<CommonVariableDefinition, Boolean>());
+		Deque<Pending> pending = new ArrayDeque<Pending>();
+		for(CommonVariableDefinition var : variables){
+			if(added.contains(var)){
+				continue;
+			}
+			pending.push(new Pending(var, dependencies(var)));
+			while(!pending.isEmpty()){
+				Pending top = pending.peek();
+				if(top.next < top.dependencies.size()){
+					VariableDefinition dependency = top.dependencies.get(top.next++);
+					if(!added.contains(dependency)){
+						pending.push(new Pending(dependency, dependencies(dependency)));
+					}
+				} else {
+					pending.pop();
+					if(added.add(top.var)){
+						ordered.add(top.var);
+					}
+				}
+			}
+		}
+		return ordered;
+	}
+	
+	/**
+	 * Gets the generated variables referenced by the right-hand side of the given variable.
+	 */
+	private List<VariableDefinition> dependencies(CommonVariableDefinition var){
+		List<VariableDefinition> dependencies = new ArrayList<VariableDefinition>();
+		if(var.getAssign() == null || var.getAssign().getContent() == null){
+			return dependencies;
+		}
+		Deque<Object> stack = new ArrayDeque<Object>();
+		stack.push(var.getAssign().getContent());
+		while(!stack.isEmpty()){
+			Object item = stack.pop();
+			if(item instanceof SymbolRef){
+				SymbolRef ref = (SymbolRef) item;
+				VariableDefinition v = generatedBySymbId.get(ref.getSymbIdRef());
+				if(ref.getBlkIdRef() == null && v != null){
+					dependencies.add(v);
+				}
+			} else if(isOperation(item)){
+				pushChildren(stack, item);
+			}
+		}
+		return dependencies;
+	}
+	
+	private boolean isGenerated(CommonVariableDefinition var){
+		return generatedBySymbId.get(var.getSymbId()) == var;
+	}
+	
+	/**
+	 * Variable waiting for its generated dependencies to be ordered.
+	 */
+	private static class Pending {
+		
+		final CommonVariableDefinition var;
+		final List<VariableDefinition> dependencies;
+		int next;
+		
+		Pending(CommonVariableDefinition var, List<VariableDefinition> dependencies) {
+			this.var = var;
+			this.dependencies = dependencies;
+		}
+		
+	}
+
+}
@@ -67,15 +67,15 @@ class Transfer extends AbstractMacro implements CompartmentTargeter{
 	}
 
 	@Override
-	public void modifyTargetODE() {
+	public void modifyTargetODE(OdeTerms terms) {
 		// to
 		Binop exp1 = new Binop(Binoperator.TIMES, rate, new SymbolRef(getFrom().getAmount().getSymbId()));
 //		to.getOde().addOperand(Binoperator.PLUS, exp1);
-		Utils.addOperand(to.getAmount(), Binoperator.PLUS, exp1);
+		terms.add(to.getAmount(), Binoperator.PLUS, exp1);
 		// from
 		Binop exp2 = new Binop(Binoperator.TIMES, rate, new SymbolRef(getFrom().getAmount().getSymbId()));
 //		from.getOde().addOperand(Binoperator.MINUS, exp2);
-		Utils.addOperand(from.getAmount(), Binoperator.MINUS, exp2);
+		terms.add(from.getAmount(), Binoperator.MINUS, exp2);
 	}
 
 	static Transfer fromMacro(CompartmentFactory cf, VariableFactory vf, TransferMacro macro) throws InvalidMacroException {
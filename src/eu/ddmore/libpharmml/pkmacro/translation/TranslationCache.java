@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+
+/**
+ * Cache of translation results, for translating the same model structures repeatedly.
+ * 
+ * <p>The results are indexed by a fingerprint of the content of the input structural model, including its macros
+ * and its already defined elements, the PharmML version, the time variable and the translator options. A model
+ * with the same content as a previously translated one gets a copy of the previous output without being translated
+ * again. For instance:
+ * 
+ * <pre>
+ * {@code
+ * TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 100000);
+ * MacroOutput output = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+ * }
+ * </pre>
+ * 
+ * <p>The translations are always done with the {@link Translator#PRESERVE_INPUT} setting, so the input models
+ * are never modified, whether the output comes from the cache or not. The cached outputs are never returned:
+ * each call gets a deep copy of the cached output, with its own variables, parameters, expressions and
+ * {@link Input} objects, which can be modified without affecting the next results. The outputs containing
+ * elements which can't be copied, like function calls, are not cached.
+ * 
+ * <p>The cache can be used concurrently. The entries are distributed in segments which are locked independently,
+ * and a model which is being translated by a thread is not translated again by the other threads asking for it.
+ * Each segment evicts its least recently used entries once its part of the maximum weight is exceeded. The weight
+ * of an entry is the number of elements and inputs of its output. The failed translations are not cached.
+ */
+public class TranslationCache {
+	
+	private static final int SEGMENTS = 16;
+	
+	private final Translator translator;
+	private final TranslatorOptions options;
+	private final Segment[] segments;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * Constructor.
+	 * @param options The options of the translations.
+	 * @param maximumWeight The maximum total weight of the cached results, i.e. the number of elements
+	 * and inputs of the cached outputs.
+	 */
+	public TranslationCache(TranslatorOptions options, long maximumWeight) {
+		if(options == null){
+			throw new IllegalArgumentException("Options can't be null");
+		}
+		if(maximumWeight < 1){
+			throw new IllegalArgumentException("Maximum weight must be positive (was "+maximumWeight+")");
+		}
+		this.options = options.toBuilder().preserveInput(true).build();
+		this.translator = new Translator(this.options);
+		segments = new Segment[SEGMENTS];
+		long segmentWeight = Math.max(1, maximumWeight / SEGMENTS);
+		for(int i = 0; i < SEGMENTS; i++){
+			segments[i] = new Segment(segmentWeight);
+		}
+	}
+	
+	/**
+	 * Gets the options of the translations.
+	 * @return The {@link TranslatorOptions} of this cache, with {@link TranslatorOptions#isPreserveInput()} true.
+	 */
+	public TranslatorOptions getOptions(){
+		return options;
+	}
+	
+	/**
+	 * Translates the given structural model, or returns a copy of the output of a previous translation
+	 * of the same content.
+	 * @param sm The structural model that contains PK macros to be translated.
+	 * @param version The wanted PharmML version of the output.
+	 * @param t The {@link IndependentVariable} of the model corresponding to time.
+	 * @return A {@link MacroOutput} implementation.
+	 * @throws InvalidMacroException If the translation is not possible because of any invalid
+	 * macro within the model.
+	 * @see Translator#translate(StructuralModel, PharmMLVersion, IndependentVariable)
+	 */
+	public MacroOutput translate(final StructuralModel sm, final PharmMLVersion version, final IndependentVariable t) 
+			throws InvalidMacroException {
+		String key = Fingerprint.of(sm, version, t, options);
+		Segment segment = segments[(key.hashCode() & 0x7FFFFFFF) % SEGMENTS];
+		
+		Entry entry;
+		boolean computing = false;
+		synchronized (segment) {
+			entry = segment.entries.get(key);
+			if(entry == null){
+				entry = new Entry(new FutureTask<MacroOutput>(new Callable<MacroOutput>() {
+					@Override
+					public MacroOutput call() throws InvalidMacroException {
+						return translator.translate(sm, version, t);
+					}
+				}));
+				segment.entries.put(key, entry);
+				computing = true;
+			}
+		}
+		
+		if(computing){
+			misses.incrementAndGet();
+			entry.task.run();
+		} else {
+			hits.incrementAndGet();
+		}
+		
+		MacroOutput output;
+		try {
+			output = entry.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidMacroException("Interrupted while waiting for the translation", e);
+		} catch (ExecutionException e) {
+			if(computing){
+				synchronized (segment) {
+					if(segment.entries.get(key) == entry){
+						segment.entries.remove(key);
+					}
+				}
+			}
+			Throwable cause = e.getCause();
+			if(cause instanceof InvalidMacroException){
+				throw (InvalidMacroException) cause;
+			} else if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error){
+				throw (Error) cause;
+			} else {
+				throw new InvalidMacroException("Unexpected error during the translation: "+cause, cause);
+			}
+		}
+		
+		ExpressionCopier copier = new ExpressionCopier();
+		MacroOutput copy = copier.copy(output);
+		if(computing){
+			synchronized (segment) {
+				// The entry may have been removed by clear() in the meantime
+				if(segment.entries.get(key) == entry){
+					if(copier.isComplete()){
+						entry.weight = output.getStructuralModel().getListOfStructuralModelElements().size() 
+								+ output.getListOfInput().size() + 1;
+						segment.weight += entry.weight;
+						evictions.addAndGet(segment.evict(entry));
+					} else {
+						// The copies would share elements with the cached output
+						segment.entries.remove(key);
+					}
+				}
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * Gets the number of translations answered by the cache.
+	 * @return The number of hits.
+	 */
+	public long getHitCount(){
+		return hits.get();
+	}
+	
+	/**
+	 * Gets the number of translations that were not in the cache, failed ones included.
+	 * @return The number of misses.
+	 */
+	public long getMissCount(){
+		return misses.get();
+	}
+	
+	/**
+	 * Gets the number of results removed from the cache to respect the maximum weight.
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+	
+	/**
+	 * Gets the number of results currently in the cache.
+	 * @return The number of cached results.
+	 */
+	public int size(){
+		int size = 0;
+		for(Segment segment : segments){
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Removes all the results from the cache. The counters are not reset.
+	 */
+	public void clear(){
+		for(Segment segment : segments){
+			synchronized (segment) {
+				segment.entries.clear();
+				segment.weight = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Part of the cache, with its own lock and its own share of the maximum weight. The entries are kept
+	 * in access order, the least recently used first.
+	 */
+	private static class Segment {
+		
+		private final long maximumWeight;
+		private final Map<String, Entry> entries;
+		private long weight;
+		
+		Segment(long maximumWeight) {
+			this.maximumWeight = maximumWeight;
+			this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		}
+		
+		/**
+		 * Removes the least recently used entries until the weight of the segment is under its maximum.
+		 * The entries being computed and the given entry are kept.
+		 * @param kept The entry just added.
+		 * @return The number of removed entries.
+		 */
+		int evict(Entry kept){
+			int count = 0;
+			Iterator<Entry> it = entries.values().iterator();
+			while(weight > maximumWeight && it.hasNext()){
+				Entry entry = it.next();
+				if(entry != kept && entry.task.isDone()){
+					it.remove();
+					weight -= entry.weight;
+					count++;
+				}
+			}
+			return count;
+		}
+		
+	}
+	
+	/**
+	 * Cached translation, possibly still being computed.
+	 */
+	private static class Entry {
+		
+		private final FutureTask<MacroOutput> task;
+		private int weight;
+		
+		Entry(FutureTask<MacroOutput> task) {
+			this.task = task;
+		}
+		
+	}
+
+}
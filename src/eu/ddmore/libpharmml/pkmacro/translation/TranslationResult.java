@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+
+/**
+ * Result of the translation of one structural model within a batch. See {@link BatchTranslator}.
+ */
+public class TranslationResult {
+	
+	private final StructuralModel input;
+	private final MacroOutput output;
+	private final InvalidMacroException exception;
+	
+	TranslationResult(StructuralModel input, MacroOutput output, InvalidMacroException exception) {
+		this.input = input;
+		this.output = output;
+		this.exception = exception;
+	}
+	
+	/**
+	 * Gets the structural model that was translated.
+	 * @return The input {@link StructuralModel}.
+	 */
+	public StructuralModel getInput() {
+		return input;
+	}
+	
+	/**
+	 * Checks if the translation succeeded.
+	 * @return true if the output is available, false if the translation failed.
+	 */
+	public boolean isSuccessful() {
+		return exception == null;
+	}
+	
+	/**
+	 * Gets the output of the translation.
+	 * @return The {@link MacroOutput} of the translated model.
+	 * @throws InvalidMacroException The exception thrown by the translation, if it failed.
+	 */
+	public MacroOutput getOutput() throws InvalidMacroException {
+		if(exception != null){
+			throw exception;
+		}
+		return output;
+	}
+	
+	/**
+	 * Gets the exception thrown by the translation.
+	 * @return The {@link InvalidMacroException}, or null if the translation succeeded.
+	 */
+	public InvalidMacroException getException() {
+		return exception;
+	}
+
+}
@@ -0,0 +1,515 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.Assignable;
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.EliminationMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.IVMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacroList;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.TransferMacro;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+import eu.ddmore.libpharmml.pkmacro.translation.OdeTerms.Term;
+
+/**
+ * Translation session of a structural model which is edited between its translations, for instance
+ * in a model editor.
+ * 
+ * <p>The session remembers the objects created from each {@link PKMacro} during the last translation: the
+ * compartments and their variables, the terms added to the ODEs and the {@link Input}s. When the model is translated
+ * again, the macros are compared with their state at the previous translation. If only elimination, transfer or IV
+ * macros have changed, the translation is incremental: only these macros are translated again, and only the
+ * right-hand sides of the ODEs they modify and the inputs they generate are rebuilt. Any other change, like a new
+ * macro, a modified compartment or a modified equation of the model, leads to a full translation. Comparing the
+ * macros costs a browsing of the whole model, which is avoided if the modified macros are given by the caller
+ * with {@link #translate(Collection)}. For instance:
+ * 
+ * <pre>
+ * {@code
+ * TranslationSession session = new TranslationSession(new Translator(), sm, PharmMLVersion.DEFAULT, time);
+ * MacroOutput output = session.translate();
+ * // the rate of an elimination macro is edited
+ * output = session.translate(Collections.singleton(eliminationMacro));
+ * }
+ * </pre>
+ * 
+ * <p>The translations are done with the {@link Translator#PRESERVE_INPUT} setting, so the edited model is never
+ * modified. The variables of the outputs belong to the session and the incremental translations update their
+ * right-hand sides, so an output returned previously reflects the last translation for the variables.
+ */
+public class TranslationSession {
+	
+	private final Translator translator;
+	private final StructuralModel sm;
+	private final PharmMLVersion version;
+	private final IndependentVariable t;
+	
+	// State of the last translation
+	private TranslatorOptions options;
+	private CompartmentFactory cf;
+	private VariableFactory vf;
+	private List<AbstractMacro> model;
+	private Map<AbstractMacro, Integer> positions;
+	private Map<PKMacro, AbstractMacro> macrosByOrigin;
+	private int[] inputStarts;
+	private int[] inputCounts;
+	private Map<Assignable, List<Term>> terms;
+	private Map<AbstractMacro, Set<Assignable>> targetsBySource;
+	private Map<Assignable, Operand> bases;
+	private Set<Assignable> unassigned;
+	private MacroOutput output;
+	
+	// State of the model at the last translation
+	private String elementsForm;
+	private List<PKMacro> macros;
+	private List<String> macroForms;
+	private Map<PKMacro, Integer> macroPositions;
+	
+	private long fullTranslations;
+	private long incrementalTranslations;
+	
+	/**
+	 * Constructor.
+	 * @param translator The translator whose settings are used, with {@link Translator#PRESERVE_INPUT} set to true.
+	 * {@link Translator#ELIMINATE_COMMON_SUBEXPRESSIONS}, {@link Translator#HOIST_PARAMETER_EXPRESSIONS} and
+	 * {@link Translator#SIMPLIFY_EXPRESSIONS} are ignored, as the variables and parameters they generate or remove
+	 * would not be updated by the incremental translations.
+	 * @param sm The structural model to be translated.
+	 * @param version The wanted PharmML version of the outputs.
+	 * @param t The {@link IndependentVariable} of the model corresponding to time.
+	 */
+	public TranslationSession(Translator translator, StructuralModel sm, PharmMLVersion version, IndependentVariable t) {
+		if(translator == null || sm == null){
+			throw new IllegalArgumentException("Translator and structural model can't be null");
+		}
+		this.translator = new Translator(translator.getOptions().toBuilder()
+				.preserveInput(true)
+				.eliminateCommonSubexpressions(false)
+				.hoistParameterExpressions(false)
+				.simplifyExpressions(false)
+				.build());
+		this.sm = sm;
+		this.version = version;
+		this.t = t;
+	}
+	
+	/**
+	 * Gets the structural model translated by this session.
+	 * @return The {@link StructuralModel} given to the constructor.
+	 */
+	public StructuralModel getStructuralModel(){
+		return sm;
+	}
+	
+	/**
+	 * Translates the current state of the structural model, incrementally if possible. The changed macros are
+	 * found by comparing the content of every macro with its content at the previous translation.
+	 * @return A {@link MacroOutput} implementation, with its own structural model and list of inputs.
+	 * @throws InvalidMacroException If the translation is not possible because of any invalid
+	 * macro within the model. The next translation is then a full one.
+	 */
+	public synchronized MacroOutput translate() throws InvalidMacroException {
+		String currentElementsForm = elementsForm();
+		List<PKMacro> currentMacros = new ArrayList<PKMacro>();
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof PKMacroList){
+				currentMacros.addAll(((PKMacroList) el).getListOfMacro());
+			}
+		}
+		List<String> currentForms = new ArrayList<String>(currentMacros.size());
+		for(PKMacro macro : currentMacros){
+			currentForms.add(Fingerprint.canonical(macro));
+		}
+		
+		boolean incremental = output != null && currentElementsForm.equals(elementsForm) 
+				&& currentMacros.size() == macros.size();
+		List<Integer> changed = new ArrayList<Integer>();
+		for(int i = 0; incremental && i < currentMacros.size(); i++){
+			if(currentMacros.get(i) != macros.get(i) || !currentForms.get(i).equals(macroForms.get(i))){
+				changed.add(i);
+			}
+		}
+		if(incremental){
+			incremental = tryUpdate(changed, currentMacros);
+		}
+		if(!incremental){
+			translateAll();
+		}
+		elementsForm = currentElementsForm;
+		setMacros(currentMacros, currentForms);
+		return Utils.copyOf(output);
+	}
+	
+	/**
+	 * Translates the structural model after a modification of the given macros, incrementally if possible.
+	 * Only the given macros are compared with their content at the previous translation, so the other macros
+	 * and the other elements of the model must not have changed.
+	 * @param changed The modified macros, which must be the same objects as at the previous translation.
+	 * @return A {@link MacroOutput} implementation, with its own structural model and list of inputs.
+	 * @throws InvalidMacroException If the translation is not possible because of any invalid
+	 * macro within the model. The next translation is then a full one.
+	 */
+	public synchronized MacroOutput translate(Collection<? extends PKMacro> changed) throws InvalidMacroException {
+		if(output == null){
+			return translate();
+		}
+		List<Integer> positions = new ArrayList<Integer>();
+		List<String> currentForms = new ArrayList<String>(macroForms);
+		for(PKMacro macro : changed){
+			Integer position = macroPositions.get(macro);
+			if(position == null){
+				// Not a macro of the previous translation
+				return translate();
+			}
+			String form = Fingerprint.canonical(macro);
+			if(!form.equals(macroForms.get(position)) && !positions.contains(position)){
+				positions.add(position);
+				currentForms.set(position, form);
+			}
+		}
+		Collections.sort(positions);
+		if(tryUpdate(positions, macros)){
+			macroForms = currentForms;
+			return Utils.copyOf(output);
+		} else {
+			return translate();
+		}
+	}
+	
+	/**
+	 * Gets the variables created by the given macro at the last translation, like the amount of a compartment.
+	 * @param macro A macro of the translated model.
+	 * @return The {@link List} of variables, empty if the macro is unknown or doesn't create any variable.
+	 */
+	public synchronized List<CommonVariableDefinition> getVariables(PKMacro macro){
+		AbstractMacro translated = macrosByOrigin == null ? null : macrosByOrigin.get(macro);
+		if(translated == null){
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(translated.getVariables());
+	}
+	
+	/**
+	 * Gets the inputs generated by the given macro at the last translation.
+	 * @param macro A macro of the translated model.
+	 * @return The {@link List} of inputs, empty if the macro is unknown or doesn't generate any input.
+	 */
+	public synchronized List<Input> getInputs(PKMacro macro){
+		AbstractMacro translated = macrosByOrigin == null ? null : macrosByOrigin.get(macro);
+		if(translated == null){
+			return Collections.emptyList();
+		}
+		int i = positions.get(translated);
+		return Collections.unmodifiableList(new ArrayList<Input>(
+				output.getListOfInput().subList(inputStarts[i], inputStarts[i] + inputCounts[i])));
+	}
+	
+	/**
+	 * Gets the number of full translations done by this session.
+	 * @return The number of full translations.
+	 */
+	public synchronized long getFullTranslationCount(){
+		return fullTranslations;
+	}
+	
+	/**
+	 * Gets the number of translations done incrementally by this session.
+	 * @return The number of incremental translations.
+	 */
+	public synchronized long getIncrementalTranslationCount(){
+		return incrementalTranslations;
+	}
+	
+	/**
+	 * Records the state of a full translation, before the ODE terms are materialized.
+	 */
+	void record(TranslatorOptions options, CompartmentFactory cf, VariableFactory vf, 
+			List<AbstractMacro> model, int[] inputCounts){
+		this.options = options;
+		this.cf = cf;
+		this.vf = vf;
+		this.model = new ArrayList<AbstractMacro>(model);
+		this.inputCounts = inputCounts.clone();
+		inputStarts = new int[inputCounts.length];
+		positions = new IdentityHashMap<AbstractMacro, Integer>();
+		macrosByOrigin = new IdentityHashMap<PKMacro, AbstractMacro>();
+		int start = 0;
+		for(int i = 0; i < model.size(); i++){
+			positions.put(model.get(i), i);
+			macrosByOrigin.put(model.get(i).getOrigin(), model.get(i));
+			inputStarts[i] = start;
+			start += inputCounts[i];
+		}
+		
+		terms = new IdentityHashMap<Assignable, List<Term>>();
+		bases = new IdentityHashMap<Assignable, Operand>();
+		unassigned = Collections.newSetFromMap(new IdentityHashMap<Assignable, Boolean>());
+		OdeTerms odeTerms = vf.getOdeTerms();
+		targetsBySource = new IdentityHashMap<AbstractMacro, Set<Assignable>>();
+		for(Assignable var : odeTerms.getTargets()){
+			terms.put(var, new ArrayList<Term>(odeTerms.getTerms(var)));
+			recordBase(var);
+			for(Term term : odeTerms.getTerms(var)){
+				addTarget(term.getSource(), var);
+			}
+		}
+	}
+	
+	/**
+	 * Records the output of a full translation.
+	 */
+	void record(MacroOutput output){
+		this.output = output;
+	}
+	
+	/**
+	 * Translates the whole model again.
+	 */
+	private void translateAll() throws InvalidMacroException {
+		output = null;
+		translator.translate(sm, version, t, this);
+		fullTranslations++;
+	}
+	
+	/**
+	 * Stores the macros of the translated model with their content.
+	 */
+	private void setMacros(List<PKMacro> macros, List<String> forms){
+		this.macros = macros;
+		this.macroForms = forms;
+		macroPositions = new IdentityHashMap<PKMacro, Integer>();
+		for(int i = 0; i < macros.size(); i++){
+			macroPositions.put(macros.get(i), i);
+		}
+	}
+	
+	private void addTarget(AbstractMacro source, Assignable var){
+		if(source != null){
+			Set<Assignable> targets = targetsBySource.get(source);
+			if(targets == null){
+				targets = Collections.newSetFromMap(new IdentityHashMap<Assignable, Boolean>());
+				targetsBySource.put(source, targets);
+			}
+			targets.add(var);
+		}
+	}
+	
+	private Set<Assignable> targetsOf(AbstractMacro source){
+		Set<Assignable> targets = targetsBySource.get(source);
+		if(targets == null){
+			return Collections.emptySet();
+		}
+		return targets;
+	}
+	
+	/**
+	 * Records the right-hand side of the given variable before any term is added.
+	 */
+	private void recordBase(Assignable var){
+		if(var.getAssign() == null){
+			unassigned.add(var);
+		} else {
+			bases.put(var, Utils.getContent(var.getAssign()));
+		}
+	}
+	
+	/**
+	 * Translates again the changed macros with {@link #update(List, List)}, and forgets the last translation
+	 * if they are invalid so that the next translation is a full one.
+	 */
+	private boolean tryUpdate(List<Integer> changed, List<PKMacro> currentMacros) throws InvalidMacroException {
+		try {
+			return update(changed, currentMacros);
+		} catch (InvalidMacroException e) {
+			output = null;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Translates again the changed macros, if they can be translated incrementally.
+	 * @return true if the output is up to date, false if a full translation is needed.
+	 */
+	private boolean update(List<Integer> changed, List<PKMacro> currentMacros) throws InvalidMacroException {
+		// Translating the changed macros, without modifying the state of the session yet
+		List<AbstractMacro> previous = new ArrayList<AbstractMacro>();
+		List<AbstractMacro> updated = new ArrayList<AbstractMacro>();
+		OdeTerms newTerms = new OdeTerms();
+		List<List<Input>> newInputs = new ArrayList<List<Input>>();
+		for(int i : changed){
+			PKMacro xmlMacro = currentMacros.get(i);
+			if(!xmlMacro.getClass().equals(macros.get(i).getClass())){
+				return false;
+			}
+			AbstractMacro macro;
+			if(xmlMacro instanceof EliminationMacro){
+				macro = Elimination.fromMacro(cf, vf, (EliminationMacro) xmlMacro);
+			} else if(xmlMacro instanceof TransferMacro){
+				macro = Transfer.fromMacro(cf, vf, (TransferMacro) xmlMacro);
+			} else if(xmlMacro instanceof IVMacro){
+				macro = IV.fromMacro(cf, vf, (IVMacro) xmlMacro);
+			} else {
+				return false;
+			}
+			AbstractMacro old = macrosByOrigin.get(macros.get(i));
+			macro.setIndex(old.getIndex());
+			macro.setOrigin(xmlMacro);
+			
+			if(macro instanceof CompartmentTargeter){
+				newTerms.setSource(macro);
+				((CompartmentTargeter) macro).modifyTargetODE(newTerms);
+			}
+			InputList inputList = new InputList();
+			if(macro instanceof InputSource){
+				((InputSource) macro).generateInputs(inputList);
+			}
+			if(inputList.size() != inputCounts[positions.get(old)]){
+				return false;
+			}
+			previous.add(old);
+			updated.add(macro);
+			newInputs.add(inputList);
+		}
+		
+		// Replacing the macros and their inputs
+		Set<AbstractMacro> removed = Collections.newSetFromMap(new IdentityHashMap<AbstractMacro, Boolean>());
+		List<Input> inputs = output.getListOfInput();
+		for(int i = 0; i < updated.size(); i++){
+			AbstractMacro old = previous.get(i);
+			AbstractMacro macro = updated.get(i);
+			int position = positions.remove(old);
+			model.set(position, macro);
+			positions.put(macro, position);
+			macrosByOrigin.remove(old.getOrigin());
+			macrosByOrigin.put(macro.getOrigin(), macro);
+			removed.add(old);
+			for(int j = 0; j < newInputs.get(i).size(); j++){
+				Input input = newInputs.get(i).get(j);
+				int index = inputStarts[position] + j;
+				inputs.set(index, new Input(index + 1, input.getType(), input.getAdm(), input.getTarget(), 
+						input.getTlag(), input.getP()));
+			}
+		}
+		
+		// Replacing the terms of the macros
+		Set<Assignable> modified = new LinkedHashSet<Assignable>();
+		for(AbstractMacro old : previous){
+			for(Assignable var : targetsOf(old)){
+				Iterator<Term> it = terms.get(var).iterator();
+				while(it.hasNext()){
+					if(removed.contains(it.next().getSource())){
+						it.remove();
+					}
+				}
+				modified.add(var);
+			}
+			targetsBySource.remove(old);
+		}
+		for(Assignable var : newTerms.getTargets()){
+			List<Term> list = terms.get(var);
+			if(list == null){
+				list = new ArrayList<Term>();
+				terms.put(var, list);
+				recordBase(var);
+			}
+			for(Term term : newTerms.getTerms(var)){
+				list.add(term);
+				addTarget(term.getSource(), var);
+			}
+			Collections.sort(list, new TermComparator());
+			modified.add(var);
+		}
+		
+		// Building again the modified right-hand sides
+		OdeTerms odeTerms = new OdeTerms();
+		for(Assignable var : modified){
+			if(unassigned.contains(var)){
+				var.setAssign(null);
+			} else {
+				Rhs rhs = new Rhs();
+				if(bases.get(var) != null){
+					Utils.setContent(rhs, bases.get(var));
+				}
+				var.setAssign(rhs);
+			}
+			for(Term term : terms.get(var)){
+				odeTerms.add(var, term.getOperator(), term.getOperand());
+			}
+		}
+		odeTerms.materialize(options.isBalancedOdeTerms());
+		incrementalTranslations++;
+		return true;
+	}
+	
+	/**
+	 * Builds the canonical form of the model elements which are not macros, and of the settings.
+	 */
+	private String elementsForm(){
+		List<Object> elements = new ArrayList<Object>();
+		elements.add(sm.getBlkId());
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof PKMacroList){
+				elements.add(((PKMacroList) el).getListOfMacro().size());
+			} else {
+				elements.add(el);
+			}
+		}
+		TranslatorOptions current = translator.getOptions();
+		if(current.getNamingPolicy() == null){
+			elements.add(NamingPolicy.fromStaticPrefixes());
+		}
+		return Fingerprint.canonical(elements);
+	}
+	
+	/**
+	 * Sorts the terms of a right-hand side as added by a full translation: the terms added while creating
+	 * the compartments first, then the terms of each macro in the translation order.
+	 */
+	private class TermComparator implements Comparator<Term> {
+		
+		@Override
+		public int compare(Term o1, Term o2) {
+			return position(o1) - position(o2);
+		}
+		
+		private int position(Term term){
+			return term.getSource() == null ? -1 : positions.get(term.getSource());
+		}
+	
+	}
+
+}
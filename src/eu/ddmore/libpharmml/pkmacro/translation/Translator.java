@@ -19,10 +19,10 @@
 package eu.ddmore.libpharmml.pkmacro.translation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -67,21 +67,30 @@ import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
  * is likely to be thrown. It is possible to translate a {@link StructuralModel} containing a mix of {@link PKMacro} and
  * equations. The equations that are already defined in the input model are copied in the generated {@link StructuralModel}.
  * 
- * <p>The translation can be paramaterised using the method {@link #setParameter(String, Boolean)}. The possible parameter names
+ * <p>The translation can be paramaterised with a {@link TranslatorOptions} object given to the constructor. A translator
+ * created this way is immutable, so the same instance can be used by several threads at once. The settings can also
+ * be changed using the method {@link #setParameter(String, Boolean)}. The possible parameter names
  * used as first parameter of this method are:
  * 
  * <p><ul>
  * <li>{@link #KEEP_ORDER} (default=true): for keeping the order of the input model variables.</li>
  * <li>{@link #KEEP_BLOCK_ID} (default=true): for setting the same blkId value to the output structural model as the input one.</li>
+ * <li>{@link #BALANCED_ODE_TERMS} (default=false): for summing the terms of the ODEs in balanced trees.</li>
+ * <li>{@link #PRESERVE_INPUT} (default=false): for leaving the input structural model unmodified.</li>
+ * <li>{@link #ELIMINATE_COMMON_SUBEXPRESSIONS} (default=false): for computing the repeated expressions only once.</li>
+ * <li>{@link #HOIST_PARAMETER_EXPRESSIONS} (default=false): for computing the expressions of parameters once per individual.</li>
+ * <li>{@link #SIMPLIFY_EXPRESSIONS} (default=false): for simplifying the expressions of the output variables.</li>
+ * <li>{@link #LOG_GAMMA_TRANSIT} (default=false): for translating the transit absorptions with the log-gamma function.</li>
  * </ul>
  * 
- * <p>The variable {@link #TRANSLATED_BLK_ID} contains the value of the translated block id, if the parameter {@link #KEEP_BLOCK_ID}
- * is set to false. For instance:
+ * <p>The translated block id is used if the parameter {@link #KEEP_BLOCK_ID} is set to false. For instance:
  * 
  * <pre>
  * {@code
- * translator.setParameter(Translator.KEEP_BLOCK_ID, false);
- * translator.TRANSLATED_BLK_ID = "my_blkId";
+ * Translator translator = new Translator(TranslatorOptions.builder()
+ *     .keepBlockId(false)
+ *     .translatedBlockId("my_blkId")
+ *     .build());
  * }
  * </pre>
  * 
@@ -108,10 +117,14 @@ public class Translator {
 		
 	/**
 	 * The blkID value used for the output {@link StructuralModel} if the option {@link #KEEP_BLOCK_ID} is set to false.
+	 * 
+	 * @deprecated Use {@link TranslatorOptions.Builder#translatedBlockId(String)}. Changing this field makes the
+	 * translator unsafe to share between threads.
 	 */
-	public String TRANSLATED_BLK_ID = "translated_sm";
+	@Deprecated
+	public String TRANSLATED_BLK_ID;
 	
-	private final Map<String, Boolean> parameters;
+	private volatile TranslatorOptions options;
 		
 	/**
 	 * Parameter for keeping the order of the input PK macros. The output ODEs that symbolise 
@@ -128,22 +141,102 @@ public class Translator {
 	public final static String KEEP_BLOCK_ID = "translator.keepblockid";
 	
 	/**
-	 * Empty constructor. The same instance can be used to translate different structural models.
+	 * Parameter for building the right-hand side of the ODEs as balanced trees. If false, the terms added
+	 * by the macros are chained in their order of addition, which results in binary operations nested as
+	 * deep as the number of terms. If true, the positive terms and the negative terms are each summed in
+	 * a balanced tree, so the depth only grows with the logarithm of the number of terms. Default value: false.
+	 */
+	public final static String BALANCED_ODE_TERMS = "translator.balancedodeterms";
+	
+	/**
+	 * Parameter for leaving the input structural model unmodified. If false, the variables of the input model
+	 * are modified and reused in the output model, e.g. the compartment amounts get their ODE and order. If true,
+	 * copies of the input variables are modified and added to the output model instead, so the same input model
+	 * can be translated several times, including concurrently. Default value: false.
+	 */
+	public final static String PRESERVE_INPUT = "translator.preserveinput";
+	
+	/**
+	 * Parameter for moving the expressions repeated in the right-hand sides of the output variables to generated
+	 * variables, so they are computed only once when the model is evaluated. For instance, the flux between two
+	 * compartments appears in the ODEs of both of them. The generated variables are named CSE1, CSE2... and placed
+	 * before the first variable using them. The expressions within piecewise ones are not moved. Default value: false.
+	 */
+	public final static String ELIMINATE_COMMON_SUBEXPRESSIONS = "translator.eliminatecommonsubexpressions";
+	
+	/**
+	 * Parameter for moving the expressions of the output variables which depend only on parameters, like the
+	 * elimination rate <code>CL/V</code>, to generated individual parameters, so they are not computed again at each
+	 * evaluation of the ODEs. The generated parameters are named DP1, DP2... Only the symbols of the blocks given by
+	 * {@link TranslatorOptions#getParameterBlockIds()} and the parameters of the structural model are considered as
+	 * constant for each individual. The variables of the structural model, including the dose variables of the transit
+	 * absorptions, and the symbols of the other blocks are considered as varying. Default value: false.
+	 */
+	public final static String HOIST_PARAMETER_EXPRESSIONS = "translator.hoistparameterexpressions";
+	
+	/**
+	 * Parameter for simplifying the expressions of the output variables: the operations on numbers are computed, the
+	 * neutral and absorbing elements are removed and the signs are normalized, so <code>-x + y</code> becomes
+	 * <code>y - x</code>. The generated parameters with a constant value, like F = 1, are replaced by their value.
+	 * The expressions are assumed to have finite values, so <code>x*0</code> becomes 0. Default value: false.
+	 */
+	public final static String SIMPLIFY_EXPRESSIONS = "translator.simplifyexpressions";
+	
+	/**
+	 * Parameter for translating the transit absorptions with the log-gamma function. The terms log(Ktr) and log(n!)
+	 * of the transit ODE are replaced by references to the generated parameters logKtr = log(Ktr) and
+	 * logGammaN = gammaln(Ktr*Mtt), as n+1 = Ktr*Mtt. They are computed once per individual, and the factorial of
+	 * the real number n, which overflows for large n, is not needed anymore. Default value: false.
+	 */
+	public final static String LOG_GAMMA_TRANSIT = "translator.loggammatransit";
+	
+	/**
+	 * Empty constructor, using the default settings. The same instance can be used to translate different structural models.
 	 */
 	public Translator(){
-		parameters = new HashMap<String, Boolean>();
-		parameters.put(KEEP_ORDER, true);
-		parameters.put(KEEP_BLOCK_ID, true);
+		this(TranslatorOptions.DEFAULT);
+	}
+	
+	/**
+	 * Constructor using the given settings. The translator doesn't keep any state between translations, so the
+	 * same instance can be used to translate different structural models, including concurrently, as long as
+	 * its settings are not changed through {@link #setParameter(String, Boolean)} or {@link #TRANSLATED_BLK_ID}.
+	 * @param options The settings of the translation.
+	 */
+	public Translator(TranslatorOptions options){
+		if(options == null){
+			throw new IllegalArgumentException("Translator options can't be null");
+		}
+		this.options = options;
+		this.TRANSLATED_BLK_ID = options.getTranslatedBlockId();
 	}
 	
 	/**
 	 * Change the settings of the translation. The only parameters available at the moment
-	 * are {@link #KEEP_ORDER} and {@link #KEEP_BLOCK_ID}.
+	 * are {@link #KEEP_ORDER}, {@link #KEEP_BLOCK_ID}, {@link #BALANCED_ODE_TERMS}, {@link #PRESERVE_INPUT},
+	 * {@link #ELIMINATE_COMMON_SUBEXPRESSIONS}, {@link #HOIST_PARAMETER_EXPRESSIONS}, {@link #SIMPLIFY_EXPRESSIONS}
+	 * and {@link #LOG_GAMMA_TRANSIT}.
 	 * @param parameter The name of the parameter, that must be in the static fields of {@link Translator}.
 	 * @param value The new value the parameter.
+	 * 
+	 * @deprecated Use {@link #Translator(TranslatorOptions)}.
 	 */
-	public void setParameter(String parameter, Boolean value){
-		parameters.put(parameter, value);
+	@Deprecated
+	public synchronized void setParameter(String parameter, Boolean value){
+		options = options.toBuilder().parameter(parameter, value).build();
+	}
+	
+	/**
+	 * Gets the settings used by this translator.
+	 * @return The current {@link TranslatorOptions}.
+	 */
+	public TranslatorOptions getOptions(){
+		TranslatorOptions current = options;
+		String blkId = TRANSLATED_BLK_ID;
+		if(blkId != null && !blkId.equals(current.getTranslatedBlockId())){
+			current = current.toBuilder().translatedBlockId(blkId).build();
+		}
+		return current;
 	}
 	
 	/**
@@ -151,7 +244,8 @@ public class Translator {
 	 * Equations are added by each fromMacro() method execution.
 	 * @throws InvalidMacroException
 	 */
-	private List<AbstractMacro> parseMacros(PKMacroList PKMacroList, CompartmentFactory cf, VariableFactory vf, Integer compartmentIndex) throws InvalidMacroException{
+	private List<AbstractMacro> parseMacros(PKMacroList PKMacroList, CompartmentFactory cf, VariableFactory vf, Integer compartmentIndex, 
+			TranslatorOptions options) throws InvalidMacroException{
 		
 		List<AbstractMacro> model = new ArrayList<AbstractMacro>();
 		List<PKMacro> list = PKMacroList.getListOfMacro();
@@ -177,7 +271,7 @@ public class Translator {
 		for(int i = 0;i<list.size();i++){
 			PKMacro xmlMacro = list.get(i);
 			if(xmlMacro instanceof AbsorptionOralMacro){
-				Absorption macro = Absorption.fromMacro(cf, vf, (AbsorptionOralMacro) xmlMacro);
+				Absorption macro = Absorption.fromMacro(cf, vf, (AbsorptionOralMacro) xmlMacro, options);
 				macro.setIndex(i + compartmentIndex);
 				macro.setOrigin(xmlMacro);
 				model.add(macro);
@@ -302,9 +396,31 @@ public class Translator {
 	 * macro within the model.
 	 */
 	public MacroOutput translate(StructuralModel sm, PharmMLVersion version, IndependentVariable t) throws InvalidMacroException{
+		return translate(sm, version, t, null);
+	}
+	
+	/**
+	 * Translates the given structural model, and gives the intermediate objects of the translation to
+	 * the given session for its later incremental updates.
+	 * @param sm The structural model that contains PK macros to be translated.
+	 * @param version The wanted PharmML version of the output.
+	 * @param t The {@link IndependentVariable} of the model corresponding to time.
+	 * @param session The session recording the translation, or null.
+	 * @return A {@link MacroOutput} implementation.
+	 * @throws InvalidMacroException If the translation is not possible because of any invalid
+	 * macro within the model.
+	 */
+	MacroOutput translate(StructuralModel sm, PharmMLVersion version, IndependentVariable t, 
+			TranslationSession session) throws InvalidMacroException{
+		
+		final TranslatorOptions options = getOptions();
 		
 		// Instanciating variable and compartment factories used for the translation
-		VariableFactory vf = new VariableFactory(sm);
+		NamingPolicy naming = options.getNamingPolicy();
+		if(naming == null){
+			naming = NamingPolicy.fromStaticPrefixes();
+		}
+		VariableFactory vf = new VariableFactory(sm, naming, options.isPreserveInput());
 		vf.setTimeVariable(t);
 		CompartmentFactory cf = new CompartmentFactory();
 		
@@ -313,17 +429,18 @@ public class Translator {
 		Integer compartmentIndex = 0;
 		for(PharmMLElement smEl : sm.getListOfStructuralModelElements()){
 			if(smEl instanceof PKMacroList){
-				List<AbstractMacro> macroSublist = parseMacros((PKMacroList) smEl, cf, vf, compartmentIndex);
+				List<AbstractMacro> macroSublist = parseMacros((PKMacroList) smEl, cf, vf, compartmentIndex, options);
 				model.addAll(macroSublist);
 				compartmentIndex += macroSublist.size();
 			}
 		}
+		Map<PKMacro, AbstractMacro> macrosByOrigin = indexByOrigin(model);
 		
 		final StructuralModel translated_sm = new StructuralModel();
-		if(parameters.get(KEEP_BLOCK_ID)){
+		if(options.isKeepBlockId()){
 			translated_sm.setBlkId(sm.getBlkId());
 		} else {
-			translated_sm.setBlkId(TRANSLATED_BLK_ID);
+			translated_sm.setBlkId(options.getTranslatedBlockId());
 		}
 		
 		
@@ -331,35 +448,52 @@ public class Translator {
 		
 		// The modification of ODEs and generation of Inputs from the given macros are executed at the end to
 		// make sure that all ODE left-hand sides have been created before.
-		for(AbstractMacro item : model){
+		int[] inputCounts = new int[model.size()];
+		for(int i = 0; i < model.size(); i++){
+			AbstractMacro item = model.get(i);
 			if(item instanceof CompartmentTargeter){
-				((CompartmentTargeter) item).modifyTargetODE();
+				vf.getOdeTerms().setSource(item);
+				((CompartmentTargeter) item).modifyTargetODE(vf.getOdeTerms());
 			}
 			if(item instanceof InputSource){
+				int size = inputList.size();
 				((InputSource) item).generateInputs(inputList);
+				inputCounts[i] = inputList.size() - size;
 			}
 		}
+		vf.getOdeTerms().setSource(null);
+		if(session != null){
+			session.record(options, cf, vf, model, inputCounts);
+		}
+		vf.getOdeTerms().materialize(options.isBalancedOdeTerms());
 		
 		// Now it's time to fetch all the variables created during the process
 		List<CommonVariableDefinition> variables = new ArrayList<CommonVariableDefinition>();
-		if(parameters.get(KEEP_ORDER)){
+		if(options.isKeepOrder()){
 			List<AbstractMacro> sorted = sortByIndex(model);
+			Set<CommonVariableDefinition> fetched = Collections.newSetFromMap(
+					new IdentityHashMap<CommonVariableDefinition, Boolean>());
 
 			// Fetching variables from each ordered macro first
+			List<CommonVariableDefinition> macroVariables = new ArrayList<CommonVariableDefinition>();
 			for(AbstractMacro macro : sorted){
 				for(CommonVariableDefinition var : macro.getVariables()){
-					if(!variables.contains(var)){ // macro can share some variables
-						variables.add(var);
+					if(fetched.add(var)){ // macro can share some variables
+						macroVariables.add(var);
 					}
 				}
 			}
 			
-			// Fetching other variables that might have been created during the translation
+			// Fetching other variables that might have been created during the translation.
+			// They are added at the beginning, last created first, so all variables are declared
+			// before being used in other equations.
 			for(CommonVariableDefinition variable : vf.getDefinedVariables()){
-				if(!variables.contains(variable)){
-					variables.add(0,variable); // added at the beginning so all variables are declared before being used in other equations
+				if(fetched.add(variable)){
+					variables.add(variable);
 				}
 			}
+			Collections.reverse(variables);
+			variables.addAll(macroVariables);
 			
 			// checking
 			if(vf.getDefinedVariables().size() != variables.size()){
@@ -375,29 +509,31 @@ public class Translator {
 		// Piece of code added to make NONMEM happy about the order of the variables.
 		// Some optimisation needs to be done here, as repeated loops are performed.
 		// --- Start of ugly piece of code
-		Set<Integer> bookedIndexes = new HashSet<Integer>();
+		IdAllocator bookedIndexes = new IdAllocator();
 		// Registering the already existing indexes. Typically the ones that are defined by PKmacro parameters (cmt)
 		for(CommonVariableDefinition var : variables){
 			if(var instanceof DerivativeVariable){
 				if(((DerivativeVariable) var).getOrder() != null){
-					bookedIndexes.add(((DerivativeVariable) var).getOrder());
+					bookedIndexes.book(((DerivativeVariable) var).getOrder());
 				}
 			}
 		}
 		// Browsing the elements from the input structural model to preserve the order.
 		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
 			if(el instanceof DerivativeVariable){
-				if(((DerivativeVariable) el).getOrder() == null){
-					((DerivativeVariable) el).setOrder(getAndIncrementLowestAvailableIndex(bookedIndexes));
+				// The variable stored in the factory may be a copy of the input one
+				DerivativeVariable dv = vf.fetchDerivativeVariable(((DerivativeVariable) el).getSymbId());
+				if(dv != null && dv.getOrder() == null){
+					dv.setOrder(bookedIndexes.bookLowestAvailable());
 				}
 			}
 			if(el instanceof PKMacroList){
 				for(PKMacro xmlmacro : ((PKMacroList) el).getListOfMacro()){
-					AbstractMacro macro = getMacroByOrigin(model, xmlmacro);
+					AbstractMacro macro = macrosByOrigin.get(xmlmacro);
 					for(CommonVariableDefinition var : macro.getVariables()){
 						if(var instanceof DerivativeVariable){
 							if(((DerivativeVariable) var).getOrder() == null){
-									((DerivativeVariable) var).setOrder(getAndIncrementLowestAvailableIndex(bookedIndexes));
+									((DerivativeVariable) var).setOrder(bookedIndexes.bookLowestAvailable());
 							}
 						}
 					}
@@ -406,6 +542,17 @@ public class Translator {
 		}
 		// --- End of ugly piece of code.
 		
+		if(options.isSimplifyExpressions()){
+			ExpressionSimplifier.apply(variables, vf, inputList);
+		}
+		if(options.isHoistParameterExpressions()){
+			ParameterExpressionHoister.apply(variables, vf, 
+					Arrays.asList(sm.getBlkId(), translated_sm.getBlkId()), options.getParameterBlockIds());
+		}
+		if(options.isEliminateCommonSubexpressions()){
+			variables = SubexpressionEliminator.apply(variables, vf);
+		}
+		
 		// Now adding the variables to the new StructuralModel
 		for(CommonVariableDefinition var : variables){
 			if(var instanceof DerivativeVariable){
@@ -435,7 +582,7 @@ public class Translator {
 		}
 		
 		
-		return new MacroOutput() {
+		MacroOutput output = new MacroOutput() {
 			@Override
 			public StructuralModel getStructuralModel() {
 				return translated_sm;
@@ -445,24 +592,26 @@ public class Translator {
 				return inputList;
 			}
 		};
-	}
-	
-	private static Integer getAndIncrementLowestAvailableIndex(Set<Integer> set){
-		Integer currentIndex = 1;
-		while(set.contains(currentIndex)){
-			currentIndex++;
+		if(session != null){
+			session.record(output);
 		}
-		set.add(currentIndex);
-		return currentIndex;
+		return output;
 	}
 	
-	private static AbstractMacro getMacroByOrigin(List<AbstractMacro> listOfMacros,PKMacro origin){
+	/**
+	 * Indexes the given macros by the {@link PKMacro} they originate from. The index is based on
+	 * identity, as each translated macro keeps a reference to its origin.
+	 * @param listOfMacros The translated macros.
+	 * @return A {@link Map} from the {@link PKMacro} origin to the translated macro.
+	 */
+	private static Map<PKMacro, AbstractMacro> indexByOrigin(List<AbstractMacro> listOfMacros){
+		Map<PKMacro, AbstractMacro> index = new IdentityHashMap<PKMacro, AbstractMacro>();
 		for(AbstractMacro macro : listOfMacros){
-			if(macro.getOrigin().equals(origin)){
-				return macro;
+			if(!index.containsKey(macro.getOrigin())){
+				index.put(macro.getOrigin(), macro);
 			}
 		}
-		return null;
+		return index;
 	}
 	
 }
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 European Molecular Biology Laboratory,
+ * Heidelberg, Germany.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on 
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY 
+ * KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations 
+ * under the License.
+ *******************************************************************************/
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable settings of a {@link Translator}.
+ * 
+ * <p>Instances are created with a {@link Builder}, and can't be modified once built. A {@link Translator}
+ * created with a {@link TranslatorOptions} object can therefore be shared between threads. For instance:
+ * 
+ * <pre>
+ * {@code
+ * TranslatorOptions options = TranslatorOptions.builder()
+ *     .keepBlockId(false)
+ *     .translatedBlockId("my_blkId")
+ *     .build();
+ * Translator translator = new Translator(options);
+ * }
+ * </pre>
+ */
+public final class TranslatorOptions {
+	
+	/**
+	 * The default settings, as used by {@link Translator#Translator()}.
+	 */
+	public static final TranslatorOptions DEFAULT = builder().build();
+	
+	private final boolean keepOrder;
+	private final boolean keepBlockId;
+	private final String translatedBlockId;
+	private final boolean balancedOdeTerms;
+	private final NamingPolicy namingPolicy;
+	private final boolean preserveInput;
+	private final boolean eliminateCommonSubexpressions;
+	private final boolean hoistParameterExpressions;
+	private final Set<String> parameterBlockIds;
+	private final boolean simplifyExpressions;
+	private final boolean logGammaTransit;
+	private final int transitChainThreshold;
+	
+	private TranslatorOptions(Builder builder) {
+		this.keepOrder = builder.keepOrder;
+		this.keepBlockId = builder.keepBlockId;
+		this.translatedBlockId = builder.translatedBlockId;
+		this.balancedOdeTerms = builder.balancedOdeTerms;
+		this.namingPolicy = builder.namingPolicy;
+		this.preserveInput = builder.preserveInput;
+		this.eliminateCommonSubexpressions = builder.eliminateCommonSubexpressions;
+		this.hoistParameterExpressions = builder.hoistParameterExpressions;
+		this.parameterBlockIds = Collections.unmodifiableSet(new TreeSet<String>(builder.parameterBlockIds));
+		this.simplifyExpressions = builder.simplifyExpressions;
+		this.logGammaTransit = builder.logGammaTransit;
+		this.transitChainThreshold = builder.transitChainThreshold;
+	}
+	
+	/**
+	 * Creates a builder initialised with the default settings.
+	 * @return A new {@link Builder}.
+	 */
+	public static Builder builder(){
+		return new Builder();
+	}
+	
+	/**
+	 * Creates a builder initialised with the settings of this object.
+	 * @return A new {@link Builder}.
+	 */
+	public Builder toBuilder(){
+		return new Builder()
+				.keepOrder(keepOrder)
+				.keepBlockId(keepBlockId)
+				.translatedBlockId(translatedBlockId)
+				.balancedOdeTerms(balancedOdeTerms)
+				.namingPolicy(namingPolicy)
+				.preserveInput(preserveInput)
+				.eliminateCommonSubexpressions(eliminateCommonSubexpressions)
+				.hoistParameterExpressions(hoistParameterExpressions)
+				.parameterBlockIds(parameterBlockIds)
+				.simplifyExpressions(simplifyExpressions)
+				.logGammaTransit(logGammaTransit)
+				.transitChainThreshold(transitChainThreshold);
+	}
+	
+	/**
+	 * See {@link Translator#KEEP_ORDER}.
+	 * @return true if the order of the input model variables is kept.
+	 */
+	public boolean isKeepOrder() {
+		return keepOrder;
+	}
+	
+	/**
+	 * See {@link Translator#KEEP_BLOCK_ID}.
+	 * @return true if the output structural model gets the blkId of the input one.
+	 */
+	public boolean isKeepBlockId() {
+		return keepBlockId;
+	}
+	
+	/**
+	 * Gets the blkId of the output structural model, used if {@link #isKeepBlockId()} is false.
+	 * @return The blkId of the translated structural model.
+	 */
+	public String getTranslatedBlockId() {
+		return translatedBlockId;
+	}
+	
+	/**
+	 * See {@link Translator#BALANCED_ODE_TERMS}.
+	 * @return true if the terms of the ODEs are summed in balanced trees.
+	 */
+	public boolean isBalancedOdeTerms() {
+		return balancedOdeTerms;
+	}
+	
+	/**
+	 * Gets the naming convention of the generated variables.
+	 * @return The {@link NamingPolicy}, or null if the translation uses the static prefixes of {@link VariableFactory}.
+	 */
+	public NamingPolicy getNamingPolicy() {
+		return namingPolicy;
+	}
+	
+	/**
+	 * See {@link Translator#PRESERVE_INPUT}.
+	 * @return true if the input structural model is left unmodified.
+	 */
+	public boolean isPreserveInput() {
+		return preserveInput;
+	}
+	
+	/**
+	 * See {@link Translator#ELIMINATE_COMMON_SUBEXPRESSIONS}.
+	 * @return true if the repeated expressions of the variables are moved to generated variables.
+	 */
+	public boolean isEliminateCommonSubexpressions() {
+		return eliminateCommonSubexpressions;
+	}
+	
+	/**
+	 * See {@link Translator#HOIST_PARAMETER_EXPRESSIONS}.
+	 * @return true if the expressions of the variables depending only on parameters are moved to generated parameters.
+	 */
+	public boolean isHoistParameterExpressions() {
+		return hoistParameterExpressions;
+	}
+	
+	/**
+	 * Gets the blkIds of the blocks whose symbols are constant for each individual, typically the parameter models.
+	 * The expressions depending on their symbols can be moved to generated parameters when
+	 * {@link #isHoistParameterExpressions()} is set, while the symbols of the other blocks, like the covariates
+	 * which may vary with time, are considered as varying.
+	 * @return The sorted and unmodifiable set of blkIds, empty by default.
+	 */
+	public Set<String> getParameterBlockIds() {
+		return parameterBlockIds;
+	}
+	
+	/**
+	 * See {@link Translator#SIMPLIFY_EXPRESSIONS}.
+	 * @return true if the expressions of the variables are simplified.
+	 */
+	public boolean isSimplifyExpressions() {
+		return simplifyExpressions;
+	}
+	
+	/**
+	 * See {@link Translator#LOG_GAMMA_TRANSIT}.
+	 * @return true if the transit absorptions are translated with the log-gamma function.
+	 */
+	public boolean isLogGammaTransit() {
+		return logGammaTransit;
+	}
+	
+	/**
+	 * Gets the largest number of transit compartments for which a transit absorption is expanded into a chain of
+	 * compartments instead of the analytic transit ODE. The number of transit compartments n = Ktr*Mtt - 1 must
+	 * then be known at translation time, i.e. Ktr and Mtt must be numbers or parameters of the structural model
+	 * assigned to numbers, and n must be an integer. Each of the n+1 compartments of the chain, the first one
+	 * receiving the dose, is emptied at the rate Ktr into the next one, the last one into the absorption compartment,
+	 * so the resulting system is linear.
+	 * @return The threshold. 0, the default value, disables the expansion.
+	 */
+	public int getTransitChainThreshold() {
+		return transitChainThreshold;
+	}
+	
+	/**
+	 * Builder of {@link TranslatorOptions} objects. A builder is not thread-safe, but the objects it builds are.
+	 */
+	public static class Builder {
+		
+		private boolean keepOrder = true;
+		private boolean keepBlockId = true;
+		private String translatedBlockId = "translated_sm";
+		private boolean balancedOdeTerms = false;
+		private NamingPolicy namingPolicy = null;
+		private boolean preserveInput = false;
+		private boolean eliminateCommonSubexpressions = false;
+		private boolean hoistParameterExpressions = false;
+		private Collection<String> parameterBlockIds = Collections.emptySet();
+		private boolean simplifyExpressions = false;
+		private boolean logGammaTransit = false;
+		private int transitChainThreshold = 0;
+		
+		private Builder() {
+		}
+		
+		/**
+		 * See {@link Translator#KEEP_ORDER}. Default value: true.
+		 */
+		public Builder keepOrder(boolean keepOrder) {
+			this.keepOrder = keepOrder;
+			return this;
+		}
+		
+		/**
+		 * See {@link Translator#KEEP_BLOCK_ID}. Default value: true.
+		 */
+		public Builder keepBlockId(boolean keepBlockId) {
+			this.keepBlockId = keepBlockId;
+			return this;
+		}
+		
+		/**
+		 * Sets the blkId of the output structural model, used if the block id is not kept.
+		 * Default value: "translated_sm".
+		 */
+		public Builder translatedBlockId(String translatedBlockId) {
+			if(translatedBlockId == null){
+				throw new IllegalArgumentException("The translated block id can't be null");
+			}
+			this.translatedBlockId = translatedBlockId;
+			return this;
+		}
+		
+		/**
+		 * See {@link Translator#BALANCED_ODE_TERMS}. Default value: false.
+		 */
+		public Builder balancedOdeTerms(boolean balancedOdeTerms) {
+			this.balancedOdeTerms = balancedOdeTerms;
+			return this;
+		}
+		
+		/**
+		 * Sets the naming convention of the generated variables. If null, the deprecated static prefixes of
+		 * {@link VariableFactory} are read at the start of each translation. Default value: null.
+		 */
+		public Builder namingPolicy(NamingPolicy namingPolicy) {
+			this.namingPolicy = namingPolicy;
+			return this;
+		}
+		
+		/**
+		 * See {@link Translator#PRESERVE_INPUT}. Default value: false.
+		 */
+		public Builder preserveInput(boolean preserveInput) {
+			this.preserveInput = preserveInput;
+			return this;
+		}
+		
+		/**
+		 * See {@link Translator#ELIMINATE_COMMON_SUBEXPRESSIONS}. Default value: false.
+		 */
+		public Builder eliminateCommonSubexpressions(boolean eliminateCommonSubexpressions) {
+			this.eliminateCommonSubexpressions = eliminateCommonSubexpressions;
+			return this;
+		}
+		
+		/**
+		 * See {@link Translator#HOIST_PARAMETER_EXPRESSIONS}. Default value: false.
+		 */
+		public Builder hoistParameterExpressions(boolean hoistParameterExpressions) {
+			this.hoistParameterExpressions = hoistParameterExpressions;
+			return this;
+		}
+		
+		/**
+		 * See {@link TranslatorOptions#getParameterBlockIds()}. Default value: no block.
+		 * @throws IllegalArgumentException If a blkId is null.
+		 */
+		public Builder parameterBlockIds(Collection<String> parameterBlockIds) {
+			for(String blkId : parameterBlockIds){
+				if(blkId == null){
+					throw new IllegalArgumentException("A parameter block id can't be null");
+				}
+			}
+			this.parameterBlockIds = parameterBlockIds;
+			return this;
+		}
+		
+		/**
+		 * See {@link TranslatorOptions#getParameterBlockIds()}. Default value: no block.
+		 * @throws IllegalArgumentException If a blkId is null.
+		 */
+		public Builder parameterBlockIds(String... parameterBlockIds) {
+			return parameterBlockIds(Arrays.asList(parameterBlockIds));
+		}
+		
+		/**
+		 * See {@link Translator#SIMPLIFY_EXPRESSIONS}. Default value: false.
+		 */
+		public Builder simplifyExpressions(boolean simplifyExpressions) {
+			this.simplifyExpressions = simplifyExpressions;
+			return this;
+		}
+		
+		/**
+		 * See {@link Translator#LOG_GAMMA_TRANSIT}. Default value: false.
+		 */
+		public Builder logGammaTransit(boolean logGammaTransit) {
+			this.logGammaTransit = logGammaTransit;
+			return this;
+		}
+		
+		/**
+		 * See {@link TranslatorOptions#getTransitChainThreshold()}. Default value: 0.
+		 * @throws IllegalArgumentException If the threshold is negative.
+		 */
+		public Builder transitChainThreshold(int transitChainThreshold) {
+			if(transitChainThreshold < 0){
+				throw new IllegalArgumentException("Transit chain threshold can't be negative");
+			}
+			this.transitChainThreshold = transitChainThreshold;
+			return this;
+		}
+		
+		/**
+		 * Sets a setting by the name used by {@link Translator#setParameter(String, Boolean)}. Unknown
+		 * names are ignored.
+		 */
+		Builder parameter(String parameter, Boolean value) {
+			if(Translator.KEEP_ORDER.equals(parameter)){
+				keepOrder(value);
+			} else if(Translator.KEEP_BLOCK_ID.equals(parameter)){
+				keepBlockId(value);
+			} else if(Translator.BALANCED_ODE_TERMS.equals(parameter)){
+				balancedOdeTerms(value);
+			} else if(Translator.PRESERVE_INPUT.equals(parameter)){
+				preserveInput(value);
+			} else if(Translator.ELIMINATE_COMMON_SUBEXPRESSIONS.equals(parameter)){
+				eliminateCommonSubexpressions(value);
+			} else if(Translator.HOIST_PARAMETER_EXPRESSIONS.equals(parameter)){
+				hoistParameterExpressions(value);
+			} else if(Translator.SIMPLIFY_EXPRESSIONS.equals(parameter)){
+				simplifyExpressions(value);
+			} else if(Translator.LOG_GAMMA_TRANSIT.equals(parameter)){
+				logGammaTransit(value);
+			}
+			return this;
+		}
+		
+		/**
+		 * Builds the options.
+		 * @return A new {@link TranslatorOptions} object.
+		 */
+		public TranslatorOptions build() {
+			return new TranslatorOptions(this);
+		}
+	}
+
+}
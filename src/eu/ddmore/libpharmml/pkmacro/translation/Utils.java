@@ -18,23 +18,25 @@
  *******************************************************************************/
 package eu.ddmore.libpharmml.pkmacro.translation;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import eu.ddmore.libpharmml.dom.commontypes.Assignable;
 import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
-import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
 import eu.ddmore.libpharmml.dom.commontypes.Rhs;
 import eu.ddmore.libpharmml.dom.commontypes.Scalar;
 import eu.ddmore.libpharmml.dom.commontypes.Symbol;
 import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
 import eu.ddmore.libpharmml.dom.maths.Binop;
 import eu.ddmore.libpharmml.dom.maths.Binoperator;
-import eu.ddmore.libpharmml.dom.maths.Condition;
 import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
-import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
 import eu.ddmore.libpharmml.dom.maths.Operand;
-import eu.ddmore.libpharmml.dom.maths.Piece;
 import eu.ddmore.libpharmml.dom.maths.Piecewise;
 import eu.ddmore.libpharmml.dom.maths.Uniop;
 import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
 
 /**
  * Utility class for common functions used in the translator.
@@ -65,17 +67,7 @@ public class Utils {
 				rhs.setUniop(uniop);
 			// For a positive expression, the operand is added on its own.
 			} else if(op.equals(Binoperator.PLUS)) {
-				if(operand instanceof SymbolRef){
-					rhs.setSymbRef((SymbolRef) operand);
-				} else if(operand instanceof Binop){
-					rhs.setBinop((Binop) operand);
-				} else if(operand instanceof Scalar){
-					rhs.setScalar((Scalar) operand);
-				} else if(operand instanceof Uniop){
-					rhs.setUniop((Uniop) operand);
-				} else {
-					throw new RuntimeException("Unsupported operation.");
-				}
+				setContent(rhs, operand);
 			}
 		} else {
 			// Assign a new binop containing the math expression already assigned and the new one.
@@ -84,12 +76,32 @@ public class Utils {
 		}
 	}
 	
+	/**
+	 * Sets the given operand as the content of the {@link Rhs} object.
+	 * @param rhs The {@link Rhs} element to be modified.
+	 * @param operand The new content, which must be a {@link SymbolRef}, a {@link Binop}, a {@link Scalar}
+	 * or a {@link Uniop}.
+	 */
+	static void setContent(Rhs rhs, Operand operand){
+		if(operand instanceof SymbolRef){
+			rhs.setSymbRef((SymbolRef) operand);
+		} else if(operand instanceof Binop){
+			rhs.setBinop((Binop) operand);
+		} else if(operand instanceof Scalar){
+			rhs.setScalar((Scalar) operand);
+		} else if(operand instanceof Uniop){
+			rhs.setUniop((Uniop) operand);
+		} else {
+			throw new RuntimeException("Unsupported operation.");
+		}
+	}
+	
 	/**
 	 * Gets the content of the given {@link Rhs} object assuming it's an {@link Operand} one.
 	 * @param rhs The {@link Rhs} element containing the wanted operand.
 	 * @return The content of the rhs as an {@link Operand}.
 	 */
-	private static Operand getContent(Rhs rhs){
+	static Operand getContent(Rhs rhs){
 		Object content = rhs.getContent();
 		if(content instanceof Operand){
 			return (Operand) content;
@@ -101,6 +113,31 @@ public class Utils {
 		}
 	}
 
+	/**
+	 * Creates an output with its own structural model and list of inputs, containing the elements of the given one.
+	 * @param output The output to be copied.
+	 * @return A new {@link MacroOutput} sharing the variables, parameters and inputs of the given one.
+	 */
+	static MacroOutput copyOf(MacroOutput output){
+		StructuralModel source = output.getStructuralModel();
+		final StructuralModel sm = new StructuralModel();
+		sm.setBlkId(source.getBlkId());
+		for(PharmMLElement el : source.getListOfStructuralModelElements()){
+			sm.getListOfStructuralModelElements().add(el);
+		}
+		final List<Input> inputs = new ArrayList<Input>(output.getListOfInput());
+		return new MacroOutput() {
+			@Override
+			public StructuralModel getStructuralModel() {
+				return sm;
+			}
+			@Override
+			public List<Input> getListOfInput() {
+				return inputs;
+			}
+		};
+	}
+	
 	/**
 	 * Pretty print function for a variable.
 	 * @param v The variable and its content that will be printed.
@@ -108,84 +145,33 @@ public class Utils {
 	 */
 	public static <T extends Assignable & Symbol> String variableToString(T v){
 		StringBuilder sb = new StringBuilder();
-		String symbolId;
-		if(v instanceof DerivativeVariable){
-			symbolId = "["+((DerivativeVariable) v).getOrder()+"] d"+v.getSymbId()+"/dt";
-		} else {
-			symbolId = v.getSymbId();
-		}
-		sb.append(symbolId+" = ");
-		if(v.getAssign() != null){
-			if(v.getAssign().getBinop() != null){
-				sb.append(binopToString(v.getAssign().getBinop()));
-			} else if (v.getAssign().getUniop() != null){
-				sb.append(uniopToString(v.getAssign().getUniop()));
-			} else if (v.getAssign().getPiecewise() != null){
-				sb.append(piecewiseToString(v.getAssign().getPiecewise()));
-			} else {
-				sb.append(v.getAssign().getContent());
-			}
+		try {
+			new ExpressionPrinter(sb).printVariable(v);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not thrown by a StringBuilder
 		}
 		return sb.toString();
 	}
 	
+	/**
+	 * Pretty print function for a variable, writing directly to the given output. The printed text is the
+	 * same as {@link #variableToString(Assignable)}, without building it in memory first, so this method is
+	 * preferable for dumping large models to files or logs.
+	 * @param v The variable and its content that will be printed.
+	 * @param out The output, like a {@link java.io.Writer} or a {@link StringBuilder}.
+	 * @throws IOException If the output can't be written.
+	 */
+	public static <T extends Assignable & Symbol> void printVariable(T v, Appendable out) throws IOException{
+		new ExpressionPrinter(out).printVariable(v);
+	}
+	
 	/**
 	 * Pretty print function for a {@link Binop} element.
 	 * @param binop The {@link Binop} and its content that will be printed.
 	 * @return A {@link String} representation of the given binop.
 	 */
 	public static String binopToString(Binop binop){
-		StringBuilder sb = new StringBuilder();
-		Operand op1 = binop.getOperand1();
-		Operand op2 = binop.getOperand2();
-		
-		String operand1String = operandToString(op1);
-		String operand2String = operandToString(op2);
-		Binoperator operator = binop.getOperator();
-		
-		String string;
-		switch (operator) {
-			case ATAN2:
-				string = "atan2( "+operand1String+" , "+operand2String+" )";
-				break;
-			case DIVIDE:
-				string = operand1String+" / "+operand2String;
-				break;
-			case LOGX:
-				string = operand1String+"log "+operand2String;
-				break;
-			case MAX:
-				string = "max{ "+operand1String+" , "+operand2String+" }";
-				break;
-			case MIN:
-				string = "min{ "+operand1String+" , "+operand2String+" }";
-				break;
-			case MINUS:
-				string = operand1String+" - "+operand2String;
-				break;
-			case PLUS:
-				string = operand1String+" + "+operand2String;
-				break;
-			case POWER:
-				string = operand1String+" ^ "+operand2String;
-				break;
-			case REM:
-				string = operand1String+" % "+operand2String;
-				break;
-			case ROOT:
-				string = operand2String+"root( "+operand1String+" )";
-				break;
-			case TIMES:
-				string = operand1String+" x "+operand2String;
-				break;
-			default:
-				string = "" + operand1String + operator + operand2String;
-				break;
-		}
-		
-		sb.append(string);
-		
-		return sb.toString();
+		return operandToString(binop);
 	}
 	
 	/**
@@ -194,21 +180,7 @@ public class Utils {
 	 * @return A {@link String} representation of the given uniop.
 	 */
 	public static String uniopToString(Uniop uniop){
-		StringBuilder sb = new StringBuilder();
-		
-		ExpressionValue content = uniop.getValue();
-		Unioperator operator = uniop.getOperator();
-		
-		switch (operator){
-		case MINUS:
-			sb.append("- "+expressionValueToString(content));
-			break;
-		default:
-			sb.append(operator+"("+expressionValueToString(content)+")");
-			break;
-			
-		}
-		return sb.toString();
+		return operandToString(uniop);
 	}
 	
 	/**
@@ -218,20 +190,10 @@ public class Utils {
 	 */
 	public static String operandToString(Operand op){
 		StringBuilder sb = new StringBuilder();
-		if(op instanceof SymbolRef){
-			SymbolRef sref = (SymbolRef) op;
-			if(sref.getBlkIdRef() != null){
-				sb.append("["+sref.getBlkIdRef()+"]");
-			}
-			sb.append(sref.getSymbIdRef());
-		} else if(op instanceof Scalar){
-			sb.append(((Scalar) op).valueToString());
-		} else if(op instanceof Binop){
-			sb.append(binopToString((Binop) op));
-		} else if(op instanceof Uniop){
-			sb.append(uniopToString((Uniop) op));
-		} else {
-			sb.append("Unknown operand");
+		try {
+			new ExpressionPrinter(sb).printOperand(op);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not thrown by a StringBuilder
 		}
 		return sb.toString();
 	}
@@ -242,11 +204,13 @@ public class Utils {
 	 * @return A {@link String} representation of the given expression.
 	 */
 	public static String expressionValueToString(ExpressionValue ev){
-		if(ev instanceof Operand){
-			return operandToString((Operand) ev);
-		} else {
-			return "ERROR";
+		StringBuilder sb = new StringBuilder();
+		try {
+			new ExpressionPrinter(sb).printExpressionValue(ev);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not thrown by a StringBuilder
 		}
+		return sb.toString();
 	}
 	
 	/**
@@ -260,6 +224,8 @@ public class Utils {
 			return ((CommonVariableDefinition) o).getSymbId();
 		} else if (o instanceof Scalar){
 			return ((Scalar) o).valueToString();
+		} else if (o instanceof SymbolRef){
+			return operandToString((SymbolRef) o);
 		} else {
 			// Default case
 			return String.valueOf(o);
@@ -273,20 +239,10 @@ public class Utils {
 	 */
 	public static String piecewiseToString(Piecewise pw){
 		StringBuilder sb = new StringBuilder();
-		for(Piece p : pw.getListOfPiece()){
-			Condition condition = p.getCondition();
-			if(condition.getOtherwise() == null){
-				String conditionString;
-				if(condition.getLogicBinop() != null){
-					LogicBinOp lb = condition.getLogicBinop();
-					conditionString = objectToString(lb.getContent().get(0).getValue())+" "+lb.getOp()+" "+objectToString(lb.getContent().get(1).getValue());
-				} else {
-					conditionString = null;
-				}
-				sb.append("if ("+conditionString+") { "+expressionValueToString(p.getValue())+" } else ");
-			} else {
-				sb.append("{ "+expressionValueToString(p.getValue())+" }");
-			}
+		try {
+			new ExpressionPrinter(sb).printPiecewise(pw);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not thrown by a StringBuilder
 		}
 		return sb.toString();
 	}
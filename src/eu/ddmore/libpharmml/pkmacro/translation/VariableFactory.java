@@ -19,13 +19,14 @@
 package eu.ddmore.libpharmml.pkmacro.translation;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import eu.ddmore.libpharmml.dom.IndependentVariable;
 import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
@@ -52,19 +53,52 @@ import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
 @SuppressWarnings("deprecation")
 public class VariableFactory {
 	
+	/**
+	 * @deprecated Use {@link NamingPolicy.Builder#depotPrefix(String)}. Changing this field affects every
+	 * translation of the JVM using a {@link Translator} without naming policy.
+	 */
+	@Deprecated
 	public static String DEPOT_PREFIX = "Ad";
+	/**
+	 * @deprecated Use {@link NamingPolicy.Builder#absorptionPrefix(String)}.
+	 */
+	@Deprecated
 	public static String ABSORPTION_PREFIX = "Aa";
+	/**
+	 * @deprecated Use {@link NamingPolicy.Builder#centralPrefix(String)}.
+	 */
+	@Deprecated
 	public static String CENTRAL_CMT_PREFIX = "Ac";
+	/**
+	 * @deprecated Use {@link NamingPolicy.Builder#peripheralPrefix(String)}.
+	 */
+	@Deprecated
 	public static String PERIPH_CMT_PREFIX = "Ap";
+	/**
+	 * @deprecated Use {@link NamingPolicy.Builder#defaultTimeSymbol(String)}.
+	 */
+	@Deprecated
 	public static String DEFAULT_TIME_SYMBOL = "t";
 	
+	private final NamingPolicy naming;
+	
 	private IndependentVariable time = null;
 		
-	private final Map<String, Set<Integer>> variables_count;
+	/**
+	 * Symbol table: indexes used by the stored variables and parameters, by prefix.
+	 */
+	private final Map<String, PrefixIndexes> variables_count;
 	
-	private final List<CommonVariableDefinition> variables;
+	/**
+	 * Stored variables by symbId, in their order of storage.
+	 */
+	private final Map<String, CommonVariableDefinition> variables;
 	private final List<TransientParameter> parameters;
 	
+	private final NameScanner scanner = new NameScanner();
+	
+	private final OdeTerms odeTerms = new OdeTerms();
+	
 	/**
 	 * Minimal constructor. The variables contained in the given {@link StructuralModel} are stored within the factory at this
 	 * stage.
@@ -72,13 +106,31 @@ public class VariableFactory {
 	 * @throws InvalidMacroException If the {@link StructuralModel} is invalid.
 	 */
 	VariableFactory(StructuralModel sm) throws InvalidMacroException{
-		variables_count = new HashMap<String, Set<Integer>>();
-		variables = new ArrayList<CommonVariableDefinition>();
+		this(sm, NamingPolicy.fromStaticPrefixes(), false);
+	}
+	
+	/**
+	 * Constructor with the naming convention of the generated variables. The variables contained in the 
+	 * given {@link StructuralModel} are stored within the factory at this stage.
+	 * @param sm The input {@link StructuralModel} containing already defined variables.
+	 * @param naming The naming convention of the generated variables.
+	 * @param copyInput If true, copies of the input variables are stored instead of the input objects, so
+	 * the modifications made during the translation don't affect the input model.
+	 * @throws InvalidMacroException If the {@link StructuralModel} is invalid.
+	 */
+	VariableFactory(StructuralModel sm, NamingPolicy naming, boolean copyInput) throws InvalidMacroException{
+		this.naming = naming;
+		variables_count = new HashMap<String, PrefixIndexes>();
+		variables = new LinkedHashMap<String, CommonVariableDefinition>();
 		parameters = new ArrayList<TransientParameter>();
 		
 		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
 			if(el instanceof CommonVariableDefinition){
-				storeVariable((CommonVariableDefinition) el);
+				if(copyInput){
+					storeVariable(copyOf((CommonVariableDefinition) el));
+				} else {
+					storeVariable((CommonVariableDefinition) el);
+				}
 			} else if (el instanceof PopulationParameter){
 				storeParameter((PopulationParameter) el);
 			} else if (el instanceof IndividualParameter){
@@ -105,7 +157,7 @@ public class VariableFactory {
 	
 	/**
 	 * Creates a symbol reference to the time variable. If this variable is not set, a reference to the
-	 * {@link #DEFAULT_TIME_SYMBOL} is created, potentially causing an invalid translated model. This method
+	 * default time symbol of the {@link NamingPolicy} is created, potentially causing an invalid translated model. This method
 	 * should be called only after the method {@link #setTimeVariable(IndependentVariable)} execution.
 	 * @return A {@link SymbolRef} object to the time variable.
 	 */
@@ -113,7 +165,7 @@ public class VariableFactory {
 		if(time != null){
 			return new SymbolRef(time.getSymbId());
 		} else {
-			return new SymbolRef(DEFAULT_TIME_SYMBOL);
+			return new SymbolRef(naming.getDefaultTimeSymbol());
 		}
 	}
 	
@@ -123,21 +175,20 @@ public class VariableFactory {
 	 * @return true if the variable exists, otherwise false.
 	 */
 	boolean variableExists(String symbolId){
-		return flattenVariableNames().contains(symbolId);
+		return scanner.scan(symbolId) 
+				&& scanner.isCanonical() 
+				&& variableExists(scanner.getPrefix(), scanner.getIndex());
 	}
 	
 	/**
-	 * Gets a list of all the variable names contained in the factory in pure string format.
-	 * @return A {@link List} of symbol identifiers as {@link String}.
+	 * Checks if a symbol made of the given prefix and index exists within this factory.
+	 * @param prefix The prefix of the symbol, like Ac, Ap...
+	 * @param index The index following the prefix.
+	 * @return true if the symbol exists, otherwise false.
 	 */
-	private List<String> flattenVariableNames(){
-		List<String> list = new ArrayList<String>();
-		for(String prefix : variables_count.keySet()){
-			for(Integer index : variables_count.get(prefix)){
-				list.add(prefix+index);
-			}
-		}
-		return list;
+	private boolean variableExists(String prefix, Integer index){
+		PrefixIndexes indexes = variables_count.get(prefix);
+		return indexes != null && indexes.contains(index);
 	}
 	
 	/**
@@ -147,7 +198,7 @@ public class VariableFactory {
 	 * @return The new {@link VariableDefinition} instance.
 	 */
 	VariableDefinition createVariable(String prefix, Integer index){
-		if(variableExists(prefix+index)){
+		if(variableExists(prefix, index)){
 			return generateVariable(prefix);
 		} else {
 			VariableDefinition v = new VariableDefinition();
@@ -170,7 +221,7 @@ public class VariableFactory {
 	 * @return The new {@link DerivativeVariable} instance.
 	 */
 	DerivativeVariable createDerivativeVariable(String prefix, Integer index, PKMacro origin){
-		if(variableExists(prefix+index)){
+		if(variableExists(prefix, index)){
 			return generateDerivativeVariable(prefix,origin);
 		} else {
 			DerivativeVariable dv = new DerivativeVariable();
@@ -247,24 +298,15 @@ public class VariableFactory {
 		return name + getFirstPossibleIndex(name);
 	}
 	
-	private Integer getFirstPossibleIndex(String prefix){
-		if(variables_count.containsKey(prefix)){
-			return getMax(variables_count.get(prefix))+1;
+	private int getFirstPossibleIndex(String prefix){
+		PrefixIndexes indexes = variables_count.get(prefix);
+		if(indexes != null){
+			return indexes.getMax()+1;
 		} else {
 			return 1;
 		}
 	}
 	
-	private Integer getMax(Set<Integer> set){
-		Integer max = 0;
-		for(Integer value : set){
-			if(value > max){
-				max = value;
-			}
-		}
-		return max;
-	}
-	
 	/**
 	 * Creates a new parameter. The parameter will be located within the
 	 * generated {@link StructuralModel}.
@@ -292,69 +334,72 @@ public class VariableFactory {
 	}
 	
 	void storeVariable(CommonVariableDefinition variable) throws InvalidMacroException{
-		VariableName varName = parseVariableName(variable.getSymbId());
-		storeSymbol(varName.getPrefix(), varName.getIndex());
-		variables.add(variable);
+		storeSymbol(variable.getSymbId());
+		variables.put(variable.getSymbId(), variable);
 	}
 	
 	void storeParameter(SimpleParameter p) throws InvalidMacroException{
-		VariableName varName = parseVariableName(p.getSymbId());
-		storeSymbol(varName.getPrefix(), varName.getIndex());
+		storeSymbol(p.getSymbId());
 		parameters.add(new TransientParameter(p));
 	}
 	
 	void storeParameter(PopulationParameter p) throws InvalidMacroException{
-		VariableName varName = parseVariableName(p.getSymbId());
-		storeSymbol(varName.getPrefix(), varName.getIndex());
+		storeSymbol(p.getSymbId());
 		parameters.add(new TransientParameter(p));
 	}
 	
 	void storeParameter(IndividualParameter p) throws InvalidMacroException{
-		VariableName varName = parseVariableName(p.getSymbId());
-		storeSymbol(varName.getPrefix(), varName.getIndex());
+		storeSymbol(p.getSymbId());
 		parameters.add(new TransientParameter(p));
 	}
 	
 	void storeParameter(TransientParameter p) throws InvalidMacroException{
-		VariableName varName = parseVariableName(p.getSymbolId());
-		storeSymbol(varName.getPrefix(), varName.getIndex());
+		storeSymbol(p.getSymbolId());
 		parameters.add(p);
 	}
 	
-	private void storeSymbol(String prefix,Integer index) throws InvalidMacroException{
-		if(!variables_count.containsKey(prefix)){
-			variables_count.put(prefix, new HashSet<Integer>());
+	private void storeSymbol(String symbId) throws InvalidMacroException{
+		scanner.scan(symbId);
+		storeSymbol(scanner.getPrefix(), scanner.getIndex());
+	}
+	
+	private void storeSymbol(String prefix, int index) throws InvalidMacroException{
+		PrefixIndexes indexes = variables_count.get(prefix);
+		if(indexes == null){
+			indexes = new PrefixIndexes();
+			variables_count.put(prefix, indexes);
 		}
-		if(variables_count.get(prefix).contains(index)){
+		if(!indexes.add(index)){
 			throw new InvalidMacroException(prefix+"["+index+"] is duplicate symbol");
 		}
-		variables_count.get(prefix).add(index);
 	}
 	
-	List<CommonVariableDefinition> getDefinedVariables(){
-		return this.variables;
+	/**
+	 * Gets the variables stored within this factory, in their order of storage.
+	 * @return An unmodifiable {@link Collection} of variables.
+	 */
+	Collection<CommonVariableDefinition> getDefinedVariables(){
+		return Collections.unmodifiableCollection(variables.values());
 	}
 	
 	List<TransientParameter> getDefinedParameters(){
 		return parameters;
 	}
 	
-	VariableName parseVariableName(String raw){
-		Pattern p = Pattern.compile("([a-zA-Z]+)(\\d*)");
-		Matcher m = p.matcher(raw);
-		if(m.find()){
-			String prefix = m.group(1);
-			String index = m.group(2);
-			Integer intIndex;
-			if(index != null && index.matches("\\d+")){
-				intIndex = Integer.valueOf(index);
-			} else {
-				intIndex = 0;
-			}
-			return new VariableName(prefix, intIndex);
-		} else {
-			return null;
-		}
+	/**
+	 * Gets the naming convention of the variables generated by this factory.
+	 * @return The {@link NamingPolicy} of this factory.
+	 */
+	NamingPolicy getNamingPolicy(){
+		return naming;
+	}
+	
+	/**
+	 * Gets the accumulator of the terms added to the ODEs of the variables of this factory.
+	 * @return The {@link OdeTerms} instance of this factory.
+	 */
+	OdeTerms getOdeTerms(){
+		return odeTerms;
 	}
 	
 	/**
@@ -363,14 +408,12 @@ public class VariableFactory {
 	 * @return The corresponding {@link DerivativeVariable} object, or null if it doesn't exist.
 	 */
 	DerivativeVariable fetchDerivativeVariable(String symbId){
-		for(CommonVariableDefinition v : variables){
-			if(v instanceof DerivativeVariable){
-				if(v.getSymbId().equals(symbId)){
-					return (DerivativeVariable) v;
-				}
-			}
+		CommonVariableDefinition v = variables.get(symbId);
+		if(v instanceof DerivativeVariable){
+			return (DerivativeVariable) v;
+		} else {
+			return null;
 		}
-		return null;
 	}
 	
 	/**
@@ -379,40 +422,161 @@ public class VariableFactory {
 	 * @return The corresponding {@link VariableDefinition} object, or null if it doesn't exist.
 	 */
 	VariableDefinition fetchVariable(String symbId){
-		for(CommonVariableDefinition v : variables){
-			if(v instanceof VariableDefinition){
-				if(v.getSymbId().equals(symbId)){
-					return (VariableDefinition) v;
-				}
-			}
+		CommonVariableDefinition v = variables.get(symbId);
+		if(v instanceof VariableDefinition){
+			return (VariableDefinition) v;
+		} else {
+			return null;
 		}
-		return null;
 	}
 	
+	/**
+	 * Replaces the given variable by a new {@link DerivativeVariable} with the same symbId. The new variable
+	 * is moved at the end of the stored variables.
+	 * @param v The stored variable to be transformed.
+	 * @param origin The macro at the origin of the transformation.
+	 * @return The new {@link DerivativeVariable}.
+	 */
 	DerivativeVariable transformToDerivativeVariable(VariableDefinition v, PKMacro origin){
 		DerivativeVariable dv = new DerivativeVariable(v.getSymbId(), v.getSymbolType());
 		dv.setOriginMacro(origin);
 		dv.setOriginatedFromMacro(true);
-		variables.remove(v);
-		variables.add(dv);
+		variables.remove(v.getSymbId());
+		variables.put(dv.getSymbId(), dv);
 		return dv;
 	}
 	
-	class VariableName {
+	/**
+	 * Creates a deep copy of the given variable through the constructors and setters of the DOM classes, like
+	 * {@link #transformToDerivativeVariable(VariableDefinition, PKMacro)}. The copy has the id and the description
+	 * of the original variable, so the output is the same as when the input is modified, and its own {@link Rhs}
+	 * and expression, so the variable can be assigned, reordered or get new terms without modifying the original one.
+	 * @param v The variable to be copied.
+	 * @return A copy of the variable.
+	 * @see ExpressionCopier
+	 */
+	static <T extends CommonVariableDefinition> T copyOf(T v){
+		return new ExpressionCopier().copy(v);
+	}
+	
+	/**
+	 * Indexes used with a given symbol prefix, with the highest one kept up to date so the next
+	 * available index is known without browsing the used ones.
+	 */
+	private static class PrefixIndexes {
+		
+		private final Set<Integer> indexes = new HashSet<Integer>();
+		private int max = 0;
+		
+		boolean contains(Integer index){
+			return indexes.contains(index);
+		}
+		
+		/**
+		 * Adds an index.
+		 * @return false if the index was already used, else true.
+		 */
+		boolean add(int index){
+			if(!indexes.add(index)){
+				return false;
+			}
+			if(index > max){
+				max = index;
+			}
+			return true;
+		}
+		
+		/**
+		 * Gets the highest index used with this prefix, 0 if there is no positive one.
+		 */
+		int getMax(){
+			return max;
+		}
+	}
+	
+	/**
+	 * Splits symbIds into a prefix and an index, like Ac and 1 for "Ac1". The prefix is the first
+	 * sequence of letters and the index the digits following it, 0 if there is none. Symbols without
+	 * letters or with an index exceeding the int range are kept whole as prefix, with the index 0.
+	 * <p>The results of the last scan are kept within the scanner, so a single instance can be reused
+	 * without any allocation but the prefix string.
+	 */
+	static class NameScanner {
+		
 		private String prefix;
-		private Integer index;
+		private int index;
+		private boolean canonical;
 		
-		public VariableName(String prefix, Integer index) {
-			this.prefix = prefix;
-			this.index = index;
+		/**
+		 * Scans the given symbId.
+		 * @param raw The symbId.
+		 * @return true if the symbId is made of a prefix and an index, false if it has been kept whole.
+		 */
+		boolean scan(String raw){
+			int length = raw.length();
+			int start = 0;
+			while(start < length && !isLetter(raw.charAt(start))){
+				start++;
+			}
+			int end = start;
+			while(end < length && isLetter(raw.charAt(end))){
+				end++;
+			}
+			int digitsEnd = end;
+			long value = 0;
+			while(digitsEnd < length && isDigit(raw.charAt(digitsEnd))){
+				value = value * 10 + (raw.charAt(digitsEnd) - '0');
+				if(value > Integer.MAX_VALUE){
+					return keepWhole(raw);
+				}
+				digitsEnd++;
+			}
+			if(start == end){
+				return keepWhole(raw);
+			}
+			prefix = (start == 0 && end == length) ? raw : raw.substring(start, end);
+			index = (int) value;
+			int digits = digitsEnd - end;
+			canonical = start == 0 && digitsEnd == length && digits > 0 
+					&& (digits == 1 || raw.charAt(end) != '0');
+			return true;
+		}
+		
+		private boolean keepWhole(String raw){
+			prefix = raw;
+			index = 0;
+			canonical = false;
+			return false;
+		}
+		
+		private static boolean isLetter(char c){
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+		}
+		
+		private static boolean isDigit(char c){
+			return c >= '0' && c <= '9';
 		}
 		
+		/**
+		 * Gets the prefix found by the last scan.
+		 */
 		String getPrefix(){
 			return prefix;
 		}
 		
-		Integer getIndex(){
+		/**
+		 * Gets the index found by the last scan.
+		 */
+		int getIndex(){
 			return index;
 		}
+		
+		/**
+		 * Tells if the last scanned symbId is exactly the concatenation of its prefix and index,
+		 * like "Ac1" but unlike "Ac", "Ac01" or "x_Ac1".
+		 */
+		boolean isCanonical(){
+			return canonical;
+		}
 	}
 }
@@ -1,16 +1,9 @@
 package eu.ddmore.libpharmml.pkmacro.standalone;
 
 import java.io.FileInputStream;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 
-import javax.swing.tree.TreeNode;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.Marshaller;
-import javax.xml.namespace.QName;
-
 import eu.ddmore.libpharmml.IPharmMLResource;
 import eu.ddmore.libpharmml.IValidationError;
 import eu.ddmore.libpharmml.PharmMlFactory;
@@ -24,12 +17,9 @@ import eu.ddmore.libpharmml.dom.modeldefn.PopulationParameter;
 import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
 import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacro;
 import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacroList;
-import eu.ddmore.libpharmml.impl.IdFactoryImpl;
-import eu.ddmore.libpharmml.impl.MarshalListener;
-import eu.ddmore.libpharmml.impl.NamespaceFilter;
-import eu.ddmore.libpharmml.impl.PharmMLVersion;
 import eu.ddmore.libpharmml.pkmacro.translation.Input;
 import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputMarshaller;
 import eu.ddmore.libpharmml.pkmacro.translation.Translator;
 import eu.ddmore.libpharmml.pkmacro.translation.Utils;
 
@@ -68,15 +58,7 @@ public class TranslateToString {
 		System.out.println("Inputs:");
 		printInputs(output.getListOfInput());
 		
-		JAXBContext context = JAXBContext.newInstance("eu.ddmore.libpharmml.dom:eu.ddmore.libpharmml.dom.uncertml");
-		Marshaller m = context.createMarshaller();
-		setMarshalVersion(tl_sm, PharmMLVersion.DEFAULT);
-		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-		MarshalListener listener = new MarshalListener(PharmMLVersion.DEFAULT, new IdFactoryImpl());
-		listener.autosetId(false);
-		m.setListener(listener);
-		JAXBElement<StructuralModel> jaxbEl = new JAXBElement<StructuralModel>(new QName(NamespaceFilter.NS_DEFAULT_MDEF, "StructuralModel"), StructuralModel.class, tl_sm);
-		m.marshal(jaxbEl, System.out);
+		new MacroOutputMarshaller().marshal(output, System.out);
 					
 	}
 	
@@ -110,17 +92,6 @@ public class TranslateToString {
 		println("------------------------------------------");
 	}
 
-	private static void setMarshalVersion(PharmMLElement node, PharmMLVersion version){
-		node.setMarshalVersion(version);
-		Enumeration<TreeNode> children = node.children();
-		while(children.hasMoreElements()){
-			TreeNode child = children.nextElement();
-			if(child instanceof PharmMLElement){
-				setMarshalVersion((PharmMLElement) child, version);
-			}
-		}
-	}
-	
 	private static void println(Object o){
 		System.out.println(String.valueOf(o));
 	}
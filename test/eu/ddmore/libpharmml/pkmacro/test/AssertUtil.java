@@ -9,13 +9,18 @@ import org.junit.Assert;
 import eu.ddmore.libpharmml.IValidationError;
 import eu.ddmore.libpharmml.IValidationReport;
 import eu.ddmore.libpharmml.dom.commontypes.BooleanValue;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
 import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
 import eu.ddmore.libpharmml.dom.commontypes.RealValue;
 import eu.ddmore.libpharmml.dom.commontypes.Rhs;
 import eu.ddmore.libpharmml.dom.commontypes.Scalar;
 import eu.ddmore.libpharmml.dom.commontypes.StringValue;
 import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
 import eu.ddmore.libpharmml.dom.commontypes.VectorValue;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
 
 public class AssertUtil extends Assert {
 	
@@ -94,6 +99,43 @@ public class AssertUtil extends Assert {
 		}
 	}
 	
+	/**
+	 * Asserts that two translations of the same model give the same values to the ODEs, the variables and the
+	 * inputs, evaluated with several random sets of states and parameters.
+	 */
+	public static void assertEquivalent(MacroOutput expected, MacroOutput actual){
+		assertEquals("Number of inputs", expected.getListOfInput().size(), actual.getListOfInput().size());
+		for(long seed = 1; seed <= 3; seed++){
+			ModelEvaluator expectedValues = new ModelEvaluator(expected.getStructuralModel(), seed);
+			ModelEvaluator actualValues = new ModelEvaluator(actual.getStructuralModel(), seed);
+			for(PharmMLElement el : expected.getStructuralModel().getListOfStructuralModelElements()){
+				if(el instanceof DerivativeVariable){
+					String symbId = ((DerivativeVariable) el).getSymbId();
+					assertClose("d"+symbId+"/dt", expectedValues.derivative(symbId), actualValues.derivative(symbId));
+				} else if(el instanceof VariableDefinition){
+					String symbId = ((VariableDefinition) el).getSymbId();
+					assertClose(symbId, expectedValues.value(symbId), actualValues.value(symbId));
+				}
+			}
+			for(int i = 0; i < expected.getListOfInput().size(); i++){
+				Input expectedInput = expected.getListOfInput().get(i);
+				Input actualInput = actual.getListOfInput().get(i);
+				assertEquals("Input type", expectedInput.getType(), actualInput.getType());
+				assertEquals("Input target", expectedInput.getTarget().getSymbId(), actualInput.getTarget().getSymbId());
+				assertClose("Input adm", expectedValues.evaluate(expectedInput.getAdm()), 
+						actualValues.evaluate(actualInput.getAdm()));
+				assertClose("Input tlag", expectedValues.evaluate(expectedInput.getTlag()), 
+						actualValues.evaluate(actualInput.getTlag()));
+				assertClose("Input p", expectedValues.evaluate(expectedInput.getP()), 
+						actualValues.evaluate(actualInput.getP()));
+			}
+		}
+	}
+	
+	private static void assertClose(String message, double expected, double actual){
+		assertEquals(message, expected, actual, 1e-9 * Math.max(1, Math.abs(expected)));
+	}
+	
 	public static void assertInvalid(int expectedNumError, IValidationReport report){
 		assertFalse("Invalid model", report.isValid());
 		if(expectedNumError != report.numErrors()){
@@ -0,0 +1,196 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.CompartmentMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacroList;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+import eu.ddmore.libpharmml.pkmacro.translation.BatchTranslator;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslationResult;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class BatchTranslatorTest {
+	
+	private static final String[] EXAMPLES = {
+		"examples/PKmacros_advan1.xml",
+		"examples/PKmacros_advan4.xml",
+		"examples/PKmacros_advan12.xml",
+		"examples/PKmacros_example12.xml",
+		"examples/PKmacros_example13.xml"
+	};
+	private static final String INVALID_EXAMPLE = "examples/PKmacros_advan1.xml";
+	
+	private ILibPharmML testInstance;
+	private ExecutorService executor;
+	private IndependentVariable time;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.executor = Executors.newFixedThreadPool(4);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.executor.shutdown();
+		this.executor = null;
+		this.testInstance = null;
+	}
+	
+	private StructuralModel fetchStructuralModel(String fileName) throws FileNotFoundException{
+		IPharmMLResource res = testInstance.createDomFromResource(new FileInputStream(fileName));
+		PharmML dom = res.getDom();
+		time = dom.getListOfIndependentVariable().get(0);
+		return dom.getModelDefinition().getListOfStructuralModel().get(0);
+	}
+	
+	@Test
+	public void testSameOutputAsSequential() throws Exception {
+		List<StructuralModel> models = new ArrayList<StructuralModel>();
+		List<MacroOutput> expected = new ArrayList<MacroOutput>();
+		Translator tl = new Translator();
+		for(String example : EXAMPLES){
+			models.add(fetchStructuralModel(example));
+			StructuralModel copy = fetchStructuralModel(example);
+			expected.add(tl.translate(copy, PharmMLVersion.DEFAULT, time));
+		}
+		
+		List<TranslationResult> results = new BatchTranslator(tl, executor).translate(models, PharmMLVersion.DEFAULT, time);
+		
+		assertEquals("Number of results", models.size(), results.size());
+		for(int i = 0; i < results.size(); i++){
+			TranslationResult result = results.get(i);
+			assertSame("Input order", models.get(i), result.getInput());
+			assertTrue(EXAMPLES[i]+" translated", result.isSuccessful());
+			assertEquals(EXAMPLES[i], toString(expected.get(i)), toString(result.getOutput()));
+		}
+	}
+	
+	@Test
+	public void testFailureReportedPerModel() throws Exception {
+		List<StructuralModel> models = new ArrayList<StructuralModel>();
+		models.add(fetchStructuralModel(EXAMPLES[0]));
+		StructuralModel invalid = fetchStructuralModel(INVALID_EXAMPLE);
+		removeCompartments(invalid);
+		models.add(invalid);
+		models.add(fetchStructuralModel(EXAMPLES[3]));
+		
+		List<TranslationResult> results = new BatchTranslator(new Translator(), executor).translate(models, PharmMLVersion.DEFAULT, time);
+		
+		assertTrue(results.get(0).isSuccessful());
+		assertFalse(results.get(1).isSuccessful());
+		assertNotNull(results.get(1).getException());
+		assertTrue(results.get(2).isSuccessful());
+		try {
+			results.get(1).getOutput();
+		} catch (InvalidMacroException e) {
+			assertSame(results.get(1).getException(), e);
+			return;
+		}
+		throw new AssertionError("InvalidMacroException expected");
+	}
+	
+	@Test
+	public void testTimeOfEachDocument() throws Exception {
+		List<PharmML> doms = new ArrayList<PharmML>();
+		List<MacroOutput> expected = new ArrayList<MacroOutput>();
+		Translator tl = new Translator();
+		for(String example : EXAMPLES){
+			doms.add(fetchDocument(example));
+			PharmML copy = fetchDocument(example);
+			expected.add(tl.translate(copy.getModelDefinition().getListOfStructuralModel().get(0), 
+					PharmMLVersion.DEFAULT, copy.getListOfIndependentVariable().get(0)));
+		}
+		// Transit absorption of example 13 refers to the time
+		doms.get(4).getListOfIndependentVariable().get(0).setSymbId("T2");
+		
+		List<TranslationResult> results = new BatchTranslator(tl, executor).translateDocuments(doms, PharmMLVersion.DEFAULT);
+		
+		assertEquals("Number of results", doms.size(), results.size());
+		for(int i = 0; i < 4; i++){
+			assertSame("Input order", doms.get(i).getModelDefinition().getListOfStructuralModel().get(0), 
+					results.get(i).getInput());
+			assertEquals(EXAMPLES[i], toString(expected.get(i)), toString(results.get(i).getOutput()));
+		}
+		String example13 = toString(results.get(4).getOutput());
+		assertTrue("Time of the document", example13.contains("Ktr x T2"));
+		assertFalse(example13.contains("Ktr x t "));
+	}
+	
+	@Test(expected = StackOverflowError.class)
+	public void testErrorRethrown() throws Exception {
+		Translator failing = new Translator() {
+			@Override
+			public MacroOutput translate(StructuralModel sm, PharmMLVersion version, IndependentVariable t) {
+				throw new StackOverflowError();
+			}
+		};
+		List<StructuralModel> models = new ArrayList<StructuralModel>();
+		models.add(fetchStructuralModel(EXAMPLES[0]));
+		new BatchTranslator(failing, executor).translate(models, PharmMLVersion.DEFAULT, time);
+	}
+	
+	private PharmML fetchDocument(String fileName) throws FileNotFoundException{
+		return testInstance.createDomFromResource(new FileInputStream(fileName)).getDom();
+	}
+	
+	private static void removeCompartments(StructuralModel sm){
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof PKMacroList){
+				Iterator<PKMacro> it = ((PKMacroList) el).getListOfMacro().iterator();
+				while(it.hasNext()){
+					if(it.next() instanceof CompartmentMacro){
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+	
+	private static String toString(MacroOutput mo){
+		StringBuilder sb = new StringBuilder();
+		for(PharmMLElement el : mo.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				sb.append(Utils.variableToString((DerivativeVariable) el)).append("\n");
+			} else if(el instanceof VariableDefinition){
+				sb.append(Utils.variableToString((VariableDefinition) el)).append("\n");
+			}
+		}
+		for(Input input : mo.getListOfInput()){
+			sb.append(input.getType()).append(" ").append(input.getAdm().valueToString())
+				.append(" ").append(input.getTarget().getSymbId()).append("\n");
+		}
+		return sb.toString();
+	}
+
+}
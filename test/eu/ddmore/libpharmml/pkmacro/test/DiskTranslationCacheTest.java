@@ -0,0 +1,190 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.InitialCondition;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.StandardAssignable;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuredModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.DiskTranslationCache;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class DiskTranslationCacheTest {
+	
+	private static final String EXAMPLE = "examples/PKmacros_example13.xml";
+	private static final String USECASE_3 = "examples/UseCase3.xml";
+	
+	private ILibPharmML testInstance;
+	private IndependentVariable time;
+	private File directory;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.directory = File.createTempFile("pkmacro", "cache");
+		directory.delete();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+		File[] files = directory.listFiles();
+		if(files != null){
+			for(File f : files){
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	private StructuralModel fetchStructuralModel(String fileName) throws Exception {
+		IPharmMLResource res = testInstance.createDomFromResource(new FileInputStream(fileName));
+		PharmML dom = res.getDom();
+		time = dom.getListOfIndependentVariable().get(0);
+		return dom.getModelDefinition().getListOfStructuralModel().get(0);
+	}
+	
+	@Test
+	public void testSharedBetweenInstances() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		DiskTranslationCache first = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT);
+		MacroOutput expected = first.translate(sm, PharmMLVersion.DEFAULT, time);
+		assertEquals("Misses", 1, first.getMissCount());
+		assertEquals("Write failures", 0, first.getWriteFailureCount());
+		
+		DiskTranslationCache second = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT);
+		MacroOutput output = second.translate(sm, PharmMLVersion.DEFAULT, time);
+		assertEquals("Hits", 1, second.getHitCount());
+		assertEquals(describe(expected), describe(output));
+	}
+	
+	@Test
+	public void testCorruptedFileIgnored() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		DiskTranslationCache cache = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT);
+		MacroOutput expected = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		
+		File[] files = directory.listFiles();
+		assertEquals("Cached files", 1, files.length);
+		RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+		raf.setLength(raf.length() / 2);
+		raf.close();
+		
+		MacroOutput output = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		assertEquals("Misses", 2, cache.getMissCount());
+		assertEquals(describe(expected), describe(output));
+		assertTrue("Rewritten", files[0].length() > 0);
+	}
+	
+	@Test
+	public void testDerivativeVariablesStored() throws Exception {
+		StructuralModel sm = fetchStructuralModel(USECASE_3);
+		MacroOutput expected = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT)
+				.translate(sm, PharmMLVersion.DEFAULT, time);
+		DiskTranslationCache cache = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT);
+		MacroOutput output = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		assertEquals("Hits", 1, cache.getHitCount());
+		assertEquals(describe(expected), describe(output));
+		
+		DerivativeVariable pca = null;
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable && ((DerivativeVariable) el).getSymbId().equals("PCA")){
+				pca = (DerivativeVariable) el;
+			}
+		}
+		assertNotNull("PCA", pca);
+		assertEquals("T", pca.getIndependentVariable().getSymbIdRef());
+		assertEquals("PCA0", pca.getInitialCondition().getInitialValue().getAssign().getSymbRef().getSymbIdRef());
+	}
+	
+	@Test
+	public void testStructuredParameterNotStored() throws Exception {
+		StructuralModel sm = MacroModels.pkModel();
+		IndividualParameter parameter = new IndividualParameter();
+		parameter.setSymbId("Vi");
+		StructuredModel structuredModel = new StructuredModel();
+		parameter.setStructuredModel(structuredModel);
+		sm.getListOfStructuralModelElements().add(0, parameter);
+		
+		DiskTranslationCache cache = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT);
+		MacroOutput output = cache.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquals("Write failures", 1, cache.getWriteFailureCount());
+		File[] files = directory.listFiles();
+		assertEquals("Cached files", 0, files == null ? 0 : files.length);
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof IndividualParameter && "Vi".equals(((IndividualParameter) el).getSymbId())){
+				assertSame("Structured model kept", structuredModel, ((IndividualParameter) el).getStructuredModel());
+			}
+		}
+		
+		DiskTranslationCache other = new DiskTranslationCache(directory, TranslatorOptions.DEFAULT);
+		other.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquals("Misses", 1, other.getMissCount());
+	}
+	
+	private static List<String> describe(MacroOutput mo){
+		List<String> description = new ArrayList<String>();
+		description.add(mo.getStructuralModel().getBlkId());
+		for(PharmMLElement el : mo.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				DerivativeVariable dv = (DerivativeVariable) el;
+				InitialCondition ic = dv.getInitialCondition();
+				description.add(Utils.variableToString(dv)+" "+dv.getSymbolType()
+						+" t="+(dv.getIndependentVariable() == null ? null : Utils.operandToString(dv.getIndependentVariable()))
+						+" ic="+(ic == null ? null : describe(ic.getInitialValue())+" at "+describe(ic.getInitialTime())));
+			} else if(el instanceof VariableDefinition){
+				VariableDefinition v = (VariableDefinition) el;
+				description.add(Utils.variableToString(v)+" "+v.getSymbolType());
+			} else if(el instanceof CommonParameter){
+				description.add(el.getClass().getSimpleName()+" "+Utils.variableToString((CommonParameter) el));
+			} else {
+				description.add(el.getClass().getSimpleName());
+			}
+		}
+		for(Input input : mo.getListOfInput()){
+			description.add(input.getNumber()+" "+input.getType()+" "+input.getAdm().valueToString()
+					+" "+input.getTarget().getSymbId()
+					+" "+(input.getTlag() == null ? null : Utils.operandToString(input.getTlag()))
+					+" "+(input.getP() == null ? null : Utils.operandToString(input.getP())));
+		}
+		return description;
+	}
+	
+	private static String describe(StandardAssignable value){
+		if(value == null){
+			return null;
+		}
+		VariableDefinition v = new VariableDefinition("value", SymbolType.REAL);
+		v.setAssign(value.getAssign());
+		return Utils.variableToString(v);
+	}
+
+}
@@ -0,0 +1,84 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class ExpressionPrinterTest {
+	
+	private static final int DEPTH = 100000;
+	
+	@Test
+	public void testPrintVariable() throws Exception {
+		SymbolRef ka = new SymbolRef("ka");
+		ka.setBlkIdRef("pm1");
+		DerivativeVariable dv = new DerivativeVariable("Ac", SymbolType.REAL);
+		dv.setOrder(2);
+		dv.assign(new Binop(Binoperator.MINUS,
+				new Binop(Binoperator.TIMES, ka, new SymbolRef("Ad1")),
+				new Uniop(Unioperator.EXP, new Binop(Binoperator.DIVIDE, new SymbolRef("Ac"), new IntValue(2)))));
+		
+		String expected = "[2] dAc/dt = [pm1]ka x Ad1 - EXP(Ac / 2)";
+		assertEquals(expected, Utils.variableToString(dv));
+		
+		StringWriter writer = new StringWriter();
+		Utils.printVariable(dv, writer);
+		assertEquals("Same text written to an Appendable", expected, writer.toString());
+	}
+	
+	@Test
+	public void testPrintLeafAssignment() throws Exception {
+		VariableDefinition v = new VariableDefinition("C", SymbolType.REAL);
+		v.assign(new SymbolRef("V", "pm1"));
+		assertEquals("C = [pm1]V", Utils.variableToString(v));
+		v.assign(new IntValue(2));
+		assertEquals("C = 2", Utils.variableToString(v));
+		assertEquals("Condition operand", "[sm1]Ac", Utils.objectToString(new SymbolRef("Ac", "sm1")));
+	}
+	
+	@Test
+	public void testPrintDeepBinop() throws Exception {
+		Binop content = new Binop(Binoperator.PLUS, new SymbolRef("x0"), new SymbolRef("x"));
+		for(int i = 2; i < DEPTH; i++){
+			content = new Binop(Binoperator.PLUS, content, new SymbolRef("x"));
+		}
+		VariableDefinition v = new VariableDefinition("V", SymbolType.REAL);
+		v.assign(content);
+		
+		String printed = Utils.variableToString(v);
+		assertTrue(printed.startsWith("V = x0 + x + x"));
+		assertTrue(printed.endsWith(" + x"));
+		assertEquals("All terms printed", "V = x0".length() + (DEPTH - 1) * " + x".length(), printed.length());
+	}
+	
+	@Test
+	public void testPrintDeepUniop() throws Exception {
+		Uniop content = new Uniop(Unioperator.LOG, new SymbolRef("x"));
+		for(int i = 1; i < DEPTH; i++){
+			content = new Uniop(Unioperator.LOG, content);
+		}
+		VariableDefinition v = new VariableDefinition("V", SymbolType.REAL);
+		v.assign(content);
+		
+		StringBuilder sb = new StringBuilder();
+		Utils.printVariable(v, sb);
+		assertEquals("All operators printed", "V = ".length() + DEPTH * "LOG()".length() + 1, sb.length());
+		assertTrue(sb.toString().startsWith("V = LOG(LOG("));
+		assertEquals("Innermost operand", sb.length() - DEPTH - 1, sb.indexOf("x)"));
+	}
+
+}
@@ -0,0 +1,113 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static eu.ddmore.libpharmml.pkmacro.test.AssertUtil.assertEquivalent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class ExpressionSimplificationTest {
+	
+	private final Translator translator = new Translator(TranslatorOptions.builder()
+			.simplifyExpressions(true)
+			.preserveInput(true)
+			.build());
+	
+	@Test
+	public void testSameEquations() throws Exception {
+		MacroOutput plain = new Translator(TranslatorOptions.builder().preserveInput(true).build())
+				.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquivalent(plain, output);
+	}
+	
+	@Test
+	public void testSimplifiedExpressions() throws Exception {
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		Map<String, String> variables = toStrings(output);
+		assertEquals("R = Cc + Ce", variables.get("R"));
+		assertEquals("E = [pm1]Emax x Cc / [pm1]EC50 + Cc + [pm1]Emax x Cc / [pm1]EC50 + Cc x 6", variables.get("E"));
+		assertEquals("[1] dAc/dt = [pm1]k21 x Ap1 - [pm1]k12 x Ac + [pm1]ka x Aa3 + ZeroOrderRate4 "
+				+ "- [pm1]CL / [pm1]V x Ac", variables.get("Ac"));
+		assertEquals("[4] dAa3/dt = EXP(LOG(Dose1) + LOG([pm1]Ktr) + n1 x LOG([pm1]Ktr x T - t_Dose1) "
+				+ "- [pm1]Ktr x T - t_Dose1 - LOG(FACTORIAL(n1))) - [pm1]ka x Aa3", variables.get("Aa3"));
+		
+		// The bioavailability F1 = 1 is replaced by its value
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonParameter){
+				assertFalse("F1 removed", "F1".equals(((CommonParameter) el).getSymbId()));
+			}
+		}
+	}
+	
+	@Test
+	public void testSimplified() throws Exception {
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				assertSimplified(((CommonVariableDefinition) el).getSymbId(), ((CommonVariableDefinition) el).getAssign());
+			}
+		}
+	}
+	
+	private static Map<String, String> toStrings(MacroOutput output){
+		Map<String, String> variables = new HashMap<String, String>();
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				variables.put(((DerivativeVariable) el).getSymbId(), Utils.variableToString((DerivativeVariable) el));
+			} else if(el instanceof VariableDefinition){
+				variables.put(((VariableDefinition) el).getSymbId(), Utils.variableToString((VariableDefinition) el));
+			}
+		}
+		return variables;
+	}
+	
+	private static void assertSimplified(String message, Object node){
+		if(node instanceof Rhs){
+			assertSimplified(message, ((Rhs) node).getContent());
+		} else if(node instanceof Binop){
+			Binop binop = (Binop) node;
+			assertFalse(message, isNumber(binop.getOperand1()) && isNumber(binop.getOperand2()));
+			if(binop.getOperator() == Binoperator.PLUS || binop.getOperator() == Binoperator.MINUS){
+				assertFalse(message, isNegation(binop.getOperand2()));
+			}
+			assertSimplified(message, binop.getOperand1());
+			assertSimplified(message, binop.getOperand2());
+		} else if(node instanceof Uniop){
+			Uniop uniop = (Uniop) node;
+			assertFalse(message, isNumber(uniop.getValue()) && uniop.getOperator() == Unioperator.MINUS);
+			assertFalse(message, isNegation(uniop) && isNegation(uniop.getValue()));
+			assertSimplified(message, uniop.getValue());
+		}
+	}
+	
+	private static boolean isNumber(Object node){
+		return node instanceof IntValue || node instanceof RealValue;
+	}
+	
+	private static boolean isNegation(Object node){
+		return node instanceof Uniop && ((Uniop) node).getOperator() == Unioperator.MINUS;
+	}
+	
+}
@@ -0,0 +1,92 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroInput;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroInputReader;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class MacroInputReaderTest {
+	
+	private static final String[] EXAMPLES = {
+		"examples/PKmacros_advan1.xml",
+		"examples/PKmacros_advan4.xml",
+		"examples/PKmacros_example13.xml",
+		"examples/UseCase7.xml"
+	};
+	
+	private ILibPharmML testInstance;
+	private MacroInputReader reader;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.reader = new MacroInputReader();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+		this.reader = null;
+	}
+	
+	@Test
+	public void testSameTranslation() throws Exception {
+		for(String example : EXAMPLES){
+			IPharmMLResource resource = testInstance.createDomFromResource(new FileInputStream(example));
+			StructuralModel domSM = resource.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+			IndependentVariable domTime = resource.getDom().getListOfIndependentVariable().get(0);
+			
+			MacroInput input = reader.read(new File(example));
+			assertEquals(example, 1, input.getListOfIndependentVariable().size());
+			assertEquals(example, resource.getDom().getModelDefinition().getListOfStructuralModel().size(), 
+					input.getListOfStructuralModel().size());
+			IndependentVariable time = input.getListOfIndependentVariable().get(0);
+			StructuralModel sm = input.getListOfStructuralModel().get(0);
+			assertEquals(example, domTime.getSymbId(), time.getSymbId());
+			assertEquals(example, domSM.getBlkId(), sm.getBlkId());
+			assertEquals(example, domSM.getListOfStructuralModelElements().size(), sm.getListOfStructuralModelElements().size());
+			assertEquals(example, domTime.getUnmarshalVersion(), time.getUnmarshalVersion());
+			assertEquals(example, domSM.getUnmarshalVersion(), sm.getUnmarshalVersion());
+			for(int i = 0; i < sm.getListOfStructuralModelElements().size(); i++){
+				assertEquals(example, domSM.getListOfStructuralModelElements().get(i).getUnmarshalVersion(), 
+						sm.getListOfStructuralModelElements().get(i).getUnmarshalVersion());
+			}
+			
+			MacroOutput expected = new Translator().translate(domSM, domSM.getUnmarshalVersion(), domTime);
+			MacroOutput output = new Translator().translate(sm, input.getVersion(), time);
+			assertEquals(example, toString(expected), toString(output));
+			assertEquals(example, expected.getListOfInput().size(), output.getListOfInput().size());
+		}
+	}
+	
+	private static String toString(MacroOutput mo){
+		StringBuilder sb = new StringBuilder();
+		for(PharmMLElement el : mo.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				sb.append(Utils.variableToString((DerivativeVariable) el)).append("\n");
+			} else if(el instanceof VariableDefinition){
+				sb.append(Utils.variableToString((VariableDefinition) el)).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,161 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import java.util.List;
+
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.Scalar;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.AbsorptionMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.CompartmentMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.EffectMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.EliminationMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.IVMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.MacroValue;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacroList;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PeripheralMacro;
+
+/**
+ * Structural models built in memory for the tests of the optional passes of the translator.
+ */
+public class MacroModels {
+	
+	public static final String PARAMETER_BLOCK = "pm1";
+	public static final String COVARIATE_BLOCK = "cm1";
+	
+	/**
+	 * Builds a model with a central compartment, a peripheral compartment, a transit and a zero-order absorption,
+	 * an IV administration, a linear elimination and an effect compartment. The model also defines a turnover
+	 * ODE and variables whose expressions can be simplified or share subexpressions.
+	 */
+	public static StructuralModel pkModel(){
+		StructuralModel sm = new StructuralModel();
+		sm.setBlkId("sm1");
+		List<PharmMLElement> elements = sm.getListOfStructuralModelElements();
+		elements.add(variable("Cc", null));
+		elements.add(variable("Ac", null));
+		elements.add(derivative("PCA", binop(Binoperator.MINUS,
+				binop(Binoperator.TIMES, pm("kin"), ref("Cc")),
+				binop(Binoperator.TIMES, pm("kout"), ref("PCA")))));
+		
+		PKMacroList macros = new PKMacroList();
+		macros.getListOfMacro().add(macro(new CompartmentMacro(), "cmt", new IntValue(1), "amount", ref("Ac"),
+				"volume", pm("V"), "concentration", ref("Cc")));
+		macros.getListOfMacro().add(macro(new PeripheralMacro(), "k12", pm("k12"), "k21", pm("k21"),
+				"amount", ref("Ap")));
+		macros.getListOfMacro().add(macro(new AbsorptionMacro(), "adm", new IntValue(1), "cmt", new IntValue(1),
+				"ka", pm("ka"), "Ktr", pm("Ktr"), "Mtt", pm("Mtt")));
+		macros.getListOfMacro().add(macro(new AbsorptionMacro(), "adm", new IntValue(2), "cmt", new IntValue(1),
+				"Tk0", pm("Tk0"), "Tlag", pm("Tlag")));
+		macros.getListOfMacro().add(macro(new IVMacro(), "adm", new IntValue(3), "cmt", new IntValue(1)));
+		macros.getListOfMacro().add(macro(new EliminationMacro(), "cmt", new IntValue(1),
+				"V", pm("V"), "CL", pm("CL")));
+		macros.getListOfMacro().add(macro(new EffectMacro(), "cmt", new IntValue(1), "ke0", pm("ke0"),
+				"concentration", ref("Ce")));
+		elements.add(macros);
+		
+		// E = Emax*Cc/(EC50 + Cc) + Emax*Cc/(EC50 + Cc)*(2*3)
+		Operand effect = binop(Binoperator.DIVIDE, binop(Binoperator.TIMES, pm("Emax"), ref("Cc")),
+				binop(Binoperator.PLUS, pm("EC50"), ref("Cc")));
+		Operand sameEffect = binop(Binoperator.DIVIDE, binop(Binoperator.TIMES, pm("Emax"), ref("Cc")),
+				binop(Binoperator.PLUS, pm("EC50"), ref("Cc")));
+		elements.add(variable("E", binop(Binoperator.PLUS, effect,
+				binop(Binoperator.TIMES, sameEffect, binop(Binoperator.TIMES, new IntValue(2), new IntValue(3))))));
+		// R = log(exp(-(-Cc)))*1 + 0 - -(Ce)
+		elements.add(variable("R", binop(Binoperator.MINUS,
+				binop(Binoperator.PLUS,
+						binop(Binoperator.TIMES,
+								uniop(Unioperator.LOG, uniop(Unioperator.EXP,
+										uniop(Unioperator.MINUS, uniop(Unioperator.MINUS, ref("Cc"))))),
+								new IntValue(1)),
+						new RealValue(0)),
+				uniop(Unioperator.MINUS, ref("Ce")))));
+		return sm;
+	}
+	
+	public static IndependentVariable time(){
+		IndependentVariable t = new IndependentVariable();
+		t.setSymbId("T");
+		return t;
+	}
+	
+	/**
+	 * Sets the values of a macro, given as pairs of argument name and value.
+	 */
+	public static <T extends PKMacro> T macro(T macro, Object... arguments){
+		for(int i = 0; i < arguments.length; i += 2){
+			MacroValue value = new MacroValue();
+			value.setArgument((String) arguments[i]);
+			value.setAssign(rhs((Operand) arguments[i + 1]));
+			macro.getListOfValue().add(value);
+		}
+		return macro;
+	}
+	
+	public static VariableDefinition variable(String symbId, Operand assign){
+		VariableDefinition v = new VariableDefinition(symbId, SymbolType.REAL);
+		if(assign != null){
+			v.setAssign(rhs(assign));
+		}
+		return v;
+	}
+	
+	public static DerivativeVariable derivative(String symbId, Operand assign){
+		DerivativeVariable dv = new DerivativeVariable(symbId, SymbolType.REAL);
+		dv.setAssign(rhs(assign));
+		return dv;
+	}
+	
+	public static Rhs rhs(Operand content){
+		if(content instanceof Binop){
+			return new Rhs((Binop) content);
+		} else if(content instanceof Uniop){
+			return new Rhs((Uniop) content);
+		} else if(content instanceof SymbolRef){
+			return new Rhs((SymbolRef) content);
+		} else {
+			return new Rhs((Scalar) content);
+		}
+	}
+	
+	public static Binop binop(Binoperator op, Operand operand1, Operand operand2){
+		return new Binop(op, operand1, operand2);
+	}
+	
+	public static Uniop uniop(Unioperator op, ExpressionValue value){
+		return new Uniop(op, value);
+	}
+	
+	public static SymbolRef ref(String symbId){
+		return new SymbolRef(symbId);
+	}
+	
+	/**
+	 * Gets a reference to a parameter of the parameter model.
+	 */
+	public static SymbolRef pm(String symbId){
+		return new SymbolRef(symbId, PARAMETER_BLOCK);
+	}
+	
+	/**
+	 * Gets a reference to a covariate of the covariate model.
+	 */
+	public static SymbolRef covariate(String symbId){
+		return new SymbolRef(symbId, COVARIATE_BLOCK);
+	}
+
+}
@@ -0,0 +1,127 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Symbol;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputBinaryFormat;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputView;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+
+public class MacroOutputBinaryFormatTest {
+	
+	private static final String[] EXAMPLES = {
+		"examples/PKmacros_advan1.xml",
+		"examples/PKmacros_advan4.xml",
+		"examples/PKmacros_example13.xml",
+		"examples/PKmacros_exampleC4.xml",
+		"examples/UseCase7.xml"
+	};
+	
+	private ILibPharmML testInstance;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+	}
+	
+	@Test
+	public void testRoundTrip() throws Exception {
+		for(String example : EXAMPLES){
+			MacroOutput output = translate(example);
+			
+			byte[] encoded = MacroOutputBinaryFormat.encode(output);
+			ByteBuffer buffer = ByteBuffer.wrap(encoded);
+			MacroOutput read = MacroOutputBinaryFormat.decode(buffer);
+			
+			assertEquals(example, encoded.length, buffer.position());
+			assertEquals(example, output.getStructuralModel().getBlkId(), read.getStructuralModel().getBlkId());
+			assertEquals(example, toString(output), toString(read));
+			assertEquals(example, output.getListOfInput().size(), read.getListOfInput().size());
+			for(int i = 0; i < output.getListOfInput().size(); i++){
+				Input expected = output.getListOfInput().get(i);
+				Input actual = read.getListOfInput().get(i);
+				assertEquals(example, expected.getNumber(), actual.getNumber());
+				assertEquals(example, expected.getType(), actual.getType());
+				assertEquals(example, expected.getTarget().getSymbId(), actual.getTarget().getSymbId());
+			}
+			assertArrayEquals(example, encoded, MacroOutputBinaryFormat.encode(read));
+		}
+	}
+	
+	@Test
+	public void testView() throws Exception {
+		for(String example : EXAMPLES){
+			MacroOutput output = translate(example);
+			MacroOutputView view = MacroOutputBinaryFormat.view(ByteBuffer.wrap(MacroOutputBinaryFormat.encode(output)));
+			
+			assertEquals(example, output.getStructuralModel().getBlkId(), view.getBlkId());
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < view.getElementCount(); i++){
+				if(view.getElementType(i) == MacroOutputView.ElementType.DERIVATIVE_VARIABLE){
+					sb.append(view.getOrder(i)).append(" ");
+				}
+				sb.append(view.getSymbId(i)).append("\n");
+			}
+			assertEquals(example, toString(output), sb.toString());
+			assertEquals(example, output.getListOfInput().size(), view.getInputCount());
+			for(int i = 0; i < view.getInputCount(); i++){
+				Input expected = output.getListOfInput().get(i);
+				assertEquals(example, expected.getNumber(), view.getInputNumber(i));
+				assertEquals(example, expected.getType(), view.getInputType(i));
+				assertEquals(example, expected.getTarget().getSymbId(), view.getInputTarget(i));
+				assertEquals(example, expected.getAdm() == null, view.getInputAdm(i) == -1);
+			}
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testTruncatedBuffer() throws Exception {
+		byte[] encoded = MacroOutputBinaryFormat.encode(translate(EXAMPLES[0]));
+		MacroOutputBinaryFormat.view(ByteBuffer.wrap(Arrays.copyOf(encoded, encoded.length - 1)));
+	}
+	
+	private MacroOutput translate(String example) throws Exception {
+		IPharmMLResource resource = testInstance.createDomFromResource(new FileInputStream(example));
+		StructuralModel sm = resource.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+		IndependentVariable time = resource.getDom().getListOfIndependentVariable().get(0);
+		return new Translator().translate(sm, PharmMLVersion.DEFAULT, time);
+	}
+	
+	private static String toString(MacroOutput mo){
+		StringBuilder sb = new StringBuilder();
+		for(PharmMLElement el : mo.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				sb.append(((DerivativeVariable) el).getOrder()).append(" ").append(((DerivativeVariable) el).getSymbId()).append("\n");
+			} else if(el instanceof Symbol){
+				sb.append(((Symbol) el).getSymbId()).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,131 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Symbol;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputJsonReader;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputJsonWriter;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+
+public class MacroOutputJsonTest {
+	
+	private static final String[] EXAMPLES = {
+		"examples/PKmacros_advan1.xml",
+		"examples/PKmacros_advan4.xml",
+		"examples/PKmacros_example13.xml",
+		"examples/PKmacros_exampleC4.xml",
+		"examples/UseCase7.xml"
+	};
+	
+	private ILibPharmML testInstance;
+	private MacroOutputJsonWriter writer;
+	private MacroOutputJsonReader reader;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.writer = new MacroOutputJsonWriter();
+		this.reader = new MacroOutputJsonReader();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+		this.writer = null;
+		this.reader = null;
+	}
+	
+	@Test
+	public void testRoundTrip() throws Exception {
+		for(String example : EXAMPLES){
+			IPharmMLResource resource = testInstance.createDomFromResource(new FileInputStream(example));
+			StructuralModel sm = resource.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+			IndependentVariable time = resource.getDom().getListOfIndependentVariable().get(0);
+			MacroOutput output = new Translator().translate(sm, PharmMLVersion.DEFAULT, time);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writer.write(output, out);
+			MacroOutput read = reader.read(new ByteArrayInputStream(out.toByteArray()));
+			
+			assertEquals(example, output.getStructuralModel().getBlkId(), read.getStructuralModel().getBlkId());
+			assertEquals(example, toString(output), toString(read));
+			assertEquals(example, output.getListOfInput().size(), read.getListOfInput().size());
+			for(int i = 0; i < output.getListOfInput().size(); i++){
+				Input expected = output.getListOfInput().get(i);
+				Input actual = read.getListOfInput().get(i);
+				assertEquals(example, expected.getNumber(), actual.getNumber());
+				assertEquals(example, expected.getType(), actual.getType());
+				assertEquals(example, expected.getTarget().getSymbId(), actual.getTarget().getSymbId());
+			}
+			
+			ByteArrayOutputStream again = new ByteArrayOutputStream();
+			writer.write(read, again);
+			assertEquals(example, out.toString("UTF-8"), again.toString("UTF-8"));
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testInvalidDocument() throws Exception {
+		reader.read(new StringReader("{\"structuralModel\":{\"elements\":[{\"element\":\"Variable\",\"symbId\":\"x\"}]},\"inputs\":[{\"input\":1,\"type\":\"IV\",\"target\":\"y\"}]}"));
+	}
+	
+	@Test
+	public void testMalformedDocuments() throws Exception {
+		String[] documents = {
+			"[1 2]",
+			"{\"a\" 1}",
+			"{\"a\":1 \"b\":2}",
+			"[1,,2]",
+			"[1,]",
+			"{\"a\":1,}",
+			"{\"a\"::1}",
+			"{\"a\",1}",
+			"[1:2]",
+			"{1:2}",
+			"[1] 2"
+		};
+		for(String document : documents){
+			try {
+				reader.read(new StringReader(document));
+				fail(document);
+			} catch (IOException e) {
+				assertTrue(document, e.getMessage().startsWith("Unexpected"));
+			}
+		}
+	}
+	
+	private static String toString(MacroOutput mo){
+		StringBuilder sb = new StringBuilder();
+		for(PharmMLElement el : mo.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				sb.append(((DerivativeVariable) el).getOrder()).append(" ").append(((DerivativeVariable) el).getSymbId()).append("\n");
+			} else if(el instanceof Symbol){
+				sb.append(((Symbol) el).getSymbId()).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+}
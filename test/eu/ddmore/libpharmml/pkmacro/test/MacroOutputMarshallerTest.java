@@ -0,0 +1,90 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputMarshaller;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+
+public class MacroOutputMarshallerTest {
+	
+	private static final String[] EXAMPLES = {
+		"examples/PKmacros_advan1.xml",
+		"examples/PKmacros_advan4.xml",
+		"examples/PKmacros_example13.xml",
+		"examples/UseCase7.xml"
+	};
+	
+	private ILibPharmML testInstance;
+	private ExecutorService executor;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.executor = Executors.newFixedThreadPool(4);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.executor.shutdown();
+		this.executor = null;
+		this.testInstance = null;
+	}
+	
+	@Test
+	public void testConcurrentMarshalling() throws Exception {
+		final MacroOutputMarshaller marshaller = new MacroOutputMarshaller();
+		List<MacroOutput> outputs = new ArrayList<MacroOutput>();
+		List<String> expected = new ArrayList<String>();
+		for(String example : EXAMPLES){
+			IPharmMLResource resource = testInstance.createDomFromResource(new FileInputStream(example));
+			StructuralModel sm = resource.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+			IndependentVariable time = resource.getDom().getListOfIndependentVariable().get(0);
+			MacroOutput output = new Translator().translate(sm, PharmMLVersion.DEFAULT, time);
+			outputs.add(output);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			marshaller.marshal(output, out);
+			String xml = out.toString("UTF-8");
+			assertTrue(example, xml.contains("StructuralModel"));
+			expected.add(xml);
+		}
+		
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for(int i = 0; i < 10; i++){
+			for(final MacroOutput output : outputs){
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						marshaller.marshal(output, out);
+						return out.toString("UTF-8");
+					}
+				}));
+			}
+		}
+		for(int i = 0; i < futures.size(); i++){
+			assertEquals(EXAMPLES[i % EXAMPLES.length], expected.get(i % EXAMPLES.length), futures.get(i).get());
+		}
+	}
+
+}
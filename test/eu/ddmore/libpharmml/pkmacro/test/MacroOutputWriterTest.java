@@ -0,0 +1,116 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Symbol;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.NamespaceFilter;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutputWriter;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class MacroOutputWriterTest {
+	
+	private static final String[] EXAMPLES = {
+		"examples/PKmacros_advan4.xml",
+		"examples/PKmacros_example13.xml",
+		"examples/UseCase7.xml"
+	};
+	
+	private ILibPharmML testInstance;
+	private JAXBContext context;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.context = JAXBContext.newInstance("eu.ddmore.libpharmml.dom:eu.ddmore.libpharmml.dom.uncertml");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+		this.context = null;
+	}
+	
+	@Test
+	public void testWrite() throws Exception {
+		for(String example : EXAMPLES){
+			IPharmMLResource resource = testInstance.createDomFromResource(new FileInputStream(example));
+			StructuralModel sm = resource.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+			IndependentVariable time = resource.getDom().getListOfIndependentVariable().get(0);
+			MacroOutput output = new Translator().translate(sm, PharmMLVersion.DEFAULT, time);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new MacroOutputWriter().write(output, out);
+			
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(true);
+			Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+			
+			Element xmlSM = (Element) doc.getElementsByTagNameNS(NamespaceFilter.NS_DEFAULT_MDEF, "StructuralModel").item(0);
+			assertEquals(example, output.getStructuralModel().getBlkId(), xmlSM.getAttribute("blkId"));
+			
+			// Same variables once read back with JAXB
+			StructuralModel written = context.createUnmarshaller().unmarshal(xmlSM, StructuralModel.class).getValue();
+			assertEquals(example, toString(output.getStructuralModel()), toString(written));
+			
+			NodeList children = xmlSM.getChildNodes();
+			int i = 0;
+			for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+				while(children.item(i).getNodeType() != Node.ELEMENT_NODE){
+					i++;
+				}
+				assertEquals(example, ((Symbol) el).getSymbId(), ((Element) children.item(i++)).getAttribute("symbId"));
+			}
+			
+			NodeList inputs = doc.getElementsByTagName("Input");
+			assertEquals(example, output.getListOfInput().size(), inputs.getLength());
+			for(int j = 0; j < inputs.getLength(); j++){
+				Input input = output.getListOfInput().get(j);
+				Element xmlInput = (Element) inputs.item(j);
+				assertEquals(example, String.valueOf(input.getNumber()), xmlInput.getAttribute("number"));
+				assertEquals(example, input.getTarget().getSymbId(), xmlInput.getAttribute("target"));
+			}
+		}
+	}
+	
+	private static String toString(StructuralModel sm){
+		StringBuilder sb = new StringBuilder();
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				sb.append(Utils.variableToString((DerivativeVariable) el)).append("\n");
+			} else if(el instanceof VariableDefinition){
+				sb.append(Utils.variableToString((VariableDefinition) el)).append("\n");
+			} else {
+				sb.append(el.getClass().getSimpleName()).append(" ").append(((Symbol) el).getSymbId()).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+}
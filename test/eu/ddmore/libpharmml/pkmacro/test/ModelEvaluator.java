@@ -0,0 +1,231 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.bind.JAXBElement;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.FalseBoolean;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.TrueBoolean;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+
+/**
+ * Numerical evaluation of a translated structural model, used to check that the optional passes of the
+ * translator don't change the meaning of the equations.
+ *
+ * <p>The states, the time, the references to the other blocks and the variables without assignment are given
+ * random values between 0.5 and 2, drawn from the seed and their name, so two models evaluated with the same
+ * seed see the same values. The other variables and the parameters of the model are computed from their
+ * assignment, in any order.
+ */
+public class ModelEvaluator {
+	
+	private final long seed;
+	private final Set<String> localBlkIds = new HashSet<String>();
+	private final Map<String, PharmMLElement> symbols = new HashMap<String, PharmMLElement>();
+	private final Map<String, Double> values = new HashMap<String, Double>();
+	private final Set<String> pending = new HashSet<String>();
+	
+	public ModelEvaluator(StructuralModel sm, long seed, String... localBlkIds) {
+		this.seed = seed;
+		this.localBlkIds.add(sm.getBlkId());
+		for(String blkId : localBlkIds){
+			this.localBlkIds.add(blkId);
+		}
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				symbols.put(((CommonVariableDefinition) el).getSymbId(), el);
+			} else if(el instanceof CommonParameter){
+				symbols.put(((CommonParameter) el).getSymbId(), el);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the value of a symbol of the model, or of an external symbol.
+	 */
+	public double value(String symbId){
+		Double value = values.get(symbId);
+		if(value != null){
+			return value;
+		}
+		PharmMLElement el = symbols.get(symbId);
+		Rhs assign = null;
+		if(el instanceof CommonVariableDefinition && !(el instanceof DerivativeVariable)){
+			assign = ((CommonVariableDefinition) el).getAssign();
+		} else if(el instanceof CommonParameter){
+			assign = ((CommonParameter) el).getAssign();
+		}
+		if(assign == null){
+			value = random(symbId);
+		} else {
+			if(!pending.add(symbId)){
+				throw new AssertionError("Circular definition of "+symbId);
+			}
+			value = evaluate(assign);
+			pending.remove(symbId);
+		}
+		values.put(symbId, value);
+		return value;
+	}
+	
+	/**
+	 * Gets the value of the right-hand side of a derivative variable.
+	 */
+	public double derivative(String symbId){
+		PharmMLElement el = symbols.get(symbId);
+		if(!(el instanceof DerivativeVariable)){
+			throw new AssertionError("No derivative variable "+symbId);
+		}
+		return evaluate(((DerivativeVariable) el).getAssign());
+	}
+	
+	public double evaluate(Object node){
+		if(node == null){
+			return 0;
+		} else if(node instanceof Rhs){
+			return evaluate(((Rhs) node).getContent());
+		} else if(node instanceof JAXBElement){
+			return evaluate(((JAXBElement<?>) node).getValue());
+		} else if(node instanceof IntValue){
+			return ((IntValue) node).getValue().doubleValue();
+		} else if(node instanceof RealValue){
+			return ((RealValue) node).getValue();
+		} else if(node instanceof TrueBoolean){
+			return 1;
+		} else if(node instanceof FalseBoolean){
+			return 0;
+		} else if(node instanceof SymbolRef){
+			SymbolRef ref = (SymbolRef) node;
+			if(ref.getBlkIdRef() == null || localBlkIds.contains(ref.getBlkIdRef())){
+				return value(ref.getSymbIdRef());
+			}
+			return random(ref.getBlkIdRef()+"."+ref.getSymbIdRef());
+		} else if(node instanceof CommonVariableDefinition){
+			return value(((CommonVariableDefinition) node).getSymbId());
+		} else if(node instanceof Binop){
+			return binop((Binop) node);
+		} else if(node instanceof Uniop){
+			return uniop((Uniop) node);
+		} else if(node instanceof Piecewise){
+			for(Piece piece : ((Piecewise) node).getListOfPiece()){
+				Condition condition = piece.getCondition();
+				if(condition.getOtherwise() != null || evaluate(condition.getLogicBinop()) != 0){
+					return evaluate(piece.getValue());
+				}
+			}
+			return Double.NaN;
+		} else if(node instanceof LogicBinOp){
+			return logicBinop((LogicBinOp) node) ? 1 : 0;
+		} else {
+			throw new AssertionError("Unsupported node "+node.getClass().getSimpleName());
+		}
+	}
+	
+	private double binop(Binop binop){
+		double a = evaluate(binop.getOperand1());
+		double b = evaluate(binop.getOperand2());
+		switch (binop.getOperator()) {
+		case PLUS: return a + b;
+		case MINUS: return a - b;
+		case TIMES: return a * b;
+		case DIVIDE: return a / b;
+		case POWER: return Math.pow(a, b);
+		case MIN: return Math.min(a, b);
+		case MAX: return Math.max(a, b);
+		case ROOT: return Math.pow(b, 1 / a);
+		case LOGX: return Math.log(b) / Math.log(a);
+		case REM: return a % b;
+		case ATAN2: return Math.atan2(a, b);
+		default: throw new AssertionError("Unsupported operator "+binop.getOperator());
+		}
+	}
+	
+	private double uniop(Uniop uniop){
+		double x = evaluate(uniop.getValue());
+		switch (uniop.getOperator()) {
+		case MINUS: return -x;
+		case ABS: return Math.abs(x);
+		case EXP: return Math.exp(x);
+		case LOG: return Math.log(x);
+		case LOG10: return Math.log10(x);
+		case SQRT: return Math.sqrt(x);
+		case SIN: return Math.sin(x);
+		case COS: return Math.cos(x);
+		case TAN: return Math.tan(x);
+		case FACTORIAL: return Math.exp(logGamma(x + 1));
+		case FACTLN: return logGamma(x + 1);
+		case GAMMA: return Math.exp(logGamma(x));
+		case GAMMALN: return logGamma(x);
+		case FLOOR: return Math.floor(x);
+		case CEILING: return Math.ceil(x);
+		case SIGN: return Math.signum(x);
+		default: throw new AssertionError("Unsupported operator "+uniop.getOperator());
+		}
+	}
+	
+	private boolean logicBinop(LogicBinOp op){
+		List<JAXBElement<?>> args = op.getContent();
+		double a = evaluate(args.get(0));
+		double b = evaluate(args.get(1));
+		String name = op.getOp();
+		if(name.equals("lt")){
+			return a < b;
+		} else if(name.equals("leq")){
+			return a <= b;
+		} else if(name.equals("gt")){
+			return a > b;
+		} else if(name.equals("geq")){
+			return a >= b;
+		} else if(name.equals("eq")){
+			return a == b;
+		} else if(name.equals("neq")){
+			return a != b;
+		} else if(name.equals("and")){
+			return a != 0 && b != 0;
+		} else if(name.equals("or")){
+			return a != 0 || b != 0;
+		} else {
+			throw new AssertionError("Unsupported operator "+name);
+		}
+	}
+	
+	private double random(String name){
+		return 0.5 + 1.5 * new Random(seed * 31 + name.hashCode()).nextDouble();
+	}
+	
+	/**
+	 * Lanczos approximation of the logarithm of the gamma function, for positive values.
+	 */
+	private static double logGamma(double x){
+		double[] c = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+				-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double ser = 1.000000000190015;
+		for(double coefficient : c){
+			ser += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * ser / x);
+	}
+
+}
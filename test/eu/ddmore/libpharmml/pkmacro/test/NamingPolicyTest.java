@@ -0,0 +1,110 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.pkmacro.translation.NamingPolicy;
+
+public class NamingPolicyTest {
+	
+	@Test
+	public void testValidPrefixes() throws Exception {
+		NamingPolicy naming = NamingPolicy.builder()
+				.depotPrefix("DEPOT")
+				.absorptionPrefix("abs")
+				.centralPrefix("C")
+				.peripheralPrefix("Periph")
+				.transitPrefix("TR")
+				.logKtrPrefix("LK")
+				.logGammaPrefix("LG")
+				.subexpressionPrefix("tmp")
+				.hoistedParameterPrefix("IP")
+				.defaultTimeSymbol("T_1")
+				.build();
+		assertEquals("DEPOT", naming.getDepotPrefix());
+		assertEquals("abs", naming.getAbsorptionPrefix());
+		assertEquals("C", naming.getCentralPrefix());
+		assertEquals("Periph", naming.getPeripheralPrefix());
+		assertEquals("TR", naming.getTransitPrefix());
+		assertEquals("LK", naming.getLogKtrPrefix());
+		assertEquals("LG", naming.getLogGammaPrefix());
+		assertEquals("tmp", naming.getSubexpressionPrefix());
+		assertEquals("IP", naming.getHoistedParameterPrefix());
+		assertEquals("Any non empty time symbol", "T_1", naming.getDefaultTimeSymbol());
+		assertEquals("Copied", "DEPOT", naming.toBuilder().build().getDepotPrefix());
+		assertEquals("Copied", "IP", naming.toBuilder().build().getHoistedParameterPrefix());
+	}
+	
+	@Test
+	public void testInvalidPrefixes() throws Exception {
+		String[] invalids = {null, "", "Depot_", "A1", "Ad 1", "_Ad", "D\u00e9p\u00f4t"};
+		for(String invalid : invalids){
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.depotPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.absorptionPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.centralPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.peripheralPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.transitPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.logKtrPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.logGammaPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.subexpressionPrefix(prefix);
+				}
+			});
+			assertRejected(invalid, new Setter() {
+				public void set(NamingPolicy.Builder builder, String prefix) {
+					builder.hoistedParameterPrefix(prefix);
+				}
+			});
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyTimeSymbol() throws Exception {
+		NamingPolicy.builder().defaultTimeSymbol("");
+	}
+	
+	private static void assertRejected(String prefix, Setter setter){
+		try {
+			setter.set(NamingPolicy.builder(), prefix);
+			fail("Prefix \""+prefix+"\" accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	private interface Setter {
+		void set(NamingPolicy.Builder builder, String prefix);
+	}
+
+}
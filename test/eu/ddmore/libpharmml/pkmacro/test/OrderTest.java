@@ -7,6 +7,12 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.Before;
@@ -17,6 +23,7 @@ import eu.ddmore.libpharmml.IPharmMLResource;
 import eu.ddmore.libpharmml.PharmMlFactory;
 import eu.ddmore.libpharmml.dom.IndependentVariable;
 import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
 import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
 import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
 import eu.ddmore.libpharmml.dom.modeldefn.ModelDefinition;
@@ -96,6 +103,24 @@ public class OrderTest {
 		
 	}
 	
+	@Test
+	public void testKeepOrderUseCase3() throws Exception{
+		StructuralModel sm = fetchStructuralModel(inputModel);
+		translator.setParameter(Translator.KEEP_ORDER, true);
+		StructuralModel tl_sm = translator.translate(sm, PharmMLVersion.DEFAULT, time).getStructuralModel();
+		
+		// Variables created or not fetched from the macros first, last stored first, then the variables of the macros.
+		List<String> symbIds = new ArrayList<String>();
+		Set<PharmMLElement> elements = Collections.newSetFromMap(new IdentityHashMap<PharmMLElement, Boolean>());
+		for(PharmMLElement el : tl_sm.getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				assertTrue("No duplicate", elements.add(el));
+				symbIds.add(((CommonVariableDefinition) el).getSymbId());
+			}
+		}
+		assertEquals(Arrays.asList("PCA", "PD", "DPCA", "CC", "RPCA", "KPCA", "Ad1", "CENTRAL"), symbIds);
+	}
+	
 	private StructuralModel fetchStructuralModel(IPharmMLResource res){
 		PharmML dom = res.getDom();
 		time = dom.getListOfIndependentVariable().get(0);
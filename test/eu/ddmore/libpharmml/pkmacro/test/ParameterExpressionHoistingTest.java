@@ -0,0 +1,176 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static eu.ddmore.libpharmml.pkmacro.test.AssertUtil.assertEquivalent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.NamingPolicy;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class ParameterExpressionHoistingTest {
+	
+	private static final String PREFIX = "DP";
+	
+	private final Translator translator = new Translator(TranslatorOptions.builder()
+			.hoistParameterExpressions(true)
+			.parameterBlockIds(MacroModels.PARAMETER_BLOCK)
+			.preserveInput(true)
+			.build());
+	
+	@Test
+	public void testSameEquations() throws Exception {
+		MacroOutput plain = new Translator(TranslatorOptions.builder().preserveInput(true).build())
+				.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquivalent(plain, output);
+	}
+	
+	@Test
+	public void testHoistedExpressions() throws Exception {
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		Map<String, String> symbols = toStrings(output);
+		assertEquals("DP1 = [pm1]CL / [pm1]V", symbols.get("DP1"));
+		assertEquals("DP2 = LOG([pm1]Ktr)", symbols.get("DP2"));
+		assertEquals("DP3 = LOG(FACTORIAL(n1))", symbols.get("DP3"));
+		assertEquals("[1] dAc/dt = - [pm1]k12 x Ac + [pm1]k21 x Ap1 + [pm1]ka x Aa3 + ZeroOrderRate4 - DP1 x Ac",
+				symbols.get("Ac"));
+		assertEquals("[4] dAa3/dt = EXP(LOG(F1 x Dose1) + DP2 + n1 x LOG([pm1]Ktr x T - t_Dose1) "
+				+ "- [pm1]Ktr x T - t_Dose1 - DP3) - [pm1]ka x Aa3", symbols.get("Aa3"));
+		assertFalse("Nothing else hoisted", symbols.containsKey("DP4"));
+	}
+	
+	@Test
+	public void testNamingPolicy() throws Exception {
+		Translator translator = new Translator(TranslatorOptions.builder()
+				.hoistParameterExpressions(true)
+				.parameterBlockIds(MacroModels.PARAMETER_BLOCK)
+				.namingPolicy(NamingPolicy.builder().hoistedParameterPrefix("HP").build())
+				.preserveInput(true)
+				.build());
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		Map<String, String> symbols = toStrings(output);
+		assertEquals("HP1 = [pm1]CL / [pm1]V", symbols.get("HP1"));
+		assertFalse("Default prefix not used", symbols.containsKey("DP1"));
+	}
+	
+	@Test
+	public void testParametersIndependentOfVariables() throws Exception {
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		
+		Set<String> varying = new HashSet<String>();
+		varying.add(MacroModels.time().getSymbId());
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				varying.add(((CommonVariableDefinition) el).getSymbId());
+			}
+		}
+		int count = 0;
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof IndividualParameter && ((IndividualParameter) el).getSymbId().startsWith(PREFIX)){
+				IndividualParameter parameter = (IndividualParameter) el;
+				assertNotNull(parameter.getAssign());
+				List<SymbolRef> refs = new ArrayList<SymbolRef>();
+				collectReferences(parameter.getAssign(), refs);
+				for(SymbolRef ref : refs){
+					assertFalse(parameter.getSymbId()+" depends on "+ref.getSymbIdRef(),
+							ref.getBlkIdRef() == null && varying.contains(ref.getSymbIdRef()));
+				}
+				count++;
+			}
+		}
+		assertTrue("Parameters generated", count > 0);
+	}
+	
+	@Test
+	public void testCovariateNotHoisted() throws Exception {
+		// CLi = CL*(WT/70), WT being a covariate which may vary with time
+		StructuralModel sm = MacroModels.pkModel();
+		sm.getListOfStructuralModelElements().add(MacroModels.variable("CLi", MacroModels.binop(Binoperator.TIMES,
+				MacroModels.pm("CL"),
+				MacroModels.binop(Binoperator.DIVIDE, MacroModels.covariate("WT"), new IntValue(70)))));
+		MacroOutput output = translator.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		
+		Map<String, String> symbols = toStrings(output);
+		assertEquals("CLi = [pm1]CL x [cm1]WT / 70", symbols.get("CLi"));
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof IndividualParameter && ((IndividualParameter) el).getSymbId().startsWith(PREFIX)){
+				List<SymbolRef> refs = new ArrayList<SymbolRef>();
+				collectReferences(((IndividualParameter) el).getAssign(), refs);
+				for(SymbolRef ref : refs){
+					assertFalse(((IndividualParameter) el).getSymbId()+" depends on a covariate",
+							MacroModels.COVARIATE_BLOCK.equals(ref.getBlkIdRef()));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testNoParameterBlock() throws Exception {
+		Translator translator = new Translator(TranslatorOptions.builder()
+				.hoistParameterExpressions(true)
+				.preserveInput(true)
+				.build());
+		MacroOutput plain = new Translator(TranslatorOptions.builder().preserveInput(true).build())
+				.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquals("Symbols of unknown blocks are varying", toStrings(plain), toStrings(output));
+	}
+	
+	private static Map<String, String> toStrings(MacroOutput output){
+		Map<String, String> symbols = new HashMap<String, String>();
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				symbols.put(((DerivativeVariable) el).getSymbId(), Utils.variableToString((DerivativeVariable) el));
+			} else if(el instanceof VariableDefinition){
+				symbols.put(((VariableDefinition) el).getSymbId(), Utils.variableToString((VariableDefinition) el));
+			} else if(el instanceof IndividualParameter){
+				IndividualParameter parameter = (IndividualParameter) el;
+				symbols.put(parameter.getSymbId(), parameter.getSymbId()+" = "
+						+Utils.operandToString((Operand) parameter.getAssign().getContent()));
+			}
+		}
+		return symbols;
+	}
+	
+	private static void collectReferences(Object node, List<SymbolRef> refs){
+		if(node instanceof Rhs){
+			collectReferences(((Rhs) node).getContent(), refs);
+		} else if(node instanceof Binop){
+			collectReferences(((Binop) node).getOperand1(), refs);
+			collectReferences(((Binop) node).getOperand2(), refs);
+		} else if(node instanceof Uniop){
+			collectReferences(((Uniop) node).getValue(), refs);
+		} else if(node instanceof SymbolRef){
+			refs.add((SymbolRef) node);
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static eu.ddmore.libpharmml.pkmacro.test.AssertUtil.assertEquivalent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.NamingPolicy;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class SubexpressionEliminationTest {
+	
+	private static final String PREFIX = "CSE";
+	
+	private final Translator translator = new Translator(TranslatorOptions.builder()
+			.eliminateCommonSubexpressions(true)
+			.preserveInput(true)
+			.build());
+	
+	@Test
+	public void testSameEquations() throws Exception {
+		MacroOutput plain = new Translator(TranslatorOptions.builder().preserveInput(true).build())
+				.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquivalent(plain, output);
+	}
+	
+	@Test
+	public void testSharedExpressions() throws Exception {
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		Map<String, String> variables = toStrings(output);
+		assertEquals("CSE1 = [pm1]Emax x Cc / [pm1]EC50 + Cc", variables.get("CSE1"));
+		assertEquals("E = CSE1 + CSE1 x 2 x 3", variables.get("E"));
+		assertEquals("CSE2 = [pm1]k12 x Ac", variables.get("CSE2"));
+		assertEquals("CSE3 = [pm1]k21 x Ap1", variables.get("CSE3"));
+		assertEquals("[2] dAp1/dt = CSE2 - CSE3", variables.get("Ap1"));
+	}
+	
+	@Test
+	public void testNamingPolicy() throws Exception {
+		Translator translator = new Translator(TranslatorOptions.builder()
+				.eliminateCommonSubexpressions(true)
+				.namingPolicy(NamingPolicy.builder().subexpressionPrefix("TMP").build())
+				.preserveInput(true)
+				.build());
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		Map<String, String> variables = toStrings(output);
+		assertEquals("TMP1 = [pm1]Emax x Cc / [pm1]EC50 + Cc", variables.get("TMP1"));
+		assertEquals("E = TMP1 + TMP1 x 2 x 3", variables.get("E"));
+		assertFalse("Default prefix not used", variables.containsKey("CSE1"));
+	}
+	
+	@Test
+	public void testTemporariesDefinedBeforeUse() throws Exception {
+		MacroOutput output = translator.translate(MacroModels.pkModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		
+		Set<String> defined = new HashSet<String>();
+		Map<String, Integer> uses = new HashMap<String, Integer>();
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				CommonVariableDefinition var = (CommonVariableDefinition) el;
+				List<String> refs = new ArrayList<String>();
+				collectTemporaries(var.getAssign(), refs);
+				for(String ref : refs){
+					assertTrue(ref+" defined before use", defined.contains(ref));
+					Integer count = uses.get(ref);
+					uses.put(ref, count == null ? 1 : count + 1);
+				}
+				if(var.getSymbId().startsWith(PREFIX)){
+					assertNotNull(var.getAssign());
+					defined.add(var.getSymbId());
+				}
+			}
+		}
+		assertFalse("Temporaries generated", defined.isEmpty());
+		for(String temporary : defined){
+			Integer count = uses.get(temporary);
+			assertTrue(temporary+" shared", count != null && count >= 2);
+		}
+	}
+	
+	@Test
+	public void testPreserveInput() throws Exception {
+		StructuralModel sm = MacroModels.pkModel();
+		List<PharmMLElement> elements = new ArrayList<PharmMLElement>(sm.getListOfStructuralModelElements());
+		List<Rhs> assigns = new ArrayList<Rhs>();
+		for(PharmMLElement el : elements){
+			if(el instanceof CommonVariableDefinition){
+				assigns.add(((CommonVariableDefinition) el).getAssign());
+			}
+		}
+		
+		MacroOutput first = translator.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput second = translator.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		
+		assertEquals("Same input elements", elements, sm.getListOfStructuralModelElements());
+		int i = 0;
+		for(PharmMLElement el : elements){
+			if(el instanceof CommonVariableDefinition){
+				assertSame("Input assignment unchanged", assigns.get(i++), ((CommonVariableDefinition) el).getAssign());
+				assertFalse("No temporary in input", ((CommonVariableDefinition) el).getSymbId().startsWith(PREFIX));
+			}
+		}
+		assertEquals("Same output size",
+				first.getStructuralModel().getListOfStructuralModelElements().size(),
+				second.getStructuralModel().getListOfStructuralModelElements().size());
+	}
+	
+	private static Map<String, String> toStrings(MacroOutput output){
+		Map<String, String> variables = new HashMap<String, String>();
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				variables.put(((DerivativeVariable) el).getSymbId(), Utils.variableToString((DerivativeVariable) el));
+			} else if(el instanceof VariableDefinition){
+				variables.put(((VariableDefinition) el).getSymbId(), Utils.variableToString((VariableDefinition) el));
+			}
+		}
+		return variables;
+	}
+	
+	private static void collectTemporaries(Object node, List<String> refs){
+		if(node instanceof Rhs){
+			collectTemporaries(((Rhs) node).getContent(), refs);
+		} else if(node instanceof Binop){
+			collectTemporaries(((Binop) node).getOperand1(), refs);
+			collectTemporaries(((Binop) node).getOperand2(), refs);
+		} else if(node instanceof Uniop){
+			collectTemporaries(((Uniop) node).getValue(), refs);
+		} else if(node instanceof SymbolRef){
+			SymbolRef ref = (SymbolRef) node;
+			if(ref.getBlkIdRef() == null && ref.getSymbIdRef() != null && ref.getSymbIdRef().startsWith(PREFIX)){
+				refs.add(ref.getSymbIdRef());
+			}
+		}
+	}
+
+}
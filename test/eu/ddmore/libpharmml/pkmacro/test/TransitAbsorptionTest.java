@@ -0,0 +1,182 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.IValidationReport;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.SimpleParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.NamingPolicy;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+
+public class TransitAbsorptionTest {
+	
+	private static final String TRANSIT_EXAMPLE = "examples/PKmacros_example13.xml";
+	
+	private ILibPharmML testInstance;
+	private IPharmMLResource inputModel;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+		this.inputModel = testInstance.createDomFromResource(new FileInputStream(TRANSIT_EXAMPLE));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+		this.inputModel = null;
+	}
+	
+	@Test
+	public void testFactorialByDefault() throws Exception {
+		MacroOutput output = translate(TranslatorOptions.DEFAULT);
+		assertTrue("Factorial in ODEs", containsOperator(output, Unioperator.FACTORIAL));
+		assertFalse("No log-gamma parameter", containsParameter(output, "logGammaN"));
+	}
+	
+	@Test
+	public void testLogGammaTransit() throws Exception {
+		MacroOutput output = translate(TranslatorOptions.builder().logGammaTransit(true).build());
+		assertFalse("No factorial in ODEs", containsOperator(output, Unioperator.FACTORIAL));
+		assertTrue("log(Ktr) parameter", containsParameter(output, "logKtr"));
+		assertTrue("Log-gamma parameter", containsParameter(output, "logGammaN"));
+		
+		inputModel.getDom().getModelDefinition().getListOfStructuralModel().set(0, output.getStructuralModel());
+		inputModel.setParameter(IPharmMLResource.AUTOSET_ID, false);
+		IValidationReport report = testInstance.getValidator().createValidationReport(inputModel);
+		AssertUtil.assertValid(report);
+	}
+	
+	@Test
+	public void testLogGammaNamingPolicy() throws Exception {
+		NamingPolicy naming = NamingPolicy.builder().logKtrPrefix("LK").logGammaPrefix("LG").build();
+		MacroOutput output = translate(TranslatorOptions.builder().logGammaTransit(true).namingPolicy(naming).build());
+		assertTrue("log(Ktr) parameter", containsParameter(output, "LK"));
+		assertTrue("Log-gamma parameter", containsParameter(output, "LG"));
+		assertFalse("Default log(Ktr) prefix not used", containsParameter(output, "logKtr"));
+		assertFalse("Default log-gamma prefix not used", containsParameter(output, "logGammaN"));
+	}
+	
+	@Test
+	public void testChainNotExpandedWithUnknownCount() throws Exception {
+		MacroOutput output = translate(TranslatorOptions.builder().transitChainThreshold(10).build());
+		assertTrue("Factorial in ODEs", containsOperator(output, Unioperator.FACTORIAL));
+		assertFalse("No transit compartment", containsVariable(output, "Atr"));
+	}
+	
+	@Test
+	public void testChainExpansion() throws Exception {
+		// Ktr = 2 and Mtt = 2, so 3 transit compartments plus the dosing one.
+		setParameterValue("Ktr", 2);
+		setParameterValue("Mtt", 2);
+		
+		MacroOutput output = translate(TranslatorOptions.builder().transitChainThreshold(3).build());
+		assertFalse("No factorial in ODEs", containsOperator(output, Unioperator.FACTORIAL));
+		assertEquals("Transit compartments", 4, countVariables(output, "Atr"));
+		assertTrue("Dose to the chain", output.getListOfInput().get(0).getTarget().getSymbId().startsWith("Atr"));
+		
+		inputModel.getDom().getModelDefinition().getListOfStructuralModel().set(0, output.getStructuralModel());
+		inputModel.setParameter(IPharmMLResource.AUTOSET_ID, false);
+		IValidationReport report = testInstance.getValidator().createValidationReport(inputModel);
+		AssertUtil.assertValid(report);
+	}
+	
+	@Test
+	public void testChainAboveThreshold() throws Exception {
+		setParameterValue("Ktr", 2);
+		setParameterValue("Mtt", 2);
+		
+		MacroOutput output = translate(TranslatorOptions.builder().transitChainThreshold(2).build());
+		assertTrue("Factorial in ODEs", containsOperator(output, Unioperator.FACTORIAL));
+		assertEquals("No transit compartment", 0, countVariables(output, "Atr"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeThreshold() throws Exception {
+		TranslatorOptions.builder().transitChainThreshold(-1);
+	}
+	
+	private void setParameterValue(String symbId, int value){
+		StructuralModel sm = inputModel.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof SimpleParameter && ((SimpleParameter) el).getSymbId().equals(symbId)){
+				((SimpleParameter) el).setAssign(new Rhs(new IntValue(value)));
+			}
+		}
+	}
+	
+	private MacroOutput translate(TranslatorOptions options) throws Exception {
+		StructuralModel sm = inputModel.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+		IndependentVariable time = inputModel.getDom().getListOfIndependentVariable().get(0);
+		return new Translator(options).translate(sm, PharmMLVersion.DEFAULT, time);
+	}
+	
+	private static boolean containsParameter(MacroOutput output, String prefix){
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonParameter && ((CommonParameter) el).getSymbId().startsWith(prefix)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean containsVariable(MacroOutput output, String prefix){
+		return countVariables(output, prefix) > 0;
+	}
+	
+	private static int countVariables(MacroOutput output, String prefix){
+		int count = 0;
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable && ((DerivativeVariable) el).getSymbId().startsWith(prefix)){
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private static boolean containsOperator(MacroOutput output, Unioperator operator){
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable && containsOperator(((DerivativeVariable) el).getAssign(), operator)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean containsOperator(Object node, Unioperator operator){
+		if(node instanceof Rhs){
+			return containsOperator(((Rhs) node).getContent(), operator);
+		} else if(node instanceof Binop){
+			return containsOperator(((Binop) node).getOperand1(), operator) 
+					|| containsOperator(((Binop) node).getOperand2(), operator);
+		} else if(node instanceof Uniop){
+			return ((Uniop) node).getOperator() == operator || containsOperator(((Uniop) node).getValue(), operator);
+		} else {
+			return false;
+		}
+	}
+	
+}
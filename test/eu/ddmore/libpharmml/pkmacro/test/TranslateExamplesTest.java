@@ -31,7 +31,9 @@ import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
 import eu.ddmore.libpharmml.pkmacro.translation.Input;
 import eu.ddmore.libpharmml.pkmacro.translation.InputType;
 import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.NamingPolicy;
 import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
 import eu.ddmore.libpharmml.pkmacro.translation.Utils;
 
 public class TranslateExamplesTest {
@@ -126,6 +128,45 @@ public class TranslateExamplesTest {
 		assertInputEquals(mo.getListOfInput().get(3), InputType.ORAL, 4, Ad4.getSymbId());
 	}
 	
+	@Test
+	public void translateExample12Balanced() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE12);
+		Translator tl = new Translator(TranslatorOptions.builder().balancedOdeTerms(true).build());
+		MacroOutput mo = tl.translate(sm, sm.getUnmarshalVersion(),time);
+		
+		// Same text, but the positive terms are summed in a balanced tree before subtracting the negative one
+		DerivativeVariable Ac = (DerivativeVariable) mo.getStructuralModel().getListOfStructuralModelElements().get(1);
+		assertEquals("[1] dAc/dt = [pm1]ka2 x Ad2 + [pm1]ka3 x Ad3 + [pm1]ka4 x Ad4 - [pm1]k x Ac", 
+				Utils.variableToString(Ac));
+		Binop root = Ac.getAssign().getBinop();
+		assertEquals(Binoperator.MINUS, root.getOperator());
+		Binop positive = (Binop) root.getOperand1();
+		assertEquals(Binoperator.PLUS, positive.getOperator());
+		assertThat("ka2 x Ad2 alone on the left", positive.getOperand1(), instanceOf(Binop.class));
+		assertEquals(Binoperator.TIMES, ((Binop) positive.getOperand1()).getOperator());
+		assertEquals(Binoperator.PLUS, ((Binop) positive.getOperand2()).getOperator());
+		assertEquals(Binoperator.TIMES, ((Binop) root.getOperand2()).getOperator());
+		
+		assertEquals("[2] dAd2/dt = - [pm1]ka2 x Ad2", 
+				Utils.variableToString((DerivativeVariable) mo.getStructuralModel().getListOfStructuralModelElements().get(2)));
+	}
+	
+	@Test
+	public void translateExample12WithNamingPolicy() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE12);
+		NamingPolicy naming = NamingPolicy.builder().depotPrefix("Depot").build();
+		Translator tl = new Translator(TranslatorOptions.builder().namingPolicy(naming).build());
+		MacroOutput mo = tl.translate(sm, sm.getUnmarshalVersion(),time);
+		
+		DerivativeVariable Ac = (DerivativeVariable) mo.getStructuralModel().getListOfStructuralModelElements().get(1);
+		assertEquals("[1] dAc/dt = [pm1]ka2 x Depot2 + [pm1]ka3 x Depot3 + [pm1]ka4 x Depot4 - [pm1]k x Ac", 
+				Utils.variableToString(Ac));
+		
+		DerivativeVariable Depot2 = (DerivativeVariable) mo.getStructuralModel().getListOfStructuralModelElements().get(2);
+		assertEquals("Depot2", Depot2.getSymbId());
+		assertInputEquals(mo.getListOfInput().get(1), InputType.ORAL, 2, Depot2.getSymbId());
+	}
+	
 	@Test
 	public void translateExample13() throws Exception {
 		StructuralModel sm = fetchStructuralModel(EXAMPLE13);
@@ -1,9 +1,13 @@
 package eu.ddmore.libpharmml.pkmacro.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -14,10 +18,19 @@ import eu.ddmore.libpharmml.IPharmMLResource;
 import eu.ddmore.libpharmml.IValidationReport;
 import eu.ddmore.libpharmml.PharmMlFactory;
 import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLRootType;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
 import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
 import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
 import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
 import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
 
 public class TranslateUseCase7Test {
 	
@@ -76,4 +89,108 @@ public class TranslateUseCase7Test {
 		assertEquals("BlkId = "+diffBlockId,diffBlockId,output.getStructuralModel().getBlkId());
 	}
 
+	
+	@Test
+	public void testSetBlkIdValueWithOptions() throws Exception {
+		final String diffBlockId = "unitTestBlkId";
+		StructuralModel inputSM = inputModel.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+		IndependentVariable time = inputModel.getDom().getListOfIndependentVariable().get(0);
+		Translator tl = new Translator(TranslatorOptions.builder()
+				.keepBlockId(false)
+				.translatedBlockId(diffBlockId)
+				.build());
+		MacroOutput output = tl.translate(inputSM, PharmMLVersion.DEFAULT,time);
+		assertEquals("BlkId = "+diffBlockId,diffBlockId,output.getStructuralModel().getBlkId());
+		assertEquals("Options unchanged",diffBlockId,tl.getOptions().getTranslatedBlockId());
+	}
+	
+	@Test
+	public void testPreserveInput() throws Exception {
+		StructuralModel inputSM = inputModel.getDom().getModelDefinition().getListOfStructuralModel().get(0);
+		IndependentVariable time = inputModel.getDom().getListOfIndependentVariable().get(0);
+		List<PharmMLElement> elements = new ArrayList<PharmMLElement>(inputSM.getListOfStructuralModelElements());
+		List<Rhs> assigns = new ArrayList<Rhs>();
+		List<String> printed = new ArrayList<String>();
+		for(PharmMLElement el : elements){
+			if(el instanceof CommonVariableDefinition){
+				CommonVariableDefinition v = (CommonVariableDefinition) el;
+				assigns.add(v.getAssign());
+				printed.add(Utils.variableToString(v));
+			}
+			if(el instanceof DerivativeVariable){
+				assertEquals("No order in input", null, ((DerivativeVariable) el).getOrder());
+			}
+		}
+		
+		Translator tl = new Translator(TranslatorOptions.builder().preserveInput(true).build());
+		MacroOutput first = tl.translate(inputSM, PharmMLVersion.DEFAULT,time);
+		MacroOutput second = tl.translate(inputSM, PharmMLVersion.DEFAULT,time);
+		
+		assertEquals("Same input elements", elements, inputSM.getListOfStructuralModelElements());
+		int i = 0;
+		for(PharmMLElement el : elements){
+			if(el instanceof CommonVariableDefinition){
+				CommonVariableDefinition v = (CommonVariableDefinition) el;
+				assertSame("Input assignment unchanged", assigns.get(i), v.getAssign());
+				assertEquals("Input expression unchanged", printed.get(i), Utils.variableToString(v));
+				i++;
+			}
+			if(el instanceof DerivativeVariable){
+				assertEquals("Input order unchanged", null, ((DerivativeVariable) el).getOrder());
+			}
+		}
+		for(PharmMLElement el : first.getStructuralModel().getListOfStructuralModelElements()){
+			assertFalse("Input variable not in the output", elements.contains(el));
+		}
+		assertEquals("Same output size", 
+				first.getStructuralModel().getListOfStructuralModelElements().size(), 
+				second.getStructuralModel().getListOfStructuralModelElements().size());
+		assertEquals("Same inputs", first.getListOfInput().size(), second.getListOfInput().size());
+		
+		// Same output as a translation modifying its input
+		IPharmMLResource other = testInstance.createDomFromResource(new FileInputStream(USECASE_10));
+		MacroOutput modified = new Translator().translate(
+				other.getDom().getModelDefinition().getListOfStructuralModel().get(0), 
+				PharmMLVersion.DEFAULT, other.getDom().getListOfIndependentVariable().get(0));
+		List<PharmMLElement> expected = modified.getStructuralModel().getListOfStructuralModelElements();
+		List<PharmMLElement> actual = first.getStructuralModel().getListOfStructuralModelElements();
+		assertEquals("Same number of elements", expected.size(), actual.size());
+		for(int j = 0; j < expected.size(); j++){
+			assertEquals("Element "+j, describe(expected.get(j)), describe(actual.get(j)));
+		}
+		assertEquals("Same number of inputs", modified.getListOfInput().size(), first.getListOfInput().size());
+		for(int j = 0; j < modified.getListOfInput().size(); j++){
+			Input expectedInput = modified.getListOfInput().get(j);
+			Input actualInput = first.getListOfInput().get(j);
+			assertEquals("Input "+j, expectedInput.getType(), actualInput.getType());
+			assertEquals("Input "+j, expectedInput.getTarget().getSymbId(), actualInput.getTarget().getSymbId());
+			assertEquals("Input "+j, Utils.objectToString(expectedInput.getAdm()), 
+					Utils.objectToString(actualInput.getAdm()));
+		}
+	}
+	
+	/**
+	 * Describes the class, id, description and content of a variable or a parameter.
+	 */
+	private static String describe(PharmMLElement el){
+		StringBuilder sb = new StringBuilder(el.getClass().getSimpleName());
+		if(el instanceof PharmMLRootType){
+			PharmMLRootType root = (PharmMLRootType) el;
+			sb.append(" id=").append(root.getId());
+			sb.append(" description=").append(root.getDescription() == null ? null : root.getDescription().getValue());
+		}
+		if(el instanceof CommonVariableDefinition){
+			sb.append(" ").append(Utils.variableToString((CommonVariableDefinition) el));
+			sb.append(" type=").append(((CommonVariableDefinition) el).getSymbolType());
+		} else if(el instanceof CommonParameter){
+			sb.append(" ").append(Utils.variableToString((CommonParameter) el));
+		}
+		if(el instanceof DerivativeVariable){
+			DerivativeVariable dv = (DerivativeVariable) el;
+			sb.append(" iv=").append(dv.getIndependentVariable() == null ? null : dv.getIndependentVariable().getSymbIdRef());
+			sb.append(" ic=").append(dv.getInitialCondition() != null);
+		}
+		return sb.toString();
+	}
+
 }
@@ -0,0 +1,287 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.commontypes.AnnotationType;
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLRootType;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.modeldefn.CommonParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.IndividualParameter;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuredModel;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslationCache;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslatorOptions;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class TranslationCacheTest {
+	
+	private static final String EXAMPLE = "examples/PKmacros_example13.xml";
+	private static final String OTHER_EXAMPLE = "examples/PKmacros_advan4.xml";
+	
+	private ILibPharmML testInstance;
+	private IndependentVariable time;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+	}
+	
+	private StructuralModel fetchStructuralModel(String fileName) throws Exception {
+		IPharmMLResource res = testInstance.createDomFromResource(new FileInputStream(fileName));
+		PharmML dom = res.getDom();
+		time = dom.getListOfIndependentVariable().get(0);
+		return dom.getModelDefinition().getListOfStructuralModel().get(0);
+	}
+	
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 10000);
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		MacroOutput expected = new Translator().translate(fetchStructuralModel(EXAMPLE), PharmMLVersion.DEFAULT, time);
+		
+		MacroOutput first = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		MacroOutput second = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		assertEquals("Misses", 1, cache.getMissCount());
+		assertEquals("Hits", 1, cache.getHitCount());
+		assertNotSame("Copied output", first.getStructuralModel(), second.getStructuralModel());
+		assertEquals("Number of elements", 
+				second.getStructuralModel().getListOfStructuralModelElements().size(), 
+				expected.getStructuralModel().getListOfStructuralModelElements().size());
+		assertEquals("Number of inputs", expected.getListOfInput().size(), second.getListOfInput().size());
+		
+		cache.translate(sm, PharmMLVersion.V0_6, time);
+		cache.translate(fetchStructuralModel(OTHER_EXAMPLE), PharmMLVersion.DEFAULT, time);
+		assertEquals("Misses", 3, cache.getMissCount());
+		assertEquals("Size", 3, cache.size());
+	}
+	
+	@Test
+	public void testHitForSeparateDocuments() throws Exception {
+		TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 10000);
+		MacroOutput first = cache.translate(fetchStructuralModel(EXAMPLE), PharmMLVersion.DEFAULT, time);
+		MacroOutput second = cache.translate(fetchStructuralModel(EXAMPLE), PharmMLVersion.DEFAULT, time);
+		assertEquals("Misses", 1, cache.getMissCount());
+		assertEquals("Same content, different objects", 1, cache.getHitCount());
+		assertEquals(describe(first), describe(second));
+	}
+	
+	@Test
+	public void testModifiedOutputs() throws Exception {
+		TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 10000);
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		MacroOutput first = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		List<String> expected = describe(first);
+		
+		for(PharmMLElement el : first.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				CommonVariableDefinition v = (CommonVariableDefinition) el;
+				if(v.getAssign() != null && v.getAssign().getBinop() != null){
+					v.getAssign().getBinop().setOperator(Binoperator.POWER);
+				}
+				v.setSymbId(v.getSymbId()+"_modified");
+			}
+		}
+		first.getStructuralModel().getListOfStructuralModelElements().clear();
+		first.getListOfInput().clear();
+		
+		MacroOutput second = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		assertEquals("Hits", 1, cache.getHitCount());
+		assertEquals("Cached output unchanged", expected, describe(second));
+		MacroOutput third = cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		for(int i = 0; i < second.getListOfInput().size(); i++){
+			assertNotSame("Inputs copied", second.getListOfInput().get(i), third.getListOfInput().get(i));
+			assertNotSame("Targets copied", second.getListOfInput().get(i).getTarget(), 
+					third.getListOfInput().get(i).getTarget());
+		}
+	}
+	
+	@Test
+	public void testEviction() throws Exception {
+		TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 1);
+		for(int i = 0; i < 20; i++){
+			StructuralModel sm = fetchStructuralModel(EXAMPLE);
+			sm.setBlkId("sm"+i);
+			cache.translate(sm, PharmMLVersion.DEFAULT, time);
+		}
+		assertEquals("Misses", 20, cache.getMissCount());
+		assertEquals("Evictions", 20 - cache.size(), cache.getEvictionCount());
+	}
+	
+	@Test
+	public void testSameAsTranslator() throws Exception {
+		TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 10000);
+		MacroOutput expected = new Translator(cache.getOptions())
+				.translate(describedModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput miss = cache.translate(describedModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		MacroOutput hit = cache.translate(describedModel(), PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquals("Hits", 1, cache.getHitCount());
+		assertEquals(describeElements(expected), describeElements(miss));
+		assertEquals(describeElements(expected), describeElements(hit));
+		assertEquals(describe(expected), describe(hit));
+	}
+	
+	@Test
+	public void testStructuredParameterNotCached() throws Exception {
+		TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 10000);
+		StructuralModel sm = MacroModels.pkModel();
+		IndividualParameter parameter = new IndividualParameter();
+		parameter.setSymbId("Vi");
+		StructuredModel structuredModel = new StructuredModel();
+		parameter.setStructuredModel(structuredModel);
+		sm.getListOfStructuralModelElements().add(0, parameter);
+		
+		MacroOutput output = cache.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		cache.translate(sm, PharmMLVersion.DEFAULT, MacroModels.time());
+		assertEquals("Misses", 2, cache.getMissCount());
+		assertEquals("Not cached", 0, cache.size());
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof IndividualParameter && "Vi".equals(((IndividualParameter) el).getSymbId())){
+				assertSame("Structured model kept", structuredModel, ((IndividualParameter) el).getStructuredModel());
+			}
+		}
+	}
+	
+	@Test
+	public void testConcurrentTranslations() throws Exception {
+		final int models = 4;
+		final int threads = 8;
+		final int translations = 25;
+		final TranslationCache cache = new TranslationCache(TranslatorOptions.DEFAULT, 100000);
+		final List<List<String>> expected = new ArrayList<List<String>>();
+		for(int i = 0; i < models; i++){
+			expected.add(describe(new Translator(cache.getOptions())
+					.translate(model(i), PharmMLVersion.DEFAULT, MacroModels.time())));
+		}
+		
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(int t = 0; t < threads; t++){
+				final int offset = t;
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for(int i = 0; i < translations; i++){
+							int index = (offset + i) % models;
+							MacroOutput output = cache.translate(model(index), PharmMLVersion.DEFAULT, MacroModels.time());
+							assertEquals(expected.get(index), describe(output));
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for(Future<Void> result : results){
+				result.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// Each model is translated once, the other threads waiting for its result
+		assertEquals("Misses", models, cache.getMissCount());
+		assertEquals("Hits", threads * translations - models, cache.getHitCount());
+		assertEquals("Size", models, cache.size());
+	}
+	
+	private static StructuralModel model(int index){
+		StructuralModel sm = MacroModels.pkModel();
+		sm.setBlkId("sm"+index);
+		return sm;
+	}
+	
+	/**
+	 * Builds a model whose variables and parameters have an id and a description.
+	 */
+	private static StructuralModel describedModel(){
+		StructuralModel sm = MacroModels.pkModel();
+		IndividualParameter parameter = new IndividualParameter();
+		parameter.setSymbId("F0");
+		parameter.assign(new RealValue(0.5));
+		sm.getListOfStructuralModelElements().add(0, parameter);
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			String symbId = null;
+			if(el instanceof CommonVariableDefinition){
+				symbId = ((CommonVariableDefinition) el).getSymbId();
+			} else if(el instanceof CommonParameter){
+				symbId = ((CommonParameter) el).getSymbId();
+			}
+			if(symbId != null){
+				PharmMLRootType symbol = (PharmMLRootType) el;
+				symbol.setId("id_"+symbId);
+				AnnotationType description = new AnnotationType();
+				description.setValue("Description of "+symbId);
+				symbol.setDescription(description);
+			}
+		}
+		return sm;
+	}
+	
+	/**
+	 * Describes the class, id and description of each element.
+	 */
+	private static List<String> describeElements(MacroOutput output){
+		List<String> description = new ArrayList<String>();
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			String text = el.getClass().getSimpleName();
+			if(el instanceof PharmMLRootType){
+				PharmMLRootType symbol = (PharmMLRootType) el;
+				text += " "+symbol.getId()+" "+(symbol.getDescription() == null ? null : symbol.getDescription().getValue());
+			}
+			description.add(text);
+		}
+		return description;
+	}
+	
+	private static List<String> describe(MacroOutput output){
+		List<String> description = new ArrayList<String>();
+		for(PharmMLElement el : output.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof CommonVariableDefinition){
+				description.add(Utils.variableToString((CommonVariableDefinition) el));
+			} else if(el instanceof CommonParameter){
+				description.add(Utils.variableToString((CommonParameter) el));
+			}
+		}
+		for(Input input : output.getListOfInput()){
+			description.add(input.getNumber()+" "+input.getType()+" "+Utils.objectToString(input.getAdm())
+					+" "+input.getTarget().getSymbId()
+					+" "+(input.getTlag() == null ? null : Utils.operandToString(input.getTlag()))
+					+" "+(input.getP() == null ? null : Utils.operandToString(input.getP())));
+		}
+		return description;
+	}
+
+}
@@ -0,0 +1,154 @@
+package eu.ddmore.libpharmml.pkmacro.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.FileInputStream;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.ILibPharmML;
+import eu.ddmore.libpharmml.IPharmMLResource;
+import eu.ddmore.libpharmml.PharmMlFactory;
+import eu.ddmore.libpharmml.dom.IndependentVariable;
+import eu.ddmore.libpharmml.dom.PharmML;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.PharmMLElement;
+import eu.ddmore.libpharmml.dom.commontypes.Rhs;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.EliminationMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.MacroValue;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacro;
+import eu.ddmore.libpharmml.dom.modeldefn.pkmacro.PKMacroList;
+import eu.ddmore.libpharmml.impl.PharmMLVersion;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+import eu.ddmore.libpharmml.pkmacro.translation.Input;
+import eu.ddmore.libpharmml.pkmacro.translation.MacroOutput;
+import eu.ddmore.libpharmml.pkmacro.translation.TranslationSession;
+import eu.ddmore.libpharmml.pkmacro.translation.Translator;
+import eu.ddmore.libpharmml.pkmacro.translation.Utils;
+
+public class TranslationSessionTest {
+	
+	private static final String EXAMPLE = "examples/PKmacros_example13.xml";
+	
+	private ILibPharmML testInstance;
+	private IndependentVariable time;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.testInstance = PharmMlFactory.getInstance().createLibPharmML();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		this.testInstance = null;
+	}
+	
+	private StructuralModel fetchStructuralModel(String fileName) throws Exception {
+		IPharmMLResource res = testInstance.createDomFromResource(new FileInputStream(fileName));
+		PharmML dom = res.getDom();
+		time = dom.getListOfIndependentVariable().get(0);
+		return dom.getModelDefinition().getListOfStructuralModel().get(0);
+	}
+	
+	@Test
+	public void testUnchangedModel() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		TranslationSession session = new TranslationSession(new Translator(), sm, PharmMLVersion.DEFAULT, time);
+		MacroOutput first = session.translate();
+		MacroOutput second = session.translate();
+		assertEquals("Full translations", 1, session.getFullTranslationCount());
+		assertEquals("Incremental translations", 1, session.getIncrementalTranslationCount());
+		assertEquals(toString(first), toString(second));
+	}
+	
+	@Test
+	public void testIncrementalElimination() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		TranslationSession session = new TranslationSession(new Translator(), sm, PharmMLVersion.DEFAULT, time);
+		String original = toString(session.translate());
+		
+		EliminationMacro elimination = moveFirstElimination(sm, 3);
+		MacroOutput output = session.translate(Collections.singleton(elimination));
+		assertEquals("Full translations", 1, session.getFullTranslationCount());
+		assertEquals("Incremental translations", 1, session.getIncrementalTranslationCount());
+		
+		StructuralModel expectedSM = fetchStructuralModel(EXAMPLE);
+		moveFirstElimination(expectedSM, 3);
+		MacroOutput expected = new Translator().translate(expectedSM, PharmMLVersion.DEFAULT, time);
+		assertEquals(toString(expected), toString(output));
+		assertNotEquals(original, toString(output));
+		
+		// Same result when the changes are detected by the session
+		moveFirstElimination(sm, 1);
+		assertEquals(original, toString(session.translate()));
+		assertEquals("Full translations", 1, session.getFullTranslationCount());
+		assertEquals("Incremental translations", 2, session.getIncrementalTranslationCount());
+	}
+	
+	@Test
+	public void testInvalidEdit() throws Exception {
+		StructuralModel sm = fetchStructuralModel(EXAMPLE);
+		TranslationSession session = new TranslationSession(new Translator(), sm, PharmMLVersion.DEFAULT, time);
+		String original = toString(session.translate());
+		
+		EliminationMacro elimination = moveFirstElimination(sm, 99);
+		try {
+			session.translate(Collections.singleton(elimination));
+			fail("Compartment 99 does not exist");
+		} catch (InvalidMacroException e) {
+			// expected
+		}
+		
+		// The last translation is forgotten
+		moveFirstElimination(sm, 1);
+		assertEquals(original, toString(session.translate(Collections.singleton(elimination))));
+		assertEquals("Full translations", 2, session.getFullTranslationCount());
+		assertEquals("Incremental translations", 0, session.getIncrementalTranslationCount());
+	}
+	
+	/**
+	 * Moves the first elimination of the model to the given compartment.
+	 */
+	private static EliminationMacro moveFirstElimination(StructuralModel sm, int cmt){
+		for(PharmMLElement el : sm.getListOfStructuralModelElements()){
+			if(el instanceof PKMacroList){
+				for(PKMacro macro : ((PKMacroList) el).getListOfMacro()){
+					if(macro instanceof EliminationMacro){
+						for(MacroValue value : macro.getListOfValue()){
+							if("cmt".equals(value.getArgument())){
+								value.setAssign(new Rhs(new IntValue(cmt)));
+							}
+						}
+						return (EliminationMacro) macro;
+					}
+				}
+			}
+		}
+		throw new AssertionError("No elimination macro");
+	}
+	
+	private static String toString(MacroOutput mo){
+		StringBuilder sb = new StringBuilder();
+		for(PharmMLElement el : mo.getStructuralModel().getListOfStructuralModelElements()){
+			if(el instanceof DerivativeVariable){
+				sb.append(Utils.variableToString((DerivativeVariable) el)).append("\n");
+			} else if(el instanceof VariableDefinition){
+				sb.append(Utils.variableToString((VariableDefinition) el)).append("\n");
+			}
+		}
+		for(Input input : mo.getListOfInput()){
+			sb.append(input.getType()).append(" ").append(input.getAdm().valueToString())
+				.append(" ").append(input.getTarget().getSymbId()).append("\n");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,91 @@
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IdAllocatorTest {
+
+	@Test
+	public void testLowestAvailable() throws Exception {
+		IdAllocator ids = new IdAllocator();
+		assertEquals("Starts from 1", 1, ids.lowestAvailable());
+		assertEquals("Not booked by lowestAvailable", 1, ids.lowestAvailable());
+		assertEquals(0, ids.highest());
+
+		assertTrue(ids.book(1));
+		assertTrue(ids.book(2));
+		assertTrue(ids.book(4));
+		assertFalse("Already booked", ids.book(2));
+		assertEquals(3, ids.lowestAvailable());
+		assertEquals(4, ids.highest());
+
+		assertEquals(3, ids.bookLowestAvailable());
+		assertEquals(5, ids.bookLowestAvailable());
+		assertEquals(6, ids.bookLowestAvailable());
+		assertTrue(ids.isBooked(5));
+		assertFalse(ids.isBooked(7));
+	}
+
+	@Test
+	public void testUniqueAfterExistingIds() throws Exception {
+		Random random = new Random(42);
+		IdAllocator ids = new IdAllocator();
+		Set<Integer> booked = new HashSet<Integer>();
+		for(int i = 0; i < 500; i++){
+			int id = 1 + random.nextInt(2000);
+			assertEquals("Booked once", booked.add(id), ids.book(id));
+		}
+
+		for(int i = 0; i < 3000; i++){
+			int expected = 1;
+			while(booked.contains(expected)){
+				expected++;
+			}
+			int id = ids.bookLowestAvailable();
+			assertEquals("Same id as probing from 1", expected, id);
+			assertTrue("Unique id", booked.add(id));
+
+			// ids booked between the allocations, like the cmt numbers of the macros
+			if(i % 7 == 0){
+				int existing = id + 1 + random.nextInt(50);
+				assertEquals(booked.add(existing), ids.book(existing));
+			}
+		}
+	}
+
+	@Test
+	public void testLargeIds() throws Exception {
+		IdAllocator ids = new IdAllocator();
+		assertTrue(ids.book(Integer.MAX_VALUE));
+		assertFalse(ids.book(Integer.MAX_VALUE));
+		assertEquals(Integer.MAX_VALUE, ids.highest());
+		assertEquals(1, ids.bookLowestAvailable());
+
+		final int limit = 1 << 20;
+		for(int i = 2; i < limit; i++){
+			ids.book(i);
+		}
+		ids.book(limit);
+		ids.book(limit + 1);
+		assertEquals("Beyond the bit set", limit + 2, ids.bookLowestAvailable());
+		assertTrue(ids.isBooked(limit + 2));
+		assertEquals(limit + 3, ids.lowestAvailable());
+	}
+
+	@Test
+	public void testNoCompartmentLimit() throws Exception {
+		IdAllocator ids = new IdAllocator();
+		for(int i = 1; i <= 20000; i++){
+			assertEquals(i, ids.bookLowestAvailable());
+		}
+		assertEquals(20000, ids.highest());
+	}
+
+}
@@ -0,0 +1,119 @@
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Operand;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+
+public class OdeTermsTest {
+	
+	@Test
+	public void testChained() throws Exception {
+		DerivativeVariable dv = derivative("Ac");
+		dv.assign(new SymbolRef("a"));
+		OdeTerms terms = fill(dv, "+b", "-c", "+d", "-e");
+		terms.materialize(false);
+		
+		assertEquals("[null] dAc/dt = a + b - c + d - e", Utils.variableToString(dv));
+		Binop root = dv.getAssign().getBinop();
+		assertEquals("Last term at the root", Binoperator.MINUS, root.getOperator());
+		assertEquals("e", ((SymbolRef) root.getOperand2()).getSymbIdRef());
+		assertEquals("Left-deep", 4, depth(root));
+		assertTrue("Cleared", terms.getTargets().isEmpty());
+	}
+	
+	@Test
+	public void testBalanced() throws Exception {
+		DerivativeVariable dv = derivative("Ac");
+		dv.assign(new SymbolRef("a"));
+		fill(dv, "+b", "-c", "+d", "-e").materialize(true);
+		
+		// a + (b + d) - (c + e)
+		Binop root = dv.getAssign().getBinop();
+		assertEquals(Binoperator.MINUS, root.getOperator());
+		Binop positive = (Binop) root.getOperand1();
+		assertEquals(Binoperator.PLUS, positive.getOperator());
+		assertEquals("a", ((SymbolRef) positive.getOperand1()).getSymbIdRef());
+		assertEquals("b", ((SymbolRef) ((Binop) positive.getOperand2()).getOperand1()).getSymbIdRef());
+		assertEquals("d", ((SymbolRef) ((Binop) positive.getOperand2()).getOperand2()).getSymbIdRef());
+		Binop negative = (Binop) root.getOperand2();
+		assertEquals(Binoperator.PLUS, negative.getOperator());
+		assertEquals("c", ((SymbolRef) negative.getOperand1()).getSymbIdRef());
+		assertEquals("e", ((SymbolRef) negative.getOperand2()).getSymbIdRef());
+	}
+	
+	@Test
+	public void testBalancedSingleSign() throws Exception {
+		DerivativeVariable positive = derivative("Ac");
+		fill(positive, "+b").materialize(true);
+		assertEquals("Single term", "b", ((SymbolRef) positive.getAssign().getContent()).getSymbIdRef());
+		
+		DerivativeVariable negative = derivative("Ad");
+		fill(negative, "-b", "-c").materialize(true);
+		Uniop uniop = negative.getAssign().getUniop();
+		assertEquals("Negated sum", Unioperator.MINUS, uniop.getOperator());
+		assertEquals(Binoperator.PLUS, ((Binop) uniop.getValue()).getOperator());
+	}
+	
+	@Test
+	public void testBalancedDepth() throws Exception {
+		String[] signedTerms = new String[1000];
+		for(int i = 0; i < signedTerms.length; i++){
+			signedTerms[i] = (i % 3 == 0 ? "-" : "+") + "x" + i;
+		}
+		DerivativeVariable chained = derivative("Ac");
+		fill(chained, signedTerms).materialize(false);
+		DerivativeVariable balanced = derivative("Ac");
+		fill(balanced, signedTerms).materialize(true);
+		
+		assertEquals("Chained depth", signedTerms.length - 1, depth(chained.getAssign().getBinop()));
+		assertTrue("Logarithmic depth", depth(balanced.getAssign().getBinop()) <= 11);
+		assertEquals("Same terms", countLeaves(chained.getAssign().getBinop()),
+				countLeaves(balanced.getAssign().getBinop()));
+	}
+	
+	private static OdeTerms fill(DerivativeVariable dv, String... signedTerms){
+		OdeTerms terms = new OdeTerms();
+		for(String term : signedTerms){
+			Binoperator op = term.charAt(0) == '-' ? Binoperator.MINUS : Binoperator.PLUS;
+			terms.add(dv, op, new SymbolRef(term.substring(1)));
+		}
+		return terms;
+	}
+	
+	/**
+	 * Number of binary operations on the longest path from the root.
+	 */
+	private static int depth(Operand op){
+		if(op instanceof Binop){
+			return 1 + Math.max(depth(((Binop) op).getOperand1()), depth(((Binop) op).getOperand2()));
+		} else {
+			return 0;
+		}
+	}
+	
+	private static int countLeaves(Operand op){
+		if(op instanceof Binop){
+			return countLeaves(((Binop) op).getOperand1()) + countLeaves(((Binop) op).getOperand2());
+		} else {
+			return 1;
+		}
+	}
+	
+	private static DerivativeVariable derivative(String symbId){
+		DerivativeVariable dv = new DerivativeVariable();
+		dv.setSymbId(symbId);
+		dv.setSymbolType(SymbolType.REAL);
+		return dv;
+	}
+
+}
@@ -0,0 +1,252 @@
+package eu.ddmore.libpharmml.pkmacro.translation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.ddmore.libpharmml.dom.commontypes.CommonVariableDefinition;
+import eu.ddmore.libpharmml.dom.commontypes.DerivativeVariable;
+import eu.ddmore.libpharmml.dom.commontypes.IntValue;
+import eu.ddmore.libpharmml.dom.commontypes.RealValue;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolRef;
+import eu.ddmore.libpharmml.dom.commontypes.SymbolType;
+import eu.ddmore.libpharmml.dom.commontypes.VariableDefinition;
+import eu.ddmore.libpharmml.dom.maths.Binop;
+import eu.ddmore.libpharmml.dom.maths.Binoperator;
+import eu.ddmore.libpharmml.dom.maths.Condition;
+import eu.ddmore.libpharmml.dom.maths.ExpressionValue;
+import eu.ddmore.libpharmml.dom.maths.LogicBinOp;
+import eu.ddmore.libpharmml.dom.maths.Otherwise;
+import eu.ddmore.libpharmml.dom.maths.Piece;
+import eu.ddmore.libpharmml.dom.maths.Piecewise;
+import eu.ddmore.libpharmml.dom.maths.Uniop;
+import eu.ddmore.libpharmml.dom.maths.Unioperator;
+import eu.ddmore.libpharmml.dom.modeldefn.StructuralModel;
+import eu.ddmore.libpharmml.pkmacro.exceptions.InvalidMacroException;
+
+public class VariableFactoryTest {
+	
+	@Test
+	public void testFetchBySymbId() throws Exception {
+		VariableDefinition c = variable("C");
+		DerivativeVariable ac = derivative("Ac1");
+		VariableFactory vf = new VariableFactory(model(c, ac));
+		
+		assertSame("Variable", c, vf.fetchVariable("C"));
+		assertSame("Derivative variable", ac, vf.fetchDerivativeVariable("Ac1"));
+		assertNull("Not a derivative variable", vf.fetchDerivativeVariable("C"));
+		assertNull("Not a variable", vf.fetchVariable("Ac1"));
+		assertNull("Unknown", vf.fetchVariable("D"));
+	}
+	
+	@Test
+	public void testTransformToDerivativeVariable() throws Exception {
+		VariableDefinition a = variable("A");
+		VariableDefinition b = variable("B");
+		VariableFactory vf = new VariableFactory(model(a, b));
+		
+		DerivativeVariable dv = vf.transformToDerivativeVariable(a, null);
+		assertSame("Replaced", dv, vf.fetchDerivativeVariable("A"));
+		assertNull("No more variable", vf.fetchVariable("A"));
+		
+		List<CommonVariableDefinition> stored = new ArrayList<CommonVariableDefinition>(vf.getDefinedVariables());
+		assertEquals("Same number of variables", 2, stored.size());
+		assertSame("Untouched variable first", b, stored.get(0));
+		assertSame("Transformed variable moved at the end", dv, stored.get(1));
+	}
+	
+	@Test
+	public void testGeneratedIndexes() throws Exception {
+		VariableFactory vf = new VariableFactory(model(derivative("Ac5"), variable("Ap")));
+		
+		assertEquals("After the highest index", "Ac6", vf.generateVariable("Ac").getSymbId());
+		assertEquals("Next one", "Ac7", vf.generateDerivativeVariable("Ac", null).getSymbId());
+		assertEquals("Index 0 of the unindexed symbol", "Ap1", vf.generateVariable("Ap").getSymbId());
+		assertEquals("New prefix", "Ad1", vf.generateVariable("Ad").getSymbId());
+		assertEquals("Free index kept", "Ac3", vf.createVariable("Ac", 3).getSymbId());
+		assertEquals("Used index replaced", "Ac8", vf.createVariable("Ac", 5).getSymbId());
+		assertEquals("Parameter", "Ac9", vf.generateParameter("Ac", ParameterType.INDIVIDUAL).getSymbolId());
+		
+		assertTrue(vf.variableExists("Ac3"));
+		assertTrue(vf.variableExists("Ac9"));
+		assertFalse(vf.variableExists("Ac4"));
+		assertFalse(vf.variableExists("Ad2"));
+	}
+	
+	@Test(expected = InvalidMacroException.class)
+	public void testDuplicateSymbol() throws Exception {
+		new VariableFactory(model(variable("Ac1"), derivative("Ac1")));
+	}
+	
+	@Test
+	public void testScanner() throws Exception {
+		VariableFactory.NameScanner scanner = new VariableFactory.NameScanner();
+		
+		assertTrue(scanner.scan("Ac12"));
+		assertEquals("Ac", scanner.getPrefix());
+		assertEquals(12, scanner.getIndex());
+		assertTrue(scanner.isCanonical());
+		
+		assertTrue(scanner.scan("Ac"));
+		assertEquals("Ac", scanner.getPrefix());
+		assertEquals(0, scanner.getIndex());
+		assertFalse(scanner.isCanonical());
+		
+		assertTrue(scanner.scan("Ac01"));
+		assertEquals(1, scanner.getIndex());
+		assertFalse("Leading zero", scanner.isCanonical());
+		
+		assertTrue(scanner.scan("x_Ac1"));
+		assertEquals("x", scanner.getPrefix());
+		assertEquals(0, scanner.getIndex());
+		assertFalse(scanner.isCanonical());
+		
+		assertTrue(scanner.scan("_Ac1"));
+		assertEquals("Ac", scanner.getPrefix());
+		assertEquals(1, scanner.getIndex());
+		assertFalse("Leading underscore", scanner.isCanonical());
+	}
+	
+	@Test
+	public void testScannerFallback() throws Exception {
+		VariableFactory.NameScanner scanner = new VariableFactory.NameScanner();
+		
+		assertFalse("No letter", scanner.scan("123"));
+		assertEquals("123", scanner.getPrefix());
+		assertEquals(0, scanner.getIndex());
+		assertFalse(scanner.isCanonical());
+		
+		assertFalse("No letter", scanner.scan("_"));
+		assertEquals("_", scanner.getPrefix());
+		
+		assertFalse("Index out of the int range", scanner.scan("Ac99999999999"));
+		assertEquals("Ac99999999999", scanner.getPrefix());
+		assertEquals(0, scanner.getIndex());
+	}
+	
+	/**
+	 * Symbols without letters made storeVariable fail with a NullPointerException, and indexes beyond the int
+	 * range with a NumberFormatException.
+	 */
+	@Test
+	public void testStoreSymbolsWithoutPrefix() throws Exception {
+		VariableFactory vf = new VariableFactory(model(variable("_1"), derivative("12"), variable("Ac99999999999")));
+		assertEquals("Stored", 3, vf.getDefinedVariables().size());
+		assertEquals("Generated after them", "Ac1", vf.generateVariable("Ac").getSymbId());
+		assertFalse(vf.variableExists("12"));
+	}
+	
+	@Test(expected = InvalidMacroException.class)
+	public void testDuplicateSymbolWithoutPrefix() throws Exception {
+		new VariableFactory(model(variable("12"), derivative("12")));
+	}
+	
+	@Test
+	public void testCopyOf() throws Exception {
+		SymbolRef ka = new SymbolRef("ka", "pm1");
+		Binop product = new Binop(Binoperator.TIMES, ka, new SymbolRef("Ad1"));
+		DerivativeVariable dv = derivative("Ac");
+		dv.setOrder(2);
+		dv.setIndependentVariable(new SymbolRef("T"));
+		dv.assign(new Binop(Binoperator.MINUS, product, new Uniop(Unioperator.EXP, new RealValue(0.5))));
+		String printed = Utils.variableToString(dv);
+		
+		DerivativeVariable copy = VariableFactory.copyOf(dv);
+		assertEquals("Same expression", printed, Utils.variableToString(copy));
+		assertEquals("T", copy.getIndependentVariable().getSymbIdRef());
+		assertNotSame(dv.getAssign(), copy.getAssign());
+		Binop copiedProduct = (Binop) copy.getAssign().getBinop().getOperand1();
+		assertNotSame("Nested operations copied", product, copiedProduct);
+		assertNotSame(ka, copiedProduct.getOperand1());
+		
+		copiedProduct.setOperator(Binoperator.PLUS);
+		((SymbolRef) copiedProduct.getOperand1()).setSymbIdRef("CL");
+		copy.setOrder(3);
+		assertEquals("Original unchanged", printed, Utils.variableToString(dv));
+	}
+	
+	@Test
+	public void testCopyOfPiecewise() throws Exception {
+		LogicBinOp lt = new LogicBinOp();
+		lt.setOp("lt");
+		lt.getContent().add(MacroOutputJsonReader.toJAXBElement(new SymbolRef("T")));
+		lt.getContent().add(MacroOutputJsonReader.toJAXBElement(new IntValue(2)));
+		Piecewise pw = new Piecewise();
+		pw.getListOfPiece().add(piece(new SymbolRef("a"), lt));
+		pw.getListOfPiece().add(piece(new RealValue(0), null));
+		VariableDefinition v = variable("K");
+		v.assign(pw);
+		
+		VariableDefinition copy = VariableFactory.copyOf(v);
+		Piece copiedPiece = copy.getAssign().getPiecewise().getListOfPiece().get(0);
+		assertNotSame(pw.getListOfPiece().get(0), copiedPiece);
+		assertEquals("a", ((SymbolRef) copiedPiece.getValue()).getSymbIdRef());
+		LogicBinOp copiedLt = copiedPiece.getCondition().getLogicBinop();
+		assertNotSame(lt, copiedLt);
+		assertEquals("lt", copiedLt.getOp());
+		assertEquals(lt.getContent().get(0).getName(), copiedLt.getContent().get(0).getName());
+		assertEquals("T", ((SymbolRef) copiedLt.getContent().get(0).getValue()).getSymbIdRef());
+		assertNotSame(lt.getContent().get(0).getValue(), copiedLt.getContent().get(0).getValue());
+		assertNotNull("Otherwise copied", copy.getAssign().getPiecewise().getListOfPiece().get(1)
+				.getCondition().getOtherwise());
+	}
+	
+	@Test
+	public void testCopyOfDeepExpression() throws Exception {
+		Binop content = new Binop(Binoperator.PLUS, new SymbolRef("x0"), new IntValue(1));
+		for(int i = 2; i < 100000; i++){
+			content = new Binop(Binoperator.PLUS, content, new IntValue(i));
+		}
+		VariableDefinition v = variable("V");
+		v.assign(content);
+		
+		VariableDefinition copy = VariableFactory.copyOf(v);
+		assertEquals(Utils.variableToString(v), Utils.variableToString(copy));
+		assertNotSame(content, copy.getAssign().getBinop());
+	}
+	
+	static StructuralModel model(CommonVariableDefinition... variables){
+		StructuralModel sm = new StructuralModel();
+		sm.setBlkId("sm1");
+		for(CommonVariableDefinition v : variables){
+			sm.getListOfStructuralModelElements().add(v);
+		}
+		return sm;
+	}
+	
+	static VariableDefinition variable(String symbId){
+		VariableDefinition v = new VariableDefinition();
+		v.setSymbId(symbId);
+		v.setSymbolType(SymbolType.REAL);
+		return v;
+	}
+	
+	private static Piece piece(ExpressionValue value, LogicBinOp condition){
+		Piece piece = new Piece();
+		piece.setValue(value);
+		piece.setCondition(new Condition());
+		if(condition == null){
+			piece.getCondition().setOtherwise(new Otherwise());
+		} else {
+			piece.getCondition().setLogicBinop(condition);
+		}
+		return piece;
+	}
+	
+	static DerivativeVariable derivative(String symbId){
+		DerivativeVariable dv = new DerivativeVariable();
+		dv.setSymbId(symbId);
+		dv.setSymbolType(SymbolType.REAL);
+		return dv;
+	}
+
+}